@@ -0,0 +1,262 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks what {@link ClientState#send(org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage, MqttToken)}
+ * does with a publish while the inflight window is full, for each max inflight policy.
+ */
+public class ClientStateInflightPolicyTest {
+
+	private static final String CLIENT_ID = "ClientStateInflightPolicyTest";
+
+	private MqttAsyncClient client;
+	private ClientState state;
+	private volatile boolean failPuts = false;
+
+	@Before
+	public void setUp() throws Exception {
+		client = new MqttAsyncClient("tcp://localhost:1883", CLIENT_ID, new MemoryPersistence());
+		MqttPingSender pingSender = new MqttPingSender() {
+			public void init(ClientComms comms) {
+			}
+
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void schedule(long delayInMilliseconds) {
+			}
+		};
+		MemoryPersistence persistence = new MemoryPersistence() {
+			public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+				if (failPuts) {
+					throw new MqttPersistenceException();
+				}
+				super.put(key, persistable);
+			}
+		};
+		persistence.open(CLIENT_ID, "tcp://localhost:1883");
+		ClientComms comms = new ClientComms(client, persistence, pingSender, null,
+				new SystemHighResolutionTimer());
+		state = comms.getClientState();
+		state.setMaxInflight(1);
+		state.connected();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		state.close();
+		client.close();
+	}
+
+	private MqttPublish publish(int payloadLength) throws MqttException {
+		MqttPublish publish = new MqttPublish("inflight", new MqttMessage(new byte[payloadLength]));
+		publish.getMessage().setQos(1);
+		state.send(publish, new MqttToken(CLIENT_ID));
+		return publish;
+	}
+
+	/**
+	 * Publishes one message and takes it as the sender would, which fills
+	 * the inflight window of one.
+	 */
+	private MqttPublish fillWindow() throws MqttException {
+		MqttPublish first = publish(1);
+		assertSame(first, state.poll());
+		assertEquals(1, state.getActualInFlight());
+		return first;
+	}
+
+	private static void assertReason(int reason, MqttException ex) {
+		assertNotNull(ex);
+		assertEquals(reason, ex.getReasonCode());
+	}
+
+	/**
+	 * Publishes on another thread and reports the outcome through the
+	 * returned latch and exception reference.
+	 */
+	private CountDownLatch publishInBackground(final AtomicReference<MqttException> failure) {
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread publisher = new Thread(new Runnable() {
+			public void run() {
+				try {
+					publish(1);
+				} catch (MqttException ex) {
+					failure.set(ex);
+				} finally {
+					done.countDown();
+				}
+			}
+		}, "InflightPublisher");
+		publisher.setDaemon(true);
+		publisher.start();
+		return done;
+	}
+
+	@Test
+	public void testFailPolicyRejectsWhenFull() throws Exception {
+		state.setMaxInflightPolicy(MqttConnectOptions.MAX_INFLIGHT_POLICY_FAIL, 0, 0);
+		fillWindow();
+		try {
+			publish(1);
+			fail("Publish into a full inflight window should fail");
+		} catch (MqttException ex) {
+			assertReason(MqttException.REASON_CODE_MAX_INFLIGHT, ex);
+		}
+	}
+
+	@Test
+	public void testBlockPolicyTimesOut() throws Exception {
+		state.setMaxInflightPolicy(MqttConnectOptions.MAX_INFLIGHT_POLICY_BLOCK, 200, 0);
+		fillWindow();
+		long start = System.nanoTime();
+		try {
+			publish(1);
+			fail("Publish into a full inflight window should time out");
+		} catch (MqttException ex) {
+			assertReason(MqttException.REASON_CODE_MAX_INFLIGHT, ex);
+		}
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Waited only " + waited + "ms", waited >= 190);
+	}
+
+	@Test
+	public void testBlockPolicyWaitsForAck() throws Exception {
+		state.setMaxInflightPolicy(MqttConnectOptions.MAX_INFLIGHT_POLICY_BLOCK, 0, 0);
+		MqttPublish first = fillWindow();
+
+		AtomicReference<MqttException> failure = new AtomicReference<MqttException>();
+		CountDownLatch done = publishInBackground(failure);
+		assertFalse("Publish should block while the window is full", done.await(200, TimeUnit.MILLISECONDS));
+
+		state.notifyReceivedAck(new MqttPubAck(first.getMessageId()));
+		assertTrue("Publish should continue once the window has space", done.await(5, TimeUnit.SECONDS));
+		assertNull(failure.get());
+		assertEquals(0, state.getActualInFlight());
+		assertNotNull(state.poll());
+		assertEquals(1, state.getActualInFlight());
+	}
+
+	@Test
+	public void testBlockPolicyFailsOnDisconnect() throws Exception {
+		state.setMaxInflightPolicy(MqttConnectOptions.MAX_INFLIGHT_POLICY_BLOCK, 0, 0);
+		fillWindow();
+
+		AtomicReference<MqttException> failure = new AtomicReference<MqttException>();
+		CountDownLatch done = publishInBackground(failure);
+		assertFalse("Publish should block while the window is full", done.await(200, TimeUnit.MILLISECONDS));
+
+		state.disconnected(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+		assertTrue("Disconnect should release the blocked publish", done.await(5, TimeUnit.SECONDS));
+		assertReason(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED, failure.get());
+	}
+
+	@Test
+	public void testQueuePolicyQueuesUpToLimit() throws Exception {
+		state.setMaxInflightPolicy(MqttConnectOptions.MAX_INFLIGHT_POLICY_QUEUE, 0, 10);
+		MqttPublish first = fillWindow();
+
+		MqttPublish second = publish(6);
+		MqttPublish third = publish(4);
+		try {
+			publish(1);
+			fail("Publish beyond the queue limit should fail");
+		} catch (MqttException ex) {
+			assertReason(MqttException.REASON_CODE_MAX_INFLIGHT, ex);
+		}
+		// Queued messages are not sent until the window has space
+		assertNull(state.poll());
+
+		state.notifyReceivedAck(new MqttPubAck(first.getMessageId()));
+		assertSame(second, state.poll());
+		assertNull(state.poll());
+
+		// The bytes taken by the sender are free for new messages again
+		publish(6);
+		state.notifyReceivedAck(new MqttPubAck(second.getMessageId()));
+		assertSame(third, state.poll());
+	}
+
+	@Test
+	public void testQueuePolicyReleasesBytesOfFailedSend() throws Exception {
+		state.setMaxInflightPolicy(MqttConnectOptions.MAX_INFLIGHT_POLICY_QUEUE, 0, 10);
+		fillWindow();
+
+		failPuts = true;
+		try {
+			publish(10);
+			fail("Publish should fail when the message cannot be persisted");
+		} catch (MqttPersistenceException expected) {
+		}
+		failPuts = false;
+		// The failed message holds none of the queue
+		publish(10);
+	}
+
+	@Test
+	public void testQueuePolicyLimitHoldsUnderContention() throws Exception {
+		final int limit = 50;
+		state.setMaxInflightPolicy(MqttConnectOptions.MAX_INFLIGHT_POLICY_QUEUE, 0, limit);
+		fillWindow();
+
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicReference<Throwable> unexpected = new AtomicReference<Throwable>();
+		for (int i = 0; i < threads; i++) {
+			Thread publisher = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < limit; j++) {
+							try {
+								publish(1);
+								queued.incrementAndGet();
+							} catch (MqttException ex) {
+								if (ex.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+									unexpected.set(ex);
+								}
+							}
+						}
+					} catch (Throwable t) {
+						unexpected.set(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "InflightPublisher" + i);
+			publisher.setDaemon(true);
+			publisher.start();
+		}
+		start.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertNull(unexpected.get());
+		// Each queued message took one byte of the limit, and no more fit
+		assertEquals(limit, queued.get());
+	}
+}
@@ -0,0 +1,165 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnack;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRec;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRel;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link ClientState#restoreState()} gives the same result
+ * whether the persisted records are decoded on the calling thread or in
+ * parallel, including for corrupt records and the order messages are
+ * sent again in.
+ */
+public class ClientStateRestoreTest {
+
+	private static final String CLIENT_ID = "ClientStateRestoreTest";
+
+	private MqttAsyncClient client;
+	private MemoryPersistence persistence;
+	private ClientState state;
+
+	@Before
+	public void setUp() throws Exception {
+		client = new MqttAsyncClient("tcp://localhost:1883", CLIENT_ID, new MemoryPersistence());
+		MqttPingSender pingSender = new MqttPingSender() {
+			public void init(ClientComms comms) {
+			}
+
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void schedule(long delayInMilliseconds) {
+			}
+		};
+		persistence = new MemoryPersistence();
+		persistence.open(CLIENT_ID, "tcp://localhost:1883");
+		ClientComms comms = new ClientComms(client, persistence, pingSender, null, new SystemHighResolutionTimer());
+		state = comms.getClientState();
+		state.setMaxInflight(65535);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		state.close();
+		client.close();
+	}
+
+	private static MqttPublish publish(int messageId, int qos) {
+		MqttMessage message = new MqttMessage(("" + messageId).getBytes());
+		message.setQos(qos);
+		MqttPublish publish = new MqttPublish("restore", message);
+		publish.setMessageId(messageId);
+		return publish;
+	}
+
+	/**
+	 * Persists QoS 1 publishes for message IDs 65000 to 65535 and 1 to 2000,
+	 * so the IDs have wrapped, with:
+	 * <ul>
+	 * <li>publish 100 corrupt, and a PUBREL for it, which is then orphaned</li>
+	 * <li>publish 200 at QoS 2 with a PUBREL, which is sent again</li>
+	 * <li>a PUBREL for 3000, which has no publish</li>
+	 * </ul>
+	 */
+	private void persistRecords() throws Exception {
+		for (int msgId = 65000; msgId <= 65535; msgId++) {
+			persistence.put("s-" + msgId, publish(msgId, 1));
+		}
+		for (int msgId = 1; msgId <= 2000; msgId++) {
+			persistence.put("s-" + msgId, publish(msgId, msgId == 200 ? 2 : 1));
+		}
+		// The record ends before the remaining length says it does
+		MqttPublish corrupt = publish(100, 1);
+		persistence.put("s-100", new MqttPersistentData("s-100", corrupt.getHeaderBytes(), 0,
+				corrupt.getHeaderLength(), new byte[0], 0, 0));
+		persistence.put("sc-100", new MqttPubRel(new MqttPubRec(publish(100, 2))));
+		persistence.put("sc-200", new MqttPubRel(new MqttPubRec(publish(200, 2))));
+		persistence.put("sc-3000", new MqttPubRel(new MqttPubRec(publish(3000, 2))));
+	}
+
+	/**
+	 * Connects without a clean session, which queues the restored messages.
+	 */
+	private void reconnect() throws Exception {
+		state.send(new MqttConnect(CLIENT_ID, 4, false, 60, null, null, null, null), new MqttToken(CLIENT_ID));
+		assertTrue(state.poll() instanceof MqttConnect);
+		state.notifyReceivedAck(new MqttConnack((byte) 0x20, new byte[] { 0, 0 }));
+	}
+
+	private List<MqttWireMessage> drain() throws Exception {
+		List<MqttWireMessage> messages = new ArrayList<MqttWireMessage>();
+		MqttWireMessage message;
+		while ((message = state.poll()) != null) {
+			messages.add(message);
+		}
+		return messages;
+	}
+
+	private void testRestore(int parallelism) throws Exception {
+		persistRecords();
+		state.setRestoreParallelism(parallelism);
+		state.restoreState();
+
+		// Corrupt and orphaned records are removed, the others are kept
+		assertFalse(persistence.containsKey("s-100"));
+		assertFalse(persistence.containsKey("sc-100"));
+		assertFalse(persistence.containsKey("sc-3000"));
+		assertTrue(persistence.containsKey("sc-200"));
+		assertTrue(persistence.containsKey("s-200"));
+		assertTrue(persistence.containsKey("s-101"));
+
+		reconnect();
+		List<MqttWireMessage> messages = drain();
+		// The PUBREL goes first, then the publishes from the oldest ID on
+		assertEquals(1 + 536 + 1998, messages.size());
+		assertTrue(messages.get(0) instanceof MqttPubRel);
+		assertEquals(200, messages.get(0).getMessageId());
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int msgId = 65000; msgId <= 65535; msgId++) {
+			expected.add(Integer.valueOf(msgId));
+		}
+		for (int msgId = 1; msgId <= 2000; msgId++) {
+			if (msgId != 100 && msgId != 200) {
+				expected.add(Integer.valueOf(msgId));
+			}
+		}
+		List<Integer> actual = new ArrayList<Integer>();
+		for (MqttWireMessage message : messages.subList(1, messages.size())) {
+			MqttPublish publish = (MqttPublish) message;
+			// Sent again with the DUP flag
+			assertEquals(0x08, publish.getHeader()[0] & 0x08);
+			assertEquals("" + publish.getMessageId(), new String(publish.getMessage().getPayload()));
+			actual.add(Integer.valueOf(publish.getMessageId()));
+		}
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testRestoreOnCallingThread() throws Exception {
+		testRestore(1);
+	}
+
+	@Test
+	public void testParallelRestore() throws Exception {
+		testRestore(4);
+	}
+}
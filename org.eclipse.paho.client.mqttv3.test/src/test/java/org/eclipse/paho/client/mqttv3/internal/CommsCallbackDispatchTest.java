@@ -0,0 +1,193 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttDispatchKey;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that parallel message dispatch keeps the messages of a lane in
+ * order, lets other lanes run past a slow one, and still acknowledges
+ * messages in the order they arrived.
+ */
+public class CommsCallbackDispatchTest {
+
+	private static final String CLIENT_ID = "CommsCallbackDispatchTest";
+	private static final int LANES = 4;
+
+	private MqttAsyncClient client;
+	private ClientState state;
+	private CommsCallback callback;
+
+	// Payloads delivered, by topic, in delivery order
+	private final ConcurrentHashMap<String, List<String>> delivered = new ConcurrentHashMap<String, List<String>>();
+
+	@Before
+	public void setUp() throws Exception {
+		client = new MqttAsyncClient("tcp://localhost:1883", CLIENT_ID, new MemoryPersistence());
+		MqttPingSender pingSender = new MqttPingSender() {
+			public void init(ClientComms comms) {
+			}
+
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void schedule(long delayInMilliseconds) {
+			}
+		};
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open(CLIENT_ID, "tcp://localhost:1883");
+		ClientComms comms = new ClientComms(client, persistence, pingSender, null,
+				new SystemHighResolutionTimer());
+		state = comms.getClientState();
+		state.connected();
+		callback = new CommsCallback(comms);
+		callback.setClientState(state);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		callback.stop();
+		state.close();
+		client.close();
+	}
+
+	private void start(IMqttDispatchKey key, MqttCallback mqttCallback) {
+		callback.setMessageDispatch(LANES, null, key);
+		callback.setCallback(mqttCallback);
+		callback.start(CLIENT_ID, null);
+	}
+
+	private static MqttPublish publish(String topic, int messageId) {
+		MqttMessage message = new MqttMessage(("" + messageId).getBytes());
+		message.setQos(1);
+		MqttPublish publish = new MqttPublish(topic, message);
+		publish.setMessageId(messageId);
+		return publish;
+	}
+
+	private static List<String> payloads(int from, int to, int step) {
+		List<String> list = new ArrayList<String>();
+		for (int i = from; i <= to; i += step) {
+			list.add("" + i);
+		}
+		return list;
+	}
+
+	/**
+	 * @return the message ids of the acks queued for sending, in order
+	 */
+	private List<Integer> acks(int count) throws Exception {
+		List<Integer> ids = new ArrayList<Integer>();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (ids.size() < count && System.currentTimeMillis() < deadline) {
+			MqttWireMessage message = state.poll();
+			if (message == null) {
+				Thread.sleep(10);
+			} else {
+				assertTrue(message instanceof MqttPubAck);
+				ids.add(Integer.valueOf(message.getMessageId()));
+			}
+		}
+		return ids;
+	}
+
+	@Test
+	public void testLanesKeepOrderAndAcksFollowArrival() throws Exception {
+		// Two fast topics of ten messages each, with one slow message ahead of them
+		final CountDownLatch slowRelease = new CountDownLatch(20);
+		final CountDownLatch done = new CountDownLatch(21);
+		// An Integer key is its own hash, so each topic gets a lane of its own
+		start(new IMqttDispatchKey() {
+			public Object getDispatchKey(String topic, MqttMessage message) {
+				return Integer.valueOf(topic.equals("slow") ? 0 : topic.equals("fast/a") ? 1 : 2);
+			}
+		}, new MqttCallback() {
+			public void connectionLost(Throwable cause) {
+			}
+
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				if (topic.equals("slow")) {
+					// Only returns if the other lanes get past this one
+					assertTrue(slowRelease.await(5, TimeUnit.SECONDS));
+				}
+				delivered.putIfAbsent(topic, new CopyOnWriteArrayList<String>());
+				delivered.get(topic).add(new String(message.getPayload()));
+				slowRelease.countDown();
+				done.countDown();
+			}
+
+			public void deliveryComplete(IMqttDeliveryToken token) {
+			}
+		});
+
+		callback.messageArrived(publish("slow", 1));
+		for (int id = 2; id <= 21; id++) {
+			callback.messageArrived(publish(id % 2 == 0 ? "fast/a" : "fast/b", id));
+		}
+		assertTrue("Not all messages were delivered", done.await(10, TimeUnit.SECONDS));
+
+		assertEquals(payloads(2, 20, 2), delivered.get("fast/a"));
+		assertEquals(payloads(3, 21, 2), delivered.get("fast/b"));
+		assertEquals(payloads(1, 21, 1), toStrings(acks(21)));
+	}
+
+	@Test
+	public void testDispatchKeyGroupsTopicsIntoOneLane() throws Exception {
+		final CountDownLatch done = new CountDownLatch(30);
+		final List<String> order = new CopyOnWriteArrayList<String>();
+		start(new IMqttDispatchKey() {
+			public Object getDispatchKey(String topic, MqttMessage message) {
+				return "device";
+			}
+		}, new MqttCallback() {
+			public void connectionLost(Throwable cause) {
+			}
+
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				order.add(new String(message.getPayload()));
+				done.countDown();
+			}
+
+			public void deliveryComplete(IMqttDeliveryToken token) {
+			}
+		});
+		for (int id = 1; id <= 30; id++) {
+			callback.messageArrived(publish("device/" + (id % 3), id));
+		}
+		assertTrue("Not all messages were delivered", done.await(10, TimeUnit.SECONDS));
+
+		// One key, one lane, so the messages of all three topics stay in order
+		assertEquals(payloads(1, 30, 1), order);
+		assertEquals(payloads(1, 30, 1), toStrings(acks(30)));
+	}
+
+	private static List<String> toStrings(List<Integer> ids) {
+		List<String> list = new ArrayList<String>();
+		for (Integer id : ids) {
+			list.add(id.toString());
+		}
+		return list;
+	}
+}
@@ -0,0 +1,142 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttInputStream;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that batched sends write every message in order with fewer
+ * flushes, and that a message acknowledged before it is notified as sent
+ * still completes.
+ */
+public class CommsSenderBatchTest {
+
+	private static final String CLIENT_ID = "CommsSenderBatchTest";
+
+	private MqttAsyncClient client;
+	private ClientComms comms;
+	private ClientState state;
+
+	/**
+	 * A stream that keeps what is written and counts the flushes.
+	 */
+	private static class FlushCountingStream extends ByteArrayOutputStream {
+		private int flushes = 0;
+
+		public synchronized void flush() throws IOException {
+			flushes++;
+		}
+
+		synchronized int getFlushes() {
+			return flushes;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		client = new MqttAsyncClient("tcp://localhost:1883", CLIENT_ID, new MemoryPersistence());
+		MqttPingSender pingSender = new MqttPingSender() {
+			public void init(ClientComms comms) {
+			}
+
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void schedule(long delayInMilliseconds) {
+			}
+		};
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open(CLIENT_ID, "tcp://localhost:1883");
+		comms = new ClientComms(client, persistence, pingSender, null, new SystemHighResolutionTimer());
+		state = comms.getClientState();
+		state.setMaxInflight(65535);
+		state.connected();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		state.close();
+		client.close();
+	}
+
+	private MqttToken publish(int qos, int index) throws Exception {
+		MqttMessage message = new MqttMessage(("" + index).getBytes());
+		message.setQos(qos);
+		MqttToken token = new MqttToken(CLIENT_ID);
+		state.send(new MqttPublish("batch", message), token);
+		return token;
+	}
+
+	@Test
+	public void testAckBeforeNotifySentKeepsResponse() throws Exception {
+		MqttToken token = publish(1, 0);
+		MqttPublish publish = (MqttPublish) state.poll();
+
+		// The PUBACK is processed between the write and the notify after the flush
+		state.notifyReceivedAck(new MqttPubAck(publish.getMessageId()));
+		state.notifySent(publish);
+
+		assertTrue(token.isComplete());
+		assertTrue(token.getResponse() instanceof MqttPubAck);
+		assertNull(token.getException());
+	}
+
+	@Test
+	public void testBatchesWriteInOrderAndFlushLess() throws Exception {
+		testBatches(4, 40);
+	}
+
+	@Test
+	public void testLargeBatchIsNotRecursive() throws Exception {
+		// Far more packets in one batch than a recursive send has stack for
+		testBatches(100000, 20000);
+	}
+
+	private void testBatches(int batchSize, int count) throws Exception {
+		MqttToken[] tokens = new MqttToken[count];
+		for (int i = 0; i < count; i++) {
+			tokens[i] = publish(0, i);
+		}
+		FlushCountingStream out = new FlushCountingStream();
+		// Each publish carries its token, so the sender does not look in the store
+		CommsSender sender = new CommsSender(comms, state, new CommsTokenStore(CLIENT_ID), out);
+		sender.setBatching(batchSize, Integer.MAX_VALUE, 0);
+		sender.start(CLIENT_ID, null);
+		try {
+			for (int i = 0; i < count; i++) {
+				tokens[i].waitForCompletion(5000);
+				assertTrue(tokens[i].isComplete());
+			}
+		} finally {
+			// The sender only stops once the client is disconnected
+			state.disconnected(new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
+			sender.stop();
+		}
+		assertTrue(out.getFlushes() >= (count + batchSize - 1) / batchSize);
+		assertTrue(out.getFlushes() < count);
+
+		MqttInputStream in = new MqttInputStream(state, new ByteArrayInputStream(out.toByteArray()));
+		for (int i = 0; i < count; i++) {
+			MqttPublish publish = (MqttPublish) in.readMqttWireMessage();
+			assertEquals("" + i, new String(publish.getMessage().getPayload()));
+		}
+	}
+}
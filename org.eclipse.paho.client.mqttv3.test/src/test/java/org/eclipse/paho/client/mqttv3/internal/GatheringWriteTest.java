@@ -0,0 +1,296 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttInputStream;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttOutputStream;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a large payload written from its own array after its header
+ * goes out in order when the channel only takes a few bytes at a time, and
+ * that messages are only notified as sent once all their bytes have been
+ * taken.
+ */
+public class GatheringWriteTest {
+
+	private static final String CLIENT_ID = "GatheringWriteTest";
+	private static final int[] SIZES = { 10, 20000, 10, 10, 30000, 100 };
+
+	private MqttAsyncClient client;
+	private ClientComms comms;
+	private ClientState state;
+
+	/**
+	 * A channel that takes at most a few bytes per write, and none at all
+	 * on every third write, as a full socket would. What it takes is kept,
+	 * and passed on to the delegate if there is one.
+	 */
+	private static class ShortWriteChannel implements GatheringByteChannel {
+		private static final int MAX_WRITE = 7;
+
+		private final SocketChannel delegate;
+		private final ByteArrayOutputStream accepted = new ByteArrayOutputStream();
+		private int writes = 0;
+
+		ShortWriteChannel(SocketChannel delegate) {
+			this.delegate = delegate;
+		}
+
+		/**
+		 * Called before each write with the buffers to be written.
+		 */
+		void check(ByteBuffer[] srcs, int offset, int length) {
+		}
+
+		synchronized long getAccepted() {
+			return accepted.size();
+		}
+
+		synchronized byte[] toByteArray() {
+			return accepted.toByteArray();
+		}
+
+		public synchronized int write(ByteBuffer src) throws IOException {
+			return (int) write(new ByteBuffer[] { src }, 0, 1);
+		}
+
+		public synchronized long write(ByteBuffer[] srcs) throws IOException {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			check(srcs, offset, length);
+			if (++writes % 3 == 0) {
+				return 0;
+			}
+			byte[] chunk = new byte[MAX_WRITE];
+			int count = 0;
+			for (int i = offset; i < offset + length && count < MAX_WRITE; i++) {
+				int n = Math.min(srcs[i].remaining(), MAX_WRITE - count);
+				srcs[i].get(chunk, count, n);
+				count += n;
+			}
+			accepted.write(chunk, 0, count);
+			if (delegate != null) {
+				ByteBuffer pass = ByteBuffer.wrap(chunk, 0, count);
+				while (pass.hasRemaining()) {
+					delegate.write(pass);
+				}
+			}
+			return count;
+		}
+
+		public boolean isOpen() {
+			return delegate == null || delegate.isOpen();
+		}
+
+		public void close() throws IOException {
+			if (delegate != null) {
+				delegate.close();
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		client = new MqttAsyncClient("tcp://localhost:1883", CLIENT_ID, new MemoryPersistence());
+		MqttPingSender pingSender = new MqttPingSender() {
+			public void init(ClientComms comms) {
+			}
+
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void schedule(long delayInMilliseconds) {
+			}
+		};
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open(CLIENT_ID, "tcp://localhost:1883");
+		comms = new ClientComms(client, persistence, pingSender, null, new SystemHighResolutionTimer());
+		state = comms.getClientState();
+		state.setMaxInflight(65535);
+		state.connected();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		state.close();
+		client.close();
+	}
+
+	private static byte[] payload(int index, int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) (index * 31 + i);
+		}
+		return payload;
+	}
+
+	private static MqttPublish publish(int index) {
+		MqttMessage message = new MqttMessage(payload(index, SIZES[index]));
+		// Complete as soon as they are sent
+		message.setQos(0);
+		return new MqttPublish("gather", message);
+	}
+
+	/**
+	 * @return the offset of the end of each message in the stream
+	 */
+	private static List<Long> ends(MqttPublish[] publishes) throws Exception {
+		List<Long> ends = new ArrayList<Long>();
+		long end = 0;
+		for (MqttPublish publish : publishes) {
+			end += publish.getHeader().length + publish.getPayload().length;
+			ends.add(Long.valueOf(end));
+		}
+		return ends;
+	}
+
+	private static void checkPublishes(byte[] bytes, ClientState state) throws Exception {
+		MqttInputStream in = new MqttInputStream(state, new ByteArrayInputStream(bytes));
+		for (int i = 0; i < SIZES.length; i++) {
+			MqttPublish publish = (MqttPublish) in.readMqttWireMessage();
+			assertEquals("gather", publish.getTopicName());
+			assertArrayEquals(payload(i, SIZES[i]), publish.getMessage().getPayload());
+		}
+	}
+
+	@Test
+	public void testChannelHandlerShortWrites() throws Exception {
+		final MqttPublish[] publishes = new MqttPublish[SIZES.length];
+		final MqttToken[] tokens = new MqttToken[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++) {
+			publishes[i] = publish(i);
+			tokens[i] = new MqttToken(CLIENT_ID);
+			state.send(publishes[i], tokens[i]);
+		}
+		final List<Long> ends = ends(publishes);
+		final long total = ends.get(ends.size() - 1).longValue();
+		final List<String> failures = new ArrayList<String>();
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+		SocketChannel peer = server.accept();
+		final ShortWriteChannel out = new ShortWriteChannel(channel) {
+			void check(ByteBuffer[] srcs, int offset, int length) {
+				long accepted = getAccepted();
+				for (int i = 0; i < tokens.length; i++) {
+					if (tokens[i].isComplete() && accepted < ends.get(i).longValue()) {
+						failures.add("message " + i + " complete after " + accepted + " bytes");
+					}
+				}
+				if (length > 1 && srcs[offset + 1].hasRemaining()) {
+					// Nothing is encoded after a payload until it has gone
+					long pending = 0;
+					for (int i = offset; i < offset + length; i++) {
+						pending += srcs[i].remaining();
+					}
+					int index = ends.indexOf(Long.valueOf(accepted + pending));
+					if (index < 0 || SIZES[index] < 8 * 1024) {
+						failures.add(pending + " bytes pending after " + accepted + " do not end a large payload");
+					}
+				}
+			}
+		};
+		CommsEventLoop loop = new CommsEventLoop(CLIENT_ID + "-loop");
+		CommsChannelHandler handler = new CommsChannelHandler(comms, state, new CommsTokenStore(CLIENT_ID), channel,
+				out, loop);
+		try {
+			handler.start();
+			// Fails rather than hangs if bytes go missing
+			peer.socket().setSoTimeout(5000);
+			InputStream in = peer.socket().getInputStream();
+			byte[] received = new byte[(int) total];
+			int offset = 0;
+			while (offset < received.length) {
+				int count = in.read(received, offset, received.length - offset);
+				assertTrue(count > 0);
+				offset += count;
+			}
+			for (int i = 0; i < tokens.length; i++) {
+				tokens[i].waitForCompletion(5000);
+				assertTrue(tokens[i].isComplete());
+			}
+			synchronized (out) {
+				assertTrue(failures.toString(), failures.isEmpty());
+			}
+			assertEquals(total, out.getAccepted());
+			assertArrayEquals(out.toByteArray(), received);
+			checkPublishes(received, state);
+		} finally {
+			state.disconnected(new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
+			handler.stop();
+			loop.shutdown();
+			channel.close();
+			peer.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testChannelOutputStreamShortWrites() throws Exception {
+		ShortWriteChannel channel = new ShortWriteChannel(null);
+		MqttOutputStream out = new MqttOutputStream(state, new ChannelOutputStream(channel, 1024));
+		for (int i = 0; i < SIZES.length; i++) {
+			out.write(publish(i));
+		}
+		out.flush();
+		checkPublishes(channel.toByteArray(), state);
+	}
+
+	@Test
+	public void testHeapBytesPerWriteBounded() throws Exception {
+		final List<String> failures = new ArrayList<String>();
+		ShortWriteChannel channel = new ShortWriteChannel(null) {
+			void check(ByteBuffer[] srcs, int offset, int length) {
+				long heap = 0;
+				for (int i = offset; i < offset + length; i++) {
+					if (!srcs[i].isDirect()) {
+						heap += srcs[i].remaining();
+					}
+				}
+				if (heap > GatheringWrites.MAX_HEAP_BYTES) {
+					failures.add(heap + " bytes of heap buffers in one write");
+				}
+			}
+		};
+		MqttOutputStream out = new MqttOutputStream(state, new ChannelOutputStream(channel, 1024));
+		MqttMessage message = new MqttMessage(payload(0, 3 * GatheringWrites.MAX_HEAP_BYTES + 5));
+		message.setQos(0);
+		out.write(new MqttPublish("gather", message));
+		out.flush();
+		synchronized (channel) {
+			assertTrue(failures.toString(), failures.isEmpty());
+		}
+		MqttInputStream in = new MqttInputStream(state, new ByteArrayInputStream(channel.toByteArray()));
+		MqttPublish publish = (MqttPublish) in.readMqttWireMessage();
+		assertArrayEquals(message.getPayload(), publish.getMessage().getPayload());
+	}
+}
@@ -0,0 +1,146 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Test;
+
+public class MessageIdAllocatorTest {
+
+	private static void assertExhausted(MessageIdAllocator allocator) {
+		try {
+			allocator.allocate();
+			fail("All message IDs are in use");
+		} catch (MqttException ex) {
+			assertEquals(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE, ex.getReasonCode());
+		}
+	}
+
+	@Test
+	public void testAllocatesInOrder() throws Exception {
+		MessageIdAllocator allocator = new MessageIdAllocator();
+		assertEquals(0, allocator.size());
+		for (int msgId = 1; msgId <= 200; msgId++) {
+			assertEquals(msgId, allocator.allocate());
+			assertTrue(allocator.isInUse(msgId));
+		}
+		assertEquals(200, allocator.size());
+		assertEquals(201, allocator.getNextMessageId());
+	}
+
+	@Test
+	public void testReleasedIdIsNotReusedStraightAway() throws Exception {
+		MessageIdAllocator allocator = new MessageIdAllocator();
+		assertEquals(1, allocator.allocate());
+		assertEquals(2, allocator.allocate());
+		allocator.release(1);
+		assertFalse(allocator.isInUse(1));
+		assertEquals(3, allocator.allocate());
+		assertEquals(2, allocator.size());
+
+		// Releasing an ID that is not in use, or out of range, changes nothing
+		allocator.release(1);
+		allocator.release(0);
+		allocator.release(70000);
+		assertEquals(2, allocator.size());
+	}
+
+	@Test
+	public void testWrapsAfterMaximumAndSkipsZero() throws Exception {
+		MessageIdAllocator allocator = new MessageIdAllocator();
+		allocator.setLastMessageId(MessageIdAllocator.MAX_MSG_ID - 1);
+		assertEquals(MessageIdAllocator.MAX_MSG_ID, allocator.allocate());
+		assertEquals(MessageIdAllocator.MIN_MSG_ID, allocator.getNextMessageId());
+		assertEquals(1, allocator.allocate());
+		assertEquals(2, allocator.size());
+	}
+
+	@Test
+	public void testWrapFindsIdsBeforeCursorInSameWord() throws Exception {
+		MessageIdAllocator allocator = new MessageIdAllocator();
+		for (int msgId = 1; msgId <= MessageIdAllocator.MAX_MSG_ID; msgId++) {
+			if (msgId != 130) {
+				allocator.markInUse(msgId);
+			}
+		}
+		// The only free ID is behind the cursor, in the cursor's own word
+		allocator.setLastMessageId(140);
+		assertEquals(130, allocator.allocate());
+		assertExhausted(allocator);
+	}
+
+	@Test
+	public void testExhaustion() throws Exception {
+		MessageIdAllocator allocator = new MessageIdAllocator();
+		for (int msgId = 1; msgId <= MessageIdAllocator.MAX_MSG_ID; msgId++) {
+			assertEquals(msgId, allocator.allocate());
+		}
+		assertEquals(MessageIdAllocator.MAX_MSG_ID, allocator.size());
+		assertExhausted(allocator);
+
+		allocator.release(42);
+		assertEquals(42, allocator.allocate());
+		assertExhausted(allocator);
+	}
+
+	@Test
+	public void testClearKeepsZeroReserved() throws Exception {
+		MessageIdAllocator allocator = new MessageIdAllocator();
+		for (int i = 0; i < 1000; i++) {
+			allocator.allocate();
+		}
+		allocator.clear();
+		assertEquals(0, allocator.size());
+		assertTrue(allocator.isInUse(0));
+		for (int msgId = 1; msgId <= MessageIdAllocator.MAX_MSG_ID; msgId++) {
+			assertTrue(allocator.allocate() != 0);
+		}
+		assertExhausted(allocator);
+	}
+
+	@Test
+	public void testConcurrentAllocateAndRelease() throws Exception {
+		final MessageIdAllocator allocator = new MessageIdAllocator();
+		final int threads = 8;
+		final int rounds = 20000;
+		// The number of threads holding each ID, which must never exceed one
+		final AtomicLongArray holders = new AtomicLongArray(MessageIdAllocator.MAX_MSG_ID + 1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						int[] held = new int[16];
+						for (int i = 0; i < rounds; i++) {
+							int slot = i % held.length;
+							if (held[slot] != 0) {
+								holders.decrementAndGet(held[slot]);
+								allocator.release(held[slot]);
+							}
+							int msgId = allocator.allocate();
+							if (msgId == 0 || holders.incrementAndGet(msgId) != 1) {
+								throw new AssertionError("Message ID " + msgId + " handed out twice");
+							}
+							held[slot] = msgId;
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		start.countDown();
+		done.await();
+		assertNull(failure.get());
+		assertEquals(threads * 16, allocator.size());
+	}
+}
@@ -0,0 +1,151 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.junit.Test;
+
+public class MessageIdTokenTableTest {
+
+	private static final String CLIENT_ID = "MessageIdTokenTableTest";
+
+	@Test
+	public void testPutGetRemove() {
+		MessageIdTokenTable table = new MessageIdTokenTable();
+		MqttToken first = new MqttToken(CLIENT_ID);
+		MqttToken second = new MqttToken(CLIENT_ID);
+		table.put(1, first);
+		table.put(65535, second);
+		assertEquals(2, table.size());
+		assertSame(first, table.get(1));
+		assertSame(second, table.get(65535));
+		assertNull(table.get(2));
+
+		assertSame(first, table.remove(1));
+		assertNull(table.remove(1));
+		assertNull(table.get(1));
+		assertEquals(1, table.size());
+
+		// A put after a remove reuses the slot the key left behind
+		table.put(1, second);
+		assertSame(second, table.get(1));
+		table.put(1, first);
+		assertSame(first, table.get(1));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void testGrowsAndDropsTombstones() {
+		MessageIdTokenTable table = new MessageIdTokenTable();
+		MqttToken[] tokens = new MqttToken[2001];
+		for (int msgId = 1; msgId <= 2000; msgId++) {
+			tokens[msgId] = new MqttToken(CLIENT_ID);
+			table.put(msgId, tokens[msgId]);
+			if (msgId % 2 == 0) {
+				assertSame(tokens[msgId], table.remove(msgId));
+			}
+		}
+		assertEquals(1000, table.size());
+		for (int msgId = 1; msgId <= 2000; msgId++) {
+			assertSame(msgId % 2 == 0 ? null : tokens[msgId], table.get(msgId));
+		}
+		Vector<MqttToken> list = new Vector<MqttToken>();
+		table.addTokensTo(list);
+		assertEquals(1000, list.size());
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertNull(table.get(1));
+		list.clear();
+		table.addTokensTo(list);
+		assertEquals(0, list.size());
+	}
+
+	/**
+	 * Each thread puts, reads and removes tokens for its own range of
+	 * message IDs, so the puts of the others keep rebuilding the table
+	 * under its lock-free gets and removes.
+	 */
+	@Test
+	public void testConcurrentPutRemoveGet() throws Exception {
+		final MessageIdTokenTable table = new MessageIdTokenTable();
+		final int threads = 8;
+		final int idsPerThread = 500;
+		final int rounds = 200;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int base = 1 + t * idsPerThread;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						MqttToken[] tokens = new MqttToken[idsPerThread];
+						for (int i = 0; i < idsPerThread; i++) {
+							tokens[i] = new MqttToken(CLIENT_ID);
+						}
+						for (int round = 0; round < rounds && failure.get() == null; round++) {
+							for (int i = 0; i < idsPerThread; i++) {
+								table.put(base + i, tokens[i]);
+							}
+							for (int i = 0; i < idsPerThread; i++) {
+								if (table.get(base + i) != tokens[i]) {
+									throw new AssertionError("Wrong token for " + (base + i));
+								}
+							}
+							// Leave the last round's odd IDs in the table
+							for (int i = 0; i < idsPerThread; i++) {
+								if (round < rounds - 1 || i % 2 == 0) {
+									if (table.remove(base + i) != tokens[i]) {
+										throw new AssertionError("Wrong token removed for " + (base + i));
+									}
+									if (table.get(base + i) != null) {
+										throw new AssertionError("Token still there for " + (base + i));
+									}
+								}
+							}
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		// Snapshots taken while the table changes must only hold tokens
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				Vector<MqttToken> list = new Vector<MqttToken>();
+				while (running.get()) {
+					list.clear();
+					table.addTokensTo(list);
+					for (int i = 0; i < list.size(); i++) {
+						if (list.get(i) == null) {
+							failure.compareAndSet(null, new AssertionError("Null token in snapshot"));
+						}
+					}
+				}
+			}
+		});
+		reader.start();
+		start.countDown();
+		done.await();
+		running.set(false);
+		reader.join();
+
+		assertNull(failure.get());
+		assertEquals(threads * idsPerThread / 2, table.size());
+		Vector<MqttToken> list = new Vector<MqttToken>();
+		table.addTokensTo(list);
+		assertEquals(threads * idsPerThread / 2, list.size());
+	}
+}
@@ -0,0 +1,64 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link SSLBufferPool} reuses buffers that are large enough,
+ * and keeps no more than it is allowed to.
+ */
+public class SSLBufferPoolTest {
+
+	@Test
+	public void testReusesReleasedBuffer() {
+		SSLBufferPool pool = new SSLBufferPool(4);
+		ByteBuffer buffer = pool.acquire(1000);
+		assertTrue(buffer.isDirect());
+		assertTrue(buffer.capacity() >= 1000);
+		buffer.put(new byte[10]);
+		pool.release(buffer);
+
+		ByteBuffer again = pool.acquire(500);
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(again.capacity(), again.limit());
+	}
+
+	@Test
+	public void testDropsBuffersTooSmall() {
+		SSLBufferPool pool = new SSLBufferPool(4);
+		ByteBuffer small = pool.acquire(100);
+		pool.release(small);
+
+		ByteBuffer large = pool.acquire(1000);
+		assertNotSame(small, large);
+		assertTrue(large.capacity() >= 1000);
+		// The small buffer was let go rather than kept
+		assertNotSame(small, pool.acquire(10));
+	}
+
+	@Test
+	public void testKeepsAtMostMaxPooled() {
+		SSLBufferPool pool = new SSLBufferPool(2);
+		ByteBuffer[] buffers = new ByteBuffer[3];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = pool.acquire(100);
+		}
+		for (ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+		int reused = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = pool.acquire(100);
+			for (ByteBuffer released : buffers) {
+				if (buffer == released) {
+					reused++;
+				}
+			}
+		}
+		assertEquals(2, reused);
+	}
+}
@@ -0,0 +1,320 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks {@link SSLEngineChannel} against a TLS server socket in the same
+ * JVM: the handshake and its timeout, records that do not fit the buffers
+ * they are read into, and closing the channel under a blocked reader.
+ */
+public class SSLEngineChannelTest {
+
+	private static final String PASSWORD = "password";
+	private static final int TIMEOUT = 5000;
+
+	private static SSLContext serverContext;
+	private static SSLContext clientContext;
+
+	private ExecutorService executor;
+	private SSLServerSocket server;
+	private SSLSocket peer;
+	private SocketChannel socket;
+	private SSLEngineChannel channel;
+	private CountingPool pool;
+
+	/**
+	 * A pool that counts the buffers handed out and not yet given back, and
+	 * can hand out a smaller buffer than asked for, once.
+	 */
+	private static class CountingPool extends SSLBufferPool {
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private int shrinkNext = 0;
+		private int shrunk = 0;
+
+		CountingPool() {
+			super(4);
+		}
+
+		ByteBuffer acquire(int capacity) {
+			outstanding.incrementAndGet();
+			if (shrinkNext > 0) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(shrinkNext);
+				shrinkNext = 0;
+				shrunk++;
+				return buffer;
+			}
+			return super.acquire(capacity);
+		}
+
+		void release(ByteBuffer buffer) {
+			outstanding.decrementAndGet();
+			super.release(buffer);
+		}
+	}
+
+	@BeforeClass
+	public static void setUpContexts() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream in = SSLEngineChannelTest.class.getClassLoader().getResourceAsStream("serverkeystore.jks");
+		try {
+			keyStore.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, PASSWORD.toCharArray());
+		serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, trustManagers.getTrustManagers(), null);
+	}
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+		pool = new CountingPool();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (channel != null) {
+			channel.close();
+		}
+		if (socket != null) {
+			socket.close();
+		}
+		if (peer != null) {
+			peer.close();
+		}
+		if (server != null) {
+			server.close();
+		}
+		executor.shutdownNow();
+	}
+
+	private SSLEngine createEngine(int port) {
+		SSLEngine engine = clientContext.createSSLEngine("localhost", port);
+		engine.setUseClientMode(true);
+		return engine;
+	}
+
+	/**
+	 * Connects to a TLS server socket and does the handshake on both ends.
+	 */
+	private void connect() throws Exception {
+		server = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0, 1,
+				InetAddress.getLoopbackAddress());
+		Future<SSLSocket> accepted = executor.submit(new Callable<SSLSocket>() {
+			public SSLSocket call() throws Exception {
+				SSLSocket peer = (SSLSocket) server.accept();
+				peer.setSoTimeout(TIMEOUT);
+				peer.startHandshake();
+				return peer;
+			}
+		});
+		socket = SocketChannel.open(server.getLocalSocketAddress());
+		channel = new SSLEngineChannel(socket, createEngine(server.getLocalPort()), pool);
+		channel.handshake(TIMEOUT);
+		peer = accepted.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertTrue(socket.isBlocking());
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 7 + i / 251);
+		}
+		return data;
+	}
+
+	/**
+	 * Has the server write the bytes, on another thread.
+	 */
+	private Future<Void> send(final byte[] bytes) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				OutputStream out = peer.getOutputStream();
+				out.write(bytes);
+				out.flush();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Reads the given number of bytes from the channel, at most chunk bytes
+	 * at a time.
+	 */
+	private byte[] read(int length, int chunk) throws IOException {
+		byte[] bytes = new byte[length];
+		ByteBuffer dst = ByteBuffer.allocate(chunk);
+		int offset = 0;
+		while (offset < length) {
+			dst.clear();
+			dst.limit(Math.min(chunk, length - offset));
+			int count = channel.read(dst);
+			assertTrue(count > 0);
+			dst.flip();
+			dst.get(bytes, offset, count);
+			offset += count;
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testHandshakeTimesOut() throws Exception {
+		// The server takes the connection but never answers
+		ServerSocketChannel silent = ServerSocketChannel.open();
+		try {
+			silent.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			socket = SocketChannel.open(silent.getLocalAddress());
+			SocketChannel accepted = silent.accept();
+			try {
+				channel = new SSLEngineChannel(socket, createEngine(0), pool);
+				long start = System.nanoTime();
+				try {
+					channel.handshake(200);
+					fail("the handshake should time out");
+				} catch (SocketTimeoutException expected) {
+				}
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				assertTrue("took " + elapsed + "ms", elapsed >= 150 && elapsed < TIMEOUT);
+				assertTrue(socket.isBlocking());
+			} finally {
+				accepted.close();
+			}
+		} finally {
+			silent.close();
+		}
+	}
+
+	@Test
+	public void testLargeWritesBothWays() throws Exception {
+		connect();
+		// Many records each way, larger than any one buffer
+		final byte[] down = data(100000);
+		Future<Void> sent = send(down);
+		assertArrayEquals(down, read(down.length, 64 * 1024));
+		sent.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+		final byte[] up = data(150000);
+		Future<byte[]> received = executor.submit(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				byte[] bytes = new byte[up.length];
+				new DataInputStream(peer.getInputStream()).readFully(bytes);
+				return bytes;
+			}
+		});
+		assertEquals(up.length, channel.write(ByteBuffer.wrap(up)));
+		assertArrayEquals(up, received.get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		// An idle connection holds no buffers
+		assertFalse(channel.hasBufferedInput());
+		assertEquals(0, pool.outstanding.get());
+	}
+
+	@Test
+	public void testRecordLargerThanReadBuffer() throws Exception {
+		connect();
+		// Reads whatever the server sent after the handshake, such as tickets
+		send(new byte[] { 1 });
+		assertArrayEquals(new byte[] { 1 }, read(1, 16));
+		assertEquals(0, pool.outstanding.get());
+
+		// The next read starts with a buffer smaller than a record
+		pool.shrinkNext = 512;
+		byte[] bytes = data(10000);
+		send(bytes);
+		assertArrayEquals(bytes, read(bytes.length, 64 * 1024));
+		assertEquals(1, pool.shrunk);
+		assertEquals(0, pool.outstanding.get());
+	}
+
+	@Test
+	public void testDestinationSmallerThanRecord() throws Exception {
+		connect();
+		byte[] bytes = data(5000);
+		send(bytes);
+		byte[] start = read(7, 7);
+		assertArrayEquals(Arrays.copyOf(bytes, 7), start);
+		// The rest of the record waits decrypted
+		assertTrue(channel.hasBufferedInput());
+		byte[] rest = read(bytes.length - 7, 7);
+		assertArrayEquals(Arrays.copyOfRange(bytes, 7, bytes.length), rest);
+		assertFalse(channel.hasBufferedInput());
+		assertEquals(0, pool.outstanding.get());
+	}
+
+	@Test
+	public void testCloseWhileReading() throws Exception {
+		connect();
+		final Thread[] readerThread = new Thread[1];
+		Future<Integer> reader = executor.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				readerThread[0] = Thread.currentThread();
+				return Integer.valueOf(channel.read(ByteBuffer.allocate(1024)));
+			}
+		});
+		// Wait for the reader to block in the socket read, holding the read lock
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (readerThread[0] == null || !Arrays.toString(readerThread[0].getStackTrace()).contains("readNet")) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+		Future<Void> closed = executor.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				channel.close();
+				return null;
+			}
+		});
+		// The close does not wait for the reader
+		closed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertFalse(channel.isOpen());
+		try {
+			reader.get(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("the read should fail once the channel is closed");
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IOException);
+		}
+		// The reader gives back the buffers the close could not take
+		assertEquals(0, pool.outstanding.get());
+		// And the server was told
+		assertEquals(-1, peer.getInputStream().read());
+	}
+}
@@ -0,0 +1,253 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.client.mqttv3.IMqttStreamListener;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttInputStream;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the receive side of streamed payloads: the payload stream of a
+ * blocking transport, skipping what the listener leaves unread, and the
+ * hand over to the callback thread for packets read into memory.
+ */
+public class StreamListenerTest {
+
+	private static final String CLIENT_ID = "StreamListenerTest";
+	private static final int THRESHOLD = 1000;
+
+	private MqttAsyncClient client;
+	private ClientComms comms;
+	private ClientState state;
+
+	@Before
+	public void setUp() throws Exception {
+		client = new MqttAsyncClient("tcp://localhost:1883", CLIENT_ID, new MemoryPersistence());
+		MqttPingSender pingSender = new MqttPingSender() {
+			public void init(ClientComms comms) {
+			}
+
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void schedule(long delayInMilliseconds) {
+			}
+		};
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open(CLIENT_ID, "tcp://localhost:1883");
+		comms = new ClientComms(client, persistence, pingSender, null, new SystemHighResolutionTimer());
+		state = comms.getClientState();
+		state.connected();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		state.close();
+		client.close();
+	}
+
+	private static byte[] payload(int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) i;
+		}
+		return payload;
+	}
+
+	private static MqttPublish publish(String topic, byte[] payload, int qos, int messageId) {
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		MqttPublish publish = new MqttPublish(topic, message);
+		publish.setMessageId(messageId);
+		return publish;
+	}
+
+	private static void write(ByteArrayOutputStream out, MqttWireMessage message) throws Exception {
+		out.write(message.getHeader());
+		out.write(message.getPayload());
+	}
+
+	/**
+	 * A stream that throws a socket timeout once, when it reaches the
+	 * given position.
+	 */
+	private static class TimeoutInputStream extends InputStream {
+		private final InputStream in;
+		private int position = 0;
+		private int timeoutAt;
+
+		TimeoutInputStream(byte[] bytes, int timeoutAt) {
+			this.in = new ByteArrayInputStream(bytes);
+			this.timeoutAt = timeoutAt;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position == timeoutAt) {
+				timeoutAt = -1;
+				throw new SocketTimeoutException();
+			}
+			if (timeoutAt > position) {
+				len = Math.min(len, timeoutAt - position);
+			}
+			int count = in.read(b, off, len);
+			if (count > 0) {
+				position += count;
+			}
+			return count;
+		}
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int count = in.read(bytes, offset, length - offset);
+			assertTrue(count > 0);
+			offset += count;
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testPayloadStreamAndSkipRemaining() throws Exception {
+		comms.setStreamListener(new IMqttStreamListener() {
+			public void messageArrived(String topic, MqttMessage message, InputStream payload, int length) {
+			}
+		}, THRESHOLD);
+		byte[] large = payload(5000);
+		ByteArrayOutputStream packets = new ByteArrayOutputStream();
+		write(packets, publish("large", large, 0, 0));
+		write(packets, publish("small", payload(10), 0, 0));
+		write(packets, new MqttPubAck(7));
+
+		// Time out part way through the part of the payload that is skipped
+		MqttInputStream in = new MqttInputStream(state, new TimeoutInputStream(packets.toByteArray(), 3000));
+		MqttPublish streamed = (MqttPublish) in.readMqttWireMessage();
+		assertEquals("large", streamed.getTopicName());
+		assertEquals(large.length, streamed.getPayloadLength());
+		InputStream payload = streamed.getPayloadStream();
+		assertNotNull(payload);
+		byte[] start = readFully(payload, 100);
+		for (int i = 0; i < start.length; i++) {
+			assertEquals(large[i], start[i]);
+		}
+
+		// The timeout leaves the rest of the payload to skip on the next call
+		assertNull(in.readMqttWireMessage());
+		MqttPublish small = (MqttPublish) in.readMqttWireMessage();
+		assertEquals("small", small.getTopicName());
+		assertNull(small.getPayloadStream());
+		assertArrayEquals(payload(10), small.getMessage().getPayload());
+		assertEquals(7, in.readMqttWireMessage().getMessageId());
+	}
+
+	@Test
+	public void testPayloadStreamWaitsOutTimeouts() throws Exception {
+		comms.setStreamListener(new IMqttStreamListener() {
+			public void messageArrived(String topic, MqttMessage message, InputStream payload, int length) {
+			}
+		}, THRESHOLD);
+		byte[] large = payload(3000);
+		ByteArrayOutputStream packets = new ByteArrayOutputStream();
+		write(packets, publish("large", large, 0, 0));
+
+		MqttInputStream in = new MqttInputStream(state, new TimeoutInputStream(packets.toByteArray(), 1500));
+		InputStream payload = ((MqttPublish) in.readMqttWireMessage()).getPayloadStream();
+		assertArrayEquals(large, readFully(payload, large.length));
+		assertEquals(-1, payload.read());
+	}
+
+	@Test
+	public void testListenerReadingPartOfPayload() throws Exception {
+		final AtomicReference<byte[]> read = new AtomicReference<byte[]>();
+		comms.setStreamListener(new IMqttStreamListener() {
+			public void messageArrived(String topic, MqttMessage message, InputStream payload, int length)
+					throws IOException {
+				assertEquals(4000, length);
+				read.set(readFully(payload, 10));
+			}
+		}, THRESHOLD);
+		ByteArrayOutputStream packets = new ByteArrayOutputStream();
+		write(packets, publish("large", payload(4000), 1, 42));
+		write(packets, publish("small", payload(10), 0, 0));
+
+		MqttInputStream in = new MqttInputStream(state, new ByteArrayInputStream(packets.toByteArray()));
+		state.notifyReceivedMsg(in.readMqttWireMessage());
+		assertArrayEquals(payload(10), read.get());
+
+		// Acknowledged once the listener returns, and the rest is skipped
+		MqttWireMessage ack = state.poll();
+		assertTrue(ack instanceof MqttPubAck);
+		assertEquals(42, ack.getMessageId());
+		MqttPublish small = (MqttPublish) in.readMqttWireMessage();
+		assertEquals("small", small.getTopicName());
+		assertArrayEquals(payload(10), small.getMessage().getPayload());
+	}
+
+	@Test
+	public void testInMemoryPacketStreamedOnCallbackThread() throws Exception {
+		final AtomicReference<Thread> listenerThread = new AtomicReference<Thread>();
+		final AtomicReference<byte[]> read = new AtomicReference<byte[]>();
+		final CountDownLatch done = new CountDownLatch(1);
+		CommsCallback callback = new CommsCallback(comms);
+		callback.setClientState(state);
+		// Manual acks do not apply to streamed messages
+		callback.setManualAcks(true);
+		callback.setStreamListener(new IMqttStreamListener() {
+			public void messageArrived(String topic, MqttMessage message, InputStream payload, int length)
+					throws IOException {
+				listenerThread.set(Thread.currentThread());
+				read.set(readFully(payload, length));
+				done.countDown();
+			}
+		}, THRESHOLD);
+		callback.start(CLIENT_ID, null);
+		try {
+			// As decoded by a non-blocking transport, with the payload in memory
+			MqttPublish publish = publish("large", payload(2000), 1, 43);
+			callback.messageArrived(publish);
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertArrayEquals(payload(2000), read.get());
+			assertTrue(listenerThread.get() != Thread.currentThread());
+			assertTrue(listenerThread.get().getName().startsWith(CLIENT_ID));
+
+			MqttWireMessage ack = null;
+			for (int i = 0; i < 500 && ack == null; i++) {
+				ack = state.poll();
+				if (ack == null) {
+					Thread.sleep(10);
+				}
+			}
+			assertTrue(ack instanceof MqttPubAck);
+			assertEquals(43, ack.getMessageId());
+		} finally {
+			callback.stop();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.eclipse.paho.client.mqttv3.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+public class TopicListenerTrieTest {
+
+	/**
+	 * A listener that is known by the filter it was added for.
+	 */
+	private static IMqttMessageListener listener(final String topicFilter) {
+		return new IMqttMessageListener() {
+			public void messageArrived(String topic, MqttMessage message) {
+			}
+
+			public String toString() {
+				return topicFilter;
+			}
+		};
+	}
+
+	private static TopicListenerTrie trie(String... topicFilters) {
+		TopicListenerTrie trie = new TopicListenerTrie();
+		for (String topicFilter : topicFilters) {
+			trie.put(topicFilter, listener(topicFilter));
+		}
+		return trie;
+	}
+
+	/**
+	 * @return the filters of the listeners matching the topic, sorted
+	 */
+	private static List<String> match(TopicListenerTrie trie, String topicName) {
+		List<String> filters = new ArrayList<String>();
+		for (IMqttMessageListener listener : trie.match(topicName)) {
+			filters.add(listener.toString());
+		}
+		Collections.sort(filters);
+		return filters;
+	}
+
+	private static List<String> list(String... filters) {
+		List<String> list = new ArrayList<String>();
+		Collections.addAll(list, filters);
+		Collections.sort(list);
+		return list;
+	}
+
+	@Test
+	public void testExactAndWildcardMatches() {
+		TopicListenerTrie trie = trie("a/b/c", "a/+/c", "a/#", "+/b/+", "#", "x/y");
+		assertEquals(list("a/b/c", "a/+/c", "a/#", "+/b/+", "#"), match(trie, "a/b/c"));
+		assertEquals(list("a/+/c", "a/#", "#"), match(trie, "a/z/c"));
+		assertEquals(list("x/y", "#"), match(trie, "x/y"));
+		assertEquals(list("#"), match(trie, "x/y/z"));
+	}
+
+	@Test
+	public void testMultiLevelMatchesParentLevel() {
+		TopicListenerTrie trie = trie("sport/#");
+		assertEquals(list("sport/#"), match(trie, "sport"));
+		assertEquals(list("sport/#"), match(trie, "sport/"));
+		assertEquals(list("sport/#"), match(trie, "sport/tennis/player1"));
+		assertEquals(list(), match(trie, "sports"));
+	}
+
+	@Test
+	public void testSingleLevelMatchesEmptyLevel() {
+		TopicListenerTrie trie = trie("a/+/b", "+/x", "a/+");
+		assertEquals(list("a/+/b"), match(trie, "a//b"));
+		assertEquals(list("+/x"), match(trie, "/x"));
+		assertEquals(list("a/+"), match(trie, "a/"));
+		assertEquals(list(), match(trie, "a/b/c/b"));
+	}
+
+	@Test
+	public void testWildcardsDoNotMatchDollarTopics() {
+		TopicListenerTrie trie = trie("#", "+/x", "+/+", "$SYS/#", "$SYS/+", "$SYS/x");
+		assertEquals(list("$SYS/#", "$SYS/+", "$SYS/x"), match(trie, "$SYS/x"));
+		assertEquals(list("$SYS/#"), match(trie, "$SYS"));
+		assertEquals(list("$SYS/#"), match(trie, "$SYS/a/b"));
+		assertEquals(list(), match(trie, "$other/x"));
+		// Only the first level is special
+		assertEquals(list("#", "+/x", "+/+"), match(trie, "a/x"));
+		assertEquals(list("#", "+/+"), match(trie, "a/$x"));
+	}
+
+	@Test
+	public void testReplaceAndRemove() {
+		TopicListenerTrie trie = trie("a/+", "a/#");
+		IMqttMessageListener replacement = listener("a/+");
+		trie.put("a/+", replacement);
+		assertEquals(2, trie.match("a/b").size());
+		assertTrue(trie.match("a/b").contains(replacement));
+
+		trie.remove("a/+");
+		assertEquals(list("a/#"), match(trie, "a/b"));
+		trie.remove("a/+");
+		trie.remove("never/added");
+		trie.remove("a/#");
+		assertEquals(list(), match(trie, "a/b"));
+		assertTrue(trie.isEmpty());
+
+		trie.put("b/#", listener("b/#"));
+		assertFalse(trie.isEmpty());
+		trie.clear();
+		assertTrue(trie.isEmpty());
+		assertEquals(list(), match(trie, "b"));
+	}
+}
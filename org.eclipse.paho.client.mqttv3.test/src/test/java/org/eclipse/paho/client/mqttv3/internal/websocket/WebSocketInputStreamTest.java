@@ -0,0 +1,241 @@
+package org.eclipse.paho.client.mqttv3.internal.websocket;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link WebSocketInputStream} decodes the frame headers and
+ * payloads a server can send, and carries on after a read timeout part
+ * way through a header.
+ */
+public class WebSocketInputStreamTest {
+
+	private static final int OPCODE_CONTINUATION = 0x00;
+	private static final int OPCODE_TEXT = 0x01;
+	private static final int OPCODE_BINARY = 0x02;
+	private static final int OPCODE_CLOSE = 0x08;
+
+	private static final byte[] MASK = { 0x12, 0x34, 0x56, 0x78 };
+
+	private static byte[] payload(int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) (i * 13 + i / 256);
+		}
+		return payload;
+	}
+
+	/**
+	 * Encodes a frame, with the shortest length encoding for the payload.
+	 */
+	private static void frame(ByteArrayOutputStream out, int opcode, boolean fin, byte[] payload, byte[] mask) {
+		out.write((fin ? 0x80 : 0) | opcode);
+		int maskBit = mask != null ? 0x80 : 0;
+		if (payload.length < 126) {
+			out.write(maskBit | payload.length);
+		} else if (payload.length <= 0xFFFF) {
+			out.write(maskBit | 126);
+			out.write(payload.length >> 8);
+			out.write(payload.length);
+		} else {
+			out.write(maskBit | 127);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) ((long) payload.length >> shift));
+			}
+		}
+		if (mask != null) {
+			out.write(mask, 0, mask.length);
+			for (int i = 0; i < payload.length; i++) {
+				out.write(payload[i] ^ mask[i & 3]);
+			}
+		} else {
+			out.write(payload, 0, payload.length);
+		}
+	}
+
+	private static byte[] frame(byte[] payload, byte[] mask) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, OPCODE_BINARY, true, payload, mask);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads the given number of bytes, at most chunk bytes at a time, and
+	 * reads again after a timeout.
+	 */
+	private static byte[] read(InputStream in, int length, int chunk) throws IOException {
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int count;
+			try {
+				count = in.read(bytes, offset, Math.min(chunk, length - offset));
+			} catch (SocketTimeoutException e) {
+				continue;
+			}
+			assertTrue(count > 0);
+			offset += count;
+		}
+		return bytes;
+	}
+
+	private static void testLength(int length) throws IOException {
+		byte[] payload = payload(length);
+		WebSocketInputStream in = new WebSocketInputStream(new ByteArrayInputStream(frame(payload, null)));
+		assertArrayEquals(payload, read(in, length, 4096));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testSevenBitLength() throws IOException {
+		testLength(1);
+		testLength(125);
+	}
+
+	@Test
+	public void testSixteenBitLength() throws IOException {
+		testLength(126);
+		testLength(65535);
+	}
+
+	@Test
+	public void testSixtyFourBitLength() throws IOException {
+		testLength(65536);
+		testLength(200000);
+	}
+
+	@Test
+	public void testNegativeLength() {
+		byte[] header = { (byte) 0x82, 127, (byte) 0x80, 0, 0, 0, 0, 0, 0, 1 };
+		WebSocketInputStream in = new WebSocketInputStream(new ByteArrayInputStream(header));
+		try {
+			in.read(new byte[10], 0, 10);
+			fail("a length with the top bit set should be rejected");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().contains("Length"));
+		}
+	}
+
+	@Test
+	public void testMaskedPayload() throws IOException {
+		byte[] payload = payload(1000);
+		WebSocketInputStream in = new WebSocketInputStream(new ByteArrayInputStream(frame(payload, MASK)));
+		// Chunks that do not line up with the mask
+		assertArrayEquals(payload, read(in, payload.length, 3));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testContinuationFrames() throws IOException {
+		byte[] payload = payload(500);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, OPCODE_BINARY, false, Arrays.copyOfRange(payload, 0, 100), MASK);
+		frame(out, OPCODE_CONTINUATION, false, new byte[0], null);
+		frame(out, OPCODE_CONTINUATION, false, Arrays.copyOfRange(payload, 100, 300), null);
+		frame(out, OPCODE_CONTINUATION, true, Arrays.copyOfRange(payload, 300, 500), MASK);
+		WebSocketInputStream in = new WebSocketInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertArrayEquals(payload, read(in, payload.length, 64));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testCloseFrame() throws IOException {
+		byte[] payload = payload(10);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, OPCODE_BINARY, true, payload, null);
+		frame(out, OPCODE_CLOSE, true, new byte[] { 0x03, (byte) 0xE8 }, null);
+		WebSocketInputStream in = new WebSocketInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertArrayEquals(payload, read(in, payload.length, 64));
+		try {
+			in.read();
+			fail("the close frame should end the stream with an exception");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void testTextFrameRejected() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, OPCODE_TEXT, true, payload(10), null);
+		WebSocketInputStream in = new WebSocketInputStream(new ByteArrayInputStream(out.toByteArray()));
+		try {
+			in.read();
+			fail("a text frame should be rejected");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void testEndOfStreamInHeader() {
+		byte[] frame = frame(payload(300), MASK);
+		WebSocketInputStream in = new WebSocketInputStream(new ByteArrayInputStream(Arrays.copyOf(frame, 5)));
+		try {
+			in.read();
+			fail("a header cut short should be an error");
+		} catch (IOException expected) {
+		}
+	}
+
+	/**
+	 * A stream that throws a socket timeout once, when it reaches the
+	 * given position.
+	 */
+	private static class TimeoutInputStream extends InputStream {
+		private final InputStream in;
+		private int position = 0;
+		private int timeoutAt;
+
+		TimeoutInputStream(byte[] bytes, int timeoutAt) {
+			this.in = new ByteArrayInputStream(bytes);
+			this.timeoutAt = timeoutAt;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position == timeoutAt) {
+				timeoutAt = -1;
+				throw new SocketTimeoutException();
+			}
+			if (timeoutAt > position) {
+				len = Math.min(len, timeoutAt - position);
+			}
+			int count = in.read(b, off, len);
+			if (count > 0) {
+				position += count;
+			}
+			return count;
+		}
+	}
+
+	@Test
+	public void testResumesAfterTimeout() throws IOException {
+		byte[] first = payload(300);
+		byte[] second = payload(70000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		frame(out, OPCODE_BINARY, true, first, MASK);
+		frame(out, OPCODE_BINARY, true, second, MASK);
+		byte[] frames = out.toByteArray();
+		int secondStart = 2 + 2 + 4 + first.length;
+		// Within each header, including its length and mask, and at the start of each payload
+		int[] positions = { 1, 2, 3, 5, 7, 8, secondStart + 1, secondStart + 2, secondStart + 6, secondStart + 10,
+				secondStart + 13, secondStart + 14 };
+		for (int position : positions) {
+			WebSocketInputStream in = new WebSocketInputStream(new TimeoutInputStream(frames, position));
+			assertArrayEquals("timeout at " + position, first, read(in, first.length, 4096));
+			assertArrayEquals("timeout at " + position, second, read(in, second.length, 4096));
+			assertEquals(-1, in.read());
+		}
+	}
+}
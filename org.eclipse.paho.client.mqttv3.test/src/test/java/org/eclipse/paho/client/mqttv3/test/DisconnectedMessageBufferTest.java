@@ -0,0 +1,218 @@
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.BufferedMessage;
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.DisconnectedMessageBuffer;
+import org.eclipse.paho.client.mqttv3.internal.IDiscardedBufferMessageCallback;
+import org.eclipse.paho.client.mqttv3.internal.IDisconnectedBufferCallback;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DisconnectedMessageBufferTest {
+
+	private static MqttPublish publish(String topic, int payloadLength) {
+		return new MqttPublish(topic, new MqttMessage(new byte[payloadLength]));
+	}
+
+	private static List<String> topics(DisconnectedMessageBuffer buffer) {
+		List<String> topics = new ArrayList<String>();
+		for (int i = 0; i < buffer.getMessageCount(); i++) {
+			topics.add(((MqttPublish) buffer.getMessage(i).getMessage()).getTopicName());
+		}
+		return topics;
+	}
+
+	private static List<String> expected(int from, int to) {
+		List<String> topics = new ArrayList<String>();
+		for (int i = from; i < to; i++) {
+			topics.add("t" + i);
+		}
+		return topics;
+	}
+
+	@Test
+	public void testDeleteOldestWrapsAround() throws MqttException {
+		DisconnectedBufferOptions options = new DisconnectedBufferOptions();
+		options.setBufferSize(100);
+		options.setDeleteOldestMessages(true);
+		DisconnectedMessageBuffer buffer = new DisconnectedMessageBuffer(options);
+		final List<String> discarded = new ArrayList<String>();
+		buffer.setMessageDiscardedCallBack(new IDiscardedBufferMessageCallback() {
+			public void messageDiscarded(MqttWireMessage message) {
+				discarded.add(((MqttPublish) message).getTopicName());
+			}
+		});
+		for (int i = 0; i < 250; i++) {
+			buffer.putMessage(publish("t" + i, 10), null);
+		}
+		Assert.assertEquals(expected(150, 250), topics(buffer));
+		Assert.assertEquals(expected(0, 150), discarded);
+
+		// From both halves of the ring, and both ends
+		buffer.deleteMessage(10);
+		buffer.deleteMessage(80);
+		buffer.deleteMessage(0);
+		buffer.deleteMessage(buffer.getMessageCount() - 1);
+		List<String> remaining = expected(151, 249);
+		remaining.remove("t160");
+		remaining.remove("t231");
+		Assert.assertEquals(remaining, topics(buffer));
+		// Each is sent as 2 bytes of fixed header, 6 of topic, 2 of message id and the payload
+		Assert.assertEquals(96 * (2 + 6 + 2 + 10), buffer.getMessageBytes());
+	}
+
+	@Test
+	public void testFull() throws MqttException {
+		DisconnectedBufferOptions options = new DisconnectedBufferOptions();
+		options.setBufferSize(3);
+		DisconnectedMessageBuffer buffer = new DisconnectedMessageBuffer(options);
+		for (int i = 0; i < 3; i++) {
+			buffer.putMessage(publish("t" + i, 10), null);
+		}
+		try {
+			buffer.putMessage(publish("t3", 10), null);
+			Assert.fail("The buffer should be full");
+		} catch (MqttException e) {
+			Assert.assertEquals(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL, e.getReasonCode());
+		}
+		Assert.assertEquals(expected(0, 3), topics(buffer));
+	}
+
+	@Test
+	public void testByteLimit() throws MqttException {
+		DisconnectedBufferOptions options = new DisconnectedBufferOptions();
+		options.setBufferBytes(1000);
+		DisconnectedMessageBuffer buffer = new DisconnectedMessageBuffer(options);
+		// Each is sent as 3 bytes of fixed header, 4 of topic, 2 of message id and the payload
+		buffer.putMessage(publish("t0", 391), null);
+		buffer.putMessage(publish("t1", 391), null);
+		try {
+			buffer.putMessage(publish("t2", 192), null);
+			Assert.fail("The buffer should be full");
+		} catch (MqttException e) {
+			Assert.assertEquals(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL, e.getReasonCode());
+		}
+		buffer.putMessage(publish("t2", 191), null);
+		Assert.assertEquals(1000, buffer.getMessageBytes());
+
+		options.setDeleteOldestMessages(true);
+		buffer.putMessage(publish("t3", 591), null);
+		Assert.assertEquals(expected(2, 4), topics(buffer));
+		Assert.assertEquals(800, buffer.getMessageBytes());
+		try {
+			buffer.putMessage(publish("t4", 1000), null);
+			Assert.fail("The message should never fit");
+		} catch (MqttException e) {
+			Assert.assertEquals(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL, e.getReasonCode());
+		}
+		Assert.assertEquals(2, buffer.getMessageCount());
+	}
+
+	@Test
+	public void testSpill() throws MqttException, IOException {
+		File dir = Files.createTempDirectory("mqttspill").toFile();
+		try {
+			DisconnectedBufferOptions options = new DisconnectedBufferOptions();
+			options.setBufferSize(50);
+			options.setDeleteOldestMessages(true);
+			options.setSpillDirectory(dir.getPath());
+			// Room in memory for the first 5, at 109 bytes each
+			options.setSpillThreshold(550);
+			DisconnectedMessageBuffer buffer = new DisconnectedMessageBuffer(options);
+			final List<String> discarded = new ArrayList<String>();
+			buffer.setMessageDiscardedCallBack(new IDiscardedBufferMessageCallback() {
+				public void messageDiscarded(MqttWireMessage message) {
+					discarded.add(((MqttPublish) message).getTopicName());
+				}
+			});
+			for (int i = 0; i < 60; i++) {
+				MqttMessage message = new MqttMessage(new byte[100]);
+				message.getPayload()[0] = (byte) i;
+				buffer.putMessage(new MqttPublish("t" + (10 + i), message), null);
+			}
+			Assert.assertEquals(1, dir.listFiles().length);
+			Assert.assertEquals(50 * 109, buffer.getMessageBytes());
+			// Those that replaced the 5 dropped from memory went to memory too
+			Assert.assertEquals(45 * 109, buffer.getSpilledBytes());
+			Assert.assertEquals(expected(10, 20), discarded);
+			buffer.deleteMessage(1);
+
+			final List<String> sent = new ArrayList<String>();
+			final List<Integer> payloads = new ArrayList<Integer>();
+			buffer.setPublishCallback(new IDisconnectedBufferCallback() {
+				public void publishBufferedMessage(BufferedMessage bufferedMessage) throws MqttException {
+					MqttPublish publish = (MqttPublish) bufferedMessage.getMessage();
+					sent.add(publish.getTopicName());
+					payloads.add(Integer.valueOf(publish.getMessage().getPayload()[0]));
+				}
+			});
+			buffer.run();
+			List<String> remaining = expected(20, 70);
+			remaining.remove("t21");
+			Assert.assertEquals(remaining, sent);
+			Assert.assertEquals(Integer.valueOf(59), payloads.get(48));
+			Assert.assertEquals(0, buffer.getMessageCount());
+			Assert.assertEquals(0, buffer.getSpilledBytes());
+			Assert.assertEquals(0, dir.listFiles().length);
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static DisconnectedMessageBuffer spillingBuffer(File dir) {
+		DisconnectedBufferOptions options = new DisconnectedBufferOptions();
+		options.setBufferSize(50);
+		options.setSpillDirectory(dir.getPath());
+		options.setSpillThreshold(200);
+		return new DisconnectedMessageBuffer(options);
+	}
+
+	@Test
+	public void testSpillFileCleanup() throws MqttException, IOException {
+		File dir = Files.createTempDirectory("mqttspill").toFile();
+		try {
+			// Left behind by a process that ended
+			File stale = new File(dir, "paho-spill123.buf");
+			Assert.assertTrue(stale.createNewFile());
+			File other = new File(dir, "other.buf");
+			Assert.assertTrue(other.createNewFile());
+
+			DisconnectedMessageBuffer buffer = spillingBuffer(dir);
+			Assert.assertFalse(stale.exists());
+			Assert.assertTrue(other.exists());
+			for (int i = 0; i < 5; i++) {
+				buffer.putMessage(publish("t" + i, 100), null);
+			}
+			Assert.assertTrue(buffer.getSpilledBytes() > 0);
+			Assert.assertEquals(2, dir.listFiles().length);
+
+			// A file still in use is left alone
+			DisconnectedMessageBuffer second = spillingBuffer(dir);
+			Assert.assertEquals(2, dir.listFiles().length);
+			Assert.assertEquals(Arrays.asList("t0", "t1", "t2", "t3", "t4"), topics(buffer));
+
+			second.close();
+			buffer.close();
+			Assert.assertEquals(Arrays.asList(other), Arrays.asList(dir.listFiles()));
+		} finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+}
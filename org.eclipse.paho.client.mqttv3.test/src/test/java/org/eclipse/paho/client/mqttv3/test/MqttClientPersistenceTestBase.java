@@ -0,0 +1,226 @@
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttBulkRestorePersistence;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The behaviour every {@link MqttClientPersistence} must have. Each store
+ * has a subclass which creates it and adds tests of its own.
+ * <p>
+ * A store may split a record between the header and payload arrays as it
+ * likes, so a record is compared as its header bytes followed by its
+ * payload bytes.
+ */
+public abstract class MqttClientPersistenceTestBase {
+
+	protected static final String CLIENT_ID = "persistenceTest";
+	protected static final String SERVER_URI = "tcp://localhost:1883";
+
+	protected File dir;
+
+	/**
+	 * @return a new store, not yet opened, keeping any files under {@link #dir}
+	 */
+	protected abstract MqttClientPersistence createPersistence() throws MqttPersistenceException;
+
+	/**
+	 * @return whether the store keeps its data when it is closed and opened again
+	 */
+	protected boolean isDurable() {
+		return true;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("mqttpersistence").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	protected static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	protected static MqttPersistable data(String header, String payload) {
+		byte[] h = header.getBytes(StandardCharsets.UTF_8);
+		byte[] p = payload == null ? null : payload.getBytes(StandardCharsets.UTF_8);
+		return new MqttPersistentData(null, h, 0, h.length, p, 0, p == null ? 0 : p.length);
+	}
+
+	/**
+	 * @return the header and payload of the record, as one string
+	 */
+	protected static String read(MqttPersistable persistable) throws MqttPersistenceException {
+		String result = new String(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+				persistable.getHeaderLength(), StandardCharsets.UTF_8);
+		if (persistable.getPayloadBytes() != null) {
+			result += new String(persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+					persistable.getPayloadLength(), StandardCharsets.UTF_8);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the keys in the store, sorted
+	 */
+	protected static List<String> keys(MqttClientPersistence persistence) throws MqttPersistenceException {
+		List<String> keys = new ArrayList<String>();
+		Enumeration<?> e = persistence.keys();
+		while (e.hasMoreElements()) {
+			keys.add((String) e.nextElement());
+		}
+		Collections.sort(keys);
+		return keys;
+	}
+
+	protected static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	@Test
+	public void testPutGetRemove() throws MqttPersistenceException {
+		MqttClientPersistence persistence = createPersistence();
+		persistence.open(CLIENT_ID, SERVER_URI);
+		String large = repeat('x', 1000);
+		persistence.put("s-1", data("header1", "|payload1"));
+		persistence.put("s-2", data("header2", large));
+		persistence.put("sc-3", data("header3", ""));
+		persistence.put("r-4", data("header4", null));
+		persistence.put("s-1", data("header1b", "|payload1b"));
+		persistence.remove("s-2");
+		persistence.remove("not-there");
+		Assert.assertTrue(persistence.containsKey("s-1"));
+		Assert.assertFalse(persistence.containsKey("s-2"));
+		Assert.assertEquals(Arrays.asList("r-4", "s-1", "sc-3"), keys(persistence));
+		Assert.assertEquals("header1b|payload1b", read(persistence.get("s-1")));
+		Assert.assertEquals("header3", read(persistence.get("sc-3")));
+		Assert.assertEquals("header4", read(persistence.get("r-4")));
+
+		persistence.clear();
+		Assert.assertTrue(keys(persistence).isEmpty());
+		Assert.assertFalse(persistence.containsKey("s-1"));
+		persistence.close();
+	}
+
+	@Test
+	public void testReopen() throws MqttPersistenceException {
+		if (!isDurable()) {
+			return;
+		}
+		MqttClientPersistence persistence = createPersistence();
+		persistence.open(CLIENT_ID, SERVER_URI);
+		persistence.put("s-1", data("header1", "|payload1"));
+		persistence.put("s-2", data("header2", "|payload2"));
+		persistence.put("sc-3", data("header3", ""));
+		persistence.put("s-1", data("header1b", "|payload1b"));
+		persistence.remove("s-2");
+		persistence.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(Arrays.asList("s-1", "sc-3"), keys(persistence));
+		Assert.assertEquals("header1b|payload1b", read(persistence.get("s-1")));
+		Assert.assertEquals("header3", read(persistence.get("sc-3")));
+		persistence.clear();
+		persistence.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertTrue(keys(persistence).isEmpty());
+		persistence.close();
+	}
+
+	@Test
+	public void testRestoreAll() throws MqttPersistenceException {
+		MqttClientPersistence persistence = createPersistence();
+		if (!(persistence instanceof MqttBulkRestorePersistence)) {
+			return;
+		}
+		persistence.open(CLIENT_ID, SERVER_URI);
+		for (int i = 0; i < 20; i++) {
+			persistence.put("s-" + i, data("header" + i, "|payload" + i));
+		}
+		persistence.remove("s-7");
+		Map<String, MqttPersistable> restored = ((MqttBulkRestorePersistence) persistence).restoreAll();
+		Assert.assertEquals(keys(persistence), sorted(restored.keySet()));
+		for (Map.Entry<String, MqttPersistable> entry : restored.entrySet()) {
+			Assert.assertEquals(read(persistence.get(entry.getKey())), read(entry.getValue()));
+		}
+		// Later changes do not show through
+		persistence.remove("s-1");
+		Assert.assertTrue(restored.containsKey("s-1"));
+		persistence.close();
+	}
+
+	private static List<String> sorted(Collection<String> keys) {
+		List<String> list = new ArrayList<String>(keys);
+		Collections.sort(list);
+		return list;
+	}
+
+	@Test
+	public void testConcurrentPuts() throws Exception {
+		final MqttClientPersistence persistence = createPersistence();
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Thread[] threads = new Thread[4];
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < 200; i++) {
+						persistence.put("s-" + id + "-" + i, data("header", "|payload" + i));
+						if (i % 2 == 0) {
+							persistence.remove("s-" + id + "-" + i);
+						}
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertTrue(failures.toString(), failures.isEmpty());
+		Assert.assertEquals(400, keys(persistence).size());
+		Assert.assertEquals("header|payload199", read(persistence.get("s-3-199")));
+
+		if (isDurable()) {
+			persistence.close();
+			persistence.open(CLIENT_ID, SERVER_URI);
+			Assert.assertEquals(400, keys(persistence).size());
+			Assert.assertEquals("header|payload199", read(persistence.get("s-3-199")));
+		}
+		persistence.close();
+	}
+}
@@ -2,6 +2,9 @@ package org.eclipse.paho.client.mqttv3.test;
 
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 
+import static org.eclipse.paho.client.mqttv3.MqttConnectOptions.MAX_INFLIGHT_POLICY_BLOCK;
+import static org.eclipse.paho.client.mqttv3.MqttConnectOptions.MAX_INFLIGHT_POLICY_FAIL;
+import static org.eclipse.paho.client.mqttv3.MqttConnectOptions.MAX_INFLIGHT_POLICY_QUEUE;
 import static org.eclipse.paho.client.mqttv3.MqttConnectOptions.MQTT_VERSION_3_1;
 import static org.eclipse.paho.client.mqttv3.MqttConnectOptions.MQTT_VERSION_3_1_1;
 import static org.eclipse.paho.client.mqttv3.MqttConnectOptions.MQTT_VERSION_DEFAULT;
@@ -30,4 +33,40 @@ public class MqttConnectOptionsTest {
 			assertEquals("An incorrect version was used \"9\". Acceptable version options are " + MQTT_VERSION_DEFAULT + ", " + MQTT_VERSION_3_1 + " and " + MQTT_VERSION_3_1_1 + ".", e.getMessage());
 		}
 	}
+
+	@Test
+	public void testValidateMaxInflightPolicies() {
+		MqttConnectOptions connectOptions = new MqttConnectOptions();
+
+		connectOptions.setMaxInflightPolicy(MAX_INFLIGHT_POLICY_FAIL);
+		connectOptions.setMaxInflightPolicy(MAX_INFLIGHT_POLICY_BLOCK);
+		connectOptions.setMaxInflightPolicy(MAX_INFLIGHT_POLICY_QUEUE);
+	}
+
+	@Test
+	public void testInvalidMaxInflightPolicies() {
+		MqttConnectOptions connectOptions = new MqttConnectOptions();
+
+		try {
+			connectOptions.setMaxInflightPolicy(9);
+			fail("Max inflight policy is not valid");
+		} catch (IllegalArgumentException e) {
+			assertEquals("An incorrect max inflight policy was used \"9\". Acceptable policy options are " + MAX_INFLIGHT_POLICY_FAIL + ", " + MAX_INFLIGHT_POLICY_BLOCK + " and " + MAX_INFLIGHT_POLICY_QUEUE + ".", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testInvalidMessageDispatchLanes() {
+		MqttConnectOptions connectOptions = new MqttConnectOptions();
+		assertEquals(0, connectOptions.getMessageDispatchLanes());
+
+		connectOptions.setMessageDispatchLanes(4);
+		assertEquals(4, connectOptions.getMessageDispatchLanes());
+		try {
+			connectOptions.setMessageDispatchLanes(-1);
+			fail("Message dispatch lanes is not valid");
+		} catch (IllegalArgumentException e) {
+			assertEquals(4, connectOptions.getMessageDispatchLanes());
+		}
+	}
 }
@@ -1,10 +1,27 @@
 package org.eclipse.paho.client.mqttv3.test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttStreamingMessage;
+import org.eclipse.paho.client.mqttv3.TimerPingSender;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+import org.eclipse.paho.client.mqttv3.internal.SystemHighResolutionTimer;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttOutputStream;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubComp;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRec;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRel;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -163,4 +180,250 @@ public class MqttDataTypesTest {
 		}
 	}
 
+	@Test
+	public void TestEncodeHeaderMatchesGetHeader() throws MqttException {
+		String[] topics = { "", "a", "sport/tennis/player1", "葛渚噓/\uD801\uDC37" };
+		int[] payloadSizes = { 0, 1, 120, 125, 126, 16380, 16381 };
+		for (String topic : topics) {
+			for (int payloadSize : payloadSizes) {
+				for (int qos = 0; qos <= 2; qos++) {
+					MqttMessage message = new MqttMessage(new byte[payloadSize]);
+					message.setQos(qos);
+					MqttPublish publish = new MqttPublish(topic, message);
+					publish.setMessageId(65535);
+					ByteBuffer buffer = ByteBuffer.allocate(publish.getEncodedHeaderLength());
+					publish.encodeHeader(buffer);
+					Assert.assertFalse(buffer.hasRemaining());
+					Assert.assertArrayEquals(publish.getHeader(), buffer.array());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void TestDecodePublishInPlace() throws IOException, MqttException {
+		byte[] payload = "Answer to life the universe and everything".getBytes(StandardCharsets.UTF_8);
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(1);
+		MqttPublish publish = new MqttPublish("$shared/葛渚噓/GVTDurTopic02", message);
+		publish.setMessageId(4242);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(publish.getHeader());
+		baos.write(publish.getPayload());
+		byte[] packet = baos.toByteArray();
+
+		// Split off the fixed header, as the input stream does
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 1, packet.length - 1));
+		byte[] data = new byte[MqttWireMessage.readMBI(dis).getValue()];
+		dis.readFully(data);
+		MqttPublish decoded = (MqttPublish) MqttWireMessage.createWireMessage(packet[0], data);
+
+		Assert.assertEquals("$shared/葛渚噓/GVTDurTopic02", decoded.getTopicName());
+		Assert.assertEquals(4242, decoded.getMessageId());
+		Assert.assertEquals(1, decoded.getMessage().getQos());
+		Assert.assertEquals(payload.length, decoded.getMessage().getPayloadLength());
+		ByteBuffer view = decoded.getMessage().getPayloadBuffer();
+		Assert.assertTrue(view.isReadOnly());
+		Assert.assertEquals(ByteBuffer.wrap(payload), view);
+		Assert.assertArrayEquals(payload, decoded.getMessage().getPayload());
+		Assert.assertArrayEquals(payload, decoded.getPayload());
+
+		// Changing the payload replaces the view
+		decoded.getMessage().setPayload(new byte[] { 1, 2, 3 });
+		Assert.assertEquals(3, decoded.getMessage().getPayloadLength());
+		Assert.assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), decoded.getMessage().getPayloadBuffer());
+	}
+
+	@Test(expected = MqttException.class)
+	public void TestDecodeTruncatedPublish() throws MqttException {
+		// The topic length says 16 bytes, but only 2 follow
+		byte[] data = { 0, 16, 'a', 'b' };
+		MqttWireMessage.createWireMessage((byte) (MqttWireMessage.MESSAGE_TYPE_PUBLISH << 4), data);
+	}
+
+	@Test
+	public void TestPayloadBufferIsIndependent() {
+		MqttMessage message = new MqttMessage(new byte[] { 1, 2, 3, 4 });
+		ByteBuffer first = message.getPayloadBuffer();
+		first.get();
+		Assert.assertEquals(4, message.getPayloadBuffer().remaining());
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, message.getPayload()));
+	}
+
+	@Test
+	public void TestStreamedPublishHeader() throws IOException, MqttException {
+		byte[] payload = new byte[20000];
+		MqttMessage inMemory = new MqttMessage(payload);
+		inMemory.setQos(0);
+		MqttPublish publish = new MqttPublish("a/b", inMemory);
+		MqttStreamingMessage message = new MqttStreamingMessage(new ByteArrayInputStream(payload), payload.length);
+		MqttPublish streamed = new MqttPublish("a/b", message);
+		Assert.assertTrue(streamed.isPayloadStreamed());
+		Assert.assertEquals(payload.length, streamed.getPayloadLength());
+		ByteBuffer buffer = ByteBuffer.allocate(streamed.getEncodedHeaderLength());
+		streamed.encodeHeader(buffer);
+		Assert.assertArrayEquals(publish.getHeader(), buffer.array());
+
+		// A stream can only be read once
+		ReadableByteChannel channel = message.openPayload();
+		Assert.assertEquals(8192, channel.read(ByteBuffer.allocate(8192)));
+		try {
+			message.openPayload();
+			Assert.fail("a stream can only be read once");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void TestStreamedFileIsResendable() throws IOException {
+		File file = File.createTempFile("payload", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write("0123456789".getBytes(StandardCharsets.UTF_8));
+			out.close();
+			FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+			MqttStreamingMessage message = new MqttStreamingMessage(channel, 2, 5);
+			message.setQos(2);
+			Assert.assertTrue(message.isResendable());
+			for (int i = 0; i < 2; i++) {
+				ByteBuffer buffer = ByteBuffer.allocate(5);
+				message.openPayload().read(buffer);
+				Assert.assertEquals("23456", new String(buffer.array(), StandardCharsets.UTF_8));
+			}
+			Assert.assertEquals(0, channel.position());
+			channel.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void TestStreamedQoS1NeedsResendableSource() {
+		new MqttStreamingMessage(new ByteArrayInputStream(new byte[1]), 1).setQos(1);
+	}
+
+	@Test
+	public void TestEncodeMBIBoundaries() throws IOException {
+		long[] numbers = { 0, 127, 128, 16383, 16384, 2097151, 2097152, 268435455 };
+		int[] lengths = { 1, 1, 2, 2, 3, 3, 4, 4 };
+		for (int i = 0; i < numbers.length; i++) {
+			byte[] encoded = MqttWireMessage.encodeMBI(numbers[i]);
+			Assert.assertEquals(lengths[i], encoded.length);
+			Assert.assertEquals(lengths[i], MqttWireMessage.getMBILength(numbers[i]));
+
+			ByteBuffer buffer = ByteBuffer.allocate(lengths[i]);
+			MqttWireMessage.encodeMBI(numbers[i], buffer);
+			Assert.assertFalse(buffer.hasRemaining());
+			Assert.assertArrayEquals(encoded, buffer.array());
+
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(encoded));
+			Assert.assertEquals(numbers[i], MqttWireMessage.readMBI(dis).getValue());
+		}
+		Assert.assertArrayEquals(new byte[] { (byte) 0x80, 0x01 }, MqttWireMessage.encodeMBI(128));
+		Assert.assertArrayEquals(new byte[] { (byte) 0xff, 0x7f }, MqttWireMessage.encodeMBI(16383));
+		Assert.assertArrayEquals(new byte[] { (byte) 0x80, (byte) 0x80, 0x01 }, MqttWireMessage.encodeMBI(16384));
+	}
+
+	@Test
+	public void TestEncodeUTF8InPlace() throws MqttException {
+		String[] strings = { "", "sport/tennis", "caf\u00e9", "葛渚噓", "\uD801\uDC37/x", "a\u00e9葛\uD83D\uDE00" };
+		for (String string : strings) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			MqttWireMessage.encodeUTF8(new DataOutputStream(baos), string);
+			byte[] expected = baos.toByteArray();
+
+			int length = MqttWireMessage.getUTF8Length(string);
+			Assert.assertEquals(string.getBytes(StandardCharsets.UTF_8).length, length);
+			ByteBuffer buffer = ByteBuffer.allocate(length + 2);
+			MqttWireMessage.encodeUTF8(buffer, string, length);
+			Assert.assertFalse(buffer.hasRemaining());
+			Assert.assertArrayEquals(expected, buffer.array());
+		}
+	}
+
+	private static MqttOutputStream outputStream(OutputStream out) throws MqttException {
+		String clientId = "MqttDataTypesTest";
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open(clientId, "tcp://localhost:1883");
+		MqttAsyncClient client = new MqttAsyncClient("tcp://localhost:1883", clientId, new MemoryPersistence());
+		ClientComms comms = new ClientComms(client, persistence, new TimerPingSender(), null,
+				new SystemHighResolutionTimer());
+		return new MqttOutputStream(comms.getClientState(), out);
+	}
+
+	private static byte[] getBytes(MqttWireMessage message) throws IOException, MqttException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(message.getHeader());
+		baos.write(message.getPayload());
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void TestOutputStreamEncodesPublish() throws IOException, MqttException {
+		// Remaining lengths either side of the MBI boundaries. Packets larger
+		// than the send buffer take the path that writes the payload directly.
+		int[] remainingLengths = { 127, 128, 16383, 16384 };
+		String topic = "a/葛";
+		int topicLength = 2 + MqttWireMessage.getUTF8Length(topic);
+		for (int qos = 0; qos <= 2; qos++) {
+			for (int remainingLength : remainingLengths) {
+				byte[] payload = new byte[remainingLength - topicLength - (qos > 0 ? 2 : 0)];
+				new java.util.Random(remainingLength).nextBytes(payload);
+				MqttMessage message = new MqttMessage(payload);
+				message.setQos(qos);
+				MqttPublish publish = new MqttPublish(topic, message);
+				publish.setMessageId(qos > 0 ? 0x1234 : 0);
+
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				MqttOutputStream out = outputStream(baos);
+				out.write(publish);
+				byte[] expected = getBytes(publish);
+				Assert.assertEquals(expected.length, out.getUnflushedBytes());
+				out.flush();
+				Assert.assertEquals(0, out.getUnflushedBytes());
+				Assert.assertArrayEquals(expected, baos.toByteArray());
+				Assert.assertEquals(1 + MqttWireMessage.getMBILength(remainingLength) + remainingLength, expected.length);
+			}
+		}
+	}
+
+	@Test
+	public void TestOutputStreamEncodesAcks() throws IOException, MqttException {
+		MqttMessage message = new MqttMessage(new byte[0]);
+		message.setQos(2);
+		MqttPublish publish = new MqttPublish("a", message);
+		publish.setMessageId(0xfedc);
+		MqttPubRec pubRec = new MqttPubRec(publish);
+		MqttWireMessage[] acks = { new MqttPubAck(publish), pubRec, new MqttPubRel(pubRec), new MqttPubComp(publish) };
+		byte[] firstBytes = { 0x40, 0x50, 0x62, 0x70 };
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		MqttOutputStream out = outputStream(baos);
+		for (int i = 0; i < acks.length; i++) {
+			byte[] expected = getBytes(acks[i]);
+			Assert.assertArrayEquals(new byte[] { firstBytes[i], 2, (byte) 0xfe, (byte) 0xdc }, expected);
+			out.write(acks[i]);
+			out.flush();
+			Assert.assertArrayEquals(expected, baos.toByteArray());
+			baos.reset();
+		}
+	}
+
+	@Test
+	public void TestEncodeMessageIdOnly() throws IOException, MqttException {
+		MqttMessage message = new MqttMessage(new byte[0]);
+		message.setQos(2);
+		MqttPublish publish = new MqttPublish("a", message);
+		publish.setMessageId(0x1234);
+		Assert.assertFalse(publish.isMessageIdOnly());
+		MqttPubRec pubRec = new MqttPubRec(publish);
+		MqttWireMessage[] acks = { new MqttPubAck(publish), pubRec, new MqttPubRel(pubRec), new MqttPubComp(publish) };
+		for (MqttWireMessage ack : acks) {
+			Assert.assertTrue(ack.isMessageIdOnly());
+			ByteBuffer buffer = ByteBuffer.allocate(MqttWireMessage.MESSAGE_ID_ONLY_LENGTH);
+			ack.encodeMessageIdOnly(buffer);
+			Assert.assertFalse(buffer.hasRemaining());
+			Assert.assertArrayEquals(getBytes(ack), buffer.array());
+		}
+	}
 }
@@ -0,0 +1,227 @@
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttDeferredSyncPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MqttDefaultFilePersistenceTest extends MqttClientPersistenceTestBase {
+
+	protected MqttClientPersistence createPersistence() {
+		return new MqttDefaultFilePersistence(dir.getPath());
+	}
+
+	/**
+	 * Counts down as it is told of syncs, and keeps the failure if told of one.
+	 */
+	private static class Listener implements MqttDeferredSyncPersistence.SyncListener {
+		private final CountDownLatch synced;
+		private volatile MqttPersistenceException failure = null;
+
+		Listener(CountDownLatch synced) {
+			this.synced = synced;
+		}
+
+		public void synced() {
+			synced.countDown();
+		}
+
+		public void syncFailed(MqttPersistenceException cause) {
+			failure = cause;
+		}
+	}
+
+	@Test
+	public void testDurabilityModes() throws MqttPersistenceException {
+		int[] modes = { MqttDefaultFilePersistence.DURABILITY_SYNC,
+				MqttDefaultFilePersistence.DURABILITY_GROUP_COMMIT,
+				MqttDefaultFilePersistence.DURABILITY_OS_BUFFERED };
+		for (int mode : modes) {
+			MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getPath(), mode);
+			persistence.open(CLIENT_ID, SERVER_URI);
+			persistence.put("s-1", data("header1", "|payload1"));
+			persistence.put("s-2", data("header2", "|payload2"));
+			persistence.put("s-1", data("header1b", "|payload1b"));
+			persistence.remove("s-2");
+			Assert.assertEquals("header1b|payload1b", read(persistence.get("s-1")));
+			persistence.close();
+
+			persistence.open(CLIENT_ID, SERVER_URI);
+			Assert.assertEquals(Arrays.asList("s-1"), keys(persistence));
+			Assert.assertEquals("header1b|payload1b", read(persistence.get("s-1")));
+			persistence.clear();
+			persistence.close();
+		}
+	}
+
+	@Test
+	public void testWhenSyncedWaitsForGroupCommit() throws Exception {
+		MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getPath(),
+				MqttDefaultFilePersistence.DURABILITY_GROUP_COMMIT);
+		// An hour, so only sync() syncs during the test
+		persistence.setGroupCommit(3600000, 1000);
+		persistence.open(CLIENT_ID, SERVER_URI);
+
+		// Nothing to wait for
+		final CountDownLatch synced = new CountDownLatch(3);
+		persistence.whenSynced(new Listener(synced));
+		Assert.assertEquals(2, synced.getCount());
+
+		persistence.put("r-1", data("header1", "|payload1"));
+		persistence.whenSynced(new Listener(synced));
+		persistence.put("r-2", data("header2", "|payload2"));
+		persistence.whenSynced(new Listener(synced));
+		Assert.assertEquals(2, synced.getCount());
+
+		persistence.sync();
+		Assert.assertEquals(0, synced.getCount());
+
+		// Nothing is left to wait for
+		final CountDownLatch syncedAgain = new CountDownLatch(1);
+		persistence.whenSynced(new Listener(syncedAgain));
+		Assert.assertEquals(0, syncedAgain.getCount());
+		persistence.sync();
+		Assert.assertEquals(Arrays.asList("r-1", "r-2"), keys(persistence));
+		persistence.close();
+	}
+
+	@Test
+	public void testCloseSyncsWhatIsWaiting() throws Exception {
+		MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getPath(),
+				MqttDefaultFilePersistence.DURABILITY_GROUP_COMMIT);
+		persistence.setGroupCommit(3600000, 1000);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		final CountDownLatch synced = new CountDownLatch(1);
+		persistence.put("r-1", data("header1", "|payload1"));
+		persistence.whenSynced(new Listener(synced));
+		Assert.assertEquals(1, synced.getCount());
+		persistence.close();
+		Assert.assertEquals(0, synced.getCount());
+	}
+
+	@Test
+	public void testGroupCommitFillsBatch() throws Exception {
+		MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getPath(),
+				MqttDefaultFilePersistence.DURABILITY_GROUP_COMMIT);
+		persistence.setGroupCommit(60000, 10);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		final CountDownLatch synced = new CountDownLatch(1);
+		for (int i = 0; i < 10; i++) {
+			persistence.put("s-" + i, data("header" + i, "|payload" + i));
+			if (i == 0) {
+				persistence.whenSynced(new Listener(synced));
+			}
+		}
+		// The tenth message triggers the sync long before the interval is up
+		Assert.assertTrue(synced.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(10, keys(persistence).size());
+		persistence.close();
+	}
+
+	@Test
+	public void testSyncFailureReportedToListeners() throws Exception {
+		final boolean[] fail = { true };
+		MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getPath(),
+				MqttDefaultFilePersistence.DURABILITY_GROUP_COMMIT) {
+			protected void syncFile(FileOutputStream out) throws IOException {
+				if (fail[0]) {
+					throw new IOException("sync failed");
+				}
+				super.syncFile(out);
+			}
+		};
+		persistence.setGroupCommit(3600000, 1000);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		CountDownLatch synced = new CountDownLatch(1);
+		Listener listener = new Listener(synced);
+		persistence.put("r-1", data("header1", "|payload1"));
+		persistence.whenSynced(listener);
+		try {
+			persistence.sync();
+			Assert.fail("the failed sync should be reported");
+		} catch (MqttPersistenceException expected) {
+		}
+		// Told of the failure, and not that the message was synced
+		Assert.assertNotNull(listener.failure);
+		Assert.assertTrue(listener.failure.getCause() instanceof IOException);
+		Assert.assertEquals(1, synced.getCount());
+
+		// Later batches are synced as normal
+		fail[0] = false;
+		Listener next = new Listener(synced);
+		persistence.put("r-2", data("header2", "|payload2"));
+		persistence.whenSynced(next);
+		persistence.sync();
+		Assert.assertNull(next.failure);
+		Assert.assertEquals(0, synced.getCount());
+		persistence.close();
+	}
+
+	@Test
+	public void testCloseReportsSyncFailure() throws Exception {
+		MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getPath(),
+				MqttDefaultFilePersistence.DURABILITY_GROUP_COMMIT) {
+			protected void syncFile(FileOutputStream out) throws IOException {
+				throw new IOException("sync failed");
+			}
+		};
+		persistence.setGroupCommit(3600000, 1000);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		CountDownLatch synced = new CountDownLatch(1);
+		Listener listener = new Listener(synced);
+		persistence.put("r-1", data("header1", "|payload1"));
+		persistence.whenSynced(listener);
+		persistence.close();
+		Assert.assertNotNull(listener.failure);
+		Assert.assertEquals(1, synced.getCount());
+	}
+
+	@Test
+	public void testRemoveWaitsForSyncingBatch() throws Exception {
+		final CountDownLatch syncing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(dir.getPath(),
+				MqttDefaultFilePersistence.DURABILITY_GROUP_COMMIT) {
+			protected void syncFile(FileOutputStream out) throws IOException {
+				syncing.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.syncFile(out);
+			}
+		};
+		persistence.setGroupCommit(1, 1);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		persistence.put("s-1", data("header1", "|payload1"));
+		// The background thread is syncing the file
+		Assert.assertTrue(syncing.await(5, TimeUnit.SECONDS));
+
+		final CountDownLatch removed = new CountDownLatch(1);
+		Thread remover = new Thread(new Runnable() {
+			public void run() {
+				try {
+					persistence.remove("s-1");
+				} catch (MqttPersistenceException e) {
+					// Seen as the file being left behind
+				}
+				removed.countDown();
+			}
+		});
+		remover.start();
+		Assert.assertFalse(removed.await(200, TimeUnit.MILLISECONDS));
+		release.countDown();
+		Assert.assertTrue(removed.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse(persistence.containsKey("s-1"));
+		persistence.close();
+	}
+}
@@ -0,0 +1,116 @@
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.persist.MqttLogFilePersistence;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MqttLogFilePersistenceTest extends MqttClientPersistenceTestBase {
+
+	protected MqttClientPersistence createPersistence() {
+		return new MqttLogFilePersistence(dir.getPath(), 4096);
+	}
+
+	private File[] segments() {
+		File[] clientDirs = dir.listFiles();
+		Assert.assertEquals(1, clientDirs.length);
+		return clientDirs[0].listFiles((d, name) -> name.endsWith(".log"));
+	}
+
+	@Test
+	public void testClearRemovesFiles() throws MqttPersistenceException {
+		MqttLogFilePersistence persistence = new MqttLogFilePersistence(dir.getPath());
+		persistence.open(CLIENT_ID, SERVER_URI);
+		persistence.put("s-1", data("header1", "|payload1"));
+		persistence.clear();
+		persistence.close();
+		Assert.assertEquals(0, dir.listFiles().length);
+	}
+
+	@Test
+	public void testIncompleteRecordIsCutOff() throws Exception {
+		MqttLogFilePersistence persistence = new MqttLogFilePersistence(dir.getPath());
+		persistence.open(CLIENT_ID, SERVER_URI);
+		persistence.put("s-1", data("header1", "|payload1"));
+		persistence.put("s-2", data("header2", "|payload2"));
+		persistence.close();
+
+		// Stop half way through appending the last record
+		File segment = segments()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		long complete = file.length();
+		file.setLength(complete - 5);
+		file.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(Arrays.asList("s-1"), keys(persistence));
+		persistence.put("s-3", data("header3", "|payload3"));
+		persistence.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(Arrays.asList("s-1", "s-3"), keys(persistence));
+		Assert.assertEquals("header3|payload3", read(persistence.get("s-3")));
+		persistence.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		MqttLogFilePersistence persistence = new MqttLogFilePersistence(dir.getPath(), 512);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		persistence.put("s-0", data("kept", "|for ever"));
+		for (int i = 1; i < 500; i++) {
+			persistence.put("s-" + i, data("header" + i, "|payload" + i));
+			if (i > 1) {
+				persistence.remove("s-" + (i - 1));
+			}
+		}
+		// Compaction runs in the background
+		long deadline = System.currentTimeMillis() + 5000;
+		while (segments().length > 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(segments().length <= 3);
+		Assert.assertEquals(Arrays.asList("s-0", "s-499"), keys(persistence));
+		persistence.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(Arrays.asList("s-0", "s-499"), keys(persistence));
+		Assert.assertEquals("kept|for ever", read(persistence.get("s-0")));
+		Assert.assertEquals("header499|payload499", read(persistence.get("s-499")));
+		persistence.close();
+	}
+
+	@Test
+	public void testChangesDuringCompaction() throws Exception {
+		MqttLogFilePersistence persistence = new MqttLogFilePersistence(dir.getPath(), 512);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		TreeMap<String, String> expected = new TreeMap<String, String>();
+		// Keys are put, put again and removed while compaction copies them
+		for (int i = 0; i < 2000; i++) {
+			String key = "s-" + (i % 37);
+			if (i % 5 == 4) {
+				persistence.remove(key);
+				expected.remove(key);
+			} else {
+				persistence.put(key, data("header" + i, "|payload" + i));
+				expected.put(key, "header" + i + "|payload" + i);
+			}
+		}
+		persistence.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(new ArrayList<String>(expected.keySet()), keys(persistence));
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			Assert.assertEquals(entry.getValue(), read(persistence.get(entry.getKey())));
+		}
+		persistence.close();
+	}
+}
@@ -0,0 +1,96 @@
+package org.eclipse.paho.client.mqttv3.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.persist.MqttMappedFilePersistence;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MqttMappedFilePersistenceTest extends MqttClientPersistenceTestBase {
+
+	protected MqttClientPersistence createPersistence() {
+		return new MqttMappedFilePersistence(dir.getPath(), 1024, 128);
+	}
+
+	private File mapFile() {
+		File[] clientDirs = dir.listFiles();
+		Assert.assertEquals(1, clientDirs.length);
+		return new File(clientDirs[0], "messages.map");
+	}
+
+	@Test
+	public void testRecordsSpanningSlots() throws MqttPersistenceException {
+		MqttMappedFilePersistence persistence = new MqttMappedFilePersistence(dir.getPath(), 64, 64);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		String large = repeat('x', 1000);
+		persistence.put("s-1", data("header1", "|payload1"));
+		persistence.put("s-2", data("header2", large));
+		persistence.remove("s-2");
+		persistence.put("r-4", data(repeat('h', 100), large));
+		Assert.assertEquals(repeat('h', 100) + large, read(persistence.get("r-4")));
+		persistence.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(Arrays.asList("r-4", "s-1"), keys(persistence));
+		Assert.assertEquals("header1|payload1", read(persistence.get("s-1")));
+		Assert.assertEquals(repeat('h', 100) + large, read(persistence.get("r-4")));
+
+		persistence.clear();
+		persistence.close();
+		Assert.assertEquals(0, dir.listFiles().length);
+	}
+
+	@Test
+	public void testFull() throws MqttPersistenceException {
+		MqttMappedFilePersistence persistence = new MqttMappedFilePersistence(dir.getPath(), 8, 64);
+		persistence.setForceOnPut(false);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		for (int i = 0; i < 8; i++) {
+			persistence.put("s-" + i, data("header" + i, "|payload" + i));
+		}
+		try {
+			persistence.put("s-8", data("header8", "|payload8"));
+			Assert.fail("The file should be full");
+		} catch (MqttPersistenceException e) {
+			// Expected
+		}
+		persistence.remove("s-3");
+		persistence.put("s-8", data("header8", "|payload8"));
+		Assert.assertEquals("header8|payload8", read(persistence.get("s-8")));
+		persistence.close();
+	}
+
+	@Test
+	public void testDamagedMessageIsDropped() throws Exception {
+		MqttMappedFilePersistence persistence = new MqttMappedFilePersistence(dir.getPath(), 16, 128);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		persistence.put("s-1", data("header1", "payload1"));
+		persistence.put("s-2", data("header2", "payload2"));
+		persistence.close();
+
+		// Damage the payload of the second message, in the second slot
+		RandomAccessFile file = new RandomAccessFile(mapFile(), "rw");
+		byte[] slot = new byte[128];
+		file.seek(2 * 128);
+		file.readFully(slot);
+		String text = new String(slot, StandardCharsets.ISO_8859_1);
+		int at = text.indexOf("payload2");
+		Assert.assertTrue(at > 0);
+		file.seek(2 * 128 + at);
+		file.write('P');
+		file.close();
+
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(Arrays.asList("s-1"), keys(persistence));
+		// Its slot is free again
+		for (int i = 3; i <= 16; i++) {
+			persistence.put("s-" + i, data("header", "payload"));
+		}
+		persistence.close();
+	}
+}
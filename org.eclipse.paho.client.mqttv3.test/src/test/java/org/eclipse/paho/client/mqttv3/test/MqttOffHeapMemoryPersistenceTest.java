@@ -0,0 +1,72 @@
+package org.eclipse.paho.client.mqttv3.test;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.persist.MqttOffHeapMemoryPersistence;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MqttOffHeapMemoryPersistenceTest extends MqttClientPersistenceTestBase {
+
+	protected MqttClientPersistence createPersistence() {
+		return new MqttOffHeapMemoryPersistence(64 * 1024, 16, 256);
+	}
+
+	protected boolean isDurable() {
+		return false;
+	}
+
+	@Test
+	public void testAccounting() throws MqttPersistenceException {
+		MqttOffHeapMemoryPersistence persistence = new MqttOffHeapMemoryPersistence(64 * 1024, 16, 256);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		String large = repeat('x', 1000);
+		persistence.put("s-1", data("header1", "payload1"));
+		persistence.put("s-2", data("header2", large));
+		persistence.put("sc-3", data("header3", ""));
+		persistence.put("s-1", data("header1b", "payload1b"));
+		persistence.remove("s-2");
+		// A header that ends on a block boundary
+		persistence.put("r-4", data(repeat('h', 32), large));
+		Assert.assertNull(persistence.get("s-2"));
+		Assert.assertEquals(repeat('h', 32) + large, read(persistence.get("r-4")));
+		Assert.assertEquals(3, persistence.getMessageCount());
+		Assert.assertEquals(17 + 7 + 32 + 1000, persistence.getDataBytes());
+		Assert.assertEquals((2 + 1 + 65) * 16, persistence.getUsedBytes());
+		Assert.assertEquals(1280, persistence.getAllocatedBytes());
+
+		persistence.clear();
+		Assert.assertEquals(0, persistence.getUsedBytes());
+		Assert.assertEquals(0, persistence.getDataBytes());
+		persistence.close();
+		Assert.assertEquals(0, persistence.getAllocatedBytes());
+		try {
+			persistence.get("s-1");
+			Assert.fail("The persistence should be closed");
+		} catch (MqttPersistenceException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testCapacity() throws MqttPersistenceException {
+		MqttOffHeapMemoryPersistence persistence = new MqttOffHeapMemoryPersistence(100, 16, 32);
+		persistence.open(CLIENT_ID, SERVER_URI);
+		Assert.assertEquals(112, persistence.getCapacity());
+		for (int i = 0; i < 7; i++) {
+			persistence.put("s-" + i, data("header" + i, "payload" + i));
+		}
+		Assert.assertEquals(112, persistence.getAllocatedBytes());
+		try {
+			persistence.put("s-7", data("header7", "payload7"));
+			Assert.fail("The persistence should be full");
+		} catch (MqttPersistenceException e) {
+			// Expected
+		}
+		persistence.remove("s-3");
+		persistence.put("s-7", data("header7", "payload7"));
+		Assert.assertEquals("header7payload7", read(persistence.get("s-7")));
+		Assert.assertEquals(112, persistence.getPeakUsedBytes());
+		persistence.close();
+	}
+}
@@ -8,10 +8,14 @@ import static org.junit.Assert.fail;
 import java.net.URI;
 import java.net.URISyntaxException;
 
+import javax.net.ssl.SSLSocketFactory;
+
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.internal.NIONetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.NetworkModuleService;
+import org.eclipse.paho.client.mqttv3.internal.SSLNIONetworkModule;
 import org.eclipse.paho.client.mqttv3.internal.TCPNetworkModule;
 import org.junit.Test;
 
@@ -20,7 +24,9 @@ public class NetworkModuleServiceTest {
 	@Test
 	public void testValidateURI() {
 		NetworkModuleService.validateURI("tcp://host_literal:1883");
+		NetworkModuleService.validateURI("tcp+nio://host_literal:1883");
 		NetworkModuleService.validateURI("ssl://host_literal:8883");
+		NetworkModuleService.validateURI("ssl+nio://host_literal:8883");
 		NetworkModuleService.validateURI("ws://host_literal:80/path/to/ws");
 		NetworkModuleService.validateURI("wss://host_literal:443/path/to/ws");
 	}
@@ -104,4 +110,37 @@ public class NetworkModuleServiceTest {
 		assertTrue(result instanceof TCPNetworkModule);
 		assertEquals(brokerUri, result.getServerURI());
 	}
+
+	@Test
+	public void testCreateNIOInstance() throws MqttException {
+		String brokerUri = "tcp+nio://localhost:666";
+		MqttConnectOptions options = new MqttConnectOptions();
+
+		NetworkModule result = NetworkModuleService.createInstance(brokerUri, options, "");
+
+		assertTrue(result instanceof NIONetworkModule);
+		assertEquals(brokerUri, result.getServerURI());
+	}
+
+	@Test
+	public void testCreateSSLNIOInstance() throws MqttException {
+		MqttConnectOptions options = new MqttConnectOptions();
+
+		NetworkModule result = NetworkModuleService.createInstance("ssl+nio://localhost", options, "");
+
+		assertTrue(result instanceof SSLNIONetworkModule);
+		assertEquals("ssl+nio://localhost:8883", result.getServerURI());
+	}
+
+	@Test
+	public void failSSLNIOWithSocketFactory() {
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setSocketFactory(SSLSocketFactory.getDefault());
+		try {
+			NetworkModuleService.createInstance("ssl+nio://localhost:8883", options, "");
+			fail("Must fail: an SSLEngine cannot be had from a SocketFactory");
+		} catch (MqttException e) {
+			assertEquals(MqttException.REASON_CODE_SOCKET_FACTORY_MISMATCH, e.getReasonCode());
+		}
+	}
 }
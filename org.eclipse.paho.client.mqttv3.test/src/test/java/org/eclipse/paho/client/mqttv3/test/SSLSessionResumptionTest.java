@@ -17,13 +17,20 @@
 
 package org.eclipse.paho.client.mqttv3.test;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.SSLContext;
@@ -34,9 +41,11 @@ import javax.net.ssl.TrustManagerFactory;
 
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory;
 import org.eclipse.paho.client.mqttv3.test.logging.LoggingUtilities;
 import org.eclipse.paho.client.mqttv3.test.properties.TestProperties;
 import org.eclipse.paho.client.mqttv3.test.utilities.Utility;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -139,6 +148,99 @@ public class SSLSessionResumptionTest {
 		log.info("Done!");
 	}
 
+	/**
+	 * Factories with the same SSL properties hand out the same SSL context,
+	 * so that they share its session cache.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSSLContextShared() throws Exception {
+		SSLSocketFactoryFactory first = new SSLSocketFactoryFactory();
+		first.initialize(getSSLProperties(), null);
+		SSLSocketFactoryFactory second = new SSLSocketFactoryFactory();
+		second.initialize(getSSLProperties(), null);
+		Assert.assertSame(first.createSSLContext(null), second.createSSLContext(null));
+
+		Properties other = getSSLProperties();
+		other.setProperty(SSLSocketFactoryFactory.SSLPROTOCOL, "TLSv1.2");
+		SSLSocketFactoryFactory third = new SSLSocketFactoryFactory();
+		third.initialize(other, null);
+		Assert.assertNotSame(first.createSSLContext(null), third.createSSLContext(null));
+	}
+
+	/**
+	 * A store replaced on disk is loaded into a new shared context, which
+	 * takes the place of the old one, and the keys of the shared contexts
+	 * do not hold the passwords.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSSLContextReplacedWhenStoreChanges() throws Exception {
+		File store = File.createTempFile("truststore", ".jks");
+		try {
+			Files.copy(new File(TestProperties.getClientKeyStore()).toPath(), store.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			Properties properties = new Properties();
+			properties.setProperty(SSLSocketFactoryFactory.TRUSTSTORE, store.getPath());
+			properties.setProperty(SSLSocketFactoryFactory.TRUSTSTOREPWD, TestProperties.getClientKeyStorePassword());
+			SSLSocketFactoryFactory factory = new SSLSocketFactoryFactory();
+			factory.initialize(properties, null);
+			SSLContext first = factory.createSSLContext(null);
+			Assert.assertSame(first, factory.createSSLContext(null));
+
+			Assert.assertTrue(store.setLastModified(store.lastModified() - 10000));
+			SSLContext second = factory.createSSLContext(null);
+			Assert.assertNotSame(first, second);
+			Assert.assertSame(second, factory.createSSLContext(null));
+
+			Field field = SSLSocketFactoryFactory.class.getDeclaredField("sharedContexts");
+			field.setAccessible(true);
+			int contexts = 0;
+			for (Object key : ((Map<?, ?>) field.get(null)).keySet()) {
+				Assert.assertFalse(key.toString().contains(TestProperties.getClientKeyStorePassword()));
+				if (((List<?>) key).contains(store.getPath())) {
+					contexts++;
+				}
+			}
+			Assert.assertEquals(1, contexts);
+		} finally {
+			store.delete();
+		}
+	}
+
+	/**
+	 * A second client connecting with the same SSL properties resumes the
+	 * session of the first.
+	 * 
+	 * @throws Exception
+	 */
+	@Test(timeout=60000)
+	public void testSSLSessionResumedAcrossClients() throws Exception {
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setSSLProperties(getSSLProperties());
+
+		MqttClient first = new MqttClient(serverURI, MqttClient.generateClientId());
+		first.connect(options);
+		first.disconnect();
+		first.close();
+
+		long resumed = SSLSocketFactoryFactory.getSessionResumptionCount();
+		MqttClient second = new MqttClient(serverURI, MqttClient.generateClientId());
+		second.connect(options);
+		second.disconnect();
+		second.close();
+		Assert.assertEquals(resumed + 1, SSLSocketFactoryFactory.getSessionResumptionCount());
+	}
+
+	private static Properties getSSLProperties() {
+		Properties properties = new Properties();
+		properties.setProperty(SSLSocketFactoryFactory.TRUSTSTORE, TestProperties.getClientKeyStore());
+		properties.setProperty(SSLSocketFactoryFactory.TRUSTSTOREPWD, TestProperties.getClientKeyStorePassword());
+		return properties;
+	}
+
 	private static void doHandshake(SSLSocketFactory factory, String host, int port) {
 		SSLSocket socket = null;
 		try {
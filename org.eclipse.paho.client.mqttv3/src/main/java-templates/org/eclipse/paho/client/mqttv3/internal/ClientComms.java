@@ -29,6 +29,7 @@ import org.eclipse.paho.client.mqttv3.BufferedMessage;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttStreamListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
@@ -70,6 +71,8 @@ public class ClientComms {
 	private NetworkModule[]			networkModules;
 	private CommsReceiver 			receiver;
 	private CommsSender 			sender;
+	private CommsChannelHandler		channelHandler;
+	private CommsEventLoop			eventLoop;
 	private CommsCallback 			callback;
 	private ClientState	 			clientState;
 	private MqttConnectOptions		conOptions;
@@ -251,11 +254,15 @@ public class ClientComms {
 				// ShutdownConnection has already cleaned most things
 				clientState.close();
 				clientState = null;
+				if (disconnectedMessageBuffer != null) {
+					disconnectedMessageBuffer.close();
+				}
 				callback = null;
 				persistence = null;
 				sender = null;
 				pingSender = null;
 				receiver = null;
+				channelHandler = null;
 				networkModules = null;
 				conOptions = null;
 				tokenStore = null;
@@ -294,6 +301,8 @@ public class ClientComms {
                 this.clientState.setKeepAliveSecs(conOptions.getKeepAliveInterval());
                 this.clientState.setCleanSession(conOptions.isCleanSession());
                 this.clientState.setMaxInflight(conOptions.getMaxInflight());
+                this.clientState.setMaxInflightPolicy(conOptions.getMaxInflightPolicy(), conOptions.getMaxInflightTimeout(), conOptions.getMaxInflightQueueBytes());
+                this.callback.setMessageDispatch(conOptions.getMessageDispatchLanes(), conOptions.getMessageDispatchExecutor(), conOptions.getMessageDispatchKey());
 
 				tokenStore.open();
 				ConnectBG conbg = new ConnectBG(this, token, connect, executorService);
@@ -373,10 +382,9 @@ public class ClientComms {
 		// when actions complete
 		if (callback!= null) {callback.stop(); }
 
-		// Stop the thread that handles inbound work from the network
-		if (receiver != null) {receiver.stop();}
-		
-		// Stop the network module, send and receive now not possible
+		// Stop the network module, send and receive now not possible.
+		// This is done before stopping the receiver as network modules
+		// without a read timeout only release a blocked read on close.
 		try {
 			if (networkModules != null) {
 				NetworkModule networkModule = networkModules[networkModuleIndex];
@@ -388,6 +396,10 @@ public class ClientComms {
 			// Ignore as we are shutting down
 		}
 
+		// Stop the thread that handles inbound work from the network
+		if (receiver != null) {receiver.stop();}
+		if (channelHandler != null) {channelHandler.stop();}
+
 		// Stop any new tokens being saved by app and throwing an exception if they do
 		tokenStore.quiesce(new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
 
@@ -610,6 +622,10 @@ public class ClientComms {
 	public void setManualAcks(boolean manualAcks) {
 		this.callback.setManualAcks(manualAcks);
 	}
+
+	public void setStreamListener(IMqttStreamListener listener, int minimumLength) {
+		this.callback.setStreamListener(listener, minimumLength);
+	}
 	
 	public void messageArrivedComplete(int messageId, int qos) throws MqttException {
 		this.callback.messageArrivedComplete(messageId, qos);
@@ -638,6 +654,14 @@ public class ClientComms {
 	public void setNetworkModules(NetworkModule[] networkModules) {
 		this.networkModules = networkModules.clone();
 	}
+	/**
+	 * Sets the shared selector thread that serves the connections made from
+	 * now on, or null for each connection to have threads of its own.
+	 * @param eventLoop the loop, or null
+	 */
+	public void setEventLoop(CommsEventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
 	public MqttDeliveryToken[] getPendingDeliveryTokens() {
 		return tokenStore.getOutstandingDelTokens();
 	}
@@ -724,10 +748,21 @@ public class ClientComms {
 				// packet.
 				NetworkModule networkModule = networkModules[networkModuleIndex];
 				networkModule.start();
-				receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
-				receiver.start("MQTT Rec: "+getClient().getClientId(), executorService);
-				sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
-				sender.start("MQTT Snd: "+getClient().getClientId(), executorService);
+				if (eventLoop != null && networkModule instanceof SelectableNetworkModule) {
+					// The connection is served by a shared selector thread
+					receiver = null;
+					sender = null;
+					channelHandler = new CommsChannelHandler(clientComms, clientState, tokenStore,
+							(SelectableNetworkModule) networkModule, eventLoop);
+					channelHandler.start();
+				} else {
+					channelHandler = null;
+					receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
+					receiver.start("MQTT Rec: "+getClient().getClientId(), executorService);
+					sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
+					sender.setBatching(conOptions.getSendBatchSize(), conOptions.getSendBatchBytes(), conOptions.getSendBatchLinger());
+					sender.start("MQTT Snd: "+getClient().getClientId(), executorService);
+				}
 				callback.start("MQTT Call: "+getClient().getClientId(), executorService);
 				internalSend(conPacket, conToken);
 			} catch (MqttException ex) {
@@ -746,6 +781,10 @@ public class ClientComms {
 		}
 	}
 
+	private boolean isSenderRunning() {
+		return (sender != null && sender.isRunning()) || (channelHandler != null && channelHandler.isRunning());
+	}
+
 	// Kick off the disconnect processing in the background so that it does not block. For instance
 	// the quiesce
 	private class DisconnectBG implements Runnable {
@@ -780,7 +819,7 @@ public class ClientComms {
 			try {
 				internalSend(disconnect, token);
 				// do not wait if the sender process is not running
-				if (sender != null && sender.isRunning()) {
+				if (isSenderRunning()) {
 					token.internalTok.waitUntilSent();
 				}
 			}
@@ -788,7 +827,7 @@ public class ClientComms {
 			}
 			finally {
 				token.internalTok.markComplete(null, null);
-				if (sender == null || !sender.isRunning()) {
+				if (!isSenderRunning()) {
 					// if the sender process is not running 
 					token.internalTok.notifyComplete();
 				}
@@ -850,6 +889,10 @@ public class ClientComms {
 	}
 
 	public void setDisconnectedMessageBuffer(DisconnectedMessageBuffer disconnectedMessageBuffer) {
+		if (this.disconnectedMessageBuffer != null && this.disconnectedMessageBuffer != disconnectedMessageBuffer) {
+			// The messages of the old buffer are dropped with it
+			this.disconnectedMessageBuffer.close();
+		}
 		this.disconnectedMessageBuffer = disconnectedMessageBuffer;
 	}
 	
@@ -26,6 +26,18 @@ public class DisconnectedBufferOptions {
 	 */
 	public static final int DISCONNECTED_BUFFER_SIZE_DEFAULT = 5000;
 	
+	/**
+	 * The default limit on the total size of the disconnected buffer, which
+	 * is no limit
+	 */
+	public static final long DISCONNECTED_BUFFER_BYTES_DEFAULT = 0;
+	
+	/**
+	 * The default size that the buffered messages held in memory may reach
+	 * before more are spilled to disk, when a spill directory is set
+	 */
+	public static final long DISCONNECTED_BUFFER_SPILL_THRESHOLD_DEFAULT = 1024 * 1024;
+	
 	public static final boolean DISCONNECTED_BUFFER_ENABLED_DEFAULT = false;
 	
 	public static final boolean PERSIST_DISCONNECTED_BUFFER_DEFAULT = false;
@@ -33,6 +45,9 @@ public class DisconnectedBufferOptions {
 	public static final boolean DELETE_OLDEST_MESSAGES_DEFAULT = false;
 	
 	private int bufferSize = DISCONNECTED_BUFFER_SIZE_DEFAULT;
+	private long bufferBytes = DISCONNECTED_BUFFER_BYTES_DEFAULT;
+	private String spillDirectory = null;
+	private long spillThreshold = DISCONNECTED_BUFFER_SPILL_THRESHOLD_DEFAULT;
 	private boolean bufferEnabled = DISCONNECTED_BUFFER_ENABLED_DEFAULT;
 	private boolean persistBuffer = PERSIST_DISCONNECTED_BUFFER_DEFAULT;
 	private boolean deleteOldestMessages = DELETE_OLDEST_MESSAGES_DEFAULT;
@@ -45,6 +60,8 @@ public class DisconnectedBufferOptions {
 	 * <ul>
 	 * <li>The disconnected buffer is disabled</li>
 	 * <li>The buffer holds 5000 messages</li>
+	 * <li>The total size of the buffered messages is not limited</li>
+	 * <li>Buffered messages are held in memory, and not spilled to disk</li>
 	 * <li>The buffer is not persisted</li>
 	 * <li>Once the buffer is full, old messages are not deleted</li>
 	 * </ul>
@@ -65,6 +82,72 @@ public class DisconnectedBufferOptions {
 		this.bufferSize = bufferSize;
 	}
 
+	public long getBufferBytes() {
+		return bufferBytes;
+	}
+
+	/**
+	 * Sets the most that the buffered messages may take up together, counted
+	 * as the bytes they will be sent as. Once a message would take the buffer
+	 * over this size, the buffer is full, as it is once it holds
+	 * {@link #getBufferSize()} messages. A message that is larger than this
+	 * on its own is never buffered.
+	 * 
+	 * @param bufferBytes the size in bytes, or 0 for no limit
+	 */
+	public void setBufferBytes(long bufferBytes) {
+		if (bufferBytes < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.bufferBytes = bufferBytes;
+	}
+
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Sets a directory for the buffer to spill messages to. Once the
+	 * buffered messages held in memory reach the spill threshold, each new
+	 * one is appended to a file in this directory, and read back when it is
+	 * sent. This keeps the memory used during a long disconnection bounded,
+	 * while the buffer size and bytes still bound the number and size of
+	 * the messages. The file is deleted once every message in it has been
+	 * sent or deleted, or when the client is closed. Spill files left in the
+	 * directory by a process that ended are deleted when a buffer that uses
+	 * the directory is created.
+	 * 
+	 * While a message is spilled, its delivery token does not hold it, and
+	 * {@link IMqttDeliveryToken#getMessage()} returns null until it is read
+	 * back to be sent. The file is not a persistent store: it is not read
+	 * when the client is restarted, for which see
+	 * {@link #setPersistBuffer(boolean)}.
+	 * 
+	 * @param spillDirectory the directory, or null to hold every buffered
+	 * message in memory
+	 */
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the size, counted as the bytes they will be sent as, that the
+	 * buffered messages held in memory may reach before new ones are spilled
+	 * to the spill directory.
+	 * 
+	 * @param spillThreshold the size in bytes
+	 */
+	public void setSpillThreshold(long spillThreshold) {
+		if (spillThreshold < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.spillThreshold = spillThreshold;
+	}
+
 	public boolean isBufferEnabled() {
 		return bufferEnabled;
 	}
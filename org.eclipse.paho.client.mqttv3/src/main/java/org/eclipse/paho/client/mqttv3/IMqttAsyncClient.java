@@ -886,6 +886,24 @@ public interface IMqttAsyncClient extends AutoCloseable {
 	 * @param manualAcks if set to true MQTT acknowledgements are not sent
 	 */
     void setManualAcks(boolean manualAcks);
+
+	/**
+	 * Sets a listener that receives messages with large payloads as a
+	 * stream, read off the network as the listener consumes it, rather than
+	 * as a byte array. Messages with a payload of at least
+	 * <code>minimumLength</code> bytes are delivered to this listener instead
+	 * of the callback. See {@link IMqttStreamListener} for how such messages
+	 * are delivered and acknowledged.
+	 * <p><b>The listener must not block.</b> With a blocking transport it is
+	 * called on the thread that reads from the network, and no other packet
+	 * is received until it returns.</p>
+	 * <p>To publish a large payload without holding it in memory, publish an
+	 * {@link MqttStreamingMessage}.</p>
+	 * @param listener the listener, or null to deliver all messages to the
+	 * callback
+	 * @param minimumLength the length of the smallest payload to stream
+	 */
+    void setStreamListener(IMqttStreamListener listener, int minimumLength);
 	
 	/**
 	 * Will attempt to reconnect to the server after the client has lost connection.
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * Decides which inbound messages must be delivered in order when messages
+ * are dispatched to several threads.
+ *
+ * <p>Messages with equal keys are delivered one after the other, in the
+ * order they arrived. Messages with different keys may be delivered at the
+ * same time, on different threads. Without a dispatch key, the topic name
+ * is used as the key.</p>
+ *
+ * @see MqttConnectOptions#setMessageDispatchKey(IMqttDispatchKey)
+ */
+public interface IMqttDispatchKey {
+	/**
+	 * Returns the ordering key of an inbound message. This method is called
+	 * on the client's callback thread, before the message is delivered, and
+	 * should return quickly.
+	 *
+	 * @param topic name of the topic the message was published to
+	 * @param message the message
+	 * @return the key, compared with <code>equals</code>, or <code>null</code>
+	 *         to order the message with all other messages with a null key
+	 */
+	Object getDispatchKey(String topic, MqttMessage message);
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.InputStream;
+
+/**
+ * Receives large messages with their payload as a stream, read off the
+ * network while the listener consumes it, so that the payload never has to
+ * be held in memory in one piece.
+ *
+ * <p>Messages with a payload of at least the length given to
+ * {@link MqttAsyncClient#setStreamListener(IMqttStreamListener, int)} are
+ * delivered to the stream listener instead of the
+ * {@link MqttCallback} or the message listeners of the subscriptions.
+ * Note that:</p>
+ * <ul>
+ * <li>With a blocking transport, such as <code>tcp://</code> or
+ * <code>ssl://</code>, the listener is called on the thread that reads from
+ * the network, so no other packet, not even an acknowledgement, can be
+ * received until it returns. The listener should read the payload and
+ * return, and hand any slow processing to another thread. A streamed message
+ * may be delivered before smaller messages that arrived ahead of it and are
+ * still waiting for the callback thread.</li>
+ * <li>With a non-blocking transport, such as <code>tcp+nio://</code>, the
+ * packet is read into memory first and the listener is called on the
+ * callback thread, in order with the other messages, so it never holds up
+ * the event loop that other connections share.</li>
+ * <li>The payload can only be read until the listener returns. Whatever is
+ * left unread is skipped.</li>
+ * <li>The message is acknowledged when the listener returns, so manual
+ * acknowledgements do not apply to streamed messages. If the listener throws
+ * an exception the client disconnects without acknowledging the message, and
+ * the server sends it again when the client reconnects.</li>
+ * <li>A streamed QoS 2 message is not persisted, so it may be delivered
+ * again if the client is restarted before the exchange with the server
+ * completes.</li>
+ * </ul>
+ */
+public interface IMqttStreamListener {
+	/**
+	 * This method is called when a message arrives with a payload large
+	 * enough to be streamed.
+	 *
+	 * @param topic name of the topic on the message was published to
+	 * @param message the message, without its payload
+	 * @param payload the payload, read from the network as it is consumed
+	 * @param length the length of the payload
+	 * @throws Exception if a terminal error has occurred, and the client should be
+	 * shut down.
+	 */
+	void messageArrived(String topic, MqttMessage message, InputStream payload, int length) throws Exception;
+}
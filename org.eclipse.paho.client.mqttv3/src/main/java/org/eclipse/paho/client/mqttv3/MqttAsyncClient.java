@@ -746,6 +746,8 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 						((null == options.getPassword()) ? "[null]" : "[notnull]"),
 						((null == options.getWillMessage()) ? "[null]" : "[notnull]"), userContext, callback });
 		comms.setNetworkModules(createNetworkModules(serverURI, options));
+		MqttEventLoopGroup eventLoopGroup = options.getEventLoopGroup();
+		comms.setEventLoop(eventLoopGroup == null ? null : eventLoopGroup.next());
 		comms.setReconnectCallback(new MqttReconnectCallback(automaticReconnect));
 
 		// Insert our own callback to iterate through the URIs till the connect
@@ -1273,6 +1275,15 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		comms.setManualAcks(manualAcks);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see IMqttAsyncClient#setStreamListener(IMqttStreamListener, int)
+	 */
+	public void setStreamListener(IMqttStreamListener listener, int minimumLength) {
+		comms.setStreamListener(listener, minimumLength);
+	}
+
 	public void messageArrivedComplete(int messageId, int qos) throws MqttException {
 		comms.messageArrivedComplete(messageId, qos);
 	}
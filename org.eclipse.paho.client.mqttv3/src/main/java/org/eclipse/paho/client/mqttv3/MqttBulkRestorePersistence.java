@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.Map;
+
+/**
+ * A persistent data store that can hand back everything it holds in one go,
+ * which is how the client reads its state when it starts.
+ *
+ * <p>A store that does not implement this interface is read with
+ * {@link #keys()}, then a {@link #get(String)} per key. A store that keeps
+ * its data in a few large files rather than one file per key can read them
+ * from start to end instead.</p>
+ */
+public interface MqttBulkRestorePersistence extends MqttClientPersistence {
+	/**
+	 * Returns all of the data in the store, keyed as it was put.
+	 *
+	 * @return the keys and data, in the order they were put where the store
+	 * knows it. The map is not changed by later calls to the store.
+	 * @throws MqttPersistenceException if there was a problem reading the store
+	 */
+	Map<String, MqttPersistable> restoreAll() throws MqttPersistenceException;
+}
@@ -693,6 +693,13 @@ public class MqttClient implements IMqttClient {
 		aClient.setManualAcks(manualAcks);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.eclipse.paho.client.mqttv3.IMqttClient#setStreamListener(org.eclipse.paho.client.mqttv3.IMqttStreamListener, int)
+	 */
+	public void setStreamListener(IMqttStreamListener listener, int minimumLength) {
+		aClient.setStreamListener(listener, minimumLength);
+	}
+
 	public void messageArrivedComplete(int messageId, int qos) throws MqttException {
 		aClient.messageArrivedComplete(messageId, qos);
 	}
@@ -19,6 +19,7 @@ package org.eclipse.paho.client.mqttv3;
 
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
@@ -57,9 +58,47 @@ public class MqttConnectOptions {
 	 * Mqtt Version 3.1.1
 	 */
 	public static final int MQTT_VERSION_3_1_1 = 4;
+	/**
+	 * Publishing fails with {@link MqttException#REASON_CODE_MAX_INFLIGHT}
+	 * while the inflight window is full
+	 */
+	public static final int MAX_INFLIGHT_POLICY_FAIL = 0;
+	/**
+	 * Publishing blocks while the inflight window is full, up to the max
+	 * inflight timeout
+	 */
+	public static final int MAX_INFLIGHT_POLICY_BLOCK = 1;
+	/**
+	 * Publishing queues messages while the inflight window is full, up to the
+	 * max inflight queue size in bytes
+	 */
+	public static final int MAX_INFLIGHT_POLICY_QUEUE = 2;
+	/**
+	 * The default max inflight policy if one is not specified
+	 */
+	public static final int MAX_INFLIGHT_POLICY_DEFAULT = MAX_INFLIGHT_POLICY_FAIL;
+	/**
+	 * The default max inflight queue size in bytes if one is not specified
+	 */
+	public static final long MAX_INFLIGHT_QUEUE_BYTES_DEFAULT = 1024 * 1024;
+	/**
+	 * The default number of packets sent before the connection is flushed,
+	 * which flushes after every packet
+	 */
+	public static final int SEND_BATCH_SIZE_DEFAULT = 1;
+	/**
+	 * The default number of bytes sent before the connection is flushed
+	 */
+	public static final int SEND_BATCH_BYTES_DEFAULT = 64 * 1024;
 
 	private int keepAliveInterval = KEEP_ALIVE_INTERVAL_DEFAULT;
 	private int maxInflight = MAX_INFLIGHT_DEFAULT;
+	private int maxInflightPolicy = MAX_INFLIGHT_POLICY_DEFAULT;
+	private long maxInflightTimeout = 0;
+	private long maxInflightQueueBytes = MAX_INFLIGHT_QUEUE_BYTES_DEFAULT;
+	private int sendBatchSize = SEND_BATCH_SIZE_DEFAULT;
+	private int sendBatchBytes = SEND_BATCH_BYTES_DEFAULT;
+	private long sendBatchLinger = 0;
 	private String willDestination = null;
 	private MqttMessage willMessage = null;
 	private String userName;
@@ -76,6 +115,10 @@ public class MqttConnectOptions {
 	private int maxReconnectDelay = 128000;
 	private boolean skipPortDuringHandshake = false;
 	private Map<String, String> customWebSocketHeaders = null;
+	private MqttEventLoopGroup eventLoopGroup = null;
+	private int messageDispatchLanes = 0;
+	private ExecutorService messageDispatchExecutor = null;
+	private IMqttDispatchKey messageDispatchKey = null;
 
 	// Client Operation Parameters
 	private int executorServiceTimeout = 1; // How long to wait in seconds when terminating the executor service.
@@ -300,6 +343,208 @@ public class MqttConnectOptions {
 		this.maxInflight = maxInflight;
 	}
 
+	/**
+	 * Returns what happens when a message is published while the inflight
+	 * window is full.
+	 *
+	 * @see #setMaxInflightPolicy(int)
+	 * @return the max inflight policy
+	 */
+	public int getMaxInflightPolicy() {
+		return maxInflightPolicy;
+	}
+
+	/**
+	 * Sets what happens when a message is published while the number of
+	 * messages in flight has reached the max inflight.
+	 * <ul>
+	 * <li>{@link #MAX_INFLIGHT_POLICY_FAIL}: the publish fails with
+	 * {@link MqttException#REASON_CODE_MAX_INFLIGHT}. This is the default.</li>
+	 * <li>{@link #MAX_INFLIGHT_POLICY_BLOCK}: the publish blocks until an
+	 * acknowledgment frees space in the window, so publishers are paced by the
+	 * server. If the max inflight timeout expires first, the publish fails with
+	 * {@link MqttException#REASON_CODE_MAX_INFLIGHT}.</li>
+	 * <li>{@link #MAX_INFLIGHT_POLICY_QUEUE}: the message is queued and sent
+	 * once the window has space. If the payloads of the queued messages would
+	 * exceed the max inflight queue size, the publish fails with
+	 * {@link MqttException#REASON_CODE_MAX_INFLIGHT}.</li>
+	 * </ul>
+	 *
+	 * @param maxInflightPolicy
+	 *            the max inflight policy
+	 * @throws IllegalArgumentException
+	 *             If the policy supplied is invalid
+	 */
+	public void setMaxInflightPolicy(int maxInflightPolicy) throws IllegalArgumentException {
+		if (maxInflightPolicy != MAX_INFLIGHT_POLICY_FAIL && maxInflightPolicy != MAX_INFLIGHT_POLICY_BLOCK
+				&& maxInflightPolicy != MAX_INFLIGHT_POLICY_QUEUE) {
+			throw new IllegalArgumentException(
+					"An incorrect max inflight policy was used \"" + maxInflightPolicy + "\". Acceptable policy options are "
+							+ MAX_INFLIGHT_POLICY_FAIL + ", " + MAX_INFLIGHT_POLICY_BLOCK + " and " + MAX_INFLIGHT_POLICY_QUEUE + ".");
+		}
+		this.maxInflightPolicy = maxInflightPolicy;
+	}
+
+	/**
+	 * Returns how long a publish blocks for space in the inflight window.
+	 *
+	 * @see #setMaxInflightTimeout(long)
+	 * @return the max inflight timeout in milliseconds
+	 */
+	public long getMaxInflightTimeout() {
+		return maxInflightTimeout;
+	}
+
+	/**
+	 * Sets how long a publish blocks for space in the inflight window when the
+	 * max inflight policy is {@link #MAX_INFLIGHT_POLICY_BLOCK}. A value of 0
+	 * means that the publish waits until there is space, or the client is
+	 * disconnected.
+	 * <p>
+	 * The default value is 0
+	 * </p>
+	 *
+	 * @param maxInflightTimeout
+	 *            the max inflight timeout in milliseconds
+	 */
+	public void setMaxInflightTimeout(long maxInflightTimeout) {
+		if (maxInflightTimeout < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxInflightTimeout = maxInflightTimeout;
+	}
+
+	/**
+	 * Returns how many payload bytes may be queued while the inflight window
+	 * is full.
+	 *
+	 * @see #setMaxInflightQueueBytes(long)
+	 * @return the max inflight queue size in bytes
+	 */
+	public long getMaxInflightQueueBytes() {
+		return maxInflightQueueBytes;
+	}
+
+	/**
+	 * Sets how many payload bytes of messages waiting to be sent may be queued
+	 * when the max inflight policy is {@link #MAX_INFLIGHT_POLICY_QUEUE}.
+	 * <p>
+	 * The default value is 1048576 (1 MiB)
+	 * </p>
+	 *
+	 * @param maxInflightQueueBytes
+	 *            the max inflight queue size in bytes
+	 */
+	public void setMaxInflightQueueBytes(long maxInflightQueueBytes) {
+		if (maxInflightQueueBytes < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxInflightQueueBytes = maxInflightQueueBytes;
+	}
+
+	/**
+	 * Returns the most packets that are sent before the connection is
+	 * flushed.
+	 *
+	 * @see #setSendBatchSize(int)
+	 * @return the send batch size in packets
+	 */
+	public int getSendBatchSize() {
+		return sendBatchSize;
+	}
+
+	/**
+	 * Sets the most packets that are sent before the connection is flushed.
+	 * <p>
+	 * By default the connection is flushed after every packet, which gives
+	 * the lowest latency, but costs a write to the socket, and with TLS a
+	 * record, for each packet. With a larger batch size, the client writes
+	 * out every packet that is ready to be sent, up to this many or
+	 * {@link #setSendBatchBytes(int) the send batch bytes}, and then flushes
+	 * them together. A QoS 0 message is complete once its batch has been
+	 * flushed.
+	 * </p>
+	 * <p>
+	 * This applies to connections that send on a thread of their own. A
+	 * connection on an {@link #setEventLoopGroup(MqttEventLoopGroup) event
+	 * loop} always writes out what is ready together.
+	 * </p>
+	 * <p>
+	 * The default value is 1
+	 * </p>
+	 *
+	 * @param sendBatchSize
+	 *            the send batch size in packets
+	 */
+	public void setSendBatchSize(int sendBatchSize) {
+		if (sendBatchSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchSize = sendBatchSize;
+	}
+
+	/**
+	 * Returns the most bytes that are sent in a batch before the connection
+	 * is flushed.
+	 *
+	 * @see #setSendBatchBytes(int)
+	 * @return the send batch size in bytes
+	 */
+	public int getSendBatchBytes() {
+		return sendBatchBytes;
+	}
+
+	/**
+	 * Sets the most bytes that are sent in a batch before the connection is
+	 * flushed, when the {@link #setSendBatchSize(int) send batch size} is
+	 * more than 1. The packet that takes a batch to this size is the last
+	 * in it.
+	 * <p>
+	 * The default value is 65536 (64 KiB)
+	 * </p>
+	 *
+	 * @param sendBatchBytes
+	 *            the send batch size in bytes
+	 */
+	public void setSendBatchBytes(int sendBatchBytes) {
+		if (sendBatchBytes < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchBytes = sendBatchBytes;
+	}
+
+	/**
+	 * Returns how long a batch waits for more packets before it is flushed.
+	 *
+	 * @see #setSendBatchLinger(long)
+	 * @return the linger time in microseconds
+	 */
+	public long getSendBatchLinger() {
+		return sendBatchLinger;
+	}
+
+	/**
+	 * Sets how long a batch waits for more packets once there are none ready
+	 * to send, when the {@link #setSendBatchSize(int) send batch size} is
+	 * more than 1. Any packets that are ready after the wait go in the batch
+	 * too. A short linger lets a publisher that sends from many threads, or
+	 * in a loop with work between messages, fill larger batches, at the cost
+	 * of delaying each batch by up to this long.
+	 * <p>
+	 * The default value is 0, which flushes as soon as no more packets are
+	 * ready
+	 * </p>
+	 *
+	 * @param sendBatchLinger
+	 *            the linger time in microseconds
+	 */
+	public void setSendBatchLinger(long sendBatchLinger) {
+		if (sendBatchLinger < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchLinger = sendBatchLinger;
+	}
+
 	/**
 	 * Returns the connection timeout value.
 	 *
@@ -550,6 +795,15 @@ public class MqttConnectOptions {
 	 * If the port is not specified, it will default to 1883 for
 	 * <code>tcp://</code>" URIs, and 8883 for <code>ssl://</code> URIs.
 	 * <p>
+	 * A TCP connection can also be made over a <code>java.nio</code> socket
+	 * channel by using the <code>tcp+nio://</code> scheme, for example
+	 * <code>tcp+nio://localhost:1883</code>. It does not poll the socket with a
+	 * read timeout and does not support a custom <code>SocketFactory</code>.
+	 * Likewise <code>ssl+nio://</code>, for example
+	 * <code>ssl+nio://localhost:8883</code>, secures such a channel with an
+	 * <code>SSLEngine</code>. It is configured with the SSL properties rather
+	 * than a <code>SocketFactory</code>.
+	 * <p>
 	 * If serverURIs is set then it overrides the serverURI parameter passed in on
 	 * the constructor of the MQTT client.
 	 * <p>
@@ -659,6 +913,134 @@ public class MqttConnectOptions {
 		this.executorServiceTimeout = executorServiceTimeout;
 	}
 
+	/**
+	 * Returns the event loop group that serves the network connection.
+	 *
+	 * @return the event loop group, or <code>null</code> if the client uses
+	 *         threads of its own
+	 * @see #setEventLoopGroup(MqttEventLoopGroup)
+	 */
+	public MqttEventLoopGroup getEventLoopGroup() {
+		return eventLoopGroup;
+	}
+
+	/**
+	 * Sets an event loop group to serve the network connection. By default
+	 * every connected client runs a receiver and a sender thread. When an
+	 * event loop group is set and the server URI uses a scheme whose network
+	 * module supports it (<code>tcp+nio://</code> or <code>ssl+nio://</code>),
+	 * the connection is instead registered with one of the group's loops, so
+	 * that many clients can share a small, fixed number of threads.
+	 * <p>
+	 * The same group can be given to any number of clients. Message callbacks
+	 * are still delivered on a thread of each client. Callbacks should not
+	 * block for long, as a full inbound queue holds up the loop and with it
+	 * the other connections it serves.
+	 * </p>
+	 *
+	 * @param eventLoopGroup
+	 *            the event loop group to use, or <code>null</code> to use
+	 *            threads of the client's own
+	 */
+	public void setEventLoopGroup(MqttEventLoopGroup eventLoopGroup) {
+		this.eventLoopGroup = eventLoopGroup;
+	}
+
+	/**
+	 * Returns the number of lanes inbound messages are dispatched on.
+	 *
+	 * @return the number of message dispatch lanes, 0 if messages are
+	 *         delivered on the client's callback thread
+	 * @see #setMessageDispatchLanes(int)
+	 */
+	public int getMessageDispatchLanes() {
+		return messageDispatchLanes;
+	}
+
+	/**
+	 * Sets the number of lanes inbound messages are dispatched on. By default
+	 * all messages are delivered one at a time on the client's callback
+	 * thread, so one slow message listener holds up every topic.
+	 * <p>
+	 * With one or more lanes, each message is assigned to a lane by its
+	 * dispatch key, which is its topic unless a
+	 * {@link #setMessageDispatchKey(IMqttDispatchKey) dispatch key} is set.
+	 * The messages of a lane are delivered in the order they arrived, one
+	 * at a time, while different lanes are delivered in parallel on the
+	 * {@link #setMessageDispatchExecutor(ExecutorService) dispatch executor}.
+	 * A QoS 1 or 2 message is only acknowledged once it and all the messages
+	 * that arrived before it have been delivered, so acknowledgements are
+	 * still sent in order.
+	 * </p>
+	 * <p>
+	 * Delivery complete and action callbacks are still called on the
+	 * callback thread.
+	 * </p>
+	 * <p>
+	 * The default value is 0
+	 * </p>
+	 *
+	 * @param messageDispatchLanes
+	 *            the number of message dispatch lanes
+	 */
+	public void setMessageDispatchLanes(int messageDispatchLanes) {
+		if (messageDispatchLanes < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.messageDispatchLanes = messageDispatchLanes;
+	}
+
+	/**
+	 * Returns the executor that runs the message dispatch lanes.
+	 *
+	 * @return the executor, or <code>null</code> if the client starts a
+	 *         thread per lane
+	 * @see #setMessageDispatchExecutor(ExecutorService)
+	 */
+	public ExecutorService getMessageDispatchExecutor() {
+		return messageDispatchExecutor;
+	}
+
+	/**
+	 * Sets the executor that runs the message dispatch lanes, when
+	 * {@link #setMessageDispatchLanes(int)} is greater than 0. The executor
+	 * may be shared between clients and is not shut down by the client. If
+	 * no executor is set, the client starts a thread for each lane when it
+	 * connects and stops them when it disconnects.
+	 *
+	 * @param messageDispatchExecutor
+	 *            the executor to use, or <code>null</code> for threads of the
+	 *            client's own
+	 */
+	public void setMessageDispatchExecutor(ExecutorService messageDispatchExecutor) {
+		this.messageDispatchExecutor = messageDispatchExecutor;
+	}
+
+	/**
+	 * Returns the key that decides which messages are delivered in order.
+	 *
+	 * @return the dispatch key, or <code>null</code> if messages are ordered
+	 *         by topic
+	 * @see #setMessageDispatchKey(IMqttDispatchKey)
+	 */
+	public IMqttDispatchKey getMessageDispatchKey() {
+		return messageDispatchKey;
+	}
+
+	/**
+	 * Sets the key that assigns inbound messages to message dispatch lanes.
+	 * Messages with equal keys are delivered in the order they arrived. By
+	 * default messages are ordered by topic.
+	 *
+	 * @param messageDispatchKey
+	 *            the dispatch key, or <code>null</code> to order messages by
+	 *            topic
+	 * @see #setMessageDispatchLanes(int)
+	 */
+	public void setMessageDispatchKey(IMqttDispatchKey messageDispatchKey) {
+		this.messageDispatchKey = messageDispatchKey;
+	}
+
 	/**
 	 * Returns whether to skip a port during a handshake
 	 *
@@ -687,6 +1069,9 @@ public class MqttConnectOptions {
 		p.put("CleanSession", Boolean.valueOf(isCleanSession()));
 		p.put("ConTimeout", Integer.valueOf(getConnectionTimeout()));
 		p.put("KeepAliveInterval", Integer.valueOf(getKeepAliveInterval()));
+		p.put("MaxInflight", Integer.valueOf(getMaxInflight()));
+		p.put("MaxInflightPolicy", Integer.valueOf(getMaxInflightPolicy()));
+		p.put("MessageDispatchLanes", Integer.valueOf(getMessageDispatchLanes()));
 		p.put("UserName", (getUserName() == null) ? strNull : getUserName());
 		p.put("WillDestination", (getWillDestination() == null) ? strNull : getWillDestination());
 		if (getSocketFactory() == null) {
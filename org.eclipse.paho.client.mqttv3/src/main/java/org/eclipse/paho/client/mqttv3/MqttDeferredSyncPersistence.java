@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * A persistent data store that may return from
+ * {@link #put(String, MqttPersistable)} before the data has reached the disk,
+ * syncing it later in a batch with other writes.
+ *
+ * <p>The client uses {@link #whenSynced(SyncListener)} to hold back anything it
+ * promises the server or the application on the strength of a write, such as
+ * the PUBREC that acknowledges a received QoS 2 message, until the write is
+ * on disk, and to give up the connection if the write cannot be synced.</p>
+ */
+public interface MqttDeferredSyncPersistence extends MqttClientPersistence {
+	/**
+	 * Told whether the writes it waited for reached the disk.
+	 */
+	interface SyncListener {
+		/**
+		 * Called once everything the listener waited for is on disk.
+		 */
+		void synced();
+
+		/**
+		 * Called instead of {@link #synced()} when a write the listener
+		 * waited for, or one synced in the same batch, could not be synced.
+		 * The write may not survive a crash, so nothing should be promised
+		 * on the strength of it.
+		 *
+		 * @param cause why the sync failed
+		 */
+		void syncFailed(MqttPersistenceException cause);
+	}
+
+	/**
+	 * Tells a listener once everything put into the store before this method
+	 * was called has been synced to disk, or has failed to be. The listener
+	 * may be called straight away on the calling thread, or later on a thread
+	 * of the store's own.
+	 *
+	 * @param listener the listener to tell
+	 * @throws MqttPersistenceException if the store is not open
+	 */
+	void whenSynced(SyncListener listener) throws MqttPersistenceException;
+}
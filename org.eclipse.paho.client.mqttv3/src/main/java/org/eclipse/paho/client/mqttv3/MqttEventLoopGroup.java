@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.internal.CommsEventLoop;
+
+/**
+ * A fixed set of selector threads that serve the network connections of
+ * many clients.
+ *
+ * <p>Pass the same group to the {@link MqttConnectOptions} of each client
+ * that should share it. Each new connection is assigned to one of the
+ * loops in turn. The group is not tied to the lifecycle of any client;
+ * call {@link #shutdown()} once all clients using it have disconnected.
+ * </p>
+ *
+ * @see MqttConnectOptions#setEventLoopGroup(MqttEventLoopGroup)
+ */
+public class MqttEventLoopGroup {
+	private final CommsEventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+	/**
+	 * Creates a group and starts its threads.
+	 *
+	 * @param threads the number of selector threads, at least 1
+	 * @throws MqttException if a selector cannot be opened
+	 */
+	public MqttEventLoopGroup(int threads) throws MqttException {
+		if (threads < 1) {
+			throw new IllegalArgumentException();
+		}
+		loops = new CommsEventLoop[threads];
+		try {
+			for (int i = 0; i < threads; i++) {
+				loops[i] = new CommsEventLoop("MQTT Loop: " + i);
+			}
+		} catch (IOException ex) {
+			shutdown();
+			throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION, ex);
+		}
+	}
+
+	/**
+	 * @return the number of selector threads in the group
+	 */
+	public int getThreadCount() {
+		return loops.length;
+	}
+
+	/**
+	 * Picks the loop to serve a new connection.
+	 *
+	 * @return the next loop in turn
+	 */
+	CommsEventLoop next() {
+		return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Stops the threads of the group. Connections still registered with it
+	 * are no longer served.
+	 */
+	public void shutdown() {
+		for (CommsEventLoop loop : loops) {
+			if (loop != null) {
+				loop.shutdown();
+			}
+		}
+	}
+}
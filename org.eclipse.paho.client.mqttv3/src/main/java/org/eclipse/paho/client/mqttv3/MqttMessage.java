@@ -16,16 +16,27 @@
  */
 package org.eclipse.paho.client.mqttv3;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * An MQTT message holds the application payload and options
  * specifying how the message is to be delivered
  * The message includes a "payload" (the body of the message)
  * represented as a byte[].
+ * <p>
+ * The payload of a message received from the server is not copied out of
+ * the packet it arrived in until {@link #getPayload()} is called, and
+ * {@link #getPayloadBuffer()} reads it without copying it at all.
  */
 public class MqttMessage {
 
 	private boolean mutable = true;
 	private byte[] payload;
+	// A received payload still in the packet it arrived in, until getPayload copies it
+	private byte[] payloadBytes;
+	private int payloadOffset;
+	private int payloadLength;
 	private int qos = 1;
 	private boolean retained = false;
 	private boolean dup = false;
@@ -71,7 +82,38 @@ public class MqttMessage {
 	 * @return the payload as a byte array.
 	 */
 	public byte[] getPayload() {
-		return payload;
+		byte[] result = payload;
+		if (result == null) {
+			result = Arrays.copyOfRange(payloadBytes, payloadOffset, payloadOffset + payloadLength);
+			payload = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the payload as a read-only buffer, positioned at the start of
+	 * the payload and limited to its end. For a message received from the
+	 * server this is a view of the packet the message arrived in, so large
+	 * payloads can be read without being copied.
+	 *
+	 * @return a new read-only buffer over the payload.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		byte[] bytes = payload;
+		if (bytes != null) {
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(payloadBytes, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the length of the payload, without copying it.
+	 *
+	 * @return the payload length in bytes.
+	 */
+	public int getPayloadLength() {
+		byte[] bytes = payload;
+		return bytes != null ? bytes.length : payloadLength;
 	}
 
 	/**
@@ -81,6 +123,7 @@ public class MqttMessage {
 	public void clearPayload() {
 		checkMutable();
 		this.payload = new byte[] {};
+		this.payloadBytes = null;
 	}
 
 	/**
@@ -96,6 +139,24 @@ public class MqttMessage {
 			throw new NullPointerException();
 		}
 		this.payload = payload.clone();
+		this.payloadBytes = null;
+	}
+
+	/**
+	 * Sets the payload of a received message to a part of the packet it
+	 * arrived in, without copying it. The packet must not be changed
+	 * afterwards.
+	 *
+	 * @param bytes the packet
+	 * @param offset the start of the payload in the packet
+	 * @param length the length of the payload
+	 */
+	protected void setPayloadView(byte[] bytes, int offset, int length) {
+		checkMutable();
+		this.payload = null;
+		this.payloadBytes = bytes;
+		this.payloadOffset = offset;
+		this.payloadLength = length;
 	}
 
 	/**
@@ -190,7 +251,7 @@ public class MqttMessage {
 	 * @return a string representation of this message.
 	 */
 	public String toString() {
-		return new String(payload);
+		return new String(getPayload());
 	}
 
 	/**
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A message whose payload is read from a stream or channel as it is sent,
+ * rather than held in memory. However large the payload, the client only
+ * buffers a few kilobytes of it at a time.
+ *
+ * <p>The length of the payload must be known up front, as it is written in
+ * the packet header before the payload. If the source ends before
+ * <code>length</code> bytes have been read, the connection is closed, as
+ * the packet cannot be completed.</p>
+ *
+ * <p>A message read from an {@link InputStream} or a
+ * {@link ReadableByteChannel} can only be sent once, so it can only be
+ * published at QoS 0: a QoS 1 or 2 message has to be sent again if the
+ * connection is lost before it is acknowledged. A message read from a
+ * {@link FileChannel} is read with positional reads and can be sent any
+ * number of times, at any QoS. To publish a one-shot stream at QoS 1 or 2,
+ * write it to a file first.</p>
+ *
+ * <p>Streamed messages are never written to the client's persistence, so
+ * they are not redelivered if the client is restarted. The client does not
+ * close the source; it must stay open until the delivery token completes.</p>
+ *
+ * @see MqttAsyncClient#publish(String, MqttMessage)
+ */
+public class MqttStreamingMessage extends MqttMessage {
+
+	/**
+	 * The largest payload a message can have: the largest remaining length
+	 * MQTT can encode, less the smallest PUBLISH variable header.
+	 */
+	public static final int MAX_PAYLOAD_LENGTH = 268435455 - 3;
+
+	private final ReadableByteChannel source;
+	private final FileChannel file;
+	private final long position;
+	private final int length;
+	private boolean opened = false;
+
+	/**
+	 * Constructs a message that reads its payload from a stream. The
+	 * message can only be published at QoS 0.
+	 * @param in the stream to read the payload from
+	 * @param length the number of bytes to read from the stream
+	 * @throws IllegalArgumentException if the length is negative or larger
+	 * than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public MqttStreamingMessage(InputStream in, long length) {
+		this(Channels.newChannel(in), length);
+	}
+
+	/**
+	 * Constructs a message that reads its payload from a channel. The
+	 * message can only be published at QoS 0.
+	 * @param channel the channel to read the payload from, from its
+	 * current position
+	 * @param length the number of bytes to read from the channel
+	 * @throws IllegalArgumentException if the length is negative or larger
+	 * than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public MqttStreamingMessage(ReadableByteChannel channel, long length) {
+		if (channel == null) {
+			throw new NullPointerException();
+		}
+		this.source = channel;
+		this.file = null;
+		this.position = 0;
+		this.length = validateLength(length);
+		setQos(0);
+	}
+
+	/**
+	 * Constructs a message that reads its payload from a region of a file.
+	 * The region is read again each time the message is sent, so the message
+	 * can be published at any QoS.
+	 * @param file the file to read the payload from
+	 * @param position the position of the payload in the file
+	 * @param length the length of the payload
+	 * @throws IllegalArgumentException if the position is negative, or the
+	 * length is negative or larger than {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public MqttStreamingMessage(FileChannel file, long position, long length) {
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		if (position < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.source = null;
+		this.file = file;
+		this.position = position;
+		this.length = validateLength(length);
+	}
+
+	private static int validateLength(long length) {
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException();
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Returns whether the payload can be read more than once, which is
+	 * needed to publish the message at QoS 1 or 2.
+	 * @return <code>true</code> if the payload is read from a file
+	 */
+	public boolean isResendable() {
+		return file != null;
+	}
+
+	/**
+	 * Opens the payload for reading. The client calls this each time it
+	 * sends the message, and reads at most {@link #getPayloadLength()} bytes
+	 * from the channel returned.
+	 * @return a channel positioned at the start of the payload
+	 * @throws IOException if the payload is read from a stream that has
+	 * already been read
+	 */
+	public synchronized ReadableByteChannel openPayload() throws IOException {
+		if (file != null) {
+			return new FileRegionChannel(file, position);
+		}
+		if (opened) {
+			throw new IOException("The payload stream has already been read");
+		}
+		opened = true;
+		return source;
+	}
+
+	/**
+	 * Returns the length of the payload.
+	 * @return the payload length in bytes.
+	 */
+	public int getPayloadLength() {
+		return length;
+	}
+
+	/**
+	 * Returns an empty array, as the payload of a streamed message is not
+	 * held in memory. The payload is read with {@link #openPayload()}, and
+	 * its length is given by {@link #getPayloadLength()}.
+	 * @return an empty array
+	 */
+	public byte[] getPayload() {
+		return new byte[0];
+	}
+
+	/**
+	 * Returns an empty buffer, as the payload of a streamed message is not
+	 * held in memory. The payload is read with {@link #openPayload()}, and
+	 * its length is given by {@link #getPayloadLength()}.
+	 * @return an empty, read-only buffer
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return ByteBuffer.allocate(0).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Sets the quality of service for this message.
+	 * @param qos the "quality of service" to use.  Set to 0, 1, 2.
+	 * @throws IllegalArgumentException if value of QoS is not 0, 1 or 2, or
+	 * is 1 or 2 and the payload is read from a stream that cannot be resent.
+	 * @throws IllegalStateException if this message cannot be edited
+	 * @see MqttMessage#setQos(int)
+	 */
+	public void setQos(int qos) {
+		if (qos > 0 && source != null) {
+			throw new IllegalArgumentException();
+		}
+		super.setQos(qos);
+	}
+
+	public String toString() {
+		return "streamed payload, length " + length;
+	}
+
+	/**
+	 * Reads a file from a position with positional reads, leaving the
+	 * position of the file channel alone.
+	 */
+	private static class FileRegionChannel implements ReadableByteChannel {
+		private final FileChannel file;
+		private long position;
+		private boolean open = true;
+
+		FileRegionChannel(FileChannel file, long position) {
+			this.file = file;
+			this.position = position;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			int count = file.read(dst, position);
+			if (count > 0) {
+				position += count;
+			}
+			return count;
+		}
+
+		public boolean isOpen() {
+			return open && file.isOpen();
+		}
+
+		public void close() {
+			open = false;
+		}
+	}
+}
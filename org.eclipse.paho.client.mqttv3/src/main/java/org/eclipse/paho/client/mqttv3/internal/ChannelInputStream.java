@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An input stream that reads from a blocking {@link ReadableByteChannel}
+ * through a direct buffer. Each refill reads as much as the channel has
+ * available, so the MQTT decoder is served from memory for all but the
+ * first byte of a burst of packets.
+ */
+class ChannelInputStream extends InputStream {
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param channel the blocking channel to read from
+	 * @param bufferSize the size of the direct read buffer
+	 */
+	ChannelInputStream(ReadableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.buffer.flip();
+	}
+
+	public int read() throws IOException {
+		if (!buffer.hasRemaining() && !fill()) {
+			return -1;
+		}
+		return buffer.get() & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining() && !fill()) {
+			return -1;
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+
+	public int available() throws IOException {
+		return buffer.remaining();
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads the next chunk of data from the channel into the buffer.
+	 * @return false if the end of the stream has been reached
+	 */
+	private boolean fill() throws IOException {
+		buffer.clear();
+		int count;
+		do {
+			count = channel.read(buffer);
+		} while (count == 0);
+		buffer.flip();
+		return count > 0;
+	}
+}
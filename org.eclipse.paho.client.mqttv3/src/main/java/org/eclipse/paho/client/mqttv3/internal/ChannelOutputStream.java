@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream that collects bytes in a direct buffer and hands them
+ * to a blocking {@link WritableByteChannel} when the buffer fills up or
+ * the stream is flushed. Buffers given to {@link #write(ByteBuffer[])} go to
+ * the channel in the same write as the bytes before them, when the channel
+ * can gather, with no more than {@link GatheringWrites#MAX_HEAP_BYTES} of
+ * heap buffers in each write.
+ */
+class ChannelOutputStream extends OutputStream implements GatheringOutput {
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param channel the blocking channel to write to
+	 * @param bufferSize the size of the direct write buffer
+	 */
+	ChannelOutputStream(WritableByteChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	public void write(ByteBuffer[] buffers) throws IOException {
+		if (!(channel instanceof GatheringByteChannel)) {
+			for (ByteBuffer source : buffers) {
+				while (source.hasRemaining()) {
+					if (!buffer.hasRemaining()) {
+						drain();
+					}
+					int limit = source.limit();
+					source.limit(source.position() + Math.min(source.remaining(), buffer.remaining()));
+					buffer.put(source);
+					source.limit(limit);
+				}
+			}
+			return;
+		}
+		ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+		all[0] = buffer;
+		System.arraycopy(buffers, 0, all, 1, buffers.length);
+		buffer.flip();
+		try {
+			long remaining = 0;
+			for (ByteBuffer b : all) {
+				remaining += b.remaining();
+			}
+			while (remaining > 0) {
+				// In slices, so a large heap payload is not copied into a temporary direct buffer as large
+				remaining -= GatheringWrites.write((GatheringByteChannel) channel, all);
+			}
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	public void flush() throws IOException {
+		drain();
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Writes the whole content of the buffer to the channel.
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			buffer.clear();
+		}
+	}
+}
@@ -22,15 +22,32 @@
 package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttBulkRestorePersistence;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttDeferredSyncPersistence;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
@@ -76,13 +93,14 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  * (see restoreState)
  * 
  * 3) On Connect, copy messages from the outbound hashtables to the pendingMessages or 
- * pendingFlows vector in messageid order.
- * - Initial message publish goes onto the pendingmessages buffer. 
- * - PUBREL goes onto the pendingflows buffer
+ * pendingFlows queue in messageid order.
+ * - Initial message publish goes onto the pendingmessages queue. 
+ * - PUBREL goes onto the pendingflows queue
  * (see restoreInflightMessages)
  * 
- * 4) Sender thread reads messages from the pendingflows and pendingmessages buffer
- * one at a time.  The message is removed from the pendingbuffer but remains on the 
+ * 4) Sender thread reads messages from the urgentflows, pendingflows and pendingmessages
+ * queues one at a time.  The queues take messages from any thread without locking
+ * and the sender parks while there is nothing it can send.  The message is removed from the pendingbuffer but remains on the 
  * outbound* hashtable.  The hashtable is the place where the full set of outstanding 
  * messages are stored in memory. (Persistence is only used at start up)
  *  
@@ -108,13 +126,23 @@ public class ClientState {
 	private static final String PERSISTENCE_CONFIRMED_PREFIX = "sc-";
 	private static final String PERSISTENCE_RECEIVED_PREFIX = "r-";
 	
-	private static final int MIN_MSG_ID = 1;		// Lowest possible MQTT message ID to use
-	private static final int MAX_MSG_ID = 65535;	// Highest possible MQTT message ID to use
-	private int nextMsgId = MIN_MSG_ID - 1;			// The next available message ID to use
-	private Hashtable inUseMsgIds;					// Used to store a set of in-use message IDs
-
-	volatile private Vector pendingMessages;
-	volatile private Vector pendingFlows;
+	private static final int MAX_MSG_ID = MessageIdAllocator.MAX_MSG_ID;
+	// Below this many persisted records, decoding them in parallel is not worth it
+	private static final int PARALLEL_RESTORE_THRESHOLD = 1024;
+	private int restoreParallelism = Runtime.getRuntime().availableProcessors();
+	private static final Comparator<MqttWireMessage> MESSAGE_ID_ORDER = new Comparator<MqttWireMessage>() {
+		public int compare(MqttWireMessage a, MqttWireMessage b) {
+			return Integer.compare(a.getMessageId(), b.getMessageId());
+		}
+	};
+	private MessageIdAllocator msgIds;				// Hands out and tracks the in-use message IDs
+
+	// Publishes wait in pendingMessages until the inflight window has space.
+	// All other flows go to pendingFlows, except CONNECT and PINGREQ which
+	// jump ahead of them in urgentFlows.
+	volatile private MpscLinkedQueue<MqttWireMessage> pendingMessages;
+	volatile private MpscLinkedQueue<MqttWireMessage> pendingFlows;
+	volatile private MpscLinkedQueue<MqttWireMessage> urgentFlows;
 	
 	private CommsTokenStore tokenStore;
 	private ClientComms clientComms = null;
@@ -125,12 +153,18 @@ public class ClientState {
 	private HighResolutionTimer highResolutionTimer;
 	
 	private int maxInflight = 0;	
-	private int actualInFlight = 0;
+	private int maxInflightPolicy = MqttConnectOptions.MAX_INFLIGHT_POLICY_FAIL;
+	private long maxInflightTimeout = 0;			// milliseconds, 0 waits until there is space
+	private long maxInflightQueueBytes = 0;
+	private final AtomicLong pendingBytes = new AtomicLong();	// Payload bytes in pendingMessages, or reserved for them
+	private final Object inflightWindowLock = new Object();
+	private volatile int inflightWindowWaiters = 0;
+	private volatile int actualInFlight = 0;
 	private int inFlightPubRels = 0;
 	
 	private final Object queueLock = new Object();
 	private final Object quiesceLock = new Object();
-	private boolean quiescing = false;
+	private volatile boolean quiescing = false;
 	
 	private long lastOutboundActivity = 0;			// nanoseconds absolute time
 	private long lastInboundActivity = 0;			// nanoseconds absolute time
@@ -139,7 +173,7 @@ public class ClientState {
 	private final Object pingOutstandingLock = new Object();
 	private int pingOutstanding = 0;
 
-	private boolean connected = false;
+	private volatile boolean connected = false;
 	
 	private Hashtable outboundQoS2 = null;
 	private Hashtable outboundQoS1 = null;
@@ -147,6 +181,9 @@ public class ClientState {
 	private Hashtable inboundQoS2 = null;
 	
 	private MqttPingSender pingSender = null;
+	private volatile Runnable senderWakeup = null;
+	private volatile Thread parkedSender = null;		// The sender thread while it waits in get()
+	private final AtomicInteger senderWakeups = new AtomicInteger(0);
 
 	protected ClientState(MqttClientPersistence persistence, CommsTokenStore tokenStore, 
 			CommsCallback callback, ClientComms clientComms, MqttPingSender pingSender,
@@ -155,8 +192,10 @@ public class ClientState {
 		log.setResourceName(clientComms.getClient().getClientId());
 		log.finer(CLASS_NAME, "<Init>", "" );
 
-		inUseMsgIds = new Hashtable();
-		pendingFlows = new Vector();
+		msgIds = new MessageIdAllocator();
+		pendingMessages = new MpscLinkedQueue<MqttWireMessage>();
+		pendingFlows = new MpscLinkedQueue<MqttWireMessage>();
+		urgentFlows = new MpscLinkedQueue<MqttWireMessage>();
 		outboundQoS2 = new Hashtable();
 		outboundQoS1 = new Hashtable();
 		outboundQoS0 = new Hashtable();
@@ -175,10 +214,40 @@ public class ClientState {
 		restoreState();
 	}
 	
+	/**
+	 * Sets the most chunks that persisted records are split into when they
+	 * are decoded in parallel on restore.
+	 * @param restoreParallelism the most chunks, 1 to decode on the calling thread
+	 */
+	protected void setRestoreParallelism(int restoreParallelism) {
+		this.restoreParallelism = restoreParallelism;
+	}
+
 	protected void setMaxInflight(int maxInflight) {
         this.maxInflight = maxInflight;
-        pendingMessages = new Vector(this.maxInflight);
     }
+	/**
+	 * Sets what {@link #send(MqttWireMessage, MqttToken)} does with a publish
+	 * while the inflight window is full.
+	 * @param maxInflightPolicy one of the MAX_INFLIGHT_POLICY values of {@link MqttConnectOptions}
+	 * @param maxInflightTimeout how long to block in milliseconds, 0 to block until there is space
+	 * @param maxInflightQueueBytes how many payload bytes may wait to be sent
+	 */
+	protected void setMaxInflightPolicy(int maxInflightPolicy, long maxInflightTimeout, long maxInflightQueueBytes) {
+		this.maxInflightPolicy = maxInflightPolicy;
+		this.maxInflightTimeout = maxInflightTimeout;
+		this.maxInflightQueueBytes = maxInflightQueueBytes;
+	}
+	/**
+	 * Sets an action run whenever there may be new work for the sender,
+	 * in addition to waking any thread blocked in {@link #get()}. This is
+	 * used when messages are written from an event loop rather than from a
+	 * sender thread of their own.
+	 * @param senderWakeup the action to run, or null
+	 */
+	protected void setSenderWakeup(Runnable senderWakeup) {
+		this.senderWakeup = senderWakeup;
+	}
     protected void setKeepAliveSecs(long keepAliveSecs) {
 		this.keepAliveNanos = TimeUnit.SECONDS.toNanos(keepAliveSecs);
 	}
@@ -226,9 +295,13 @@ public class ClientState {
 		log.fine(CLASS_NAME, methodName,">");
 
 		persistence.clear();
-		inUseMsgIds.clear();
-		pendingMessages.clear();
-		pendingFlows.clear();
+		msgIds.clear();
+		synchronized (queueLock) {
+			pendingMessages.clear();
+			pendingBytes.set(0);
+			pendingFlows.clear();
+			urgentFlows.clear();
+		}
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		outboundQoS0.clear();
@@ -236,6 +309,11 @@ public class ClientState {
 		tokenStore.clear();
 	}
 	
+	/**
+	 * Decodes a persisted record. It may be called on a fork-join thread, so
+	 * it leaves a corrupt record in persistence for the caller to remove.
+	 * @return the message, or null if the record is corrupt
+	 */
 	private MqttWireMessage restoreMessage(String key, MqttPersistable persistable) throws MqttException {
 		final String methodName = "restoreMessage";
 		MqttWireMessage message = null;
@@ -246,13 +324,8 @@ public class ClientState {
 		catch (MqttException ex) {
 			//@TRACE 602=key={0} exception
 			log.fine(CLASS_NAME, methodName, "602", new Object[] {key}, ex);
-			if (ex.getCause() instanceof EOFException) {
-				// Premature end-of-file means that the message is corrupted
-				if (key != null) {
-					persistence.remove(key);
-				}
-			}
-			else {
+			// Premature end-of-file means that the message is corrupted
+			if (!(ex.getCause() instanceof EOFException)) {
 				throw ex;
 			}
 		}
@@ -261,34 +334,17 @@ public class ClientState {
 		return message;
 	}
 
-	/**
-	 * Inserts a new message to the list, ensuring that list is ordered from lowest to highest in terms of the message id's.
-	 * @param list the list to insert the message into
-	 * @param newMsg the message to insert into the list
-	 */
-	private void insertInOrder(Vector list, MqttWireMessage newMsg) {
-		int newMsgId = newMsg.getMessageId();
-		for (int i = 0; i < list.size(); i++) {
-			MqttWireMessage otherMsg = (MqttWireMessage) list.elementAt(i);
-			int otherMsgId = otherMsg.getMessageId();
-			if (otherMsgId > newMsgId) {
-				list.insertElementAt(newMsg, i);
-				return;
-			}
-		}
-		list.addElement(newMsg);
-	}
-
 	/**
 	 * Produces a new list with the messages properly ordered according to their message id's.
+	 * The list must already be sorted by message id.
 	 * @param list the list containing the messages to produce a new reordered list for 
 	 * - this will not be modified or replaced, i.e., be read-only to this method
 	 * @return a new reordered list
 	 */
-	private Vector reOrder(Vector list) {
+	private Vector<MqttWireMessage> reOrder(Vector<MqttWireMessage> list) {
 
 		// here up the new list
-		Vector newList = new Vector();
+		Vector<MqttWireMessage> newList = new Vector<MqttWireMessage>();
 
 		if (list.size() == 0) {
 			return newList; // nothing to reorder
@@ -298,14 +354,14 @@ public class ClientState {
 		int largestGap = 0;
 		int largestGapMsgIdPosInList = 0;
 		for (int i = 0; i < list.size(); i++) {
-			int currentMsgId = ((MqttWireMessage) list.elementAt(i)).getMessageId();
+			int currentMsgId = list.elementAt(i).getMessageId();
 			if (currentMsgId - previousMsgId > largestGap) {
 				largestGap = currentMsgId - previousMsgId;
 				largestGapMsgIdPosInList = i;
 			}
 			previousMsgId = currentMsgId;
 		}
-		int lowestMsgId = ((MqttWireMessage) list.elementAt(0)).getMessageId();
+		int lowestMsgId = list.elementAt(0).getMessageId();
 		int highestMsgId = previousMsgId; // last in the sorted list
 		
 		// we need to check that the gap after highest msg id to the lowest msg id is not beaten
@@ -332,18 +388,36 @@ public class ClientState {
 	 */
 	protected void restoreState() throws MqttException {
 		final String methodName = "restoreState";
-		Enumeration messageKeys = persistence.keys();
-		MqttPersistable persistable;
 		String key;
-		int highestMsgId = nextMsgId;
+		int highestMsgId = msgIds.getNextMessageId() - 1;
 		Vector orphanedPubRels = new Vector();
 		//@TRACE 600=>
 		log.fine(CLASS_NAME, methodName, "600");
-		
-		while (messageKeys.hasMoreElements()) {
-			key = (String) messageKeys.nextElement();
-			persistable = persistence.get(key);
-			MqttWireMessage message = restoreMessage(key, persistable);
+
+		Map<String, MqttPersistable> records = readPersistence();
+		String[] keys = new String[records.size()];
+		MqttPersistable[] persistables = new MqttPersistable[keys.length];
+		int count = 0;
+		for (Map.Entry<String, MqttPersistable> record : records.entrySet()) {
+			keys[count] = record.getKey();
+			persistables[count] = record.getValue();
+			count++;
+		}
+		MqttWireMessage[] messages = restoreMessages(keys, persistables);
+		// Records are looked up here rather than in the persistence, so a
+		// corrupt record is left out as if it had already been removed
+		HashMap<String, MqttWireMessage> restored = new HashMap<String, MqttWireMessage>(keys.length * 2);
+		for (int i = 0; i < keys.length; i++) {
+			if (messages[i] != null) {
+				restored.put(keys[i], messages[i]);
+			} else {
+				persistence.remove(keys[i]);
+			}
+		}
+
+		for (int i = 0; i < keys.length; i++) {
+			key = keys[i];
+			MqttWireMessage message = messages[i];
 			if (message != null) {
 				if (key.startsWith(PERSISTENCE_RECEIVED_PREFIX)) {
 					//@TRACE 604=inbound QoS 2 publish key={0} message={1}
@@ -354,22 +428,16 @@ public class ClientState {
 				} else if (key.startsWith(PERSISTENCE_SENT_PREFIX)) {
 					MqttPublish sendMessage = (MqttPublish) message;
 					highestMsgId = Math.max(sendMessage.getMessageId(), highestMsgId);
-					if (persistence.containsKey(getSendConfirmPersistenceKey(sendMessage))) {
-						MqttPersistable persistedConfirm = persistence.get(getSendConfirmPersistenceKey(sendMessage));
+					if (restored.containsKey(getSendConfirmPersistenceKey(sendMessage))) {
 						// QoS 2, and CONFIRM has already been sent...
 						// NO DUP flag is allowed for 3.1.1 spec while it's not clear for 3.1 spec
 						// So we just remove DUP
-						MqttPubRel confirmMessage = (MqttPubRel) restoreMessage(key, persistedConfirm);
-						if (confirmMessage != null) {
-							// confirmMessage.setDuplicate(true); // REMOVED
-							//@TRACE 605=outbound QoS 2 pubrel key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "605", new Object[]{key,message});
+						MqttPubRel confirmMessage = (MqttPubRel) restored.get(getSendConfirmPersistenceKey(sendMessage));
+						// confirmMessage.setDuplicate(true); // REMOVED
+						//@TRACE 605=outbound QoS 2 pubrel key={0} message={1}
+						log.fine(CLASS_NAME,methodName, "605", new Object[]{key,message});
 
-							outboundQoS2.put( Integer.valueOf(confirmMessage.getMessageId()), confirmMessage);
-						} else {
-							//@TRACE 606=outbound QoS 2 completed key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "606", new Object[]{key,message});
-						}
+						outboundQoS2.put( Integer.valueOf(confirmMessage.getMessageId()), confirmMessage);
 					} else {
 						// QoS 1 or 2, with no CONFIRM sent...
 						// Put the SEND to the list of pending messages, ensuring message ID ordering...
@@ -388,7 +456,7 @@ public class ClientState {
 					}
 					MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put( Integer.valueOf(sendMessage.getMessageId()), Integer.valueOf(sendMessage.getMessageId()));
+					msgIds.markInUse(sendMessage.getMessageId());
 				} else if(key.startsWith(PERSISTENCE_SENT_BUFFERED_PREFIX)){
 					
 					// Buffered outgoing messages that have not yet been sent at all
@@ -415,19 +483,19 @@ public class ClientState {
 					
 					MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put( Integer.valueOf(sendMessage.getMessageId()), Integer.valueOf(sendMessage.getMessageId()));
+					msgIds.markInUse(sendMessage.getMessageId());
 					
 					
 				} else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
 					MqttPubRel pubRelMessage = (MqttPubRel) message;
-					if (!persistence.containsKey(getSendPersistenceKey(pubRelMessage))) {
+					if (!restored.containsKey(getSendPersistenceKey(pubRelMessage))) {
 						orphanedPubRels.addElement(key);
 					}
 				}
 			}
 		}
 
-		messageKeys = orphanedPubRels.elements();
+		Enumeration messageKeys = orphanedPubRels.elements();
 		while(messageKeys.hasMoreElements()) {
 			key = (String) messageKeys.nextElement();
 			//@TRACE 609=removing orphaned pubrel key={0}
@@ -436,13 +504,73 @@ public class ClientState {
 			persistence.remove(key);
 		}
 		
-		nextMsgId = highestMsgId;
+		msgIds.setLastMessageId(highestMsgId);
+	}
+
+	/**
+	 * Reads every record from persistence, in one go if the persistence
+	 * supports it, otherwise key by key.
+	 */
+	private Map<String, MqttPersistable> readPersistence() throws MqttException {
+		if (persistence instanceof MqttBulkRestorePersistence) {
+			return ((MqttBulkRestorePersistence) persistence).restoreAll();
+		}
+		LinkedHashMap<String, MqttPersistable> records = new LinkedHashMap<String, MqttPersistable>();
+		Enumeration messageKeys = persistence.keys();
+		while (messageKeys.hasMoreElements()) {
+			String key = (String) messageKeys.nextElement();
+			records.put(key, persistence.get(key));
+		}
+		return records;
+	}
+
+	/**
+	 * Decodes persisted records, splitting the work across the common
+	 * fork-join pool when there are enough of them.
+	 * @return the messages, with null for a record that was corrupt
+	 */
+	private MqttWireMessage[] restoreMessages(final String[] keys, final MqttPersistable[] persistables) throws MqttException {
+		final MqttWireMessage[] messages = new MqttWireMessage[keys.length];
+		int chunks = Math.min(restoreParallelism, keys.length / PARALLEL_RESTORE_THRESHOLD);
+		if (chunks <= 1) {
+			for (int i = 0; i < keys.length; i++) {
+				messages[i] = restoreMessage(keys[i], persistables[i]);
+			}
+			return messages;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int from = (int) ((long) keys.length * c / chunks);
+			final int to = (int) ((long) keys.length * (c + 1) / chunks);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws MqttException {
+					for (int i = from; i < to; i++) {
+						messages[i] = restoreMessage(keys[i], persistables[i]);
+					}
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+				result.get();
+			}
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof MqttException) {
+				throw (MqttException) ex.getCause();
+			}
+			throw new MqttException(ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MqttException(ex);
+		}
+		return messages;
 	}
 	
 	private void restoreInflightMessages() {
 		final String methodName = "restoreInflightMessages";
-		pendingMessages = new Vector(this.maxInflight);
-		pendingFlows = new Vector();
+		Vector<MqttWireMessage> restoredMessages = new Vector<MqttWireMessage>(Math.max(this.maxInflight, outboundQoS1.size() + outboundQoS2.size() + outboundQoS0.size()));
+		Vector<MqttWireMessage> restoredFlows = new Vector<MqttWireMessage>();
 
 		Enumeration keys = outboundQoS2.keys();
 		while (keys.hasMoreElements()) {
@@ -453,12 +581,12 @@ public class ClientState {
 				log.fine(CLASS_NAME,methodName, "610", new Object[]{key});
                 // set DUP flag only for PUBLISH, but NOT for PUBREL (spec 3.1.1)
 				msg.setDuplicate(true);  
-				insertInOrder(pendingMessages, (MqttPublish)msg);
+				restoredMessages.addElement(msg);
 			} else if (msg instanceof MqttPubRel) {
 				//@TRACE 611=QoS 2 pubrel key={0}
 				log.fine(CLASS_NAME,methodName, "611", new Object[]{key});
 
-				insertInOrder(pendingFlows, (MqttPubRel)msg);
+				restoredFlows.addElement(msg);
 			}
 		}
 		keys = outboundQoS1.keys();
@@ -469,7 +597,7 @@ public class ClientState {
 			//@TRACE 612=QoS 1 publish key={0}
 			log.fine(CLASS_NAME,methodName, "612", new Object[]{key});
 
-			insertInOrder(pendingMessages, msg);
+			restoredMessages.addElement(msg);
 		}
 		keys = outboundQoS0.keys();
 		while(keys.hasMoreElements()){
@@ -477,12 +605,27 @@ public class ClientState {
 			MqttPublish msg = (MqttPublish)outboundQoS0.get(key);
 			//@TRACE 512=QoS 0 publish key={0}
 			log.fine(CLASS_NAME,methodName, "512", new Object[]{key});
-			insertInOrder(pendingMessages, msg);
+			restoredMessages.addElement(msg);
 			
 		}
+		Collections.sort(restoredFlows, MESSAGE_ID_ORDER);
+		Collections.sort(restoredMessages, MESSAGE_ID_ORDER);
 		
-		this.pendingFlows = reOrder(pendingFlows);
-		this.pendingMessages = reOrder(pendingMessages);
+		// Anything queued before the connection was lost is superseded
+		// by the restored messages
+		pendingMessages.clear();
+		pendingBytes.set(0);
+		pendingFlows.clear();
+		Enumeration<MqttWireMessage> restored = reOrder(restoredFlows).elements();
+		while (restored.hasMoreElements()) {
+			pendingFlows.offer(restored.nextElement());
+		}
+		restored = reOrder(restoredMessages).elements();
+		while (restored.hasMoreElements()) {
+			MqttPublish publish = (MqttPublish) restored.nextElement();
+			pendingMessages.offer(publish);
+			pendingBytes.addAndGet(publish.getPayloadLength());
+		}
 	}
 	
 	/**
@@ -519,48 +662,65 @@ public class ClientState {
 		}
 			
 		if (message instanceof MqttPublish) {
-			synchronized (queueLock) {
-				if (actualInFlight >= this.maxInflight) {
+			MqttMessage innerMessage = ((MqttPublish) message).getMessage();
+
+			// The publish path does not take the queueLock, so that publishing
+			// threads do not contend with each other or with the sender.
+			int payloadLength = ((MqttPublish) message).getPayloadLength();
+			boolean reserved = false;
+			if (actualInFlight >= this.maxInflight) {
+				if (!isInflightOverflowAllowed(innerMessage)) {
 					//@TRACE 613= sending {0} msgs at max inflight window
 					log.fine(CLASS_NAME, methodName, "613", new Object[]{ Integer.valueOf(actualInFlight)});
 
 					throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
 				}
-				
-				MqttMessage innerMessage = ((MqttPublish) message).getMessage();
-				//@TRACE 628=pending publish key={0} qos={1} message={2}
-				log.fine(CLASS_NAME,methodName,"628", new Object[]{ Integer.valueOf(message.getMessageId()),  Integer.valueOf(innerMessage.getQos()), message});
+				// A message queued beyond the window has reserved its bytes already
+				reserved = maxInflightPolicy == MqttConnectOptions.MAX_INFLIGHT_POLICY_QUEUE;
+			}
+			if (!reserved) {
+				pendingBytes.addAndGet(payloadLength);
+			}
+			
+			//@TRACE 628=pending publish key={0} qos={1} message={2}
+			log.fine(CLASS_NAME,methodName,"628", new Object[]{ Integer.valueOf(message.getMessageId()),  Integer.valueOf(innerMessage.getQos()), message});
 
+			boolean queued = false;
+			try {
 				switch(innerMessage.getQos()) {
 					case 2:
 						outboundQoS2.put( Integer.valueOf(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+						persist((MqttPublish) message);
 						tokenStore.saveToken(token, message);
 						break;
 					case 1:
 						outboundQoS1.put( Integer.valueOf(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
+						persist((MqttPublish) message);
 						tokenStore.saveToken(token, message);
 						break;
 					case 0:
 						tokenStore.saveToken(token, message);
 						break;
 				}
-				pendingMessages.addElement(message);
-				queueLock.notifyAll();
+				pendingMessages.offer(message);
+				queued = true;
+			} finally {
+				if (!queued) {
+					// The message never made the queue, so its bytes are given back
+					pendingBytes.addAndGet(-payloadLength);
+				}
 			}
+			wakeSender();
 		} else {
 			//@TRACE 615=pending send key={0} message {1}
 			log.fine(CLASS_NAME,methodName,"615", new Object[]{ Integer.valueOf(message.getMessageId()), message});
 			
 			if (message instanceof MqttConnect) {
-				synchronized (queueLock) {
-					// Add the connect action at the head of the pending queue ensuring it jumps
-					// ahead of any of other pending actions.
-					tokenStore.saveToken(token, message);
-					pendingFlows.insertElementAt(message,0);
-					queueLock.notifyAll();
-				}
+				// Add the connect action to the urgent queue ensuring it jumps
+				// ahead of any of other pending actions.
+				tokenStore.saveToken(token, message);
+				urgentFlows.offer(message);
+				wakeSender();
 			} else {
 				if (message instanceof MqttPingReq) {
 					this.pingCommand = message;
@@ -573,17 +733,117 @@ public class ClientState {
 					persistence.remove(getReceivedPersistenceKey(message));
 				}
 				
-				synchronized (queueLock) {
-					if ( !(message instanceof MqttAck )) {
-						tokenStore.saveToken(token, message);
-					}
-					pendingFlows.addElement(message);
-					queueLock.notifyAll();
+				if ( !(message instanceof MqttAck )) {
+					tokenStore.saveToken(token, message);
 				}
+				pendingFlows.offer(message);
+				wakeSender();
 			}
 		}
 	}
 	
+	/**
+	 * Puts an outbound publish into persistence, unless its payload is
+	 * streamed: only the source of a streamed payload can read it again.
+	 */
+	private void persist(MqttPublish message) throws MqttPersistenceException {
+		if (!message.isPayloadStreamed()) {
+			persistence.put(getSendPersistenceKey(message), message);
+		}
+	}
+
+	/**
+	 * Applies the max inflight policy to a publish that finds the inflight
+	 * window full. With {@link MqttConnectOptions#MAX_INFLIGHT_POLICY_QUEUE}
+	 * the payload bytes of a message allowed to queue are reserved for it.
+	 * @param message the message being published
+	 * @return true if the message may be queued for sending after all
+	 * @throws MqttException if the client disconnects while the publish is blocked
+	 */
+	private boolean isInflightOverflowAllowed(MqttMessage message) throws MqttException {
+		switch (maxInflightPolicy) {
+			case MqttConnectOptions.MAX_INFLIGHT_POLICY_BLOCK:
+				return waitForInflightWindow();
+			case MqttConnectOptions.MAX_INFLIGHT_POLICY_QUEUE:
+				return reservePendingBytes(message.getPayloadLength());
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Reserves room for a payload in the bytes allowed to queue, in one step,
+	 * so that publishing threads racing for the last of the room cannot
+	 * together queue more than the limit.
+	 * @param length the payload length
+	 * @return true if the bytes were reserved
+	 */
+	private boolean reservePendingBytes(long length) {
+		while (true) {
+			long current = pendingBytes.get();
+			if (current + length > maxInflightQueueBytes) {
+				return false;
+			}
+			if (pendingBytes.compareAndSet(current, current + length)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Blocks until the inflight window has space, the max inflight timeout
+	 * expires or the client disconnects.
+	 * @return true if the window has space
+	 * @throws MqttException if the client disconnects while waiting
+	 */
+	private boolean waitForInflightWindow() throws MqttException {
+		final String methodName = "waitForInflightWindow";
+		//@TRACE 614=wait for space in the inflight window timeout={0}
+		log.fine(CLASS_NAME, methodName, "614", new Object[]{ Long.valueOf(maxInflightTimeout)});
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxInflightTimeout);
+		synchronized (inflightWindowLock) {
+			inflightWindowWaiters++;
+			try {
+				while (actualInFlight >= this.maxInflight && connected && !quiescing) {
+					if (maxInflightTimeout == 0) {
+						inflightWindowLock.wait();
+					} else {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							return false;
+						}
+						TimeUnit.NANOSECONDS.timedWait(inflightWindowLock, remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				inflightWindowWaiters--;
+			}
+		}
+		if (quiescing) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING);
+		}
+		if (!connected) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+		}
+		return actualInFlight < this.maxInflight;
+	}
+
+	/**
+	 * Wakes publishers blocked for space in the inflight window, after space
+	 * has been freed or the client has disconnected.
+	 */
+	private void notifyInflightWindow() {
+		if (inflightWindowWaiters > 0) {
+			synchronized (inflightWindowLock) {
+				inflightWindowLock.notifyAll();
+			}
+		}
+	}
+
 	/**
 	 * Persists a buffered message to the persistence layer
 	 * 
@@ -593,6 +853,10 @@ public class ClientState {
 	public void persistBufferedMessage(MqttWireMessage message) throws MqttException {
 		final String methodName = "persistBufferedMessage";
 		String key = getSendBufferedPersistenceKey(message);
+		if (((MqttPublish) message).isPayloadStreamed()) {
+			// Kept in memory only, like a streamed message that is in flight
+			return;
+		}
 		
 		// Because the client will have disconnected, we will want to re-open persistence
 		try {
@@ -632,7 +896,10 @@ public class ClientState {
 	}
 	
 	/**
-	 * This removes the MqttSend message from the outbound queue and persistence.
+	 * This removes the MqttSend message from the outbound state and persistence
+	 * after {@link #send(MqttWireMessage, MqttToken)} has failed. A publish is
+	 * queued for the sender as the last step of send, so a failed publish has
+	 * never been queued.
 	 * @param message the {@link MqttPublish} message to be removed
 	 * @throws MqttPersistenceException if an exception occurs whilst removing the message
 	 */
@@ -647,7 +914,6 @@ public class ClientState {
 			} else {
 				outboundQoS2.remove( Integer.valueOf(message.getMessageId()));
 			}
-			pendingMessages.removeElement(message);
 			persistence.remove(getSendPersistenceKey(message));
 			tokenStore.removeToken(message);
 			if(message.getMessage().getQos() > 0){
@@ -683,9 +949,6 @@ public class ClientState {
 					result = true;
 				}
 			}
-			if (pendingMessages.removeElement(message)) {
-				result = true;
-			}
 			persistence.remove(getSendPersistenceKey(messageId));
 			String key =  Integer.toString(messageId);
 			tokenStore.removeToken(key);
@@ -784,7 +1047,7 @@ public class ClientState {
                     	token.setActionCallback(pingCallback);
                     }
                     tokenStore.saveToken(token, pingCommand);
-                    pendingFlows.insertElementAt(pingCommand, 0);
+                    urgentFlows.offer(pingCommand);
 
                     nextPingTime = getKeepAlive();
 
@@ -822,31 +1085,32 @@ public class ClientState {
 		final String methodName = "get";
 		MqttWireMessage result = null;
 
-		synchronized (queueLock) {
-			while (result == null) {
-				
-				// If there is no work wait until there is work.
-				// If the inflight window is full and no flows are pending wait until space is freed.
-				// In both cases queueLock will be notified.
-				if ((pendingMessages.isEmpty() && pendingFlows.isEmpty()) || 
-					(pendingFlows.isEmpty() && actualInFlight >= this.maxInflight)) {
-					try {
-						//@TRACE 644=wait for new work or for space in the inflight window 
-						log.fine(CLASS_NAME,methodName, "644");						
- 
-						queueLock.wait();
-						
-						//@TRACE 647=new work or ping arrived 
-						log.fine(CLASS_NAME,methodName, "647");
-					} catch (InterruptedException e) {
-					}
+		while (result == null) {
+			
+			// If there is no work wait until there is work.
+			// If the inflight window is full and no flows are pending wait until space is freed.
+			// In both cases the sender will be unparked. A notification without new work,
+			// such as a disconnect, is seen as a change in the wakeup count.
+			int wakeups = senderWakeups.get();
+			if (!hasWork()) {
+				//@TRACE 644=wait for new work or for space in the inflight window 
+				log.fine(CLASS_NAME,methodName, "644");
+
+				parkedSender = Thread.currentThread();
+				while (!hasWork() && senderWakeups.get() == wakeups) {
+					LockSupport.park(this);
 				}
-				
+				parkedSender = null;
+
+				//@TRACE 647=new work or ping arrived 
+				log.fine(CLASS_NAME,methodName, "647");
+			}
+			
+			synchronized (queueLock) {
 				// Handle the case where not connected. This should only be the case if: 
 				// - in the process of disconnecting / shutting down
 				// - in the process of connecting
-				if (pendingFlows == null || (!connected && 
-						(pendingFlows.isEmpty() || !((MqttWireMessage)pendingFlows.elementAt(0) instanceof MqttConnect)))) {
+				if (!canSend()) {
 					//@TRACE 621=no outstanding flows and not connected
 					log.fine(CLASS_NAME,methodName,"621");
 					
@@ -860,35 +1124,87 @@ public class ClientState {
 //				checkForActivity(); //Use pinger, don't check here
 				
 				// Now process any queued flows or messages
-				if (!pendingFlows.isEmpty()) {
-					// Process the first "flow" in the queue
-					result = (MqttWireMessage)pendingFlows.remove(0);
-					if (result instanceof MqttPubRel) {
-						inFlightPubRels++;
-
-						//@TRACE 617=+1 inflightpubrels={0}
-						log.fine(CLASS_NAME,methodName,"617", new Object[]{ Integer.valueOf(inFlightPubRels)});
-					}
-		
-					checkQuiesceLock();
-				} else if (!pendingMessages.isEmpty()) {
-					
-					// If the inflight window is full then messages are not 
-					// processed until the inflight window has space. 
-					if (actualInFlight < this.maxInflight) {
-						// The in flight window is not full so process the 
-						// first message in the queue
-						result = (MqttWireMessage)pendingMessages.elementAt(0);
-						pendingMessages.removeElementAt(0);
-						actualInFlight++;
+				result = nextPending();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * This returns the next piece of work for the sender without blocking.
+	 * It is the counterpart of {@link #get()} for senders driven by an
+	 * event loop, which are woken through the sender wakeup action instead.
+	 * @return the next message to send, or null if there is nothing that
+	 * can be sent now or the client is disconnected
+	 */
+	protected MqttWireMessage poll() {
+		final String methodName = "poll";
+		synchronized (queueLock) {
+			if (!canSend()) {
+				//@TRACE 621=no outstanding flows and not connected
+				log.fine(CLASS_NAME,methodName,"621");
+				return null;
+			}
+			return nextPending();
+		}
+	}
+
+	/**
+	 * @return true if there is a flow to send, or a message and space for it
+	 * in the inflight window
+	 */
+	private boolean hasWork() {
+		return !urgentFlows.isEmpty() || !pendingFlows.isEmpty() ||
+				(!pendingMessages.isEmpty() && actualInFlight < this.maxInflight);
+	}
+
+	/**
+	 * Must be called with the queueLock held.
+	 * @return false if the state has been closed, or if the client is not
+	 * connected and no connect is waiting to be sent
+	 */
+	private boolean canSend() {
+		return pendingFlows != null && (connected || urgentFlows.peek() instanceof MqttConnect);
+	}
+
+	/**
+	 * Removes the next flow or message from the pending queues. Flows are
+	 * taken first; messages only while the inflight window has space.
+	 * Must be called with the queueLock held, which makes the caller the
+	 * single consumer of the queues.
+	 * @return the next message to send, or null if nothing can be sent
+	 */
+	private MqttWireMessage nextPending() {
+		final String methodName = "nextPending";
+		MqttWireMessage result = urgentFlows.poll();
+		if (result == null) {
+			result = pendingFlows.poll();
+		}
+		if (result != null) {
+			if (result instanceof MqttPubRel) {
+				inFlightPubRels++;
+
+				//@TRACE 617=+1 inflightpubrels={0}
+				log.fine(CLASS_NAME,methodName,"617", new Object[]{ Integer.valueOf(inFlightPubRels)});
+			}
+
+			checkQuiesceLock();
+		} else if (!pendingMessages.isEmpty()) {
+			
+			// If the inflight window is full then messages are not 
+			// processed until the inflight window has space. 
+			if (actualInFlight < this.maxInflight) {
+				// The in flight window is not full so process the 
+				// first message in the queue
+				result = pendingMessages.poll();
+				pendingBytes.addAndGet(-((MqttPublish) result).getPayloadLength());
+				actualInFlight++;
 	
-						//@TRACE 623=+1 actualInFlight={0}
-						log.fine(CLASS_NAME,methodName,"623",new Object[]{ Integer.valueOf(actualInFlight)});
-					} else {
-						//@TRACE 622=inflight window full
-						log.fine(CLASS_NAME,methodName,"622");				
-					}
-				}			
+				//@TRACE 623=+1 actualInFlight={0}
+				log.fine(CLASS_NAME,methodName,"623",new Object[]{ Integer.valueOf(actualInFlight)});
+			} else {
+				//@TRACE 622=inflight window full
+				log.fine(CLASS_NAME,methodName,"622");				
 			}
 		}
 		return result;
@@ -908,9 +1224,11 @@ public class ClientState {
         if (sentBytesCount > 0) {
         	this.lastOutboundActivity = highResolutionTimer.nanoTime();
         }
-        // @TRACE 643=sent bytes count={0}                                                                                                                                                                                            
-        log.fine(CLASS_NAME, methodName, "643", new Object[] {
-        		  Integer.valueOf(sentBytesCount) });
+        if (log.isLoggable(Logger.FINE)) {
+        	// @TRACE 643=sent bytes count={0}
+        	log.fine(CLASS_NAME, methodName, "643", new Object[] {
+        			Integer.valueOf(sentBytesCount) });
+        }
     }
 
 	
@@ -922,8 +1240,10 @@ public class ClientState {
 		final String methodName = "notifySent";
 		
 		this.lastOutboundActivity = highResolutionTimer.nanoTime();
-		//@TRACE 625=key={0}
-		log.fine(CLASS_NAME,methodName,"625",new Object[]{message.getKey()});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 625=key={0}
+			log.fine(CLASS_NAME,methodName,"625",new Object[]{message.getKey()});
+		}
 		
 		MqttToken token = message.getToken();
 		if (token == null) {
@@ -962,9 +1282,10 @@ public class ClientState {
 			actualInFlight--;
 			//@TRACE 646=-1 actualInFlight={0}
 			log.fine(CLASS_NAME,methodName,"646",new Object[]{ Integer.valueOf(actualInFlight)});
+			notifyInflightWindow();
 			
 			if (!checkQuiesceLock()) {
-				queueLock.notifyAll();
+				wakeSender();
 			}
 		}
 	}
@@ -973,7 +1294,7 @@ public class ClientState {
 		final String methodName = "checkQuiesceLock";
 //		if (quiescing && actualInFlight == 0 && pendingFlows.size() == 0 && inFlightPubRels == 0 && callback.isQuiesced()) {
 		int tokC = tokenStore.count();
-		if (quiescing && tokC == 0 && pendingFlows.size() == 0 && callback.isQuiesced()) {
+		if (quiescing && tokC == 0 && pendingFlows.isEmpty() && urgentFlows.isEmpty() && callback.isQuiesced()) {
 			//@TRACE 626=quiescing={0} actualInFlight={1} pendingFlows={2} inFlightPubRels={3} callbackQuiesce={4} tokens={5}
 			log.fine(CLASS_NAME,methodName,"626",new Object[]{ Boolean.valueOf(quiescing),  Integer.valueOf(actualInFlight),  Integer.valueOf(pendingFlows.size()),  Integer.valueOf(inFlightPubRels), Boolean.valueOf(callback.isQuiesced()),  Integer.valueOf(tokC)});
 			synchronized (quiesceLock) {
@@ -1053,6 +1374,7 @@ public class ClientState {
 					restoreInflightMessages();
 					connected();
 				}
+				notifyInflightWindow();
 			} else {
 				mex = ExceptionHelper.createMqttException(rc);
 				throw mex;
@@ -1063,9 +1385,7 @@ public class ClientState {
 			tokenStore.removeToken(ack);
 
 			// Notify the sender thread that there maybe work for it to do now
-			synchronized (queueLock) {
-				queueLock.notifyAll();
-			}
+			notifySender();
 		} else {
 			notifyResult(ack, token, mex);
 			releaseMessageId(ack.getMessageId());
@@ -1091,7 +1411,9 @@ public class ClientState {
 				 Integer.valueOf(message.getMessageId()), message });
 		
 		if (!quiescing) {
-			if (message instanceof MqttPublish) {
+			if (message instanceof MqttPublish && ((MqttPublish) message).getPayloadStream() != null) {
+				notifyReceivedStream((MqttPublish) message);
+			} else if (message instanceof MqttPublish) {
 				MqttPublish send = (MqttPublish) message;
 				switch (send.getMessage().getQos()) {
 				case 0:
@@ -1104,7 +1426,7 @@ public class ClientState {
 					persistence.put(getReceivedPersistenceKey(message),
 							(MqttPublish) message);
 					inboundQoS2.put( Integer.valueOf(send.getMessageId()), send);
-					this.send(new MqttPubRec(send), null);
+					sendWhenSynced(new MqttPubRec(send));
 					break;
 
 				default:
@@ -1113,7 +1435,11 @@ public class ClientState {
 			} else if (message instanceof MqttPubRel) {
 				MqttPublish sendMsg = (MqttPublish) inboundQoS2
 						.get( Integer.valueOf(message.getMessageId()));
-				if (sendMsg != null) {
+				if (sendMsg != null && sendMsg.isPayloadStreamed()) {
+					// A streamed message is delivered when it arrives
+					inboundQoS2.remove( Integer.valueOf(message.getMessageId()));
+					this.send(new MqttPubComp(message.getMessageId()), null);
+				} else if (sendMsg != null) {
 					if (callback != null) {
 						callback.messageArrived(sendMsg);
 					}
@@ -1128,6 +1454,76 @@ public class ClientState {
 	}
 
 	
+	/**
+	 * Returns whether the payload of a PUBLISH packet is to be handed to the
+	 * stream listener as it is read, rather than read with the rest of the
+	 * packet.
+	 * @param remainingLength the remaining length of the packet
+	 * @return true if the payload is to be streamed
+	 */
+	public boolean isPayloadStreamed(int remainingLength) {
+		CommsCallback callback = this.callback;
+		return callback != null && callback.isPayloadStreamed(remainingLength);
+	}
+
+	/**
+	 * Sends an acknowledgement that tells the server a message has been
+	 * stored. If the persistence syncs to disk in the background, the
+	 * acknowledgement is held back until the message is on disk, and never
+	 * sent if it cannot be synced: the connection is dropped instead, so that
+	 * the server sends the message again.
+	 */
+	private void sendWhenSynced(final MqttWireMessage ack) throws MqttException {
+		if (!(persistence instanceof MqttDeferredSyncPersistence)) {
+			this.send(ack, null);
+			return;
+		}
+		((MqttDeferredSyncPersistence) persistence).whenSynced(new MqttDeferredSyncPersistence.SyncListener() {
+			public void synced() {
+				final String methodName = "sendWhenSynced";
+				try {
+					send(ack, null);
+				} catch (MqttException ex) {
+					// @TRACE 652=failed to send {0} once persisted
+					log.fine(CLASS_NAME, methodName, "652", new Object[] { ack }, ex);
+				}
+			}
+
+			public void syncFailed(MqttPersistenceException cause) {
+				final String methodName = "sendWhenSynced";
+				// @TRACE 653=failed to sync before sending {0}, shutting down
+				log.fine(CLASS_NAME, methodName, "653", new Object[] { ack }, cause);
+				clientComms.shutdownConnection(null, cause);
+			}
+		});
+	}
+
+	/**
+	 * Hands a message whose payload is still on the network to the stream
+	 * listener, on the receiving thread, and acknowledges it once the
+	 * listener returns. Large messages read into memory by a non-blocking
+	 * transport go through the callback instead. A QoS 2 message
+	 * is remembered until its PUBREL arrives, so that a resent PUBLISH is
+	 * not delivered again; it is not persisted, so a resent PUBLISH arriving
+	 * after a restart is.
+	 */
+	private void notifyReceivedStream(MqttPublish message) throws MqttException {
+		int qos = message.getMessage().getQos();
+		if (qos == 2 && inboundQoS2.containsKey( Integer.valueOf(message.getMessageId()))) {
+			this.send(new MqttPubRec(message), null);
+			return;
+		}
+		if (callback != null) {
+			callback.streamArrived(message, message.getPayloadStream());
+		}
+		if (qos == 1) {
+			this.send(new MqttPubAck(message), null);
+		} else if (qos == 2) {
+			inboundQoS2.put( Integer.valueOf(message.getMessageId()), message);
+			this.send(new MqttPubRec(message), null);
+		}
+	}
+
 	/**
 	 * Called when waiters and callbacks have processed the message. For
 	 * messages where delivery is complete the message can be removed from
@@ -1272,14 +1668,19 @@ public class ClientState {
 		log.warning(CLASS_NAME,methodName,"633", new Object[] {reason});
 
 		this.connected = false;
+		notifyInflightWindow();
 
 		try {
 			if (cleanSession) {
 				clearState();
 			}
 
-			pendingMessages.clear();
-			pendingFlows.clear();
+			synchronized (queueLock) {
+				pendingMessages.clear();
+				pendingBytes.set(0);
+				pendingFlows.clear();
+				urgentFlows.clear();
+			}
 			synchronized (pingOutstandingLock) {
 				// Reset pingOutstanding to allow reconnects to assume no previous ping.
 			    pingOutstanding = 0;
@@ -1295,8 +1696,8 @@ public class ClientState {
 	 * 
 	 * @param msgId A message ID that can be freed up for re-use.
 	 */
-	private synchronized void releaseMessageId(int msgId) {
-		inUseMsgIds.remove( Integer.valueOf(msgId));
+	private void releaseMessageId(int msgId) {
+		msgIds.release(msgId);
 	}
 
 	/**
@@ -1305,26 +1706,8 @@ public class ClientState {
 	 * 
 	 * @return the next MQTT message ID to use
 	 */
-	private synchronized int getNextMessageId() throws MqttException {
-		int startingMessageId = nextMsgId;
-		// Allow two complete passes of the message ID range. This gives
-		// any asynchronous releases a chance to occur
-		int loopCount = 0;
-	    do {
-	        nextMsgId++;
-	        if ( nextMsgId > MAX_MSG_ID ) {
-	            nextMsgId = MIN_MSG_ID;
-	        }
-	        if (nextMsgId == startingMessageId) {
-	        	loopCount++;
-	        	if (loopCount == 2) {
-	        		throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
-	        	}
-	        }
-	    } while( inUseMsgIds.containsKey(  Integer.valueOf(nextMsgId) ) );
-	    Integer id =  Integer.valueOf(nextMsgId);
-	    inUseMsgIds.put(id, id);
-	    return nextMsgId;
+	private int getNextMessageId() throws MqttException {
+		return msgIds.allocate();
 	}
 	
 	/**
@@ -1343,6 +1726,7 @@ public class ClientState {
 			synchronized (queueLock) {
 				this.quiescing = true;
 			}
+			notifyInflightWindow();
 			// We don't want to handle any new inbound messages
 			callback.quiesce();
 			notifyQueueLock();
@@ -1353,7 +1737,7 @@ public class ClientState {
 					// if pending flows is not zero there is outstanding work to complete and
 					// if call back is not quiseced there it needs to complete. 
 					int tokc = tokenStore.count();
-					if (tokc > 0 || pendingFlows.size() >0 || !callback.isQuiesced()) {
+					if (tokc > 0 || !pendingFlows.isEmpty() || !urgentFlows.isEmpty() || !callback.isQuiesced()) {
 						//@TRACE 639=wait for outstanding: actualInFlight={0} pendingFlows={1} inFlightPubRels={2} tokens={3}
 						log.fine(CLASS_NAME, methodName,"639", new Object[]{ Integer.valueOf(actualInFlight),  Integer.valueOf(pendingFlows.size()),  Integer.valueOf(inFlightPubRels),  Integer.valueOf(tokc)});
 
@@ -1372,10 +1756,14 @@ public class ClientState {
 			synchronized (queueLock) {
 				if (pendingMessages != null) {
 					pendingMessages.clear();
+					pendingBytes.set(0);
 				}
 				if (pendingFlows != null) {
 					pendingFlows.clear();
 				}
+				if (urgentFlows != null) {
+					urgentFlows.clear();
+				}
 				quiescing = false;
 				actualInFlight = 0;
 			}
@@ -1384,13 +1772,36 @@ public class ClientState {
 		}
 	}
 
+	/**
+	 * Wakes the sender after a change of state that it must look at even if
+	 * there is nothing new to send, such as a disconnect.
+	 */
+	private void notifySender() {
+		senderWakeups.incrementAndGet();
+		wakeSender();
+	}
+
+	/**
+	 * Wakes the sender after work has been queued, whether it is a thread
+	 * parked in {@link #get()} or an event loop. A sender that is not parked
+	 * sees the new work when it next checks the queues.
+	 */
+	private void wakeSender() {
+		Thread sender = parkedSender;
+		if (sender != null) {
+			LockSupport.unpark(sender);
+		}
+		Runnable wakeup = senderWakeup;
+		if (wakeup != null) {
+			wakeup.run();
+		}
+	}
+
 	public void notifyQueueLock() {
 		final String methodName = "notifyQueueLock";
-		synchronized (queueLock) {
-			//@TRACE 638=notifying queueLock holders
-			log.fine(CLASS_NAME,methodName,"638");
-			queueLock.notifyAll();
-		}
+		//@TRACE 638=notifying queueLock holders
+		log.fine(CLASS_NAME,methodName,"638");
+		notifySender();
 	}
 
 	protected void deliveryComplete(MqttPublish message) throws MqttPersistenceException {
@@ -1427,19 +1838,24 @@ public class ClientState {
 	 * disconnect / connect cycle. 
 	 */
 	protected void close() {
-		inUseMsgIds.clear();
-		if (pendingMessages != null) {
-			pendingMessages.clear();
+		msgIds.clear();
+		synchronized (queueLock) {
+			if (pendingMessages != null) {
+				pendingMessages.clear();
+				pendingBytes.set(0);
+			}
+			pendingFlows.clear();
+			urgentFlows.clear();
 		}
-		pendingFlows.clear();
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		outboundQoS0.clear();
 		inboundQoS2.clear();
 		tokenStore.clear();
-		inUseMsgIds = null;
+		msgIds = null;
 		pendingMessages = null;
 		pendingFlows = null;
+		urgentFlows = null;
 		outboundQoS2 = null;
 		outboundQoS1 = null;
 		outboundQoS0 = null;
@@ -1454,11 +1870,12 @@ public class ClientState {
 	
 	public Properties getDebug() {
 		Properties props = new Properties();
-		props.put("In use msgids", inUseMsgIds);
+		props.put("In use msgids", msgIds);
 		props.put("pendingMessages", pendingMessages);
 		props.put("pendingFlows", pendingFlows);
+		props.put("urgentFlows", urgentFlows);
 		props.put("maxInflight",  Integer.valueOf(maxInflight));
-		props.put("nextMsgID",  Integer.valueOf(nextMsgId));
+		props.put("nextMsgID",  Integer.valueOf(msgIds.getNextMessageId()));
 		props.put("actualInFlight",  Integer.valueOf(actualInFlight));
 		props.put("inFlightPubRels",  Integer.valueOf(inFlightPubRels));
 		props.put("quiescing", Boolean.valueOf(quiescing));
@@ -18,23 +18,29 @@
  */
 package org.eclipse.paho.client.mqttv3.internal;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDispatchKey;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttStreamListener;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttToken;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubComp;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
@@ -56,8 +62,7 @@ public class CommsCallback implements Runnable {
 	private static final int INBOUND_QUEUE_SIZE = 512;
 	private MqttCallback mqttCallback;
 	private MqttCallbackExtended reconnectInternalCallback;
-	private final Hashtable<String, IMqttMessageListener> callbacksWildcards; // topicFilter with wildcards -> messageHandler
-	private final Hashtable<String, IMqttMessageListener> callbacksDirect; // topicFilter without wildcards -> messageHandler
+	private final TopicListenerTrie callbacks; // topicFilter -> messageHandler
 	private final ClientComms clientComms;
 	private final Vector<MqttWireMessage> messageQueue;
 	private final Vector<MqttToken> completeQueue;
@@ -75,13 +80,28 @@ public class CommsCallback implements Runnable {
 	private final Object spaceAvailable = new Object();
 	private ClientState clientState;
 	private boolean manualAcks = false;
+	private volatile IMqttStreamListener streamListener;
+	private volatile int streamThreshold;
+
+	// Parallel message dispatch, see MqttConnectOptions.setMessageDispatchLanes
+	private static final int LANE_BATCH_SIZE = 64;	// Messages a lane delivers before yielding its thread
+	private int dispatchLaneCount = 0;
+	private ExecutorService dispatchExecutor;
+	private IMqttDispatchKey dispatchKey;
+	private DispatchLane[] dispatchLanes;
+	private ExecutorService laneExecutor;			// The executor the current lanes run on
+	// Messages handed to the lanes, in the order they arrived, so that
+	// they are acknowledged in that order
+	private final ArrayDeque<DispatchedMessage> dispatchedMessages = new ArrayDeque<DispatchedMessage>();
+	private final AtomicInteger dispatchBacklog = new AtomicInteger(0);
+	private final AtomicInteger activeLanes = new AtomicInteger(0);
+	private final ThreadLocal<DispatchLane> currentLane = new ThreadLocal<DispatchLane>();
 
 	CommsCallback(ClientComms clientComms) {
 		this.clientComms = clientComms;
 		this.messageQueue = new Vector<MqttWireMessage>(INBOUND_QUEUE_SIZE);
 		this.completeQueue = new Vector<MqttToken>(INBOUND_QUEUE_SIZE);
-		this.callbacksWildcards = new Hashtable<String, IMqttMessageListener>();
-		this.callbacksDirect = new Hashtable<String, IMqttMessageListener>();
+		this.callbacks = new TopicListenerTrie();
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
@@ -103,6 +123,7 @@ public class CommsCallback implements Runnable {
 				// For safety ensure any old events are cleared.
 				messageQueue.clear();
 				completeQueue.clear();
+				startDispatchLanes();
 				
 				target_state = State.RUNNING;
 				current_state = State.RUNNING;
@@ -164,6 +185,7 @@ public class CommsCallback implements Runnable {
 					}
 				}
 			}
+			stopDispatchLanes();
 			// @TRACE 703=stopped
 			log.fine(CLASS_NAME, methodName, "703");
 		}
@@ -181,6 +203,261 @@ public class CommsCallback implements Runnable {
 		this.manualAcks = manualAcks;
 	}
 
+	/**
+	 * @param listener the listener for large messages, or null to deliver all
+	 * messages to the callback
+	 * @param minimumLength the smallest payload handed to the listener
+	 */
+	public void setStreamListener(IMqttStreamListener listener, int minimumLength) {
+		this.streamThreshold = minimumLength;
+		this.streamListener = listener;
+	}
+
+	/**
+	 * @param length the payload length, or the remaining length of the packet
+	 * @return true if a message of this length goes to the stream listener
+	 */
+	public boolean isPayloadStreamed(int length) {
+		return streamListener != null && length >= streamThreshold;
+	}
+
+	/**
+	 * @param publishMessage a message read into memory
+	 * @return true if the message goes to the stream listener rather than
+	 * to the message listeners or the callback
+	 */
+	private boolean isStreamDelivery(MqttPublish publishMessage) {
+		return streamListener != null && publishMessage.getPayloadLength() >= streamThreshold;
+	}
+
+	/**
+	 * Hands a message to the stream listener on the calling thread.
+	 * @param publishMessage the message
+	 * @param payload the stream to read the payload from
+	 * @throws MqttException if the listener throws an exception
+	 */
+	public void streamArrived(MqttPublish publishMessage, InputStream payload) throws MqttException {
+		final String methodName = "streamArrived";
+		IMqttStreamListener listener = streamListener;
+		if (listener == null) {
+			return;
+		}
+		// @TRACE 723=call stream listener key={0} topic={1} length={2}
+		log.fine(CLASS_NAME, methodName, "723", new Object[] {
+				Integer.valueOf(publishMessage.getMessageId()), publishMessage.getTopicName(),
+				Integer.valueOf(publishMessage.getPayloadLength()) });
+		MqttMessage message = publishMessage.getMessage();
+		message.setId(publishMessage.getMessageId());
+		try {
+			listener.messageArrived(publishMessage.getTopicName(), message, payload, publishMessage.getPayloadLength());
+		} catch (Exception ex) {
+			// @TRACE 714=callback threw exception
+			log.fine(CLASS_NAME, methodName, "714", null, ex);
+			throw new MqttException(ex);
+		}
+	}
+
+	/**
+	 * Sets up parallel delivery of inbound messages, which takes effect the
+	 * next time the callback is started.
+	 * @param lanes the number of lanes, 0 to deliver messages on the callback thread
+	 * @param executor the executor to run the lanes on, or null to start a thread per lane
+	 * @param key the key that assigns messages to lanes, or null to use the topic
+	 */
+	public void setMessageDispatch(int lanes, ExecutorService executor, IMqttDispatchKey key) {
+		this.dispatchLaneCount = lanes;
+		this.dispatchExecutor = executor;
+		this.dispatchKey = key;
+	}
+
+	private void startDispatchLanes() {
+		final String methodName = "startDispatchLanes";
+		dispatchedMessages.clear();
+		dispatchBacklog.set(0);
+		if (dispatchLaneCount == 0) {
+			dispatchLanes = null;
+			return;
+		}
+		//@TRACE 721=message dispatch lanes={0}
+		log.fine(CLASS_NAME, methodName, "721", new Object[] { Integer.valueOf(dispatchLaneCount) });
+		if (dispatchExecutor != null) {
+			laneExecutor = dispatchExecutor;
+		} else {
+			laneExecutor = Executors.newFixedThreadPool(dispatchLaneCount, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, threadName + " lane " + count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		DispatchLane[] lanes = new DispatchLane[dispatchLaneCount];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new DispatchLane();
+		}
+		dispatchLanes = lanes;
+	}
+
+	/**
+	 * Waits for the lanes to finish the message they are delivering, and
+	 * stops the lane threads if the client started them. Messages not yet
+	 * delivered are dropped, like those left in the message queue.
+	 */
+	private void stopDispatchLanes() {
+		final String methodName = "stopDispatchLanes";
+		if (dispatchLanes == null) {
+			return;
+		}
+		// A lane may be stopping the client, do not wait for it
+		int self = currentLane.get() != null ? 1 : 0;
+		synchronized (activeLanes) {
+			while (activeLanes.get() > self) {
+				//@TRACE 722=wait for {0} dispatch lanes to finish
+				log.fine(CLASS_NAME, methodName, "722", new Object[] { Integer.valueOf(activeLanes.get() - self) });
+				try {
+					activeLanes.wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		if (laneExecutor != dispatchExecutor) {
+			laneExecutor.shutdown();
+		}
+		laneExecutor = null;
+	}
+
+	/**
+	 * Hands a message to the lane for its dispatch key.
+	 */
+	private void dispatchMessage(MqttPublish message) {
+		Object key = dispatchKey == null ? message.getTopicName()
+				: dispatchKey.getDispatchKey(message.getTopicName(), message.getMessage());
+		int hash = key == null ? 0 : key.hashCode();
+		hash ^= (hash >>> 16);
+		DispatchLane lane = dispatchLanes[(hash & Integer.MAX_VALUE) % dispatchLanes.length];
+		DispatchedMessage dispatched = new DispatchedMessage(message);
+		synchronized (dispatchedMessages) {
+			dispatchedMessages.addLast(dispatched);
+		}
+		dispatchBacklog.incrementAndGet();
+		lane.offer(dispatched);
+	}
+
+	/**
+	 * Called by a lane once it has delivered a message, or failed to.
+	 * Acknowledges, in the order they arrived, the messages that have been
+	 * delivered and have no earlier message still being delivered.
+	 */
+	private void messageDispatched(DispatchedMessage dispatched, boolean delivered) throws MqttException {
+		try {
+			synchronized (dispatchedMessages) {
+				dispatched.done = true;
+				dispatched.delivered = delivered;
+				DispatchedMessage head;
+				while ((head = dispatchedMessages.peekFirst()) != null && head.done) {
+					dispatchedMessages.removeFirst();
+					if (head.delivered && (!manualAcks || head.streamed) && isRunning()) {
+						acknowledge(head.message);
+					}
+				}
+			}
+		} finally {
+			dispatchBacklog.decrementAndGet();
+			synchronized (spaceAvailable) {
+				spaceAvailable.notifyAll();
+			}
+		}
+	}
+
+	private static final class DispatchedMessage {
+		final MqttPublish message;
+		boolean done = false;			// Guarded by dispatchedMessages
+		boolean delivered = false;
+		boolean streamed = false;		// Delivered to the stream listener
+
+		DispatchedMessage(MqttPublish message) {
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Delivers the messages of one dispatch key, one at a time. A lane runs
+	 * as a task on the lane executor while it has messages, so it is only
+	 * ever running on one thread.
+	 */
+	private final class DispatchLane implements Runnable {
+		private final MpscLinkedQueue<DispatchedMessage> messages = new MpscLinkedQueue<DispatchedMessage>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final ExecutorService executor = laneExecutor;
+
+		void offer(DispatchedMessage message) {
+			messages.offer(message);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				activeLanes.incrementAndGet();
+				try {
+					executor.execute(this);
+				} catch (RuntimeException ex) {
+					// The executor has been shut down
+					scheduled.set(false);
+					laneFinished();
+					throw ex;
+				}
+			}
+		}
+
+		public void run() {
+			final String methodName = "run";
+			currentLane.set(this);
+			try {
+				DispatchedMessage dispatched;
+				int count = 0;
+				while (count++ < LANE_BATCH_SIZE && isRunning() && (dispatched = messages.poll()) != null) {
+					boolean delivered = false;
+					try {
+						dispatched.streamed = deliverMessage(dispatched.message);
+						delivered = true;
+					} catch (Throwable ex) {
+						// @TRACE 714=callback threw exception
+						log.fine(CLASS_NAME, methodName, "714", null, ex);
+						clientComms.shutdownConnection(null, new MqttException(ex));
+					} finally {
+						try {
+							messageDispatched(dispatched, delivered);
+						} catch (Throwable ex) {
+							// @TRACE 714=callback threw exception
+							log.fine(CLASS_NAME, methodName, "714", null, ex);
+							clientComms.shutdownConnection(null, new MqttException(ex));
+						}
+					}
+				}
+			} finally {
+				currentLane.remove();
+				scheduled.set(false);
+				laneFinished();
+				// Pick up messages offered while the lane was finishing
+				if (!messages.isEmpty() && isRunning()) {
+					schedule();
+				}
+			}
+		}
+	}
+
+	private void laneFinished() {
+		if (activeLanes.decrementAndGet() == 0) {
+			synchronized (activeLanes) {
+				activeLanes.notifyAll();
+			}
+		}
+	}
+
 	public void run() {
 		final String methodName = "run";
 		callbackThread = Thread.currentThread();
@@ -228,7 +505,11 @@ public class CommsCallback implements Runnable {
 					    }
 					}
 					if (null != message) {
-						handleMessage(message);
+						if (dispatchLanes != null) {
+							dispatchMessage(message);
+						} else {
+							handleMessage(message);
+						}
 					}
 				}
 
@@ -367,13 +648,13 @@ public class CommsCallback implements Runnable {
 	 */
 	public void messageArrived(MqttPublish sendMessage) {
 		final String methodName = "messageArrived";
-		if (mqttCallback != null || !callbacksWildcards.isEmpty() || !callbacksDirect.isEmpty()) {
+		if (mqttCallback != null || !callbacks.isEmpty() || isStreamDelivery(sendMessage)) {
 			// If we already have enough messages queued up in memory, wait
 			// until some more queue space becomes available. This helps 
 			// the client protect itself from getting flooded by messages 
 			// from the server.
 			synchronized (spaceAvailable) {
-				while (isRunning() && !isQuiescing() && messageQueue.size() >= INBOUND_QUEUE_SIZE) {
+				while (isRunning() && !isQuiescing() && messageQueue.size() + dispatchBacklog.get() >= INBOUND_QUEUE_SIZE) {
 					try {
 						// @TRACE 709=wait for spaceAvailable
 						log.fine(CLASS_NAME, methodName, "709");
@@ -414,7 +695,7 @@ public class CommsCallback implements Runnable {
 	}
 
 	public boolean isQuiesced() {
-		if (isQuiescing() && completeQueue.size() == 0 && messageQueue.size() == 0) {
+		if (isQuiescing() && completeQueue.size() == 0 && messageQueue.size() == 0 && dispatchBacklog.get() == 0) {
 			return true;
 		}
 		return false;
@@ -422,9 +703,25 @@ public class CommsCallback implements Runnable {
 
 	private void handleMessage(MqttPublish publishMessage)
 			throws MqttException, Exception {
-		final String methodName = "handleMessage";
 		// If quisecing process any pending messages.
+		boolean streamed = deliverMessage(publishMessage);
+
+		// Manual acks do not apply to streamed messages
+		if (!this.manualAcks || streamed) {
+			acknowledge(publishMessage);
+		}
+	}
 
+	/**
+	 * @return true if the message was delivered to the stream listener
+	 */
+	private boolean deliverMessage(MqttPublish publishMessage) throws Exception {
+		final String methodName = "deliverMessage";
+		if (isStreamDelivery(publishMessage)) {
+			// Read into memory by a non-blocking transport, stream it from there
+			streamArrived(publishMessage, new ByteArrayInputStream(publishMessage.getMessage().getPayload()));
+			return true;
+		}
 		String destName = publishMessage.getTopicName();
 
 		// @TRACE 713=call messageArrived key={0} topic={1}
@@ -432,17 +729,18 @@ public class CommsCallback implements Runnable {
 				Integer.valueOf(publishMessage.getMessageId()), destName });
 		deliverMessage(destName, publishMessage.getMessageId(),
 				publishMessage.getMessage());
+		return false;
+	}
 
-		if (!this.manualAcks) {
-			if (publishMessage.getMessage().getQos() == 1) {
-				this.clientComms.internalSend(new MqttPubAck(publishMessage),
-						new MqttToken(clientComms.getClient().getClientId()));
-			} else if (publishMessage.getMessage().getQos() == 2) {
-				this.clientComms.deliveryComplete(publishMessage);
-				MqttPubComp pubComp = new MqttPubComp(publishMessage);
-				this.clientComms.internalSend(pubComp, new MqttToken(
-						clientComms.getClient().getClientId()));
-			}
+	private void acknowledge(MqttPublish publishMessage) throws MqttException {
+		if (publishMessage.getMessage().getQos() == 1) {
+			this.clientComms.internalSend(new MqttPubAck(publishMessage),
+					new MqttToken(clientComms.getClient().getClientId()));
+		} else if (publishMessage.getMessage().getQos() == 2) {
+			this.clientComms.deliveryComplete(publishMessage);
+			MqttPubComp pubComp = new MqttPubComp(publishMessage);
+			this.clientComms.internalSend(pubComp, new MqttToken(
+					clientComms.getClient().getClientId()));
 		}
 	}
 	
@@ -497,22 +795,16 @@ public class CommsCallback implements Runnable {
 
 
 	public void setMessageListener(String topicFilter, IMqttMessageListener messageListener) {
-		if (topicFilter.contains("#") || topicFilter.contains("+")) {
-			this.callbacksWildcards.put(topicFilter, messageListener);
-		} else {
-			this.callbacksDirect.put(topicFilter, messageListener);
-		}
+		this.callbacks.put(topicFilter, messageListener);
 	}
 	
 	
 	public void removeMessageListener(String topicFilter) {
-		this.callbacksWildcards.remove(topicFilter); // no exception thrown if the filter was not present
-		this.callbacksDirect.remove(topicFilter); // no exception thrown if the filter was not present
+		this.callbacks.remove(topicFilter); // no exception thrown if the filter was not present
 	}
 	
 	public void removeMessageListeners() {
-		this.callbacksWildcards.clear();
-		this.callbacksDirect.clear();
+		this.callbacks.clear();
 	}
 	
 	
@@ -520,28 +812,13 @@ public class CommsCallback implements Runnable {
 	{		
 		boolean delivered = false;
 		
-		IMqttMessageListener callback = this.callbacksDirect.get(topicName);
-		if (callback != null) {
+		List<IMqttMessageListener> matched = callbacks.match(topicName);
+		for (int i = 0; i < matched.size(); i++) {
 			aMessage.setId(messageId);
-			callback.messageArrived(topicName, aMessage);
+			matched.get(i).messageArrived(topicName, aMessage);
 			delivered = true;
 		}
 		
-		Enumeration<String> keys = callbacksWildcards.keys();
-		while (keys.hasMoreElements()) {
-			String topicFilter = (String)keys.nextElement();
-			// callback may already have been removed in the meantime, so a null check is necessary
-			callback = callbacksWildcards.get(topicFilter);
-			if(callback == null) {
-				continue;
-			}
-			if (MqttTopic.isMatched(topicFilter, topicName)) {
-				aMessage.setId(messageId);
-				callback.messageArrived(topicName, aMessage);
-				delivered = true;
-			}
-		}
-		
 		/* if the message hasn't been delivered to a per subscription handler, give it to the default handler */
 		if (mqttCallback != null && !delivered) {
 			aMessage.setId(messageId);
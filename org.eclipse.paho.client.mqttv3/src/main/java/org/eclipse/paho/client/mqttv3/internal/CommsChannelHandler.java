@@ -0,0 +1,616 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttStreamingMessage;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * Drives the network traffic of one connection from a {@link CommsEventLoop}.
+ * It takes the place of both the {@link CommsReceiver} and the
+ * {@link CommsSender} threads: inbound packets are decoded from a
+ * non-blocking channel as bytes arrive and handed to the receiver's
+ * dispatch logic, and outbound messages are taken from the
+ * {@link ClientState} whenever it signals that there is work to do.
+ * <p>
+ * All channel operations happen on the loop thread. A message is reported
+ * as sent once its last byte has been written to the channel. For a secure
+ * connection that is the {@link SSLEngineChannel}, which encrypts the
+ * bytes and writes them to the socket channel.
+ */
+class CommsChannelHandler {
+	private static final String CLASS_NAME = CommsChannelHandler.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	// Stop taking new messages from the client state while this much is unwritten
+	private static final int WRITE_HIGH_WATER_MARK = 64 * 1024;
+	// Payloads this large are written from their own array rather than copied
+	private static final int GATHER_THRESHOLD = 8 * 1024;
+
+	private final ClientComms clientComms;
+	private final ClientState clientState;
+	private final CommsTokenStore tokenStore;
+	private final CommsReceiver receiver;
+	private final CommsEventLoop eventLoop;
+	private final SocketChannel channel;
+	// The channel that carries the packets, the socket channel or the TLS one over it
+	private final SSLEngineChannel tls;
+	private final ReadableByteChannel in;
+	private final GatheringByteChannel out;
+
+	private SelectionKey key;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	// Set once the write buffer has grown to fit a packet larger than the default
+	private boolean writeBufferOversized = false;
+	private final ArrayDeque<PendingSend> unsent = new ArrayDeque<PendingSend>();
+	private long bytesQueued = 0;
+	private long bytesWritten = 0;
+	// The payload of a streamed message, read into the write buffer as it drains
+	private ReadableByteChannel payloadSource;
+	private int payloadRemaining;
+	// The payload of a large message, written after the write buffer in one call
+	private ByteBuffer payloadBuffer;
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+
+	private volatile boolean running = false;
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			drainScheduled.set(false);
+			try {
+				drain();
+			} catch (RuntimeException ex) {
+				failed(ex);
+			}
+		}
+	};
+
+	private final Runnable wakeup = new Runnable() {
+		public void run() {
+			// Publishing threads mostly find a drain already scheduled
+			if (running && !drainScheduled.get() && drainScheduled.compareAndSet(false, true)) {
+				eventLoop.execute(drainTask);
+			}
+		}
+	};
+
+	/**
+	 * @param clientComms the {@link ClientComms}
+	 * @param clientState the {@link ClientState}
+	 * @param tokenStore the {@link CommsTokenStore}
+	 * @param networkModule the started network module
+	 * @param eventLoop the loop that serves the channel
+	 */
+	CommsChannelHandler(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore,
+			SelectableNetworkModule networkModule, CommsEventLoop eventLoop) {
+		this.clientComms = clientComms;
+		this.clientState = clientState;
+		this.tokenStore = tokenStore;
+		this.channel = networkModule.getSocketChannel();
+		this.tls = networkModule.getSSLEngineChannel();
+		if (tls != null) {
+			this.in = tls;
+			this.out = tls;
+		} else {
+			this.in = channel;
+			this.out = channel;
+		}
+		this.eventLoop = eventLoop;
+		this.receiver = new CommsReceiver(clientComms, clientState, tokenStore);
+		log.setResourceName(clientComms.getClient().getClientId());
+	}
+
+	/**
+	 * Creates a handler that reads from the socket channel, and writes to
+	 * the given channel rather than straight to the socket. Used by tests
+	 * to see how the handler copes with short writes.
+	 * @param clientComms the {@link ClientComms}
+	 * @param clientState the {@link ClientState}
+	 * @param tokenStore the {@link CommsTokenStore}
+	 * @param channel the connected socket channel, registered with the loop
+	 * @param out the channel packets are written to
+	 * @param eventLoop the loop that serves the channel
+	 */
+	CommsChannelHandler(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore,
+			SocketChannel channel, GatheringByteChannel out, CommsEventLoop eventLoop) {
+		this.clientComms = clientComms;
+		this.clientState = clientState;
+		this.tokenStore = tokenStore;
+		this.channel = channel;
+		this.tls = null;
+		this.in = channel;
+		this.out = out;
+		this.eventLoop = eventLoop;
+		this.receiver = new CommsReceiver(clientComms, clientState, tokenStore);
+		log.setResourceName(clientComms.getClient().getClientId());
+	}
+
+	/**
+	 * Switches the channel to non-blocking mode and registers it with the
+	 * event loop. Messages queued in the client state from now on are
+	 * written by the loop.
+	 * @throws IOException if the channel cannot be made non-blocking
+	 */
+	void start() throws IOException {
+		final String methodName = "start";
+		//@TRACE 860=starting
+		log.fine(CLASS_NAME, methodName, "860");
+		channel.configureBlocking(false);
+		running = true;
+		clientState.setSenderWakeup(wakeup);
+		// Registration is queued ahead of any drain task the wakeup submits
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				register();
+			}
+		});
+	}
+
+	/**
+	 * Deregisters the channel from the event loop. Unless called on the
+	 * loop thread, this waits until the loop has let go of the channel.
+	 */
+	void stop() {
+		final String methodName = "stop";
+		//@TRACE 861=stopping
+		log.fine(CLASS_NAME, methodName, "861");
+		running = false;
+		clientState.setSenderWakeup(null);
+		if (eventLoop.inEventLoop()) {
+			close();
+		} else {
+			final CountDownLatch closed = new CountDownLatch(1);
+			eventLoop.execute(new Runnable() {
+				public void run() {
+					close();
+					closed.countDown();
+				}
+			});
+			try {
+				closed.await();
+			} catch (InterruptedException e) {
+			}
+		}
+		//@TRACE 862=stopped
+		log.fine(CLASS_NAME, methodName, "862");
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	private void register() {
+		final String methodName = "register";
+		if (!running) {
+			return;
+		}
+		try {
+			key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+		} catch (IOException | ClosedSelectorException ex) {
+			//@TRACE 863=register failed
+			log.fine(CLASS_NAME, methodName, "863", null, ex);
+			fail(null, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ex));
+			return;
+		}
+		drain();
+	}
+
+	private void close() {
+		if (key != null) {
+			key.cancel();
+		}
+	}
+
+	/**
+	 * Called by the event loop when the channel is ready.
+	 * @param key the selection key of the channel
+	 */
+	void handle(SelectionKey key) {
+		final String methodName = "handle";
+		if (key.isReadable()) {
+			try {
+				read();
+			} catch (MqttException ex) {
+				//@TRACE 856=Stopping, MQttException
+				log.fine(CLASS_NAME, methodName, "856", null, ex);
+				fail(receiver.getToken(), ex);
+				return;
+			} catch (IOException ioe) {
+				//@TRACE 853=Stopping due to IOException
+				log.fine(CLASS_NAME, methodName, "853");
+				// An EOFException could be raised if the broker processes the
+				// DISCONNECT and ends the socket before we complete. As such,
+				// only shutdown the connection if we're not already shutting down.
+				if (clientComms.isDisconnecting()) {
+					running = false;
+					close();
+				} else {
+					fail(receiver.getToken(), new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ioe));
+				}
+				return;
+			}
+		}
+		if (key.isValid() && key.isWritable()) {
+			if (flush()) {
+				drain();
+			}
+		}
+	}
+
+	/**
+	 * Reads what the channel has available and dispatches every complete
+	 * packet. A partial packet is kept at the start of the buffer.
+	 * <p>
+	 * A TLS channel may hold decrypted bytes or whole records beyond what
+	 * fitted in the buffer, which no readiness event will announce, so it
+	 * is read until it holds none.
+	 */
+	private void read() throws IOException, MqttException {
+		do {
+			if (!readBuffer.hasRemaining()) {
+				// The buffer holds the start of a packet larger than itself
+				ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				readBuffer.flip();
+				larger.put(readBuffer);
+				readBuffer = larger;
+			}
+			int count = in.read(readBuffer);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			clientState.notifyReceivedBytes(count);
+			readBuffer.flip();
+			try {
+				MqttWireMessage message;
+				while (running && (message = decode()) != null) {
+					receiver.dispatch(message);
+				}
+			} finally {
+				readBuffer.compact();
+				if (readBuffer.capacity() > BUFFER_SIZE && readBuffer.position() < BUFFER_SIZE) {
+					// The large packet it grew for has gone, keep no more than the default
+					ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+					readBuffer.flip();
+					smaller.put(readBuffer);
+					readBuffer = smaller;
+				}
+			}
+		} while (running && tls != null && tls.hasBufferedInput());
+		if (tls != null && !tls.flush() && key.isValid()) {
+			// A handshake message, such as a key update, waits for the socket
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Takes the next complete packet from the read buffer.
+	 * @return the packet, or null if the buffer holds no complete packet
+	 */
+	private MqttWireMessage decode() throws MqttException {
+		final String methodName = "decode";
+		int start = readBuffer.position();
+		if (readBuffer.remaining() < 2) {
+			return null;
+		}
+		byte type = (byte) ((readBuffer.get(start) >>> 4) & 0x0F);
+		if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) ||
+				(type > MqttWireMessage.MESSAGE_TYPE_DISCONNECT)) {
+			// Invalid MQTT message type...
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+		}
+		int remLen = 0;
+		int multiplier = 1;
+		int pos = start + 1;
+		byte digit;
+		do {
+			if (pos - start > 4) {
+				// The remaining length is at most four bytes long
+				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+			}
+			if (pos >= readBuffer.limit()) {
+				return null;
+			}
+			digit = readBuffer.get(pos++);
+			remLen += ((digit & 0x7F) * multiplier);
+			multiplier *= 128;
+		} while ((digit & 0x80) != 0);
+
+		int packetLength = (pos - start) + remLen;
+		if (readBuffer.remaining() < packetLength) {
+			return null;
+		}
+		// Only the variable header and payload are copied out of the buffer,
+		// and the message decodes its payload as a view of that copy
+		byte first = readBuffer.get(start);
+		byte[] data = new byte[remLen];
+		readBuffer.position(pos);
+		readBuffer.get(data);
+		MqttWireMessage message = MqttWireMessage.createWireMessage(first, data);
+		if (log.isLoggable(Logger.FINE)) {
+			// @TRACE 301= received {0}
+			log.fine(CLASS_NAME, methodName, "301", new Object[] {message});
+		}
+		return message;
+	}
+
+	/**
+	 * Encodes the messages that can be sent now and writes as much as the
+	 * channel accepts.
+	 */
+	private void drain() {
+		final String methodName = "drain";
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		try {
+			while (true) {
+				boolean added = readPayload();
+				MqttWireMessage message;
+				while (payloadSource == null && payloadBuffer == null && writeBuffer.position() < WRITE_HIGH_WATER_MARK
+						&& (message = clientState.poll()) != null) {
+					added |= encode(message);
+				}
+				if (!added || !flush()) {
+					break;
+				}
+			}
+		} catch (MqttException ex) {
+			//@TRACE 804=exception
+			log.fine(CLASS_NAME, methodName, "804", null, ex);
+			fail(null, ex);
+		} catch (IOException ex) {
+			//@TRACE 804=exception
+			log.fine(CLASS_NAME, methodName, "804", null, ex);
+			fail(null, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ex));
+		}
+	}
+
+	/**
+	 * Appends a message to the write buffer.
+	 * @return false if the message has been dropped as its token is gone
+	 */
+	private boolean encode(MqttWireMessage message) throws MqttException {
+		final String methodName = "encode";
+		//@TRACE 802=network send key={0} msg={1}
+		log.fine(CLASS_NAME, methodName, "802", new Object[] {message.getKey(), message});
+
+		MqttToken token = null;
+		if (!(message instanceof MqttAck)) {
+			token = message.getToken();
+			if (token == null) {
+				token = tokenStore.getToken(message);
+			}
+			// While quiescing the tokenstore can be cleared so need
+			// to check for null for the case where clear occurs
+			// while trying to send a message.
+			if (token == null) {
+				return false;
+			}
+		}
+		int length;
+		if (message instanceof MqttPublish && ((MqttPublish) message).isPayloadStreamed()) {
+			// Only the header goes in now, the payload follows as the buffer drains
+			MqttPublish publish = (MqttPublish) message;
+			int headerLength = publish.getEncodedHeaderLength();
+			reserve(headerLength);
+			publish.encodeHeader(writeBuffer);
+			try {
+				payloadSource = ((MqttStreamingMessage) publish.getMessage()).openPayload();
+			} catch (IOException ex) {
+				throw new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ex);
+			}
+			payloadRemaining = publish.getPayloadLength();
+			length = headerLength + payloadRemaining;
+		} else if (message instanceof MqttPublish) {
+			// Encoded in place, so that sending a message allocates nothing
+			MqttPublish publish = (MqttPublish) message;
+			int headerLength = publish.getEncodedHeaderLength();
+			byte[] payload = publish.getPayload();
+			length = headerLength + payload.length;
+			if (payload.length >= GATHER_THRESHOLD) {
+				// The payload follows the header out of its own array
+				reserve(headerLength);
+				publish.encodeHeader(writeBuffer);
+				payloadBuffer = ByteBuffer.wrap(payload);
+			} else {
+				reserve(length);
+				publish.encodeHeader(writeBuffer);
+				writeBuffer.put(payload);
+			}
+		} else if (message.isMessageIdOnly()) {
+			length = MqttWireMessage.MESSAGE_ID_ONLY_LENGTH;
+			reserve(length);
+			message.encodeMessageIdOnly(writeBuffer);
+		} else {
+			byte[] header = message.getHeader();
+			byte[] payload = message.getPayload();
+			length = header.length + payload.length;
+			reserve(length);
+			writeBuffer.put(header);
+			writeBuffer.put(payload);
+		}
+		bytesQueued += length;
+		if (token != null) {
+			unsent.add(new PendingSend(message, token, bytesQueued));
+		}
+		return true;
+	}
+
+	private void reserve(int length) {
+		if (length > BUFFER_SIZE) {
+			writeBufferOversized = true;
+		}
+		if (writeBuffer.remaining() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + length));
+			writeBuffer.flip();
+			larger.put(writeBuffer);
+			writeBuffer = larger;
+		}
+	}
+
+	/**
+	 * Reads as much of a streamed payload as fits in the write buffer.
+	 * @return true if anything was read
+	 */
+	private boolean readPayload() throws IOException {
+		if (payloadSource == null) {
+			return false;
+		}
+		int start = writeBuffer.position();
+		int limit = writeBuffer.limit();
+		writeBuffer.limit(start + Math.min(writeBuffer.remaining(), payloadRemaining));
+		try {
+			while (writeBuffer.hasRemaining()) {
+				int count = payloadSource.read(writeBuffer);
+				if (count < 0) {
+					// The header promised more bytes than the source has
+					throw new EOFException();
+				}
+				if (count == 0) {
+					break;
+				}
+			}
+		} finally {
+			writeBuffer.limit(limit);
+		}
+		payloadRemaining -= writeBuffer.position() - start;
+		if (payloadRemaining == 0) {
+			payloadSource = null;
+		}
+		return writeBuffer.position() > start;
+	}
+
+	/**
+	 * Writes the buffered bytes, and any large payload after them, to the
+	 * channel and notifies the messages that went out completely.
+	 * @return true if everything has been written
+	 */
+	private boolean flush() {
+		final String methodName = "flush";
+		writeBuffer.flip();
+		gather[0] = writeBuffer;
+		gather[1] = payloadBuffer;
+		boolean flushed;
+		try {
+			while (writeBuffer.hasRemaining() || (payloadBuffer != null && payloadBuffer.hasRemaining())) {
+				// In slices, as the channel copies heap buffers into temporary direct ones as large
+				long count = payloadBuffer == null ? GatheringWrites.write(out, writeBuffer)
+						: GatheringWrites.write(out, gather);
+				if (count == 0) {
+					break;
+				}
+				bytesWritten += count;
+				clientState.notifySentBytes((int) count);
+			}
+			// Encrypted bytes can be left over even once the buffer is empty
+			flushed = tls == null || tls.flush();
+		} catch (IOException ex) {
+			//@TRACE 804=exception
+			log.fine(CLASS_NAME, methodName, "804", null, ex);
+			fail(null, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST, ex));
+			return false;
+		} finally {
+			writeBuffer.compact();
+			if (writeBufferOversized && writeBuffer.position() == 0) {
+				// Growth from many small packets is bounded by the high water mark and kept,
+				// but the room made for a large packet is given back once it has gone
+				writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+				writeBufferOversized = false;
+			}
+			if (payloadBuffer != null && !payloadBuffer.hasRemaining()) {
+				payloadBuffer = null;
+			}
+			gather[0] = null;
+			gather[1] = null;
+		}
+
+		while (!unsent.isEmpty() && unsent.peek().end <= bytesWritten) {
+			PendingSend sent = unsent.poll();
+			synchronized (sent.token) {
+				clientState.notifySent(sent.message);
+			}
+		}
+
+		boolean complete = writeBuffer.position() == 0 && payloadBuffer == null && flushed;
+		if (key.isValid()) {
+			key.interestOps(complete ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		return complete;
+	}
+
+	/**
+	 * Fails the connection after an unexpected exception on the loop
+	 * thread, such as one thrown by application code called back while a
+	 * packet was dispatched. The loop itself carries on.
+	 * @param ex the exception
+	 */
+	void failed(RuntimeException ex) {
+		if (running) {
+			fail(receiver.getToken(), new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR, ex));
+		} else {
+			close();
+		}
+	}
+
+	/**
+	 * Takes the channel off the loop and shuts the connection down. The
+	 * shutdown runs on a thread of its own as it waits for other threads,
+	 * which must not hold up the loop.
+	 */
+	private void fail(final MqttToken token, final MqttException reason) {
+		running = false;
+		close();
+		Thread shutdown = new Thread(new Runnable() {
+			public void run() {
+				clientComms.shutdownConnection(token, reason);
+			}
+		}, "MQTT Shutdown: " + clientComms.getClient().getClientId());
+		shutdown.start();
+	}
+
+	/**
+	 * A message written to the buffer, with the stream offset of its last byte.
+	 */
+	private static class PendingSend {
+		final MqttWireMessage message;
+		final MqttToken token;
+		final long end;
+
+		PendingSend(MqttWireMessage message, MqttToken token, long end) {
+			this.message = message;
+			this.token = token;
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * A single selector thread serving the channels of any number of
+ * connections. Each registered channel carries a {@link CommsChannelHandler}
+ * as its attachment, which is called back on this thread when the channel
+ * is ready. Work from other threads is handed over with {@link #execute(Runnable)}.
+ * <p>
+ * An exception thrown out of a handler fails that handler's connection
+ * only; the loop carries on serving the others. The loop thread is a
+ * daemon, so a group that is never shut down does not keep the JVM alive.
+ */
+public class CommsEventLoop implements Runnable {
+	private static final String CLASS_NAME = CommsEventLoop.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Thread loopThread;
+	private volatile boolean running = true;
+
+	/**
+	 * Opens the selector and starts the loop thread, as a daemon.
+	 * @param threadName the name of the loop thread
+	 * @throws IOException if the selector cannot be opened
+	 */
+	public CommsEventLoop(String threadName) throws IOException {
+		this.selector = Selector.open();
+		this.loopThread = new Thread(this, threadName);
+		this.loopThread.setDaemon(true);
+		this.loopThread.start();
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return true if the caller is running on this loop's thread
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Runs a task on the loop thread. Tasks run in the order they were
+	 * submitted.
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		if (!inEventLoop()) {
+			selector.wakeup();
+			if (!loopThread.isAlive()) {
+				// The loop has been shut down, so the task would never run
+				runTasks();
+			}
+		}
+	}
+
+	/**
+	 * Stops the loop thread and closes the selector. Channels still
+	 * registered are left open; their connections are expected to have
+	 * been closed first.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+		if (!inEventLoop()) {
+			try {
+				loopThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public void run() {
+		final String methodName = "run";
+		//@TRACE 870=event loop started
+		log.fine(CLASS_NAME, methodName, "870");
+		while (running) {
+			try {
+				// Tasks queued by the loop itself do not wake the selector
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow();
+				}
+			} catch (IOException ex) {
+				//@TRACE 871=select failed
+				log.fine(CLASS_NAME, methodName, "871", null, ex);
+			}
+			runTasks();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid()) {
+					CommsChannelHandler handler = (CommsChannelHandler) key.attachment();
+					try {
+						handler.handle(key);
+					} catch (RuntimeException ex) {
+						//@TRACE 874=channel handler failed
+						log.fine(CLASS_NAME, methodName, "874", null, ex);
+						handler.failed(ex);
+					}
+				}
+			}
+		}
+		runTasks();
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			// Ignore, the loop is finished
+		}
+		//@TRACE 872=event loop stopped
+		log.fine(CLASS_NAME, methodName, "872");
+	}
+
+	private void runTasks() {
+		final String methodName = "runTasks";
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				//@TRACE 873=event loop task failed
+				log.fine(CLASS_NAME, methodName, "873", null, ex);
+			}
+		}
+	}
+}
@@ -55,9 +55,21 @@ public class CommsReceiver implements Runnable {
 	private MqttInputStream in;
 	private CommsTokenStore tokenStore = null;
 	private Thread recThread	= null;
+	private MqttToken token = null;
 
 	public CommsReceiver(ClientComms clientComms, ClientState clientState,CommsTokenStore tokenStore, InputStream in) {
+		this(clientComms, clientState, tokenStore);
 		this.in = new MqttInputStream(clientState, in);
+	}
+
+	/**
+	 * Creates a receiver that does not read from the network itself, but is
+	 * handed the packets decoded by a {@link CommsChannelHandler}.
+	 * @param clientComms the {@link ClientComms}
+	 * @param clientState the {@link ClientState}
+	 * @param tokenStore the {@link CommsTokenStore}
+	 */
+	CommsReceiver(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore) {
 		this.clientComms = clientComms;
 		this.clientState = clientState;
 		this.tokenStore = tokenStore;
@@ -141,7 +153,6 @@ public class CommsReceiver implements Runnable {
 	public void run() {
 		Thread.currentThread().setName(threadName);
 		final String methodName = "run";
-		MqttToken token = null;
 
 		try {
 			State my_target;
@@ -162,40 +173,7 @@ public class CommsReceiver implements Runnable {
 						current_state = State.RUNNING;
 					}
 
-					// instanceof checks if message is null
-					if (message instanceof MqttAck) {
-						token = tokenStore.getToken(message);
-						if (token!=null) {
-							synchronized (token) {
-								// Ensure the notify processing is done under a lock on the token
-								// This ensures that the send processing can complete  before the
-								// receive processing starts! ( request and ack and ack processing
-								// can occur before request processing is complete if not!
-								clientState.notifyReceivedAck((MqttAck)message);
-							}
-						} else if(message instanceof MqttPubRec || message instanceof MqttPubComp || message instanceof MqttPubAck) {
-							//This is an ack for a message we no longer have a ticket for.
-							//This probably means we already received this message and it's being send again
-							//because of timeouts, crashes, disconnects, restarts etc.
-							//It should be safe to ignore these unexpected messages.
-							log.fine(CLASS_NAME, methodName, "857");
-						} else {
-							// It its an ack and there is no token then something is not right.
-							// An ack should always have a token assoicated with it.
-							throw new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
-						}
-					} else {
-						if (message != null) {
-							// A new message has arrived
-							clientState.notifyReceivedMsg(message);
-						}  
-                                                else {
-                                                    // fix for bug 719
-                                                    if (!clientComms.isConnected() && !clientComms.isConnecting()) {
-                                                         throw new IOException("Connection is lost.");
-                                                    }
-                                                }
-					}
+					dispatch(message);
 				}
 				catch (MqttException ex) {
 					//@TRACE 856=Stopping, MQttException
@@ -240,6 +218,58 @@ public class CommsReceiver implements Runnable {
 		log.fine(CLASS_NAME,methodName,"854");
 	}
 
+	/**
+	 * Hands a packet received from the server to the client state.
+	 * @param message the packet read from the network, or null if no
+	 * complete packet could be read within the socket read timeout
+	 * @throws MqttException if the packet is not expected
+	 * @throws IOException if the connection has been lost
+	 */
+	void dispatch(MqttWireMessage message) throws MqttException, IOException {
+		final String methodName = "dispatch";
+		// instanceof checks if message is null
+		if (message instanceof MqttAck) {
+			token = tokenStore.getToken(message);
+			if (token!=null) {
+				synchronized (token) {
+					// Ensure the notify processing is done under a lock on the token
+					// This ensures that the send processing can complete  before the
+					// receive processing starts! ( request and ack and ack processing
+					// can occur before request processing is complete if not!
+					clientState.notifyReceivedAck((MqttAck)message);
+				}
+			} else if(message instanceof MqttPubRec || message instanceof MqttPubComp || message instanceof MqttPubAck) {
+				//This is an ack for a message we no longer have a ticket for.
+				//This probably means we already received this message and it's being send again
+				//because of timeouts, crashes, disconnects, restarts etc.
+				//It should be safe to ignore these unexpected messages.
+				log.fine(CLASS_NAME, methodName, "857");
+			} else {
+				// It its an ack and there is no token then something is not right.
+				// An ack should always have a token assoicated with it.
+				throw new MqttException(MqttException.REASON_CODE_UNEXPECTED_ERROR);
+			}
+		} else {
+			if (message != null) {
+				// A new message has arrived
+				clientState.notifyReceivedMsg(message);
+			}
+			else {
+				// fix for bug 719
+				if (!clientComms.isConnected() && !clientComms.isConnecting()) {
+					throw new IOException("Connection is lost.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the token of the last acknowledgement dispatched, which may be null
+	 */
+	MqttToken getToken() {
+		return token;
+	}
+
 	public boolean isRunning() {
 		boolean result;
 		synchronized (lifecycle) {
@@ -17,14 +17,18 @@ package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttDisconnect;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttOutputStream;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
@@ -53,6 +57,13 @@ public class CommsSender implements Runnable {
 	private ClientComms clientComms = null;
 	private CommsTokenStore tokenStore = null;
 
+	// Packets are flushed after every batchSize packets or batchBytes bytes
+	private int batchSize = 1;
+	private int batchBytes = Integer.MAX_VALUE;
+	private long lingerNanos = 0;
+	// The messages written since the last flush, to be notified as sent
+	private final ArrayList<MqttWireMessage> unflushed = new ArrayList<MqttWireMessage>();
+
 
 	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out) {
 		this.out = new MqttOutputStream(clientState, out);
@@ -62,6 +73,19 @@ public class CommsSender implements Runnable {
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
+	/**
+	 * Sets how many packets are written before the stream is flushed.
+	 * @param batchSize the most packets in a batch, 1 to flush after each
+	 * @param batchBytes the most bytes in a batch
+	 * @param lingerMicros how long to wait for more packets once none are
+	 * ready, before flushing a batch
+	 */
+	public void setBatching(int batchSize, int batchBytes, long lingerMicros) {
+		this.batchSize = batchSize;
+		this.batchBytes = batchBytes;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+	}
+
 	/**
 	 * Starts up the Sender thread.
 	 * @param threadName the threadname
@@ -150,36 +174,7 @@ public class CommsSender implements Runnable {
 				try {
 					message = clientState.get();
 					if (message != null) {
-						//@TRACE 802=network send key={0} msg={1}
-						log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
-
-						if (message instanceof MqttAck) {
-							out.write(message);
-							out.flush();
-						} else {
-							MqttToken token = message.getToken();
-							if (token == null) {
-								token = tokenStore.getToken(message);
-							}
-							// While quiescing the tokenstore can be cleared so need
-							// to check for null for the case where clear occurs
-							// while trying to send a message.
-							if (token != null) {
-								synchronized (token) {
-									out.write(message);
-									try {
-										out.flush();
-									} catch (IOException ex) {
-										// The flush has been seen to fail on disconnect of a SSL socket
-										// as disconnect is in progress this should not be treated as an error
-										if (!(message instanceof MqttDisconnect)) {
-											throw ex;
-										}
-									}
-									clientState.notifySent(message);
-								}
-							}
-						}
+						send(message);
 					} else { // null message
 						//@TRACE 803=get message returned null, stopping}
 						log.fine(CLASS_NAME,methodName,"803");
@@ -206,6 +201,89 @@ public class CommsSender implements Runnable {
 		log.fine(CLASS_NAME, methodName,"805");
 	}
 
+	/**
+	 * Writes a message, then what else is ready up to the batch limits, and
+	 * flushes once.
+	 * @param message the first message of the batch
+	 */
+	private void send(MqttWireMessage message) throws IOException, MqttException {
+		int packets = 0;
+		boolean lingered = false;
+		while (true) {
+			write(message);
+			packets++;
+			if (packets >= batchSize || out.getUnflushedBytes() >= batchBytes
+					|| message instanceof MqttConnect || message instanceof MqttDisconnect) {
+				break;
+			}
+			MqttWireMessage next = clientState.poll();
+			if (next == null && lingerNanos > 0 && !lingered) {
+				lingered = true;
+				LockSupport.parkNanos(lingerNanos);
+				next = clientState.poll();
+			}
+			if (next == null) {
+				break;
+			}
+			message = next;
+		}
+		flush(message);
+	}
+
+	/**
+	 * Writes a message to the stream without flushing it.
+	 */
+	private void write(MqttWireMessage message) throws IOException, MqttException {
+		final String methodName = "write";
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 802=network send key={0} msg={1}
+			log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+		}
+
+		if (message instanceof MqttAck) {
+			out.write(message);
+		} else {
+			MqttToken token = message.getToken();
+			if (token == null) {
+				token = tokenStore.getToken(message);
+			}
+			// While quiescing the tokenstore can be cleared so need
+			// to check for null for the case where clear occurs
+			// while trying to send a message.
+			if (token != null) {
+				synchronized (token) {
+					out.write(message);
+				}
+				unflushed.add(message);
+			}
+		}
+	}
+
+	/**
+	 * Flushes the messages written since the last flush, and then notifies
+	 * them as sent.
+	 * @param last the last message of the batch
+	 */
+	private void flush(MqttWireMessage last) throws IOException {
+		try {
+			try {
+				out.flush();
+			} catch (IOException ex) {
+				// The flush has been seen to fail on disconnect of a SSL socket
+				// as disconnect is in progress this should not be treated as an error.
+				// A disconnect is always the last message of a batch.
+				if (!(last instanceof MqttDisconnect)) {
+					throw ex;
+				}
+			}
+			for (int i = 0; i < unflushed.size(); i++) {
+				clientState.notifySent(unflushed.get(i));
+			}
+		} finally {
+			unflushed.clear();
+		}
+	}
+
 	private void handleRunException(MqttWireMessage message, Exception ex) {
 		final String methodName = "handleRunException";
 		//@TRACE 804=exception
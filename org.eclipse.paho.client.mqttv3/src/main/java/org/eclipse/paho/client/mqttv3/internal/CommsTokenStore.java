@@ -42,13 +42,20 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  * Note:
  *   Ping, connect and disconnect do not have a unique message id as
  *   only one outstanding request of each type is allowed to be outstanding
+ *
+ * Tokens for messages with a message ID are kept in a {@link MessageIdTokenTable},
+ * so that looking up or removing the token for an ack takes no lock and builds
+ * no key. Ping, connect and disconnect, and QoS 0 publishes which have no
+ * message ID, are kept by their string key in a small side table.
  */
 public class CommsTokenStore {
 	private static final String CLASS_NAME = CommsTokenStore.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
-	// Maps message-specific data (usually message IDs) to tokens
-	private final Hashtable tokens;
+	// Maps message IDs to tokens
+	private final MessageIdTokenTable tokens;
+	// Maps the keys of messages without a message ID to tokens
+	private final Hashtable<String, MqttToken> keyedTokens;
 	private String logContext;
 	private MqttException closedResponse = null;
 
@@ -56,13 +63,51 @@ public class CommsTokenStore {
 		final String methodName = "<Init>";
 
 		log.setResourceName(logContext);
-		this.tokens = new Hashtable();
+		this.tokens = new MessageIdTokenTable();
+		this.keyedTokens = new Hashtable<String, MqttToken>();
 		this.logContext = logContext;
 		//@TRACE 308=<>
 		log.fine(CLASS_NAME,methodName,"308");//,new Object[]{message});
 
 	}
 
+	/**
+	 * Returns the message ID a message's token is stored under, or 0 if the
+	 * token is stored under the message's key.
+	 */
+	private static int getMessageIdKey(MqttWireMessage message) {
+		switch (message.getType()) {
+			case MqttWireMessage.MESSAGE_TYPE_CONNECT:
+			case MqttWireMessage.MESSAGE_TYPE_CONNACK:
+			case MqttWireMessage.MESSAGE_TYPE_DISCONNECT:
+			case MqttWireMessage.MESSAGE_TYPE_PINGREQ:
+			case MqttWireMessage.MESSAGE_TYPE_PINGRESP:
+				return 0;
+			default:
+				return message.getMessageId();
+		}
+	}
+
+	/**
+	 * Returns the message ID a key stands for, or 0 if the key is not a
+	 * message ID.
+	 */
+	private static int getMessageIdKey(String key) {
+		int msgId = 0;
+		int length = key.length();
+		if (length == 0 || length > 5) {
+			return 0;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			msgId = msgId * 10 + (c - '0');
+		}
+		return msgId <= MessageIdAllocator.MAX_MSG_ID ? msgId : 0;
+	}
+
 	/**
 	 * Based on the message type that has just been received return the associated
 	 * token from the token store or null if one does not exist.
@@ -70,17 +115,32 @@ public class CommsTokenStore {
 	 * @return token for the requested message
 	 */
 	public MqttToken getToken(MqttWireMessage message) {
-		String key = message.getKey(); 
-		return (MqttToken)tokens.get(key);
+		int msgId = getMessageIdKey(message);
+		if (msgId != 0) {
+			return tokens.get(msgId);
+		}
+		return keyedTokens.get(message.getKey());
 	}
 
 	public MqttToken getToken(String key) {
-		return (MqttToken)tokens.get(key);
+		int msgId = getMessageIdKey(key);
+		if (msgId != 0) {
+			return tokens.get(msgId);
+		}
+		return keyedTokens.get(key);
 	}
 
 	
 	public MqttToken removeToken(MqttWireMessage message) {
 		if (message != null) {
+			int msgId = getMessageIdKey(message);
+			if (msgId != 0) {
+				final String methodName = "removeToken";
+				//@TRACE 306=key={0}
+				log.fine(CLASS_NAME,methodName,"306",new Object[]{Integer.valueOf(msgId)});
+
+				return tokens.remove(msgId);
+			}
 			return removeToken(message.getKey());
 		}
 		return null;
@@ -92,7 +152,11 @@ public class CommsTokenStore {
 		log.fine(CLASS_NAME,methodName,"306",new Object[]{key});
 		
 		if ( null != key ){
-		    return (MqttToken) tokens.remove(key);
+			int msgId = getMessageIdKey(key);
+			if (msgId != 0) {
+				return tokens.remove(msgId);
+			}
+		    return keyedTokens.remove(key);
 		}
 		
 		return null;
@@ -109,17 +173,17 @@ public class CommsTokenStore {
 		final String methodName = "restoreToken";
 		MqttDeliveryToken token;
 		synchronized(tokens) {
-			String key = Integer.toString(message.getMessageId());
-			if (this.tokens.containsKey(key)) {
-				token = (MqttDeliveryToken)this.tokens.get(key);
+			int msgId = message.getMessageId();
+			token = (MqttDeliveryToken)this.tokens.get(msgId);
+			if (token != null) {
 				//@TRACE 302=existing key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName, "302",new Object[]{key, message,token});
+				log.fine(CLASS_NAME,methodName, "302",new Object[]{Integer.valueOf(msgId), message,token});
 			} else {
 				token = new MqttDeliveryToken(logContext);
-				token.internalTok.setKey(key);
-				this.tokens.put(key, token);
+				token.internalTok.setKey(msgId);
+				this.tokens.put(msgId, token);
 				//@TRACE 303=creating new token key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName,"303",new Object[]{key, message, token});
+				log.fine(CLASS_NAME,methodName,"303",new Object[]{Integer.valueOf(msgId), message, token});
 			}
 		}
 		return token;
@@ -132,11 +196,20 @@ public class CommsTokenStore {
 
 		synchronized(tokens) {
 			if (closedResponse == null) {
-				String key = message.getKey();
-				//@TRACE 300=key={0} message={1}
-				log.fine(CLASS_NAME,methodName,"300",new Object[]{key, message});
-				
-				saveToken(token,key);
+				int msgId = getMessageIdKey(message);
+				if (msgId != 0) {
+					//@TRACE 300=key={0} message={1}
+					log.fine(CLASS_NAME,methodName,"300",new Object[]{Integer.valueOf(msgId), message});
+
+					token.internalTok.setKey(msgId);
+					this.tokens.put(msgId, token);
+				} else {
+					String key = message.getKey();
+					//@TRACE 300=key={0} message={1}
+					log.fine(CLASS_NAME,methodName,"300",new Object[]{key, message});
+
+					saveToken(token,key);
+				}
 			} else {
 				throw closedResponse;
 			}
@@ -149,8 +222,14 @@ public class CommsTokenStore {
 		synchronized(tokens) {
 			//@TRACE 307=key={0} token={1}
 			log.fine(CLASS_NAME,methodName,"307",new Object[]{key,token.toString()});
-			token.internalTok.setKey(key);
-			this.tokens.put(key, token);
+			int msgId = getMessageIdKey(key);
+			if (msgId != 0) {
+				token.internalTok.setKey(msgId);
+				this.tokens.put(msgId, token);
+			} else {
+				token.internalTok.setKey(key);
+				this.keyedTokens.put(key, token);
+			}
 		}
 	}
 
@@ -184,7 +263,7 @@ public class CommsTokenStore {
 			log.fine(CLASS_NAME,methodName,"311");
 
 			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
+			Enumeration enumeration = getAllTokens().elements();
 			MqttToken token;
 			while(enumeration.hasMoreElements()) {
 				token = (MqttToken)enumeration.nextElement();
@@ -201,48 +280,45 @@ public class CommsTokenStore {
 		}
 	}
 	
-	public Vector getOutstandingTokens() {
+	public Vector<MqttToken> getOutstandingTokens() {
 		final String methodName = "getOutstandingTokens";
 
 		synchronized(tokens) {
 			//@TRACE 312=>
 			log.fine(CLASS_NAME,methodName,"312");
 
-			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null) {
-						list.addElement(token);
-				}
-			}
-			return list;
+			return getAllTokens();
 		}
 	}
 
+	private Vector<MqttToken> getAllTokens() {
+		Vector<MqttToken> list = new Vector<MqttToken>();
+		tokens.addTokensTo(list);
+		list.addAll(keyedTokens.values());
+		return list;
+	}
+
 	/**
 	 * Empties the token store without notifying any of the tokens.
 	 */
 	public void clear() {
 		final String methodName = "clear";
 		//@TRACE 305=> {0} tokens
-		log.fine(CLASS_NAME, methodName, "305", new Object[] {Integer.valueOf(tokens.size())});
+		log.fine(CLASS_NAME, methodName, "305", new Object[] {Integer.valueOf(count())});
 		synchronized(tokens) {
 			tokens.clear();
+			keyedTokens.clear();
 		}
 	}
 	
 	public int count() {
-		synchronized(tokens) {
-			return tokens.size();
-		}
+		return tokens.size() + keyedTokens.size();
 	}
 	public String toString() {
 		String lineSep = System.getProperty("line.separator","\n");
 		StringBuffer toks = new StringBuffer();
 		synchronized(tokens) {
-			Enumeration enumeration = tokens.elements();
+			Enumeration enumeration = getAllTokens().elements();
 			MqttToken token;
 			while(enumeration.hasMoreElements()) {
 				token = (MqttToken)enumeration.nextElement();
@@ -15,43 +15,137 @@
  */
 package org.eclipse.paho.client.mqttv3.internal;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.paho.client.mqttv3.BufferedMessage;
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
 
+/**
+ * Holds the messages sent while the client is disconnected, oldest first,
+ * in a circular array, so that a message is added or the oldest one dropped
+ * without moving the others. The buffer is bounded by the number of
+ * messages, and optionally by their total encoded size.
+ * <p>
+ * With a spill directory set, a message that would take the messages held in
+ * memory over the spill threshold is appended to a spill file instead, and
+ * only its place in the file is kept. The oldest messages, which are sent
+ * first, are the ones that stay in memory. A spilled message is read back
+ * when it is sent, so the file is read from start to end as the buffer
+ * drains, and is deleted once it holds no more messages, or when the buffer
+ * is closed. A spill file is locked while it is in use, and files left in
+ * the directory by a process that ended without deleting them are deleted
+ * when a buffer is created.
+ */
 public class DisconnectedMessageBuffer implements Runnable {
 
+	private static final long NOT_SPILLED = -1;
+	private static final String SPILL_PREFIX = "paho-spill";
+	private static final String SPILL_SUFFIX = ".buf";
+	// The spill files in use in this JVM, which must not be probed: closing any
+	// channel to a file releases every lock this JVM holds on it
+	private static final Set<File> openSpillFiles = ConcurrentHashMap.newKeySet();
+
 	private final String CLASS_NAME = DisconnectedMessageBuffer.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 	private DisconnectedBufferOptions bufferOpts;
-	private ArrayList<BufferedMessage> buffer;
+	private BufferedMessage[] buffer;	// A ring of messages, the oldest at head
+	private int[] sizes;				// The encoded size of each message in the ring
+	private int head = 0;
+	private int count = 0;
+	private long bytes = 0;				// The total of the sizes
+	private long[] spilled;				// Where each message is in the spill file, or NOT_SPILLED
+	private long memoryBytes = 0;		// The total of the sizes of the messages not spilled
+	private int spilledCount = 0;
+	private File spillFile = null;
+	private FileChannel spillChannel = null;
+	private long spillEnd = 0;
 	private final Object bufLock = new Object(); // Used to synchronise the buffer
 	private IDisconnectedBufferCallback callback;
         private IDiscardedBufferMessageCallback messageDiscardedCallBack;
 
 	public DisconnectedMessageBuffer(DisconnectedBufferOptions options) {
 		this.bufferOpts = options;
-		buffer = new ArrayList<BufferedMessage>();
+		// The ring grows as it fills, so a large limit costs nothing until used
+		int capacity = Math.min(options.getBufferSize(), 16);
+		buffer = new BufferedMessage[capacity];
+		sizes = new int[capacity];
+		spilled = new long[capacity];
+		if (options.getSpillDirectory() != null) {
+			deleteStaleSpillFiles(new File(options.getSpillDirectory()));
+		}
+	}
+
+	/**
+	 * Deletes the spill files in a directory that no buffer is using, left
+	 * behind by a process that ended while it had messages spilled.
+	 */
+	private void deleteStaleSpillFiles(File directory) {
+		final String methodName = "deleteStaleSpillFiles";
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(SPILL_PREFIX) || !name.endsWith(SPILL_SUFFIX)
+					|| openSpillFiles.contains(file.getAbsoluteFile())) {
+				continue;
+			}
+			boolean stale = false;
+			try {
+				FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+				try {
+					// Held by another process while it uses the file
+					FileLock lock = channel.tryLock();
+					if (lock != null) {
+						stale = true;
+						lock.release();
+					}
+				} catch (OverlappingFileLockException ex) {
+					// In use in this JVM
+				} finally {
+					channel.close();
+				}
+			} catch (IOException ex) {
+				// Gone already, or not ours to delete
+			}
+			if (stale && file.delete()) {
+				//@TRACE 523=Deleted stale spill file {0}
+				log.fine(CLASS_NAME, methodName, "523", new Object[] { file });
+			}
+		}
 	}
 
 	/**
 	 * This will add a new message to the offline buffer, if the buffer is full and
-	 * deleteOldestMessages is enabled then the 0th item in the buffer will be
-	 * deleted and the new message will be added. If it is not enabled then an
-	 * MqttException will be thrown.
+	 * deleteOldestMessages is enabled then the oldest messages in the buffer will be
+	 * deleted until there is room and the new message will be added. If it is not
+	 * enabled then an MqttException will be thrown. The buffer is full when it holds
+	 * as many messages as {@link DisconnectedBufferOptions#getBufferSize()}, or the
+	 * message would take the total size over
+	 * {@link DisconnectedBufferOptions#getBufferBytes()}.
 	 * 
 	 * @param message
 	 *            the {@link MqttWireMessage} that will be buffered
 	 * @param token
 	 *            the associated {@link MqttToken}
 	 * @throws MqttException
-	 *             if the Buffer is full
+	 *             if the Buffer is full, or the message is larger than the
+	 *             buffer can ever hold
 	 */
 	public void putMessage(MqttWireMessage message, MqttToken token) throws MqttException {
 		if (token != null) {
@@ -60,24 +154,60 @@ public class DisconnectedMessageBuffer implements Runnable {
 		}
 		
 		BufferedMessage bufferedMessage = new BufferedMessage(message, token);
+		int size = sizeOf(message);
+		long maxBytes = bufferOpts.getBufferBytes();
 		synchronized (bufLock) {
-			if (buffer.size() < bufferOpts.getBufferSize()) {
-				buffer.add(bufferedMessage);
-			} else if (bufferOpts.isDeleteOldestMessages() == true) {
-				if(messageDiscardedCallBack != null){
-					BufferedMessage discardedMessage = (BufferedMessage) buffer.get(0);
-					messageDiscardedCallBack.messageDiscarded(discardedMessage.getMessage());
+			if (maxBytes > 0 && size > maxBytes) {
+				throw new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+			}
+			if (count >= bufferOpts.getBufferSize() || (maxBytes > 0 && bytes + size > maxBytes)) {
+				if (bufferOpts.isDeleteOldestMessages() == false) {
+					throw new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+				}
+				while (count >= bufferOpts.getBufferSize() || (maxBytes > 0 && bytes + size > maxBytes)) {
+					if(messageDiscardedCallBack != null){
+						MqttWireMessage discarded = buffer[head].getMessage();
+						if (discarded == null) {
+							discarded = readSpilled(0);
+						}
+						if (discarded != null) {
+							messageDiscardedCallBack.messageDiscarded(discarded);
+						}
+					}
+					removeAt(0);
 				}
-				buffer.remove(0);
-				buffer.add(bufferedMessage);
+			}
+			if (count == buffer.length) {
+				grow();
+			}
+			int tail = (head + count) % buffer.length;
+			long offset = NOT_SPILLED;
+			if (bufferOpts.getSpillDirectory() != null && memoryBytes + size > bufferOpts.getSpillThreshold()) {
+				offset = spill(message);
+			}
+			if (offset == NOT_SPILLED) {
+				buffer[tail] = bufferedMessage;
+				memoryBytes += size;
 			} else {
-				throw new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+				// Neither the buffer nor the token holds the message until it is read back
+				buffer[tail] = new BufferedMessage(null, token);
+				if (token != null) {
+					token.internalTok.setMessage(null);
+				}
+				spilledCount++;
 			}
+			sizes[tail] = size;
+			spilled[tail] = offset;
+			count++;
+			bytes += size;
 		}
 	}
 
 	/**
-	 * Retrieves a message from the buffer at the given index.
+	 * Retrieves a message from the buffer at the given index. A message that
+	 * has been spilled is read back from the spill file, and if that fails it
+	 * is dropped, its token completed with the exception, and the message
+	 * after it is returned instead.
 	 * 
 	 * @param messageIndex
 	 *            the index of the message to be retrieved in the buffer
@@ -85,10 +215,40 @@ public class DisconnectedMessageBuffer implements Runnable {
 	 */
 	public BufferedMessage getMessage(int messageIndex) {
 		synchronized (bufLock) {
-			return ((BufferedMessage) buffer.get(messageIndex));
+			checkIndex(messageIndex);
+			BufferedMessage bufferedMessage = loadMessage(messageIndex);
+			if (bufferedMessage == null) {
+				throw new ArrayIndexOutOfBoundsException(messageIndex);
+			}
+			return bufferedMessage;
 		}
 	}
 
+	/**
+	 * Returns the message at an index, reading it back if it was spilled, and
+	 * dropping any that cannot be read.
+	 * @return the message, or null if the index is past the end
+	 */
+	private BufferedMessage loadMessage(int messageIndex) {
+		while (messageIndex < count) {
+			int at = (head + messageIndex) % buffer.length;
+			if (spilled[at] == NOT_SPILLED) {
+				return buffer[at];
+			}
+			MqttToken token = buffer[at].getToken();
+			MqttWireMessage message = readSpilled(messageIndex);
+			if (message != null) {
+				if (token != null) {
+					message.setToken(token);
+					token.internalTok.setMessage(((MqttPublish) message).getMessage());
+				}
+				return new BufferedMessage(message, token);
+			}
+			removeAt(messageIndex);
+		}
+		return null;
+	}
+
 	/**
 	 * Removes a message from the buffer
 	 * 
@@ -97,7 +257,8 @@ public class DisconnectedMessageBuffer implements Runnable {
 	 */
 	public void deleteMessage(int messageIndex) {
 		synchronized (bufLock) {
-			buffer.remove(messageIndex);
+			checkIndex(messageIndex);
+			removeAt(messageIndex);
 		}
 	}
 
@@ -108,11 +269,222 @@ public class DisconnectedMessageBuffer implements Runnable {
 	 */
 	public int getMessageCount() {
 		synchronized (bufLock) {
-			return buffer.size();
+			return count;
+		}
+	}
+
+	/**
+	 * Returns the total encoded size of the messages currently in the buffer
+	 * 
+	 * @return The size of the messages in the buffer, in bytes
+	 */
+	public long getMessageBytes() {
+		synchronized (bufLock) {
+			return bytes;
+		}
+	}
+
+	/**
+	 * Returns the total encoded size of the messages currently in the spill
+	 * file
+	 * 
+	 * @return The size of the spilled messages, in bytes
+	 */
+	public long getSpilledBytes() {
+		synchronized (bufLock) {
+			return bytes - memoryBytes;
+		}
+	}
+
+	private void checkIndex(int messageIndex) {
+		if (messageIndex < 0 || messageIndex >= count) {
+			throw new ArrayIndexOutOfBoundsException(messageIndex);
+		}
+	}
+
+	/**
+	 * Removes the message at an index from the head, closing the gap from
+	 * whichever end is nearer, so that removing the oldest or the newest
+	 * message moves nothing.
+	 */
+	private void removeAt(int messageIndex) {
+		int length = buffer.length;
+		int at = (head + messageIndex) % length;
+		bytes -= sizes[at];
+		if (spilled[at] == NOT_SPILLED) {
+			memoryBytes -= sizes[at];
+		} else {
+			spilledCount--;
+		}
+		if (messageIndex < count / 2) {
+			for (int i = messageIndex; i > 0; i--) {
+				int to = (head + i) % length;
+				int from = (head + i - 1) % length;
+				buffer[to] = buffer[from];
+				sizes[to] = sizes[from];
+				spilled[to] = spilled[from];
+			}
+			buffer[head] = null;
+			head = (head + 1) % length;
+		} else {
+			for (int i = messageIndex; i < count - 1; i++) {
+				int to = (head + i) % length;
+				int from = (head + i + 1) % length;
+				buffer[to] = buffer[from];
+				sizes[to] = sizes[from];
+				spilled[to] = spilled[from];
+			}
+			buffer[(head + count - 1) % length] = null;
+		}
+		count--;
+		if (spilledCount == 0 && spillChannel != null) {
+			closeSpill();
+		}
+	}
+
+	/**
+	 * Doubles the ring, up to the buffer size, unwrapping it so that the
+	 * oldest message is first.
+	 */
+	private void grow() {
+		int capacity = (int) Math.min(bufferOpts.getBufferSize(), buffer.length * 2L);
+		BufferedMessage[] newBuffer = new BufferedMessage[capacity];
+		int[] newSizes = new int[capacity];
+		long[] newSpilled = new long[capacity];
+		for (int i = 0; i < count; i++) {
+			newBuffer[i] = buffer[(head + i) % buffer.length];
+			newSizes[i] = sizes[(head + i) % buffer.length];
+			newSpilled[i] = spilled[(head + i) % buffer.length];
+		}
+		buffer = newBuffer;
+		sizes = newSizes;
+		spilled = newSpilled;
+		head = 0;
+	}
+
+	/**
+	 * @return the size of a message as it is sent, or 0 if it cannot be
+	 * worked out
+	 */
+	private static int sizeOf(MqttWireMessage message) {
+		try {
+			if (message instanceof MqttPublish) {
+				MqttPublish publish = (MqttPublish) message;
+				return publish.getEncodedHeaderLength() + publish.getPayloadLength();
+			}
+			return message.getHeader().length + message.getPayload().length;
+		} catch (MqttException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Appends a message to the spill file, creating the file if need be.
+	 * Messages with a streamed payload are not spilled.
+	 * @return where the message starts in the file, or NOT_SPILLED if it
+	 * was not written
+	 */
+	private long spill(MqttWireMessage message) {
+		final String methodName = "spill";
+		if (!(message instanceof MqttPublish) || ((MqttPublish) message).isPayloadStreamed()) {
+			return NOT_SPILLED;
+		}
+		try {
+			if (spillChannel == null) {
+				File directory = new File(bufferOpts.getSpillDirectory());
+				directory.mkdirs();
+				spillFile = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, directory).getAbsoluteFile();
+				openSpillFiles.add(spillFile);
+				spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				// Tells other processes cleaning the directory that the file is in use
+				spillChannel.tryLock();
+				spillEnd = 0;
+			}
+			ByteBuffer[] packet = { ByteBuffer.wrap(message.getHeader()), ByteBuffer.wrap(message.getPayload()) };
+			long offset = spillEnd;
+			long written = 0;
+			long length = packet[0].remaining() + packet[1].remaining();
+			spillChannel.position(offset);
+			while (written < length) {
+				written += spillChannel.write(packet);
+			}
+			spillEnd += length;
+			//@TRACE 520=Spilled buffered message key={0} offset={1}
+			log.fine(CLASS_NAME, methodName, "520", new Object[] { message.getKey(), Long.valueOf(offset) });
+			return offset;
+		} catch (Exception ex) {
+			//@TRACE 521=Failed to spill buffered message, holding it in memory. key={0}
+			log.warning(CLASS_NAME, methodName, "521", new Object[] { message.getKey() }, ex);
+			if (spilledCount == 0) {
+				closeSpill();
+			}
+			return NOT_SPILLED;
+		}
+	}
+
+	/**
+	 * Reads a spilled message back from the spill file. If it cannot be
+	 * read, its token is completed with the exception.
+	 * @return the message, or null if it could not be read
+	 */
+	private MqttWireMessage readSpilled(int messageIndex) {
+		final String methodName = "readSpilled";
+		int at = (head + messageIndex) % buffer.length;
+		try {
+			if (spillChannel == null) {
+				throw new IOException("The spill file is closed");
+			}
+			ByteBuffer packet = ByteBuffer.allocate(sizes[at]);
+			while (packet.hasRemaining()) {
+				if (spillChannel.read(packet, spilled[at] + packet.position()) < 0) {
+					throw new IOException("The spill file is truncated");
+				}
+			}
+			return MqttWireMessage.createWireMessage(packet.array());
+		} catch (Exception ex) {
+			//@TRACE 522=Failed to read spilled buffered message, dropping it. offset={0}
+			log.severe(CLASS_NAME, methodName, "522", new Object[] { Long.valueOf(spilled[at]) }, ex);
+			MqttToken token = buffer[at].getToken();
+			if (token != null) {
+				token.internalTok.markComplete(null, ex instanceof MqttException ? (MqttException) ex : new MqttException(ex));
+				token.internalTok.notifyComplete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Closes and deletes the spill file once it holds no messages.
+	 */
+	private void closeSpill() {
+		if (spillChannel != null) {
+			try {
+				// Closing the channel releases the lock
+				spillChannel.close();
+			} catch (IOException ex) {
+			}
+			spillChannel = null;
+		}
+		if (spillFile != null) {
+			spillFile.delete();
+			openSpillFiles.remove(spillFile);
+			spillFile = null;
+		}
+		spillEnd = 0;
+	}
+
+	/**
+	 * Deletes the spill file, when the buffer is no longer used. Messages
+	 * still spilled can no longer be read back.
+	 */
+	public void close() {
+		synchronized (bufLock) {
+			closeSpill();
 		}
 	}
 
-	private int mycount = 0;
+
 	/**
 	 * Flushes the buffer of messages into an open connection
 	 */
@@ -120,12 +492,22 @@ public class DisconnectedMessageBuffer implements Runnable {
 		final String methodName = "run";
 		// @TRACE 516=Restoring all buffered messages.
 		log.fine(CLASS_NAME, methodName, "516");
-		while (getMessageCount() > 0) {
+		BufferedMessage bufferedMessage = null;
+		while (true) {
 			try {
-				BufferedMessage bufferedMessage = getMessage(0);
+				if (bufferedMessage == null) {
+					// Held across retries, so a spilled message is read back only once
+					synchronized (bufLock) {
+						bufferedMessage = loadMessage(0);
+					}
+					if (bufferedMessage == null) {
+						break;
+					}
+				}
 				callback.publishBufferedMessage(bufferedMessage);
 				// Publish was successful, remove message from buffer.
 				deleteMessage(0);
+				bufferedMessage = null;
 			} catch (MqttException ex) {
 				if (ex.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
 					// If we get the max_inflight condition, try again after a short
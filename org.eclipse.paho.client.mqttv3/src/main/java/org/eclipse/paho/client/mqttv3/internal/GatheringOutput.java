@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream that can write several buffers in one call, after any
+ * bytes it already holds, so that a large payload need not be copied into
+ * a stream buffer to follow its header.
+ */
+public interface GatheringOutput {
+
+	/**
+	 * Writes what the stream holds, then the remaining bytes of each buffer
+	 * in turn, and returns once all of them have been written.
+	 * @param buffers the buffers to write
+	 * @throws IOException if the write fails
+	 */
+	void write(ByteBuffer[] buffers) throws IOException;
+}
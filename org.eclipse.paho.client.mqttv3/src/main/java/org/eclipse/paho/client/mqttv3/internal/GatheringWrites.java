@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes to a channel that hand it at most {@link #MAX_HEAP_BYTES} bytes of
+ * heap buffers at a time.
+ * <p>
+ * A socket channel copies the bytes of a heap buffer into a temporary direct
+ * buffer as large as the bytes it is given, and the JDK keeps that buffer
+ * cached on the writing thread. Writing a large payload straight from its
+ * array would leave as much native memory as the largest payload held by
+ * each sending thread or event loop. Writing it in slices keeps the
+ * temporary buffers small, at the cost of a system call for each slice,
+ * which is little next to copying the slice.
+ */
+final class GatheringWrites {
+	static final int MAX_HEAP_BYTES = 64 * 1024;
+
+	private GatheringWrites() {
+	}
+
+	/**
+	 * Writes from the buffers in turn, stopping after {@link #MAX_HEAP_BYTES}
+	 * bytes of heap buffers.
+	 * @param channel the channel to write to
+	 * @param buffers the buffers to write from
+	 * @return the number of bytes written, possibly zero
+	 * @throws IOException if the write fails
+	 */
+	static long write(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+		int heap = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = buffers[i];
+			if (buffer.isDirect()) {
+				continue;
+			}
+			if (buffer.remaining() > MAX_HEAP_BYTES - heap) {
+				// Leave out the rest of this buffer and those after it
+				int limit = buffer.limit();
+				buffer.limit(buffer.position() + MAX_HEAP_BYTES - heap);
+				try {
+					return channel.write(buffers, 0, i + 1);
+				} finally {
+					buffer.limit(limit);
+				}
+			}
+			heap += buffer.remaining();
+		}
+		return channel.write(buffers);
+	}
+
+	/**
+	 * Writes from the buffer, at most {@link #MAX_HEAP_BYTES} bytes if it is
+	 * a heap buffer.
+	 * @param channel the channel to write to
+	 * @param buffer the buffer to write from
+	 * @return the number of bytes written, possibly zero
+	 * @throws IOException if the write fails
+	 */
+	static int write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		if (buffer.isDirect() || buffer.remaining() <= MAX_HEAP_BYTES) {
+			return channel.write(buffer);
+		}
+		int limit = buffer.limit();
+		buffer.limit(buffer.position() + MAX_HEAP_BYTES);
+		try {
+			return channel.write(buffer);
+		} finally {
+			buffer.limit(limit);
+		}
+	}
+}
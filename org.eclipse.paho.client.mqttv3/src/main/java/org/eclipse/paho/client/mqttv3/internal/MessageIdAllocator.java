@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * Hands out MQTT message IDs and takes them back, tracking the IDs in use
+ * in a set of 65536 bits.
+ * <p>
+ * IDs are handed out in increasing order from a rotating cursor, wrapping
+ * back to {@link #MIN_MSG_ID} after {@link #MAX_MSG_ID}, so a released ID
+ * is not reused again straight away. The search for a free ID looks at 64
+ * IDs at a time. Bits are set and cleared with compare-and-set, so
+ * {@link #allocate()} and {@link #release(int)} may be called from any
+ * thread without a lock.
+ */
+class MessageIdAllocator {
+	static final int MIN_MSG_ID = 1;		// Lowest possible MQTT message ID to use
+	static final int MAX_MSG_ID = 65535;	// Highest possible MQTT message ID to use
+
+	private static final int WORDS = (MAX_MSG_ID + 1) >>> 6;
+
+	private final AtomicLongArray inUse = new AtomicLongArray(WORDS);
+	// Where the search for the next free ID starts. Races between callers
+	// only move the starting point, the bit set itself stays exact.
+	private volatile int cursor = MIN_MSG_ID;
+
+	MessageIdAllocator() {
+		clear();
+	}
+
+	/**
+	 * Gets the next message ID that is not already in use, and marks it as
+	 * now being in use.
+	 * @return the message ID
+	 * @throws MqttException if all message IDs are in use
+	 */
+	int allocate() throws MqttException {
+		// Allow two complete passes of the message ID range. This gives
+		// any concurrent releases a chance to occur
+		for (int pass = 0; pass < 2; pass++) {
+			int start = cursor;
+			int word = start >>> 6;
+			// Ignore the IDs before the cursor in its own word until the
+			// search has come all the way round
+			long mask = -1L << (start & 63);
+			for (int i = 0; i <= WORDS; i++) {
+				long bits = inUse.get(word);
+				long free = ~bits & mask;
+				while (free != 0) {
+					long bit = free & -free;
+					if (inUse.compareAndSet(word, bits, bits | bit)) {
+						int msgId = (word << 6) + Long.numberOfTrailingZeros(bit);
+						cursor = msgId == MAX_MSG_ID ? MIN_MSG_ID : msgId + 1;
+						return msgId;
+					}
+					// Another thread changed the word, look at it again
+					bits = inUse.get(word);
+					free = ~bits & mask;
+				}
+				mask = -1L;
+				word = (word + 1) % WORDS;
+			}
+		}
+		throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+	}
+
+	/**
+	 * Marks a message ID as in use, for messages restored from persistence.
+	 * @param msgId the message ID
+	 */
+	void markInUse(int msgId) {
+		int word = msgId >>> 6;
+		long bit = 1L << (msgId & 63);
+		long bits;
+		do {
+			bits = inUse.get(word);
+		} while ((bits & bit) == 0 && !inUse.compareAndSet(word, bits, bits | bit));
+	}
+
+	/**
+	 * Releases a message ID back into the pool of available message IDs.
+	 * If the supplied message ID is not in use, then nothing will happen.
+	 * @param msgId the message ID
+	 */
+	void release(int msgId) {
+		if (msgId < MIN_MSG_ID || msgId > MAX_MSG_ID) {
+			return;
+		}
+		int word = msgId >>> 6;
+		long bit = 1L << (msgId & 63);
+		long bits;
+		do {
+			bits = inUse.get(word);
+		} while ((bits & bit) != 0 && !inUse.compareAndSet(word, bits, bits & ~bit));
+	}
+
+	/**
+	 * @param msgId the message ID
+	 * @return true if the message ID is in use
+	 */
+	boolean isInUse(int msgId) {
+		return (inUse.get(msgId >>> 6) & (1L << (msgId & 63))) != 0;
+	}
+
+	/**
+	 * Sets the ID after which the search for a free ID starts.
+	 * @param msgId the last message ID known to have been used
+	 */
+	void setLastMessageId(int msgId) {
+		cursor = msgId >= MAX_MSG_ID ? MIN_MSG_ID : msgId + 1;
+	}
+
+	/**
+	 * @return the ID the search for a free ID starts at
+	 */
+	int getNextMessageId() {
+		return cursor;
+	}
+
+	/**
+	 * Releases all message IDs.
+	 */
+	void clear() {
+		// Zero is never handed out, so its bit stays set. Setting the first
+		// word in one step means an allocate() racing with the clear never
+		// sees zero free.
+		inUse.set(0, 1L);
+		for (int i = 1; i < WORDS; i++) {
+			inUse.set(i, 0L);
+		}
+	}
+
+	/**
+	 * @return the number of message IDs in use
+	 */
+	int size() {
+		int size = 0;
+		for (int i = 0; i < WORDS; i++) {
+			size += Long.bitCount(inUse.get(i));
+		}
+		// Zero is never handed out
+		return size - 1;
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer("[");
+		for (int msgId = MIN_MSG_ID; msgId <= MAX_MSG_ID; msgId++) {
+			if (isInUse(msgId)) {
+				if (buffer.length() > 1) {
+					buffer.append(", ");
+				}
+				buffer.append(msgId);
+			}
+		}
+		return buffer.append(']').toString();
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.paho.client.mqttv3.MqttToken;
+
+/**
+ * A hash table of tokens keyed by message ID, using open addressing with
+ * linear probing over an int key array, so no keys are boxed.
+ * <p>
+ * {@link #get(int)} and {@link #remove(int)} take no lock: a lookup only
+ * reads the arrays and a removal clears the token slot with compare-and-set,
+ * leaving the key behind as a tombstone. {@link #put(int, MqttToken)} and
+ * {@link #clear()} are serialised on the table. A key keeps its slot once it
+ * has one, and tombstones are only dropped when a put rebuilds the table.
+ * Replacing the table marks every slot of the old one as moved, so a lock-free
+ * caller still using it notices and retries on the new table.
+ */
+class MessageIdTokenTable {
+	private static final int EMPTY = 0;				// Message ID 0 is never used
+	private static final int MIN_CAPACITY = 16;
+	// Marks the token slots of a table whose contents have been moved to a new one
+	private static final Object MOVED = new Object();
+
+	private volatile Table table = new Table(MIN_CAPACITY);
+	private final AtomicInteger size = new AtomicInteger();
+	private int usedSlots = 0;						// Keys in the table, guarded by this
+
+	private static final class Table {
+		final AtomicIntegerArray keys;
+		final AtomicReferenceArray<Object> tokens;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new AtomicIntegerArray(capacity);
+			tokens = new AtomicReferenceArray<Object>(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private static int indexFor(int msgId, int mask) {
+		// Message IDs are mostly sequential, spread them over the table
+		int h = msgId * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * @param msgId the message ID
+	 * @return the token for the message ID, or null if there is none
+	 */
+	MqttToken get(int msgId) {
+		Table t = table;
+		for (int i = indexFor(msgId, t.mask);; i = (i + 1) & t.mask) {
+			int key = t.keys.get(i);
+			if (key == EMPTY) {
+				return null;
+			}
+			if (key == msgId) {
+				Object token = t.tokens.get(i);
+				if (token == MOVED) {
+					synchronized (this) {
+						return get(msgId);
+					}
+				}
+				return (MqttToken) token;
+			}
+		}
+	}
+
+	/**
+	 * @param msgId the message ID
+	 * @return the token that was removed, or null if there was none
+	 */
+	MqttToken remove(int msgId) {
+		Table t = table;
+		for (int i = indexFor(msgId, t.mask);; i = (i + 1) & t.mask) {
+			int key = t.keys.get(i);
+			if (key == EMPTY) {
+				return null;
+			}
+			if (key == msgId) {
+				Object token;
+				do {
+					token = t.tokens.get(i);
+					if (token == MOVED) {
+						// The table is being rebuilt, wait for the new one
+						synchronized (this) {
+							return remove(msgId);
+						}
+					}
+					if (token == null) {
+						return null;
+					}
+				} while (!t.tokens.compareAndSet(i, token, null));
+				size.decrementAndGet();
+				return (MqttToken) token;
+			}
+		}
+	}
+
+	/**
+	 * Stores a token, replacing any token already stored for the message ID.
+	 * @param msgId the message ID, not 0
+	 * @param token the token
+	 */
+	synchronized void put(int msgId, MqttToken token) {
+		Table t = table;
+		int i = indexFor(msgId, t.mask);
+		for (;; i = (i + 1) & t.mask) {
+			int key = t.keys.get(i);
+			if (key == msgId) {
+				if (t.tokens.getAndSet(i, token) == null) {
+					size.incrementAndGet();
+				}
+				return;
+			}
+			if (key == EMPTY) {
+				break;
+			}
+		}
+		if ((usedSlots + 1) * 4 > t.mask * 3) {
+			// Too full of tokens and tombstones, rebuild and probe again
+			t = rebuild(t);
+			for (i = indexFor(msgId, t.mask); t.keys.get(i) != EMPTY; i = (i + 1) & t.mask) {
+			}
+		}
+		// Publish the token before the key, readers treat a null token as absent
+		t.tokens.set(i, token);
+		t.keys.set(i, msgId);
+		usedSlots++;
+		size.incrementAndGet();
+	}
+
+	private Table rebuild(Table old) {
+		int live = size.get() + 1;
+		int capacity = MIN_CAPACITY;
+		while (capacity < live * 2) {
+			capacity <<= 1;
+		}
+		Table t = new Table(capacity);
+		int used = 0;
+		for (int i = 0; i <= old.mask; i++) {
+			int key = old.keys.get(i);
+			if (key != EMPTY) {
+				Object token = old.tokens.getAndSet(i, MOVED);
+				if (token != null) {
+					int j = indexFor(key, t.mask);
+					while (t.keys.get(j) != EMPTY) {
+						j = (j + 1) & t.mask;
+					}
+					t.tokens.set(j, token);
+					t.keys.set(j, key);
+					used++;
+				}
+			}
+		}
+		usedSlots = used;
+		table = t;
+		return t;
+	}
+
+	/**
+	 * Removes all tokens.
+	 */
+	synchronized void clear() {
+		Table old = table;
+		int removed = 0;
+		for (int i = 0; i <= old.mask; i++) {
+			if (old.keys.get(i) != EMPTY && old.tokens.getAndSet(i, MOVED) != null) {
+				removed++;
+			}
+		}
+		table = new Table(MIN_CAPACITY);
+		usedSlots = 0;
+		size.addAndGet(-removed);
+	}
+
+	/**
+	 * @return the number of tokens stored
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Adds the stored tokens to a list.
+	 * @param list the list to add to
+	 */
+	void addTokensTo(Vector<MqttToken> list) {
+		int start = list.size();
+		Table t = table;
+		for (int i = 0; i <= t.mask; i++) {
+			Object token = t.tokens.get(i);
+			if (token == MOVED) {
+				// The table has been replaced, start again with the new one
+				synchronized (this) {
+					list.setSize(start);
+					addTokensTo(list);
+					return;
+				}
+			}
+			if (token != null) {
+				list.addElement((MqttToken) token);
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded multi-producer, single-consumer FIFO queue.
+ * <p>
+ * {@link #offer(Object)} may be called from any number of threads and never
+ * blocks or retries: producers swap themselves in as the new tail with a
+ * single atomic exchange and then link the previous tail to their node.
+ * {@link #poll()}, {@link #peek()} and {@link #clear()} are consumer
+ * operations and must only be called by one thread at a time.
+ * {@link #isEmpty()} may be called from any thread.
+ * <p>
+ * A producer that has swapped the tail but not yet linked its node leaves
+ * the queue looking empty to the consumer for that short moment. Producers
+ * are expected to wake the consumer after an offer, so the element is
+ * picked up on the next pass.
+ */
+class MpscLinkedQueue<E> {
+	private final AtomicReference<Node<E>> tail;
+	// The consumer's stub node; the first element is in head.next
+	private volatile Node<E> head;
+
+	MpscLinkedQueue() {
+		Node<E> stub = new Node<E>(null);
+		head = stub;
+		tail = new AtomicReference<Node<E>>(stub);
+	}
+
+	/**
+	 * Adds an element at the tail of the queue.
+	 * @param element the element to add, not null
+	 */
+	void offer(E element) {
+		Node<E> node = new Node<E>(element);
+		Node<E> previous = tail.getAndSet(node);
+		previous.next = node;
+	}
+
+	/**
+	 * Removes the element at the head of the queue. Consumer only.
+	 * @return the element, or null if the queue is empty
+	 */
+	E poll() {
+		Node<E> next = head.next;
+		if (next == null) {
+			return null;
+		}
+		E element = next.element;
+		next.element = null;
+		head = next;
+		return element;
+	}
+
+	/**
+	 * Consumer only.
+	 * @return the element at the head of the queue, or null if the queue is empty
+	 */
+	E peek() {
+		Node<E> next = head.next;
+		return next == null ? null : next.element;
+	}
+
+	boolean isEmpty() {
+		return head.next == null;
+	}
+
+	/**
+	 * Counts the elements by walking the queue. The count is only exact
+	 * while no other thread uses the queue; it is meant for tracing.
+	 * @return the number of elements
+	 */
+	int size() {
+		int size = 0;
+		for (Node<E> node = head.next; node != null; node = node.next) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all elements. Consumer only.
+	 */
+	void clear() {
+		while (poll() != null) {
+		}
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer("[");
+		for (Node<E> node = head.next; node != null; node = node.next) {
+			if (buffer.length() > 1) {
+				buffer.append(", ");
+			}
+			buffer.append(node.element);
+		}
+		return buffer.append(']').toString();
+	}
+
+	private static final class Node<E> {
+		volatile E element;
+		volatile Node<E> next;
+
+		Node(E element) {
+			this.element = element;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * A network module for connecting over TCP using a {@link SocketChannel}.
+ * <p>
+ * Unlike the {@link TCPNetworkModule} no socket read timeout is used: the
+ * receiver blocks on the channel until data arrives or the channel is
+ * closed by {@link #stop()}. Reads and writes go through direct buffers,
+ * so whole bursts of packets are moved with a single system call.
+ * <p>
+ * When the connect options carry an event loop group the channel is
+ * served by one of its loops instead of by receiver and sender threads.
+ */
+public class NIONetworkModule implements SelectableNetworkModule {
+	private static final String CLASS_NAME = NIONetworkModule.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT,CLASS_NAME);
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	protected SocketChannel channel;
+	private InputStream inputStream;
+	private OutputStream outputStream;
+	private String host;
+	private int port;
+	private int conTimeout;
+
+	/**
+	 * Constructs a new NIONetworkModule using the specified host and
+	 * port.
+	 * @param host The server hostname
+	 * @param port The server port
+	 * @param resourceContext The Resource Context
+	 */
+	public NIONetworkModule(String host, int port, String resourceContext) {
+		log.setResourceName(resourceContext);
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Starts the module, by opening a socket channel to the server.
+	 * @throws IOException if there is an error opening the channel
+	 * @throws MqttException if there is an error connecting to the server
+	 */
+	public void start() throws IOException, MqttException {
+		final String methodName = "start";
+		try {
+			// @TRACE 252=connect to host {0} port {1} timeout {2}
+			log.fine(CLASS_NAME,methodName, "252", new Object[] {host, Integer.valueOf(port), Long.valueOf(conTimeout*1000)});
+			SocketAddress sockaddr = new InetSocketAddress(host, port);
+			channel = SocketChannel.open();
+			try {
+				// The socket adaptor honours the connect timeout on a blocking channel
+				channel.socket().connect(sockaddr, conTimeout*1000);
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+			inputStream = null;
+			outputStream = null;
+		}
+		catch (ConnectException ex) {
+			//@TRACE 250=Failed to create TCP socket
+			log.fine(CLASS_NAME,methodName,"250",null,ex);
+			throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, ex);
+		}
+	}
+
+	public SocketChannel getSocketChannel() {
+		return channel;
+	}
+
+	public SSLEngineChannel getSSLEngineChannel() {
+		return null;
+	}
+
+	/**
+	 * @return the channel that the streams read from and write to
+	 */
+	protected ByteChannel getByteChannel() {
+		return channel;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		if (inputStream == null) {
+			inputStream = new ChannelInputStream(getByteChannel(), BUFFER_SIZE);
+		}
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new ChannelOutputStream(getByteChannel(), BUFFER_SIZE);
+		}
+		return outputStream;
+	}
+
+	/**
+	 * Stops the module, by closing the socket channel. Any thread blocked
+	 * reading from or writing to the channel is released.
+	 * @throws IOException if there is an error closing the channel
+	 */
+	public void stop() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Set the maximum time to wait for a socket to be established
+	 * @param timeout  The connection timeout
+	 */
+	public void setConnectTimeout(int timeout) {
+		this.conTimeout = timeout;
+	}
+
+	public String getServerURI() {
+		return "tcp+nio://" + host + ":" + port;
+	}
+}
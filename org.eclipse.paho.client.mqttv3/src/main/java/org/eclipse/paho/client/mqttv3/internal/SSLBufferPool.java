@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers for TLS records, shared by all connections.
+ * <p>
+ * A connection takes a buffer only while it holds bytes that it has not
+ * yet passed on, and hands it back once it is empty, so an idle connection
+ * holds none. Up to a fixed number of buffers are kept for reuse.
+ */
+class SSLBufferPool {
+	// Enough for a burst on a few dozen connections at once
+	private static final int MAX_POOLED = 64;
+
+	static final SSLBufferPool INSTANCE = new SSLBufferPool(MAX_POOLED);
+
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * @param maxPooled the most buffers to keep for reuse
+	 */
+	SSLBufferPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if the pool has none
+	 * large enough.
+	 * @param capacity the least capacity the buffer must have
+	 * @return a cleared buffer
+	 */
+	ByteBuffer acquire(int capacity) {
+		ByteBuffer buffer;
+		while ((buffer = buffers.poll()) != null) {
+			pooled.decrementAndGet();
+			if (buffer.capacity() >= capacity) {
+				buffer.clear();
+				return buffer;
+			}
+			// Smaller than the sessions now need, so it is let go
+		}
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Hands a buffer back to the pool. The buffer must no longer be used.
+	 * @param buffer the buffer
+	 */
+	void release(ByteBuffer buffer) {
+		if (pooled.incrementAndGet() <= maxPooled) {
+			buffers.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * A byte channel that carries bytes over a {@link SocketChannel} using TLS,
+ * with an {@link SSLEngine} doing the encryption.
+ * <p>
+ * It works on a blocking socket channel, for the receiver and sender
+ * threads, and on a non-blocking one, for an event loop. On a non-blocking
+ * channel a read returns 0 once no complete record is available, and a
+ * write returns 0 while encrypted bytes from an earlier call are still
+ * waiting to go out; {@link #flush()} sends them once the socket is
+ * writable again. Each write encrypts all of the bytes it is given, in
+ * records of up to the TLS maximum, so a flush of a batch of packets is
+ * encrypted as a few large records rather than one record per packet.
+ * <p>
+ * A read and a write may run at the same time on different threads. The
+ * buffers for encrypted and decrypted bytes are taken from the
+ * {@link SSLBufferPool} only while they hold bytes that have not been
+ * passed on.
+ */
+class SSLEngineChannel implements ByteChannel, GatheringByteChannel {
+	private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final SSLBufferPool pool;
+
+	// Guards netIn, appIn and underflow. Taken before writeLock when both are needed.
+	private final ReentrantLock readLock = new ReentrantLock();
+	// Guards netOut and single
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// Encrypted bytes read from the socket and not yet decrypted, ready to be filled
+	private ByteBuffer netIn;
+	// Whether netIn holds only part of a record
+	private boolean underflow;
+	// Decrypted bytes not yet read, ready to be drained
+	private ByteBuffer appIn;
+	// Encrypted bytes not yet written to the socket, ready to be drained
+	private ByteBuffer netOut;
+	private final ByteBuffer[] single = new ByteBuffer[1];
+
+	/**
+	 * @param channel the connected socket channel
+	 * @param engine the engine, set up for client mode
+	 * @param pool the pool to take buffers from
+	 */
+	SSLEngineChannel(SocketChannel channel, SSLEngine engine, SSLBufferPool pool) {
+		this.channel = channel;
+		this.engine = engine;
+		this.pool = pool;
+	}
+
+	SSLEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Performs the TLS handshake. The channel must be in blocking mode,
+	 * which it is again on return.
+	 * @param timeout the most time the handshake may take, in milliseconds,
+	 * or 0 to wait as long as it takes
+	 * @throws IOException if the handshake fails or times out
+	 */
+	void handshake(int timeout) throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		Selector selector = Selector.open();
+		readLock.lock();
+		try {
+			channel.configureBlocking(false);
+			SelectionKey key = channel.register(selector, 0);
+			engine.beginHandshake();
+			while (true) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if (!flush()) {
+					await(selector, key, SelectionKey.OP_WRITE, timeout, deadline);
+				} else if (status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+				} else if (status == HandshakeStatus.NEED_WRAP) {
+					wrapHandshake();
+				} else if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
+					break;
+				} else if (netIn != null && !underflow) {
+					if (unwrap(null) == Status.CLOSED) {
+						throw new EOFException();
+					}
+				} else {
+					int count = readNet();
+					if (count < 0) {
+						throw new EOFException();
+					}
+					if (count == 0) {
+						await(selector, key, SelectionKey.OP_READ, timeout, deadline);
+					}
+				}
+			}
+		} finally {
+			readLock.unlock();
+			// Closing the selector deregisters the channel
+			selector.close();
+			channel.configureBlocking(true);
+		}
+	}
+
+	private static void await(Selector selector, SelectionKey key, int ops, int timeout, long deadline)
+			throws IOException {
+		long wait = 0;
+		if (timeout > 0) {
+			wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (wait <= 0) {
+				throw new SocketTimeoutException("TLS handshake timed out");
+			}
+		}
+		key.interestOps(ops);
+		selector.select(wait);
+		selector.selectedKeys().clear();
+		key.interestOps(0);
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		readLock.lock();
+		try {
+			while (true) {
+				if (appIn != null) {
+					int count = Math.min(appIn.remaining(), dst.remaining());
+					int limit = appIn.limit();
+					appIn.limit(appIn.position() + count);
+					dst.put(appIn);
+					appIn.limit(limit);
+					if (!appIn.hasRemaining()) {
+						pool.release(appIn);
+						appIn = null;
+					}
+					return count;
+				}
+				if (netIn != null && !underflow) {
+					int start = dst.position();
+					if (unwrap(dst) == Status.CLOSED) {
+						return -1;
+					}
+					if (dst.position() > start) {
+						return dst.position() - start;
+					}
+				} else {
+					int count = readNet();
+					if (count <= 0) {
+						return count;
+					}
+				}
+			}
+		} catch (IOException ex) {
+			if (!channel.isOpen()) {
+				// Closed during the read, when close() could not release them
+				releaseReadBuffers();
+			}
+			throw ex;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if a read would return bytes without reading from the
+	 * socket
+	 */
+	boolean hasBufferedInput() {
+		readLock.lock();
+		try {
+			return appIn != null || (netIn != null && !underflow);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		writeLock.lock();
+		try {
+			single[0] = src;
+			return (int) write(single, 0, 1);
+		} finally {
+			single[0] = null;
+			writeLock.unlock();
+		}
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		writeLock.lock();
+		try {
+			long consumed = 0;
+			while (flushOutput() && hasRemaining(srcs, offset, length)) {
+				SSLEngineResult result = wrap(srcs, offset, length);
+				if (result.getStatus() == Status.CLOSED) {
+					throw new ClosedChannelException();
+				}
+				consumed += result.bytesConsumed();
+				if (result.bytesConsumed() == 0 && netOut == null) {
+					// The engine is waiting for the server, as in a renegotiation
+					break;
+				}
+			}
+			return consumed;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the encrypted bytes left over from earlier calls.
+	 * @return true if none are left
+	 * @throws IOException if the write fails
+	 */
+	boolean flush() throws IOException {
+		writeLock.lock();
+		try {
+			return flushOutput();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Sends a close_notify, unless another thread is in the middle of a
+	 * write, and closes the socket channel.
+	 */
+	public void close() throws IOException {
+		if (writeLock.tryLock()) {
+			try {
+				engine.closeOutbound();
+				if (flushOutput()) {
+					wrap(NO_BUFFERS, 0, 0);
+					flushOutput();
+				}
+			} catch (IOException ex) {
+				// The connection may already be gone
+			} finally {
+				if (netOut != null) {
+					pool.release(netOut);
+					netOut = null;
+				}
+				writeLock.unlock();
+			}
+		}
+		channel.close();
+		if (readLock.tryLock()) {
+			try {
+				releaseReadBuffers();
+			} finally {
+				readLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Hands netIn and appIn back to the pool. Must be called with the
+	 * readLock held.
+	 */
+	private void releaseReadBuffers() {
+		if (netIn != null) {
+			pool.release(netIn);
+			netIn = null;
+		}
+		if (appIn != null) {
+			pool.release(appIn);
+			appIn = null;
+		}
+	}
+
+	/**
+	 * Reads from the socket into netIn. Must be called with the readLock held.
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 */
+	private int readNet() throws IOException {
+		int size = engine.getSession().getPacketBufferSize();
+		if (netIn == null) {
+			netIn = pool.acquire(size);
+		} else if (!netIn.hasRemaining()) {
+			// A record larger than the buffer
+			ByteBuffer larger = pool.acquire(Math.max(size, netIn.capacity() * 2));
+			netIn.flip();
+			larger.put(netIn);
+			pool.release(netIn);
+			netIn = larger;
+		}
+		int count = channel.read(netIn);
+		if (count > 0) {
+			underflow = false;
+		} else if (netIn.position() == 0) {
+			pool.release(netIn);
+			netIn = null;
+		}
+		return count;
+	}
+
+	/**
+	 * Decrypts the next record in netIn into dst, or into appIn if dst is
+	 * null or too small. Must be called with the readLock held.
+	 * @return the status of the engine
+	 */
+	private Status unwrap(ByteBuffer dst) throws IOException {
+		SSLEngineResult result = null;
+		netIn.flip();
+		try {
+			if (dst != null) {
+				result = engine.unwrap(netIn, dst);
+			}
+			if (result == null || result.getStatus() == Status.BUFFER_OVERFLOW) {
+				int size = engine.getSession().getApplicationBufferSize();
+				ByteBuffer unread = appIn;
+				appIn = pool.acquire(size + (unread != null ? unread.remaining() : 0));
+				if (unread != null) {
+					// Decrypted bytes not yet read stay in front
+					appIn.put(unread);
+					pool.release(unread);
+				}
+				result = engine.unwrap(netIn, appIn);
+				appIn.flip();
+				if (!appIn.hasRemaining()) {
+					pool.release(appIn);
+					appIn = null;
+				}
+			}
+		} finally {
+			netIn.compact();
+		}
+		if (netIn.position() == 0) {
+			pool.release(netIn);
+			netIn = null;
+			underflow = false;
+		} else if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+			underflow = true;
+		}
+		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+			runTasks();
+		}
+		if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+			// Such as the reply to a key update
+			wrapHandshake();
+		}
+		return result.getStatus();
+	}
+
+	/**
+	 * Encrypts a handshake message and writes it to the socket, or leaves
+	 * it for {@link #flush()} if the socket is not writable.
+	 */
+	private void wrapHandshake() throws IOException {
+		writeLock.lock();
+		try {
+			wrap(NO_BUFFERS, 0, 0);
+			flushOutput();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Encrypts bytes into netOut, after those still waiting in it. Must be
+	 * called with the writeLock held.
+	 * @return the result of the engine
+	 */
+	private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		int size = engine.getSession().getPacketBufferSize();
+		if (netOut == null) {
+			netOut = pool.acquire(size);
+		} else {
+			netOut.compact();
+		}
+		SSLEngineResult result;
+		try {
+			while ((result = engine.wrap(srcs, offset, length, netOut)).getStatus() == Status.BUFFER_OVERFLOW) {
+				ByteBuffer larger = pool.acquire(netOut.position() + size);
+				netOut.flip();
+				larger.put(netOut);
+				pool.release(netOut);
+				netOut = larger;
+			}
+		} finally {
+			netOut.flip();
+		}
+		if (!netOut.hasRemaining()) {
+			pool.release(netOut);
+			netOut = null;
+		}
+		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+			runTasks();
+		}
+		return result;
+	}
+
+	/**
+	 * Writes netOut to the socket. Must be called with the writeLock held.
+	 * @return true if it has all been written
+	 */
+	private boolean flushOutput() throws IOException {
+		if (netOut == null) {
+			return true;
+		}
+		while (netOut.hasRemaining()) {
+			if (channel.write(netOut) == 0) {
+				return false;
+			}
+		}
+		pool.release(netOut);
+		netOut = null;
+		return true;
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * A network module for connecting over SSL using a
+ * {@link java.nio.channels.SocketChannel} and an {@link SSLEngine}.
+ * <p>
+ * The handshake is done on the connecting thread, as is the TCP connect.
+ * After that the connection can be served by an event loop like a
+ * <code>tcp+nio://</code> one, so that many secure connections share a
+ * few threads. Records are encrypted and decrypted in buffers from a pool
+ * shared by all connections.
+ */
+public class SSLNIONetworkModule extends NIONetworkModule {
+	private static final String CLASS_NAME = SSLNIONetworkModule.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private final SSLContext sslContext;
+	private String[] enabledCiphers;
+	private int handshakeTimeoutSecs;
+	private HostnameVerifier hostnameVerifier;
+	private boolean httpsHostnameVerificationEnabled = false;
+	private SSLEngineChannel sslChannel;
+
+	private String host;
+	private int port;
+
+	/**
+	 * Constructs a new SSLNIONetworkModule using the specified host and
+	 * port. The supplied SSLContext is used to create the SSLEngine.
+	 *
+	 * @param sslContext
+	 *            the {@link SSLContext} to be used in this SSLNIONetworkModule
+	 * @param host
+	 *            the Hostname of the Server
+	 * @param port
+	 *            the Port of the Server
+	 * @param resourceContext
+	 *            Resource Context
+	 */
+	public SSLNIONetworkModule(SSLContext sslContext, String host, int port, String resourceContext) {
+		super(host, port, resourceContext);
+		this.sslContext = sslContext;
+		this.host = host;
+		this.port = port;
+		log.setResourceName(resourceContext);
+	}
+
+	/**
+	 * Returns the enabled cipher suites.
+	 *
+	 * @return a string array of enabled Cipher suites
+	 */
+	public String[] getEnabledCiphers() {
+		return enabledCiphers;
+	}
+
+	/**
+	 * Sets the cipher suites to enable on the SSLEngine.
+	 *
+	 * @param enabledCiphers
+	 *            a String array of cipher suites to enable
+	 */
+	public void setEnabledCiphers(String[] enabledCiphers) {
+		if (enabledCiphers != null) {
+			this.enabledCiphers = enabledCiphers.clone();
+		}
+	}
+
+	public void setSSLhandshakeTimeout(int timeout) {
+		super.setConnectTimeout(timeout);
+		this.handshakeTimeoutSecs = timeout;
+	}
+
+	public HostnameVerifier getSSLHostnameVerifier() {
+		return hostnameVerifier;
+	}
+
+	public void setSSLHostnameVerifier(HostnameVerifier hostnameVerifier) {
+		this.hostnameVerifier = hostnameVerifier;
+	}
+
+	public boolean isHttpsHostnameVerificationEnabled() {
+		return httpsHostnameVerificationEnabled;
+	}
+
+	public void setHttpsHostnameVerificationEnabled(boolean httpsHostnameVerificationEnabled) {
+		this.httpsHostnameVerificationEnabled = httpsHostnameVerificationEnabled;
+	}
+
+	public void start() throws IOException, MqttException {
+		final String methodName = "start";
+		super.start();
+		SSLEngine engine = sslContext.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		if (enabledCiphers != null) {
+			if (log.isLoggable(Logger.FINE)) {
+				String ciphers = "";
+				for (int i = 0; i < enabledCiphers.length; i++) {
+					if (i > 0) {
+						ciphers += ",";
+					}
+					ciphers += enabledCiphers[i];
+				}
+				// @TRACE 260=setEnabledCiphers ciphers={0}
+				log.fine(CLASS_NAME, methodName, "260", new Object[] { ciphers });
+			}
+			engine.setEnabledCipherSuites(enabledCiphers);
+		}
+
+		// SNI support.  Should be automatic under some circumstances - not all, apparently
+		SSLParameters sslParameters = engine.getSSLParameters();
+		try {
+			List<SNIServerName> sniHostNames = new ArrayList<SNIServerName>(1);
+			sniHostNames.add(new SNIHostName(host));
+			sslParameters.setServerNames(sniHostNames);
+		} catch(NoClassDefFoundError e) {
+			// Android < 7.0
+		}
+
+		// If default Hostname verification is enabled, use the same method that is used with HTTPS
+		if(this.httpsHostnameVerificationEnabled) {
+			try {
+				sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+			} catch(NoSuchMethodError e) {
+				// Android < 7.0
+			}
+		}
+		engine.setSSLParameters(sslParameters);
+
+		sslChannel = new SSLEngineChannel(channel, engine, SSLBufferPool.INSTANCE);
+		long handshakeStart = System.currentTimeMillis();
+		sslChannel.handshake(this.handshakeTimeoutSecs * 1000);
+		SSLSession session = engine.getSession();
+		boolean resumed = SSLSocketFactoryFactory.recordHandshake(session, handshakeStart);
+		// @TRACE 261=handshake complete protocol={0} cipherSuite={1} resumed={2}
+		log.fine(CLASS_NAME, methodName, "261", new Object[] { session.getProtocol(), session.getCipherSuite(), Boolean.valueOf(resumed) });
+		if (hostnameVerifier != null && !this.httpsHostnameVerificationEnabled) {
+			if(!hostnameVerifier.verify(host, session)) {
+				session.invalidate();
+				sslChannel.close();
+				throw new SSLPeerUnverifiedException("Host: " + host + ", Peer Host: " + session.getPeerHost());
+			}
+		}
+	}
+
+	public SSLEngineChannel getSSLEngineChannel() {
+		return sslChannel;
+	}
+
+	protected ByteChannel getByteChannel() {
+		return sslChannel;
+	}
+
+	/**
+	 * Stops the module, by sending a close_notify to the server and
+	 * closing the socket channel.
+	 * @throws IOException if there is an error closing the channel
+	 */
+	public void stop() throws IOException {
+		if (sslChannel != null) {
+			sslChannel.close();
+		} else {
+			super.stop();
+		}
+	}
+
+	public String getServerURI() {
+		return "ssl+nio://" + host + ":" + port;
+	}
+}
@@ -31,6 +31,7 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
 
@@ -129,6 +130,7 @@ public class SSLNetworkModule extends TCPNetworkModule {
 	}
 
 	public void start() throws IOException, MqttException {
+		final String methodName = "start";
 		super.start();
 		setEnabledCiphers(enabledCiphers);
 		int soTimeout = socket.getSoTimeout();
@@ -155,9 +157,13 @@ public class SSLNetworkModule extends TCPNetworkModule {
 		}
 		((SSLSocket)socket).setSSLParameters(sslParameters);
 
+		long handshakeStart = System.currentTimeMillis();
 		((SSLSocket) socket).startHandshake();
+		SSLSession session = ((SSLSocket) socket).getSession();
+		boolean resumed = SSLSocketFactoryFactory.recordHandshake(session, handshakeStart);
+		// @TRACE 261=handshake complete protocol={0} cipherSuite={1} resumed={2}
+		log.fine(CLASS_NAME, methodName, "261", new Object[] { session.getProtocol(), session.getCipherSuite(), Boolean.valueOf(resumed) });
 		if (hostnameVerifier != null && !this.httpsHostnameVerificationEnabled) {
-			SSLSession session = ((SSLSocket) socket).getSession();
 			if(!hostnameVerifier.verify(host, session)) {
 				session.invalidate();
 				socket.close();
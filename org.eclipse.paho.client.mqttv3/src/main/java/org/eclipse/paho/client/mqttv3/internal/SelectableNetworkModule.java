@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * A network module whose connection can be served by a
+ * {@link CommsEventLoop} instead of receiver and sender threads.
+ */
+public interface SelectableNetworkModule extends NetworkModule {
+
+	/**
+	 * @return the connected channel of a started module
+	 */
+	SocketChannel getSocketChannel();
+
+	/**
+	 * @return the channel that encrypts the connection of a started module,
+	 * or null if packets are read from and written to the socket channel as
+	 * they are
+	 */
+	SSLEngineChannel getSSLEngineChannel();
+}
@@ -44,6 +44,7 @@ public class Token {
 	private String[] topics = null;
 	
 	private String key;
+	private int keyId = 0;
 	
 	private IMqttAsyncClient client = null;
 	private IMqttActionListener callback = null;
@@ -268,8 +269,11 @@ public class Token {
 		//@TRACE 403=> key={0}
 		log.fine(CLASS_NAME, methodName, "403",new Object[]{getKey()});
 		synchronized (responseLock) {
-			this.response = null;
-			this.completed = false;
+			// The response can be processed before the message is notified
+			// as sent when sends are batched, and must not be lost.
+			if (!pendingComplete && !completed) {
+				this.response = null;
+			}
 		}
 		synchronized (sentLock) {
 			sent = true;
@@ -333,9 +337,25 @@ public class Token {
 
 	public void setKey(String key) {
 		this.key = key;
+		this.keyId = 0;
+	}
+
+	/**
+	 * Sets the key to a message ID. The string form of the key is only
+	 * built if {@link #getKey()} is called.
+	 * @param msgId the message ID
+	 */
+	public void setKey(int msgId) {
+		this.key = null;
+		this.keyId = msgId;
 	}
 
 	public String getKey() {
+		String key = this.key;
+		if (key == null && keyId != 0) {
+			key = Integer.toString(keyId);
+			this.key = key;
+		}
 		return key;
 	}
 
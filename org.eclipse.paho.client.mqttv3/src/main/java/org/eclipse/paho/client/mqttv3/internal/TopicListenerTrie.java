@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Maps topic filters to message listeners, organised as a tree with one
+ * level per topic level. The single level wildcard '+' and the multi level
+ * wildcard '#' have their own nodes, so all the listeners for a topic are
+ * found in one walk down its levels, visiting only the branches that can
+ * match.
+ * <p>
+ * Filters are validated when the subscription is made, before they are
+ * added, so matching a topic does no validation. Adding and removing
+ * filters is serialised on the trie, while looking up the listeners for a
+ * topic takes no lock.
+ */
+class TopicListenerTrie {
+	private final Node root = new Node();
+
+	private static final class Node {
+		volatile IMqttMessageListener listener;
+		volatile ConcurrentHashMap<String, Node> children;
+		volatile Node singleLevel;		// '+'
+		volatile Node multiLevel;		// '#'
+
+		boolean isEmpty() {
+			ConcurrentHashMap<String, Node> c = children;
+			return listener == null && (c == null || c.isEmpty()) && singleLevel == null && multiLevel == null;
+		}
+	}
+
+	/**
+	 * Adds a listener for a topic filter, replacing any listener the filter
+	 * already has.
+	 * @param topicFilter a valid topic filter, which may contain wildcards
+	 * @param listener the listener
+	 */
+	synchronized void put(String topicFilter, IMqttMessageListener listener) {
+		Node node = root;
+		int start = 0;
+		while (start >= 0) {
+			int end = topicFilter.indexOf(MqttTopic.TOPIC_LEVEL_SEPARATOR, start);
+			String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+			node = child(node, level);
+			start = end < 0 ? -1 : end + 1;
+		}
+		node.listener = listener;
+	}
+
+	private static Node child(Node node, String level) {
+		Node child;
+		if (level.equals(MqttTopic.SINGLE_LEVEL_WILDCARD)) {
+			child = node.singleLevel;
+			if (child == null) {
+				child = new Node();
+				node.singleLevel = child;
+			}
+		} else if (level.equals(MqttTopic.MULTI_LEVEL_WILDCARD)) {
+			child = node.multiLevel;
+			if (child == null) {
+				child = new Node();
+				node.multiLevel = child;
+			}
+		} else {
+			ConcurrentHashMap<String, Node> children = node.children;
+			if (children == null) {
+				children = new ConcurrentHashMap<String, Node>();
+				node.children = children;
+			}
+			child = children.get(level);
+			if (child == null) {
+				child = new Node();
+				children.put(level, child);
+			}
+		}
+		return child;
+	}
+
+	/**
+	 * Removes the listener for a topic filter. Nothing happens if the
+	 * filter has no listener.
+	 * @param topicFilter the topic filter
+	 */
+	synchronized void remove(String topicFilter) {
+		remove(root, topicFilter, 0);
+	}
+
+	private static void remove(Node node, String topicFilter, int start) {
+		if (start < 0) {
+			node.listener = null;
+			return;
+		}
+		int end = topicFilter.indexOf(MqttTopic.TOPIC_LEVEL_SEPARATOR, start);
+		String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+		int next = end < 0 ? -1 : end + 1;
+		if (level.equals(MqttTopic.SINGLE_LEVEL_WILDCARD)) {
+			if (node.singleLevel != null) {
+				remove(node.singleLevel, topicFilter, next);
+				if (node.singleLevel.isEmpty()) {
+					node.singleLevel = null;
+				}
+			}
+		} else if (level.equals(MqttTopic.MULTI_LEVEL_WILDCARD)) {
+			if (node.multiLevel != null) {
+				remove(node.multiLevel, topicFilter, next);
+				if (node.multiLevel.isEmpty()) {
+					node.multiLevel = null;
+				}
+			}
+		} else if (node.children != null) {
+			Node child = node.children.get(level);
+			if (child != null) {
+				remove(child, topicFilter, next);
+				if (child.isEmpty()) {
+					node.children.remove(level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all listeners.
+	 */
+	synchronized void clear() {
+		root.listener = null;
+		root.children = null;
+		root.singleLevel = null;
+		root.multiLevel = null;
+	}
+
+	/**
+	 * @return true if there are no listeners
+	 */
+	boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	/**
+	 * Finds the listeners of all the topic filters matching a topic.
+	 * As required by the MQTT specification, filters starting with a
+	 * wildcard do not match topics starting with '$'.
+	 * @param topicName the topic name, without wildcards
+	 * @return the matching listeners, an empty list if there are none
+	 */
+	List<IMqttMessageListener> match(String topicName) {
+		List<IMqttMessageListener> listeners = new ArrayList<IMqttMessageListener>(2);
+		Node node = root;
+		if (topicName.length() > 0 && topicName.charAt(0) == '$') {
+			// Skip the wildcards at the first level
+			ConcurrentHashMap<String, Node> children = node.children;
+			int end = topicName.indexOf(MqttTopic.TOPIC_LEVEL_SEPARATOR);
+			node = children == null ? null : children.get(end < 0 ? topicName : topicName.substring(0, end));
+			if (node != null) {
+				match(node, topicName, end < 0 ? -1 : end + 1, listeners);
+			}
+		} else {
+			match(node, topicName, 0, listeners);
+		}
+		return listeners;
+	}
+
+	/**
+	 * @param start the start of the next topic level to match, or -1 if
+	 * all the levels have been matched
+	 */
+	private static void match(Node node, String topicName, int start, List<IMqttMessageListener> listeners) {
+		// '#' also matches the parent level, so "sport/#" matches "sport"
+		Node multiLevel = node.multiLevel;
+		if (multiLevel != null) {
+			IMqttMessageListener listener = multiLevel.listener;
+			if (listener != null) {
+				listeners.add(listener);
+			}
+		}
+		if (start < 0) {
+			IMqttMessageListener listener = node.listener;
+			if (listener != null) {
+				listeners.add(listener);
+			}
+			return;
+		}
+		int end = topicName.indexOf(MqttTopic.TOPIC_LEVEL_SEPARATOR, start);
+		int next = end < 0 ? -1 : end + 1;
+		ConcurrentHashMap<String, Node> children = node.children;
+		if (children != null) {
+			Node child = children.get(end < 0 ? topicName.substring(start) : topicName.substring(start, end));
+			if (child != null) {
+				match(child, topicName, next, listeners);
+			}
+		}
+		Node singleLevel = node.singleLevel;
+		if (singleLevel != null) {
+			match(singleLevel, topicName, next, listeners);
+		}
+	}
+}
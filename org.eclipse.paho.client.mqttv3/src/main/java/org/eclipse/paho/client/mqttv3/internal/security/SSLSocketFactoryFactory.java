@@ -15,27 +15,37 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.security;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -100,6 +110,14 @@ import org.eclipse.paho.client.mqttv3.logging.Logger;
  * </ol>
  * </li>
  * </ul>
+ * <p>
+ * SSL contexts are shared by every SSLSocketFactoryFactory in the JVM. A
+ * context is made once for each distinct configuration (the resolved
+ * protocol, provider, key- and truststore settings, and the modification
+ * times of the store files) and handed out again for the same
+ * configuration, so that connections from different clients share its
+ * session cache and can resume a session rather than repeat the full
+ * handshake.
  */
 public class SSLSocketFactoryFactory {
 	private static final String CLASS_NAME = "org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory";
@@ -152,6 +170,31 @@ public class SSLSocketFactoryFactory {
 	
 	private Logger logger = null;
 
+	// SSL contexts keyed by the configuration they were made from, see getContextKey
+	private static final ConcurrentHashMap<List<Object>, SharedContext> sharedContexts = new ConcurrentHashMap<List<Object>, SharedContext>();
+
+	// Salts the password digests in getContextStamp
+	private static final byte[] passwordSalt = new byte[16];
+
+	static {
+		new SecureRandom().nextBytes(passwordSalt);
+	}
+
+	/**
+	 * A shared SSL context, with the stamp of the stores it was made from.
+	 */
+	private static final class SharedContext {
+		final List<Object> stamp;
+		final SSLContext context;
+
+		SharedContext(List<Object> stamp, SSLContext context) {
+			this.stamp = stamp;
+			this.context = context;
+		}
+	}
+
+	private static final AtomicLong sessionsResumed = new AtomicLong();
+	private static final AtomicLong sessionsCreated = new AtomicLong();
 
 	/**
 	 * Not all of the JVM/Platforms support all of its
@@ -1310,6 +1353,145 @@ public class SSLSocketFactoryFactory {
 		return ctx;
 	}
 
+	/**
+	 * Returns the shared SSL context for the given configuration, making it
+	 * if there is none yet.
+	 * 
+	 * @param configID
+	 *            The configuration ID
+	 * @return An SSL context shared by all connections with the same configuration.
+	 * @throws MqttSecurityException if the context could not be made
+	 */
+	private SSLContext getSharedSSLContext(String configID)
+			throws MqttSecurityException {
+		final String METHOD_NAME = "getSharedSSLContext";
+		List<Object> contextKey = getContextKey(configID);
+		List<Object> stamp = getContextStamp(configID);
+		SharedContext shared = sharedContexts.get(contextKey);
+		if (shared != null && shared.stamp.equals(stamp)) {
+			if (logger != null) {
+				// 12021 "SSL initialization: configID = {0}, reusing shared SSL context"
+				logger.fine(CLASS_NAME, METHOD_NAME, "12021", new Object[]{configID!=null ? configID : "null (broker defaults)"});
+			}
+			return shared.context;
+		}
+		// A store replaced on disk, or a new password, replaces the old context
+		SharedContext made = new SharedContext(stamp, getSSLContext(configID));
+		boolean stored = shared == null ? sharedContexts.putIfAbsent(contextKey, made) == null
+				: sharedContexts.replace(contextKey, shared, made);
+		if (!stored) {
+			// Another thread made one at the same time
+			SharedContext current = sharedContexts.get(contextKey);
+			if (current != null && current.stamp.equals(stamp)) {
+				return current.context;
+			}
+		}
+		return made.context;
+	}
+
+	/**
+	 * Resolves the configuration that getSSLContext makes a context from,
+	 * apart from what {@link #getContextStamp(String)} covers. There is at
+	 * most one shared context for each key.
+	 */
+	private List<Object> getContextKey(String configID) {
+		return Arrays.<Object>asList(getSSLProtocol(configID), getJSSEProvider(configID),
+				getProperty(configID, KEYSTORE, SYSKEYSTORE), getKeyStoreType(configID),
+				getKeyStoreProvider(configID), getKeyManager(configID),
+				getTrustStore(configID), getTrustStoreType(configID),
+				getTrustStoreProvider(configID), getTrustManager(configID));
+	}
+
+	/**
+	 * Resolves the store files' modification times and passwords, so that a
+	 * store replaced on disk is loaded into a new context. The passwords are
+	 * kept only as salted digests.
+	 */
+	private List<Object> getContextStamp(String configID) {
+		String keyStoreName = getProperty(configID, KEYSTORE, SYSKEYSTORE);
+		String trustStoreName = getTrustStore(configID);
+		return Arrays.<Object>asList(
+				keyStoreName != null ? Long.valueOf(new File(keyStoreName).lastModified()) : null,
+				digestPassword(getKeyStorePassword(configID)),
+				trustStoreName != null ? Long.valueOf(new File(trustStoreName).lastModified()) : null,
+				digestPassword(getTrustStorePassword(configID)));
+	}
+
+	/**
+	 * Digests a password with the salt, and clears the password.
+	 * 
+	 * @param password
+	 *            The password, or null
+	 * @return The digest, or null if there is no password
+	 */
+	private static String digestPassword(char[] password) {
+		if (password == null) {
+			return null;
+		}
+		ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(passwordSalt);
+			digest.update(bytes);
+			return SimpleBase64Encoder.encode(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		} finally {
+			Arrays.fill(password, '\0');
+			Arrays.fill(bytes.array(), (byte) 0);
+		}
+	}
+
+	/**
+	 * Discards the shared SSL contexts, so that the next connection for
+	 * each configuration makes a new context and does a full handshake.
+	 * Existing connections are not affected.
+	 */
+	public static void clearSharedContexts() {
+		sharedContexts.clear();
+	}
+
+	/**
+	 * Counts a completed client handshake as a resumed session or a new
+	 * one. A resumed session was created before the handshake started.
+	 * 
+	 * @param session
+	 *            The session negotiated by the handshake
+	 * @param handshakeStart
+	 *            The time the handshake started, in milliseconds since the epoch
+	 * @return whether the session was resumed
+	 */
+	public static boolean recordHandshake(SSLSession session, long handshakeStart) {
+		boolean resumed = session.getCreationTime() < handshakeStart;
+		if (resumed) {
+			sessionsResumed.incrementAndGet();
+		} else {
+			sessionsCreated.incrementAndGet();
+		}
+		return resumed;
+	}
+
+	/**
+	 * Returns the number of client handshakes that resumed an earlier
+	 * session, since the JVM started.
+	 * 
+	 * @return the number of resumed sessions
+	 */
+	public static long getSessionResumptionCount() {
+		return sessionsResumed.get();
+	}
+
+	/**
+	 * Returns the number of client handshakes that could not resume an
+	 * earlier session and did a full handshake, since the JVM started.
+	 * 
+	 * @return the number of full handshakes
+	 */
+	public static long getFullHandshakeCount() {
+		return sessionsCreated.get();
+	}
+
 //	/**
 //	 * Returns an SSL server socket factory for the given configuration. If no
 //	 * SSLProtocol is already set, uses DEFAULT_PROTOCOL. Throws
@@ -1355,7 +1537,7 @@ public class SSLSocketFactoryFactory {
 	public SSLSocketFactory createSocketFactory(String configID) 
 			throws MqttSecurityException {
 		final String METHOD_NAME = "createSocketFactory";
-		SSLContext ctx = getSSLContext(configID);
+		SSLContext ctx = getSharedSSLContext(configID);
 		if (logger != null) {
 			// 12020 "SSL initialization: configID = {0}, application-enabled cipher suites = {1}"
 			logger.fine(CLASS_NAME, METHOD_NAME, "12020", new Object[]{configID!=null ? configID : "null (broker defaults)", 
@@ -1365,4 +1547,20 @@ public class SSLSocketFactoryFactory {
 		return ctx.getSocketFactory();
 	}
 
+	/**
+	 * Returns an SSL context for the given configuration, for connections
+	 * that use an <code>SSLEngine</code> rather than a socket. If no
+	 * SSLProtocol is already set, uses DEFAULT_PROTOCOL.
+	 * 
+	 * @see org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory#DEFAULT_PROTOCOL
+	 * @param configID
+	 *            The configuration identifier for selecting a configuration.
+	 * @return An SSLContext
+	 * @throws MqttSecurityException if an error occurs whilst creating the {@link SSLContext}
+	 */
+	public SSLContext createSSLContext(String configID)
+			throws MqttSecurityException {
+		return getSharedSSLContext(configID);
+	}
+
 }
@@ -19,7 +19,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 
@@ -39,8 +38,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	private String host;
 	private int port;
 	private Map<String, String> customWebsocketHeaders;
-	private PipedInputStream pipedInputStream;
-	private WebSocketReceiver webSocketReceiver;
+	private WebSocketInputStream webSocketInputStream;
 	private final boolean skipPortDuringHandshake;
 	ByteBuffer recievedPayload;
 	
@@ -57,7 +55,6 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		this.host = host;
 		this.port = port;
 		this.customWebsocketHeaders = customWebsocketHeaders;
-		this.pipedInputStream = new PipedInputStream();
 		this.skipPortDuringHandshake = skipPortDuringHandshake;
 		log.setResourceName(resourceContext);
 	}
@@ -66,8 +63,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		super.start();
 		WebSocketHandshake handshake = new WebSocketHandshake(getSocketInputStream(), getSocketOutputStream(), uri, host, port, customWebsocketHeaders, skipPortDuringHandshake);
 		handshake.execute();
-		this.webSocketReceiver = new WebSocketReceiver(getSocketInputStream(), pipedInputStream);
-		webSocketReceiver.start("webSocketReceiver");
+		this.webSocketInputStream = new WebSocketInputStream(getSocketInputStream());
 	}
 	
 	OutputStream getSocketOutputStream() throws IOException {
@@ -79,7 +75,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	}
 	
 	public InputStream getInputStream() throws IOException {
-		return pipedInputStream;
+		return webSocketInputStream;
 	}
 	
 	public OutputStream getOutputStream() throws IOException {
@@ -96,9 +92,6 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		getSocketOutputStream().write(rawFrame);
 		getSocketOutputStream().flush();
 
-		if(webSocketReceiver != null){
-			webSocketReceiver.stop();
-		}
 		super.stop();
 	}
 	
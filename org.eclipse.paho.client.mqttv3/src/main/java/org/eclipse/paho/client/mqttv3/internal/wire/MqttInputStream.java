@@ -15,12 +15,12 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.internal.ClientState;
@@ -32,6 +32,16 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
 /**
  * An <code>MqttInputStream</code> lets applications read instances of
  * <code>MqttWireMessage</code>. 
+ * <p>
+ * Each packet is read once into an array holding the bytes after the
+ * remaining length, and decoded in place. The payload of a PUBLISH packet
+ * is left in that array, see {@link MqttPublish#MqttPublish(byte, byte[])}.
+ * <p>
+ * A PUBLISH packet large enough for its payload to be streamed, see
+ * {@link ClientState#isPayloadStreamed(int)}, is returned as soon as its
+ * variable header has been read. Its payload is read through
+ * {@link MqttPublish#getPayloadStream()}, and whatever is left of it is
+ * skipped before the next packet is read.
  */
 public class MqttInputStream extends InputStream {
 	private final String CLASS_NAME = MqttInputStream.class.getName();
@@ -39,15 +49,16 @@ public class MqttInputStream extends InputStream {
 
 	private ClientState clientState = null;
 	private DataInputStream in;	
-	private ByteArrayOutputStream bais;
+	private byte first;
 	private int remLen;
 	private int packetLen;
 	private byte[] packet;
+	private boolean streamed;
+	private PayloadInputStream payload;
 
 	public MqttInputStream(ClientState clientState, InputStream in) {
 		this.clientState = clientState;
 		this.in = new DataInputStream(in);		
-		this.bais = new ByteArrayOutputStream();
 		this.remLen = -1;
 	}
 	
@@ -77,6 +88,12 @@ public class MqttInputStream extends InputStream {
 		
 		MqttWireMessage message = null;
 		try {
+			if (payload != null) {
+				// Skip what the application left of the last streamed payload
+				payload.skipRemaining();
+				payload = null;
+			}
+
 			// read header
 			if (remLen < 0) {
 				// Assume we can read the whole header at once.
@@ -87,9 +104,7 @@ public class MqttInputStream extends InputStream {
 				// Should we lose synch with the stream,
 				// the keepalive mechanism would kick in
 				// closing the connection.
-				bais.reset();
-				
-				byte first = in.readByte();
+				first = in.readByte();
 				clientState.notifyReceivedBytes(1);
 
 				byte type = (byte) ((first >>> 4) & 0x0F);
@@ -99,10 +114,10 @@ public class MqttInputStream extends InputStream {
 					throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
 				}
 				remLen = MqttWireMessage.readMBI(in).getValue();
-				bais.write(first);
-				// bit silly, we decode it then encode it
-				bais.write(MqttWireMessage.encodeMBI(remLen));
-				packet = new byte[(int)(bais.size()+remLen)];
+				// A streamed payload is left on the stream, start with the topic length
+				streamed = type == MqttWireMessage.MESSAGE_TYPE_PUBLISH && remLen >= 2
+						&& clientState.isPayloadStreamed(remLen);
+				packet = new byte[streamed ? 2 : remLen];
 				packetLen = 0;
 			}
 			
@@ -110,15 +125,29 @@ public class MqttInputStream extends InputStream {
 			if (remLen >= 0) {
 				// the remaining packet can be read with timeouts
 				readFully();
+				if (streamed) {
+					int headerLength = 2 + ((packet[0] & 0xff) << 8 | (packet[1] & 0xff))
+							+ (((first >> 1) & 0x03) > 0 ? 2 : 0);
+					if (headerLength > remLen) {
+						throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_INVALID_MESSAGE);
+					}
+					if (packet.length < headerLength) {
+						packet = Arrays.copyOf(packet, headerLength);
+						readFully();
+					}
+					payload = new PayloadInputStream(remLen - headerLength);
+					message = new MqttPublish(first, packet, payload, remLen - headerLength);
+				} else {
+					message = MqttWireMessage.createWireMessage(first, packet);
+				}
 
 				// reset packet parsing state 
 				remLen = -1;
-				
-				byte[] header = bais.toByteArray();
-				System.arraycopy(header,0,packet,0, header.length);
-				message = MqttWireMessage.createWireMessage(packet);
-				// @TRACE 301= received {0} 
-				log.fine(CLASS_NAME, methodName, "301",new Object[] {message});
+				packet = null;
+				if (log.isLoggable(Logger.FINE)) {
+					// @TRACE 301= received {0} 
+					log.fine(CLASS_NAME, methodName, "301",new Object[] {message});
+				}
 			}
 		} catch (SocketTimeoutException e) {
 			// ignore socket read timeout
@@ -127,28 +156,81 @@ public class MqttInputStream extends InputStream {
 		return message;
 	}
 	
-    private void readFully() throws IOException {
-    	int off = bais.size() + (int) packetLen;
-    	int len = (int) (remLen - packetLen);
-    	if (len < 0)
-    		throw new IndexOutOfBoundsException();
-    	int n = 0;
-    	while (n < len) {
-    		int count = -1;
-    		try {
-    			count = in.read(packet, off + n, len - n);
-    		} catch (SocketTimeoutException e) {
-    			// remember the packet read so far 
-    			packetLen += n;
-    			throw e;
-    		}
-    		
-
-    		if (count < 0) {
-    			throw new EOFException();
-    		}
-    		clientState.notifyReceivedBytes(count);
-    		n += count;
-    	}
-    }
+	/**
+	 * Reads the rest of the packet array. On a socket timeout the bytes read
+	 * so far are kept, and the next call carries on from there.
+	 */
+	private void readFully() throws IOException {
+		while (packetLen < packet.length) {
+			int count = in.read(packet, packetLen, packet.length - packetLen);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			clientState.notifyReceivedBytes(count);
+			packetLen += count;
+		}
+	}
+
+	/**
+	 * The payload of a streamed PUBLISH packet, read straight off the
+	 * network. Reads wait out socket timeouts. Closing the stream does not
+	 * close the connection.
+	 */
+	private class PayloadInputStream extends InputStream {
+		private int remaining;
+
+		PayloadInputStream(int length) {
+			this.remaining = length;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			while (true) {
+				try {
+					int count = in.read(b, off, Math.min(len, remaining));
+					if (count < 0) {
+						throw new EOFException();
+					}
+					clientState.notifyReceivedBytes(count);
+					remaining -= count;
+					return count;
+				} catch (SocketTimeoutException e) {
+					// keep waiting, the keepalive closes a stalled connection
+				}
+			}
+		}
+
+		public int available() throws IOException {
+			return Math.min(in.available(), remaining);
+		}
+
+		/**
+		 * Skips the rest of the payload. A socket timeout is passed on, and
+		 * the next call carries on from there.
+		 */
+		void skipRemaining() throws IOException {
+			byte[] discard = new byte[(int) Math.min(remaining, 8192)];
+			while (remaining > 0) {
+				int count = in.read(discard, 0, Math.min(discard.length, remaining));
+				if (count < 0) {
+					throw new EOFException();
+				}
+				clientState.notifyReceivedBytes(count);
+				remaining -= count;
+			}
+		}
+
+		public void close() {
+		}
+	}
 }
@@ -15,12 +15,16 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttStreamingMessage;
 import org.eclipse.paho.client.mqttv3.internal.ClientState;
+import org.eclipse.paho.client.mqttv3.internal.GatheringOutput;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
 import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
 
@@ -28,39 +32,131 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
 /**
  * An <code>MqttOutputStream</code> lets applications write instances of
  * <code>MqttWireMessage</code>. 
+ * <p>
+ * Bytes are gathered in a send buffer that is reused for the life of the
+ * stream. PUBLISH packets and the acknowledgements carrying only a message ID
+ * are encoded straight into it, so sending them allocates nothing. Other
+ * packets are encoded by the message and copied in. Payloads too large for
+ * the buffer are written directly to the underlying stream, in the same
+ * write as the buffered bytes before them when the stream is a
+ * {@link GatheringOutput}. Streamed payloads are read into the buffer piece
+ * by piece as it is written out.
  */
 public class MqttOutputStream extends OutputStream {
 	private static final String CLASS_NAME = MqttOutputStream.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	private static final int BUFFER_SIZE = 8192;
+	private static final int CHUNK_SIZE = 1024;
+
 	private ClientState clientState = null;
-	private BufferedOutputStream out;
+	private OutputStream out;
+	private ByteBuffer buffer;
+	private int unflushed = 0;		// Bytes of messages written since the last flush
 	
 	public MqttOutputStream(ClientState clientState, OutputStream out) {
 		this.clientState = clientState;
-		this.out = new BufferedOutputStream(out);
+		this.out = out;
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
 	}
 	
 	public void close() throws IOException {
-		out.close();
+		try {
+			flushBuffer();
+		} finally {
+			out.close();
+		}
 	}
 	
 	public void flush() throws IOException {
+		flushBuffer();
 		out.flush();
+		unflushed = 0;
+	}
+
+	/**
+	 * @return the number of bytes of messages written since the stream was
+	 * last flushed, whether they are still in the send buffer or not
+	 */
+	public int getUnflushedBytes() {
+		return unflushed;
+	}
+
+	private void sent(int count) {
+		unflushed += count;
+		clientState.notifySentBytes(count);
+	}
+
+	private void flushBuffer() throws IOException {
+		if (buffer.position() > 0) {
+			out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Makes room for a number of bytes in the send buffer, growing it if
+	 * they would not fit in an empty one.
+	 */
+	private void reserve(int length) throws IOException {
+		if (buffer.remaining() < length) {
+			flushBuffer();
+			if (buffer.capacity() < length) {
+				buffer = ByteBuffer.allocate(length);
+			}
+		}
 	}
 	
 	public void write(byte[] b) throws IOException {
-		out.write(b);
-		clientState.notifySentBytes(b.length);
+		write(b, 0, b.length);
 	}
 	
 	public void write(byte[] b, int off, int len) throws IOException {
-		out.write(b, off, len);
-		clientState.notifySentBytes(len);
+		writeBytes(b, off, len);
+		sent(len);
 	}
 	
 	public void write(int b) throws IOException {
-		out.write(b);
+		reserve(1);
+		buffer.put((byte) b);
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		if (buffer.remaining() < len) {
+			flushBuffer();
+			if (buffer.capacity() < len) {
+				out.write(b, off, len);
+				return;
+			}
+		}
+		buffer.put(b, off, len);
+	}
+
+	/**
+	 * Reads the payload of a streamed message through the send buffer.
+	 */
+	private void writeStream(MqttStreamingMessage message) throws IOException {
+		ReadableByteChannel source = message.openPayload();
+		int remaining = message.getPayloadLength();
+		while (remaining > 0) {
+			if (!buffer.hasRemaining()) {
+				flushBuffer();
+			}
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + Math.min(buffer.remaining(), remaining));
+			int count;
+			try {
+				count = source.read(buffer);
+			} finally {
+				buffer.limit(limit);
+			}
+			if (count < 0) {
+				// The header promised more bytes than the source has
+				throw new EOFException();
+			}
+			remaining -= count;
+			sent(count);
+		}
 	}
 
 	/**
@@ -71,24 +167,65 @@ public class MqttOutputStream extends OutputStream {
 	 */
 	public void write(MqttWireMessage message) throws IOException, MqttException {
 		final String methodName = "write";
-		byte[] bytes = message.getHeader();
-		byte[] pl = message.getPayload();
-//		out.write(message.getHeader());
-//		out.write(message.getPayload());
-		out.write(bytes,0,bytes.length);
-		clientState.notifySentBytes(bytes.length);
-		
-        int offset = 0;
-        int chunckSize = 1024;
-        while (offset < pl.length) {
-        	int length = Math.min(chunckSize, pl.length - offset);
-        	out.write(pl, offset, length);
-        	offset += chunckSize;
-        	clientState.notifySentBytes(length);
-        }		
-		
-		// @TRACE 529= sent {0}
-    	log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
+		byte[] pl;
+		switch (message.getType()) {
+		case MqttWireMessage.MESSAGE_TYPE_PUBLISH:
+			MqttPublish publish = (MqttPublish) message;
+			int headerLength = publish.getEncodedHeaderLength();
+			reserve(headerLength);
+			publish.encodeHeader(buffer);
+			sent(headerLength);
+			if (publish.getMessage() instanceof MqttStreamingMessage) {
+				writeStream((MqttStreamingMessage) publish.getMessage());
+				pl = null;
+			} else {
+				pl = publish.getPayload();
+			}
+			break;
+		case MqttWireMessage.MESSAGE_TYPE_PUBACK:
+		case MqttWireMessage.MESSAGE_TYPE_PUBREC:
+		case MqttWireMessage.MESSAGE_TYPE_PUBREL:
+		case MqttWireMessage.MESSAGE_TYPE_PUBCOMP:
+			// The variable header is the message ID, and there is no payload
+			reserve(MqttWireMessage.MESSAGE_ID_ONLY_LENGTH);
+			message.encodeMessageIdOnly(buffer);
+			sent(MqttWireMessage.MESSAGE_ID_ONLY_LENGTH);
+			pl = null;
+			break;
+		default:
+			byte[] bytes = message.getHeader();
+			pl = message.getPayload();
+			write(bytes, 0, bytes.length);
+		}
+
+		if (pl != null) {
+			if (pl.length <= buffer.capacity()) {
+				writeBytes(pl, 0, pl.length);
+				sent(pl.length);
+			} else if (out instanceof GatheringOutput) {
+				buffer.flip();
+				try {
+					((GatheringOutput) out).write(new ByteBuffer[] { buffer, ByteBuffer.wrap(pl) });
+				} finally {
+					buffer.clear();
+				}
+				sent(pl.length);
+			} else {
+				flushBuffer();
+				// Report progress as a large payload is written
+				int offset = 0;
+				while (offset < pl.length) {
+					int length = Math.min(CHUNK_SIZE, pl.length - offset);
+					out.write(pl, offset, length);
+					offset += length;
+					sent(length);
+				}
+			}
+		}
+
+		if (log.isLoggable(Logger.FINE)) {
+			// @TRACE 529= sent {0}
+			log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
+		}
 	}
 }
-
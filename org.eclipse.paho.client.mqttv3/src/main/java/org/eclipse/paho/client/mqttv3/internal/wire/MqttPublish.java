@@ -15,14 +15,16 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.wire;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttStreamingMessage;
 
 /**
  * An on-the-wire representation of an MQTT SEND message.
@@ -33,6 +35,10 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	private String topicName;
 	
 	private byte[] encodedPayload = null;
+	private int encodedTopicLength = -1;
+	// The payload of a received message still to be read off the network
+	private InputStream payloadStream = null;
+	private int payloadStreamLength = 0;
 	
 	public MqttPublish(String name, MqttMessage message) {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
@@ -49,33 +55,50 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	 */
 	public MqttPublish(byte info, byte[] data) throws MqttException, IOException  {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
-		message = new MqttReceivedMessage();
+		MqttReceivedMessage received = new MqttReceivedMessage();
+		message = received;
 		message.setQos((info >> 1) & 0x03);
 		if ((info & 0x01) == 0x01) {
 			message.setRetained(true);
 		}
 		if ((info & 0x08) == 0x08) {
-			((MqttReceivedMessage) message).setDuplicate(true);
+			received.setDuplicate(true);
 		}
 		
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		CountingInputStream counter = new CountingInputStream(bais);
-		DataInputStream dis = new DataInputStream(counter);
-		topicName = decodeUTF8(dis);
+		// Decode in place, the payload stays in data rather than being copied
+		topicName = decodeUTF8(data, 0);
+		int offset = 2 + ((data[0] & 0xff) << 8 | (data[1] & 0xff));
 		if (message.getQos() > 0) {
-			msgId = dis.readUnsignedShort();
+			if (offset + 2 > data.length) {
+				throw new EOFException();
+			}
+			msgId = (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+			offset += 2;
 		}
-		byte[] payload = new byte[data.length-counter.getCounter()];
-		dis.readFully(payload);
-		dis.close();
-		message.setPayload(payload);
+		received.setPayloadView(data, offset, data.length - offset);
+	}
+
+	/**
+	 * Constructs a received MqttPublish whose payload has not been read yet.
+	 * @param info the message info byte
+	 * @param header the variable header bytes
+	 * @param payload the stream the payload is to be read from
+	 * @param payloadLength the length of the payload
+	 * @throws MqttException if an exception occurs creating the publish
+	 * @throws IOException if an exception occurs creating the publish
+	 */
+	public MqttPublish(byte info, byte[] header, InputStream payload, int payloadLength) throws MqttException, IOException {
+		this(info, header);
+		this.payloadStream = payload;
+		this.payloadStreamLength = payloadLength;
 	}
 
 	public String toString() {
 
 		// Convert the first few bytes of the payload into a hex string
 		StringBuffer hex = new StringBuffer();
-		byte[] payload = message.getPayload();
+		// A streamed payload cannot be looked at without consuming it
+		byte[] payload = isPayloadStreamed() ? new byte[0] : message.getPayload();
 		int limit = Math.min(payload.length, 20);
 		for (int i = 0; i < limit; i++) {
 			byte b = payload[i];
@@ -107,7 +130,7 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		sb.append(" topic:\"").append(topicName).append("\"");
 		sb.append(" payload:[hex:").append(hex);
 		sb.append(" utf8:\"").append(string).append("\"");
-		sb.append(" length:").append(payload.length).append("]");
+		sb.append(" length:").append(getPayloadLength()).append("]");
 
 		return sb.toString();
 	}
@@ -144,12 +167,25 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	}
 
 	public int getPayloadLength() {
-		int length = 0;
-		try {
-			length = getPayload().length;
-		} catch(MqttException me) {
-		}
-		return length;
+		return payloadStream != null ? payloadStreamLength : message.getPayloadLength();
+	}
+
+	/**
+	 * Returns whether the payload is read from a stream rather than held in
+	 * memory: either the message is an {@link MqttStreamingMessage}, or it
+	 * was received and its payload is still to be read off the network.
+	 * @return true if the payload is streamed
+	 */
+	public boolean isPayloadStreamed() {
+		return payloadStream != null || message instanceof MqttStreamingMessage;
+	}
+
+	/**
+	 * @return the stream to read the payload of a received message from, or
+	 * null if the payload has been read with the rest of the packet
+	 */
+	public InputStream getPayloadStream() {
+		return payloadStream;
 	}
 	
 	public void setMessageId(int msgId) {
@@ -174,6 +210,42 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		}
 	}
 	
+	private int getVariableHeaderLength() {
+		if (encodedTopicLength < 0) {
+			encodedTopicLength = getUTF8Length(topicName);
+		}
+		return 2 + encodedTopicLength + (message.getQos() > 0 ? 2 : 0);
+	}
+
+	/**
+	 * Returns the length of the fixed and variable headers, as written by
+	 * {@link #encodeHeader(ByteBuffer)}. The topic name is validated the first
+	 * time this is called.
+	 * @return the header length in bytes
+	 * @throws MqttException if an exception occurs getting the payload
+	 */
+	public int getEncodedHeaderLength() throws MqttException {
+		int varHeaderLength = getVariableHeaderLength();
+		return 1 + getMBILength(varHeaderLength + getPayloadLength()) + varHeaderLength;
+	}
+
+	/**
+	 * Writes the fixed and variable headers into a buffer. This gives the same
+	 * bytes as {@link #getHeader()}, without allocating.
+	 * @param buffer the buffer to write to, with at least
+	 * {@link #getEncodedHeaderLength()} bytes remaining
+	 * @throws MqttException if an exception occurs getting the payload
+	 */
+	public void encodeHeader(ByteBuffer buffer) throws MqttException {
+		int varHeaderLength = getVariableHeaderLength();
+		buffer.put((byte) (((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f)));
+		encodeMBI(varHeaderLength + getPayloadLength(), buffer);
+		encodeUTF8(buffer, topicName, encodedTopicLength);
+		if (message.getQos() > 0) {
+			buffer.putShort((short) msgId);
+		}
+	}
+
 	public boolean isMessageIdRequired() {
 		// all publishes require a message ID as it's used as the key to the token store
 		return true;
@@ -32,4 +32,8 @@ public class MqttReceivedMessage extends MqttMessage {
 	public void setDuplicate(boolean value) {
 		super.setDuplicate(value);
 	}
+
+	public void setPayloadView(byte[] bytes, int offset, int length) {
+		super.setPayloadView(bytes, offset, length);
+	}
 }
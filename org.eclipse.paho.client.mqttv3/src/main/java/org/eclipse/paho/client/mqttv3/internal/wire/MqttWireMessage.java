@@ -19,9 +19,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -153,6 +155,34 @@ public abstract class MqttWireMessage {
 		}
 	}
 
+	/**
+	 * The encoded length of a packet that is only a message ID, see
+	 * {@link #isMessageIdOnly()}.
+	 */
+	public static final int MESSAGE_ID_ONLY_LENGTH = 4;
+
+	/**
+	 * Returns whether the packet is only a message ID, with no payload:
+	 * a PUBACK, PUBREC, PUBREL or PUBCOMP.
+	 * @return true if the packet can be encoded by {@link #encodeMessageIdOnly(ByteBuffer)}
+	 */
+	public boolean isMessageIdOnly() {
+		return type == MESSAGE_TYPE_PUBACK || type == MESSAGE_TYPE_PUBREC || type == MESSAGE_TYPE_PUBREL
+				|| type == MESSAGE_TYPE_PUBCOMP;
+	}
+
+	/**
+	 * Writes a packet that is only a message ID into a buffer. This gives the
+	 * same bytes as {@link #getHeader()}, without allocating.
+	 * @param buffer the buffer to write to, with at least
+	 * {@link #MESSAGE_ID_ONLY_LENGTH} bytes remaining
+	 */
+	public void encodeMessageIdOnly(ByteBuffer buffer) {
+		buffer.put((byte) (((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f)));
+		buffer.put((byte) 2);
+		buffer.putShort((short) getMessageId());
+	}
+
 	protected abstract byte[] getVariableHeader() throws MqttException;
 
 	/**
@@ -184,23 +214,40 @@ public abstract class MqttWireMessage {
 
 	private static MqttWireMessage createWireMessage(InputStream inputStream) throws MqttException {
 		try {
-			CountingInputStream counter = new CountingInputStream(inputStream);
-			DataInputStream in = new DataInputStream(counter);
+			DataInputStream in = new DataInputStream(inputStream);
 			int first = in.readUnsignedByte();
-			byte type = (byte) (first >> 4);
-			byte info = (byte) (first &= 0x0f);
 			long remLen = readMBI(in).getValue();
-			long totalToRead = counter.getCounter() + remLen;
-
-			MqttWireMessage result;
-			long remainder = totalToRead - counter.getCounter();
 			byte[] data = new byte[0];
-			// The remaining bytes must be the payload...
-			if (remainder > 0) {
-				data = new byte[(int) remainder];
+			// The remaining bytes must be the variable header and payload...
+			if (remLen > 0) {
+				data = new byte[(int) remLen];
 				in.readFully(data, 0, data.length);
 			}
+			return createWireMessage((byte) first, data);
+		} catch (IOException io) {
+			throw new MqttException(io);
+		}
+	}
 
+	/**
+	 * Creates a message from its first byte and the bytes following the
+	 * remaining length, decoding them in place. A PUBLISH message keeps a
+	 * view of its payload in the data rather than a copy, so the data must
+	 * not be changed afterwards.
+	 * 
+	 * @param first
+	 *            the first byte of the fixed header
+	 * @param data
+	 *            the variable header and payload
+	 * @return the message
+	 * @throws MqttException
+	 *             if the message is invalid
+	 */
+	public static MqttWireMessage createWireMessage(byte first, byte[] data) throws MqttException {
+		try {
+			byte type = (byte) ((first >>> 4) & 0x0f);
+			byte info = (byte) (first & 0x0f);
+			MqttWireMessage result;
 			if (type == MqttWireMessage.MESSAGE_TYPE_CONNECT) {
 				result = new MqttConnect(info, data);
 			} else if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
@@ -257,6 +304,46 @@ public abstract class MqttWireMessage {
 		return bos.toByteArray();
 	}
 
+	/**
+	 * Returns the number of bytes {@link #encodeMBI(long, ByteBuffer)} writes
+	 * for a number.
+	 * 
+	 * @param number
+	 *            the number to encode
+	 * @return the encoded length, 1 to 4 bytes
+	 */
+	public static int getMBILength(long number) {
+		validateVariableByteInt((int) number);
+		int numBytes = 1;
+		for (long no = number / 128; no > 0 && numBytes < 4; no /= 128) {
+			numBytes++;
+		}
+		return numBytes;
+	}
+
+	/**
+	 * Encodes an MQTT Multi-Byte Integer into a buffer, without allocating.
+	 * 
+	 * @param number
+	 *            the number to encode
+	 * @param buffer
+	 *            the buffer to write to
+	 */
+	public static void encodeMBI(long number, ByteBuffer buffer) {
+		validateVariableByteInt((int) number);
+		int numBytes = 0;
+		long no = number;
+		do {
+			byte digit = (byte) (no % 128);
+			no = no / 128;
+			if (no > 0) {
+				digit |= 0x80;
+			}
+			buffer.put(digit);
+			numBytes++;
+		} while ((no > 0) && (numBytes < 4));
+	}
+
 	/**
 	 * Decodes an MQTT Multi-Byte Integer from the given stream.
 	 * 
@@ -341,6 +428,74 @@ public abstract class MqttWireMessage {
 		}
 	}
 
+	/**
+	 * Validates a String for suitability for MQTT and returns the number of
+	 * bytes in its UTF-8 encoding, without encoding it.
+	 * 
+	 * @param string
+	 *            The String to be measured
+	 * @return the length of the UTF-8 encoding, not including the two byte
+	 *         length prefix
+	 * @throws IllegalArgumentException
+	 *             thrown if the String contains illegal characters or
+	 *             character sequences.
+	 */
+	public static int getUTF8Length(String string) throws IllegalArgumentException {
+		validateUTF8String(string);
+		int length = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				// A valid string has the low surrogate next, the pair takes four bytes
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encodes a String into UTF-8 in a buffer, preceded by its length in two
+	 * bytes, without allocating.
+	 * 
+	 * @param buffer
+	 *            The buffer to write the encoded String to.
+	 * @param string
+	 *            The String to be encoded, already validated
+	 * @param encodedLength
+	 *            The length of the encoding, from
+	 *            {@link #getUTF8Length(String)}
+	 */
+	public static void encodeUTF8(ByteBuffer buffer, String string, int encodedLength) {
+		buffer.put((byte) ((encodedLength >>> 8) & 0xFF));
+		buffer.put((byte) ((encodedLength >>> 0) & 0xFF));
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c)) {
+				int cp = Character.toCodePoint(c, string.charAt(++i));
+				buffer.put((byte) (0xf0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (cp & 0x3f)));
+			} else {
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
 	/**
 	 * Decodes a UTF-8 string from the DataInputStream
 	 * provided. @link(DataInoutStream#readUTF()) should be no longer used,
@@ -370,6 +525,31 @@ public abstract class MqttWireMessage {
 		}
 	}
 
+	/**
+	 * Decodes a UTF-8 string, preceded by its length in two bytes, in place
+	 * from a byte array.
+	 * 
+	 * @param data
+	 *            The array holding the encoded string
+	 * @param offset
+	 *            The offset of the length in the array
+	 * @return the decoded String
+	 * @throws MqttException
+	 *             thrown when the string runs past the end of the array
+	 */
+	public static String decodeUTF8(byte[] data, int offset) throws MqttException {
+		if (offset + 2 > data.length) {
+			throw new MqttException(new EOFException());
+		}
+		int encodedLength = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+		if (offset + 2 + encodedLength > data.length) {
+			throw new MqttException(new EOFException());
+		}
+		String output = new String(data, offset + 2, encodedLength, STRING_ENCODING);
+		validateUTF8String(output);
+		return output;
+	}
+
 	/**
 	 * Validate a UTF-8 String for suitability for MQTT.
 	 * 
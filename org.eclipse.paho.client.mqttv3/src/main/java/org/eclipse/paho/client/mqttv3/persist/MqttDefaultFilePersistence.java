@@ -20,10 +20,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttDeferredSyncPersistence;
 import org.eclipse.paho.client.mqttv3.MqttPersistable;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.internal.FileLock;
@@ -40,8 +47,34 @@ import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
  * 
  * The sub-directory's name is created from a concatenation of the client ID and connection key
  * with any instance of '/', '\\', ':' or ' ' removed.
+ * 
+ * How hard each message is pushed to disk is set with {@link #setDurability(int)}:
+ * <ul>
+ * <li>{@link #DURABILITY_SYNC}, the default, syncs each message to disk before
+ * {@link #put(String, MqttPersistable)} returns.</li>
+ * <li>{@link #DURABILITY_GROUP_COMMIT} returns from put straight after the write, and
+ * syncs messages in batches on a background thread, every few milliseconds or every few
+ * messages (see {@link #setGroupCommit(int, int)}). A message that is removed before its
+ * batch is synced, typically because the server acknowledged it quickly, is never synced
+ * at all. Messages written since the last batch may be lost if the machine fails, but
+ * the client does not acknowledge a received QoS 2 message until it has been synced,
+ * and drops the connection instead if the sync fails.</li>
+ * <li>{@link #DURABILITY_OS_BUFFERED} never syncs, leaving it to the operating system to
+ * write the files out. Messages survive the client process failing, but not the machine.</li>
+ * </ul>
  */
-public class MqttDefaultFilePersistence implements MqttClientPersistence {
+public class MqttDefaultFilePersistence implements MqttDeferredSyncPersistence {
+	/** Sync each message to disk as it is written. */
+	public static final int DURABILITY_SYNC = 0;
+	/** Sync messages to disk in batches, in the background. */
+	public static final int DURABILITY_GROUP_COMMIT = 1;
+	/** Leave the operating system to write messages to disk. */
+	public static final int DURABILITY_OS_BUFFERED = 2;
+	/** The default time, in milliseconds, between group commits. */
+	public static final int GROUP_COMMIT_INTERVAL_DEFAULT = 10;
+	/** The default number of messages that triggers a group commit early. */
+	public static final int GROUP_COMMIT_MESSAGES_DEFAULT = 100;
+
 	private static final String MESSAGE_FILE_EXTENSION = ".msg";
 	private static final String MESSAGE_BACKUP_FILE_EXTENSION = ".bup";
 	private static final String LOCK_FILENAME = ".lck"; 
@@ -49,6 +82,17 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 	private File dataDir;
 	private File clientDir = null;
 	private FileLock fileLock = null;
+
+	private volatile int durability = DURABILITY_SYNC;
+	private int groupCommitInterval = GROUP_COMMIT_INTERVAL_DEFAULT;
+	private int groupCommitMessages = GROUP_COMMIT_MESSAGES_DEFAULT;
+
+	// Group commit state, guarded by syncLock
+	private final Object syncLock = new Object();
+	private Map<String, UnsyncedFile> unsynced = new HashMap<String, UnsyncedFile>();
+	private Map<String, UnsyncedFile> syncing = null;
+	private List<SyncListener> waiting = new ArrayList<SyncListener>();
+	private Thread syncer = null;
 	
 	//TODO
 	private static FilenameFilter FILENAME_FILTER;
@@ -71,6 +115,63 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 	public MqttDefaultFilePersistence(String directory) { //throws MqttPersistenceException {
 		dataDir = new File(directory);
 	}
+
+	/**
+	 * Create an file-based persistent data store within the specified directory,
+	 * with the given durability.
+	 * @param directory the directory to use.
+	 * @param durability one of {@link #DURABILITY_SYNC}, {@link #DURABILITY_GROUP_COMMIT}
+	 * or {@link #DURABILITY_OS_BUFFERED}.
+	 * @throws IllegalArgumentException if the durability is not valid
+	 */
+	public MqttDefaultFilePersistence(String directory, int durability) {
+		this(directory);
+		setDurability(durability);
+	}
+
+	/**
+	 * Sets how hard messages are pushed to disk. This can be changed at any time, and
+	 * applies to the messages put from then on.
+	 * @param durability one of {@link #DURABILITY_SYNC}, {@link #DURABILITY_GROUP_COMMIT}
+	 * or {@link #DURABILITY_OS_BUFFERED}.
+	 * @throws IllegalArgumentException if the durability is not valid
+	 */
+	public void setDurability(int durability) {
+		if (durability < DURABILITY_SYNC || durability > DURABILITY_OS_BUFFERED) {
+			throw new IllegalArgumentException();
+		}
+		this.durability = durability;
+	}
+
+	/**
+	 * Returns how hard messages are pushed to disk.
+	 * @return the durability.
+	 */
+	public int getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets how often messages are synced with {@link #DURABILITY_GROUP_COMMIT}: after
+	 * the given time, or as soon as the given number of messages are waiting, whichever
+	 * comes first. A longer interval syncs fewer messages, as more of them are removed
+	 * before they are synced, but holds back acknowledgements of QoS 2 messages for longer.
+	 * @param intervalMillis the longest a message waits to be synced, in milliseconds.
+	 * The default is {@link #GROUP_COMMIT_INTERVAL_DEFAULT}.
+	 * @param maxMessages the number of waiting messages that triggers a sync.
+	 * The default is {@link #GROUP_COMMIT_MESSAGES_DEFAULT}.
+	 * @throws IllegalArgumentException if either value is less than 1
+	 */
+	public void setGroupCommit(int intervalMillis, int maxMessages) {
+		if (intervalMillis < 1 || maxMessages < 1) {
+			throw new IllegalArgumentException();
+		}
+		synchronized (syncLock) {
+			this.groupCommitInterval = intervalMillis;
+			this.groupCommitMessages = maxMessages;
+			syncLock.notifyAll();
+		}
+	}
 	
 	public void open(String clientId, String theConnection) throws MqttPersistenceException {
 		
@@ -142,6 +243,7 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 	}
 
 	public void close() throws MqttPersistenceException {
+		stopSyncer();
 		
 		synchronized (this) {
 			// checkIsOpen();
@@ -166,7 +268,10 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		checkIsOpen();
 		File file = new File(clientDir, key+MESSAGE_FILE_EXTENSION);
 		File backupFile = new File(clientDir, key+MESSAGE_FILE_EXTENSION+MESSAGE_BACKUP_FILE_EXTENSION);
+		int durability = this.durability;
 		
+		// An earlier write of the same key must reach the disk before it becomes the backup
+		syncNow(key);
 		if (file.exists()) {
 			// Backup the existing file so the overwrite can be rolled-back 
 			boolean result = file.renameTo(backupFile);
@@ -175,24 +280,33 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 				file.renameTo(backupFile);
 			}
 		}
+		boolean written = false;
 		try {
 			FileOutputStream fos = new FileOutputStream(file);
 			fos.write(message.getHeaderBytes(), message.getHeaderOffset(), message.getHeaderLength());
 			if (message.getPayloadBytes()!=null) {
 				fos.write(message.getPayloadBytes(), message.getPayloadOffset(), message.getPayloadLength());
 			}
-			fos.getFD().sync();
-			fos.close();
-			if (backupFile.exists()) {
-				// The write has completed successfully, delete the backup 
-				backupFile.delete();
+			if (durability == DURABILITY_GROUP_COMMIT) {
+				// Keep the file open, and the backup, until the file is synced
+				syncLater(key, new UnsyncedFile(fos, backupFile));
+			} else {
+				if (durability == DURABILITY_SYNC) {
+					syncFile(fos);
+				}
+				fos.close();
+				if (backupFile.exists()) {
+					// The write has completed successfully, delete the backup 
+					backupFile.delete();
+				}
 			}
+			written = true;
 		}
 		catch (IOException ex) {
 			throw new MqttPersistenceException(ex);
 		} 
 		finally {
-			if (backupFile.exists()) {
+			if (!written && backupFile.exists()) {
 				// The write has failed - restore the backup
 				boolean result = backupFile.renameTo(file);
 				if (!result) {
@@ -230,6 +344,16 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 	 */
 	public void remove(String key) throws MqttPersistenceException {
 		checkIsOpen();
+		UnsyncedFile write;
+		synchronized (syncLock) {
+			// Let a batch that has the file finish with it before it is deleted
+			awaitSyncing(key);
+			write = unsynced.remove(key);
+		}
+		if (write != null) {
+			// No need to sync a file that is about to be deleted
+			write.discard();
+		}
 		File file = new File(clientDir, key+MESSAGE_FILE_EXTENSION);
 		if (file.exists()) {
 			file.delete();
@@ -298,10 +422,290 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 
 	public void clear() throws MqttPersistenceException {
 		checkIsOpen();
+		List<UnsyncedFile> writes;
+		synchronized (syncLock) {
+			writes = new ArrayList<UnsyncedFile>(unsynced.values());
+			unsynced.clear();
+		}
+		for (UnsyncedFile write : writes) {
+			write.discard();
+		}
 		File[] files = getFiles();
 		for (File file : files) {
 			file.delete();
 		}
 		clientDir.delete();
 	}
+
+	/**
+	 * Tells the listener once everything put so far has been synced to disk, or has
+	 * failed to be. With {@link #DURABILITY_GROUP_COMMIT} the listener may be called
+	 * on the background thread that syncs the messages, so it should be quick.
+	 */
+	public void whenSynced(SyncListener listener) throws MqttPersistenceException {
+		checkIsOpen();
+		synchronized (syncLock) {
+			if (!unsynced.isEmpty() || syncing != null) {
+				waiting.add(listener);
+				return;
+			}
+		}
+		listener.synced();
+	}
+
+	/**
+	 * Syncs everything put so far to disk now, on the calling thread, rather than
+	 * waiting for the next group commit, then tells the listeners waiting for it.
+	 * @throws MqttPersistenceException if the persistence is not open, or if a
+	 * file could not be synced
+	 */
+	public void sync() throws MqttPersistenceException {
+		checkIsOpen();
+		Map<String, UnsyncedFile> batch;
+		List<SyncListener> listeners;
+		boolean interrupted = false;
+		synchronized (syncLock) {
+			// Only one batch is synced at a time
+			while (syncing != null) {
+				try {
+					syncLock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			batch = unsynced;
+			unsynced = new HashMap<String, UnsyncedFile>();
+			syncing = batch;
+			listeners = waiting;
+			waiting = new ArrayList<SyncListener>();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		MqttPersistenceException failure = syncAll(batch.values());
+		synchronized (syncLock) {
+			syncing = null;
+			syncLock.notifyAll();
+		}
+		notifySynced(listeners, failure);
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Forces a written message file to disk.
+	 * @param out the stream the message was written with, still open
+	 * @throws IOException if the file could not be synced
+	 */
+	protected void syncFile(FileOutputStream out) throws IOException {
+		out.getFD().sync();
+	}
+
+	/**
+	 * Syncs each of the files, carrying on past any that fail.
+	 * @return the first failure, or null if all the files were synced
+	 */
+	private MqttPersistenceException syncAll(Collection<UnsyncedFile> writes) {
+		MqttPersistenceException failure = null;
+		for (UnsyncedFile write : writes) {
+			try {
+				write.sync();
+			} catch (IOException ex) {
+				if (failure == null) {
+					failure = new MqttPersistenceException(ex);
+				}
+			}
+		}
+		return failure;
+	}
+
+	/**
+	 * Tells the listeners waiting for a batch how it went. A failure is never
+	 * reported as a success, as a listener may be about to acknowledge a message
+	 * on the strength of it.
+	 */
+	private static void notifySynced(List<SyncListener> listeners, MqttPersistenceException failure) {
+		for (SyncListener listener : listeners) {
+			if (failure == null) {
+				listener.synced();
+			} else {
+				listener.syncFailed(failure);
+			}
+		}
+	}
+
+	/**
+	 * Hands a written file to the background thread to sync, starting the thread if
+	 * need be.
+	 */
+	private void syncLater(String key, UnsyncedFile write) {
+		synchronized (syncLock) {
+			unsynced.put(key, write);
+			if (syncer == null) {
+				syncer = new Thread(new Runnable() {
+					public void run() {
+						syncInBackground();
+					}
+				}, "MQTT File Sync: " + clientDir.getName());
+				syncer.setDaemon(true);
+				syncer.start();
+			} else if (unsynced.size() == 1 || unsynced.size() >= groupCommitMessages) {
+				// Start the interval for the first write, or cut it short
+				syncLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Makes sure an earlier write of a key is on disk, syncing the batch waiting for
+	 * the next group commit if it holds the key, and waiting for the background
+	 * thread if it is syncing the key already. The whole batch is synced, rather than
+	 * the one file, so that the listeners waiting for it hear if the file fails.
+	 * @throws MqttPersistenceException if a file in the batch could not be synced
+	 */
+	private void syncNow(String key) throws MqttPersistenceException {
+		boolean waitingForSync;
+		synchronized (syncLock) {
+			awaitSyncing(key);
+			waitingForSync = unsynced.containsKey(key);
+		}
+		if (waitingForSync) {
+			sync();
+		}
+	}
+
+	/**
+	 * Waits for the batch being synced, if it holds the key. Called holding syncLock.
+	 */
+	private void awaitSyncing(String key) {
+		while (syncing != null && syncing.containsKey(key)) {
+			try {
+				syncLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private void syncInBackground() {
+		Thread thread = Thread.currentThread();
+		while (true) {
+			Map<String, UnsyncedFile> batch;
+			List<SyncListener> listeners;
+			synchronized (syncLock) {
+				try {
+					while (syncer == thread && unsynced.isEmpty() && waiting.isEmpty()) {
+						syncLock.wait();
+					}
+					// Give more writes the chance to join the batch, and to be removed
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitInterval);
+					long remaining;
+					while (syncer == thread && !unsynced.isEmpty() && unsynced.size() < groupCommitMessages
+							&& (remaining = deadline - System.nanoTime()) > 0) {
+						TimeUnit.NANOSECONDS.timedWait(syncLock, remaining);
+					}
+					// Wait for a batch that sync() took first
+					while (syncer == thread && syncing != null) {
+						syncLock.wait();
+					}
+				} catch (InterruptedException e) {
+					// Sync what there is
+				}
+				if (syncer != thread) {
+					// Closing, which syncs whatever is left
+					return;
+				}
+				batch = unsynced;
+				unsynced = new HashMap<String, UnsyncedFile>();
+				syncing = batch;
+				listeners = waiting;
+				waiting = new ArrayList<SyncListener>();
+			}
+			MqttPersistenceException failure = syncAll(batch.values());
+			synchronized (syncLock) {
+				syncing = null;
+				syncLock.notifyAll();
+			}
+			notifySynced(listeners, failure);
+		}
+	}
+
+	/**
+	 * Stops the background thread and syncs any files still waiting.
+	 */
+	private void stopSyncer() {
+		Thread thread;
+		synchronized (syncLock) {
+			thread = syncer;
+			syncer = null;
+			syncLock.notifyAll();
+		}
+		if (thread != null) {
+			boolean interrupted = false;
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Map<String, UnsyncedFile> batch;
+		List<SyncListener> listeners;
+		synchronized (syncLock) {
+			batch = unsynced;
+			unsynced = new HashMap<String, UnsyncedFile>();
+			listeners = waiting;
+			waiting = new ArrayList<SyncListener>();
+		}
+		notifySynced(listeners, syncAll(batch.values()));
+	}
+
+	/**
+	 * A message file that has been written but not yet synced, held open so that it can
+	 * be synced without opening it again.
+	 */
+	private class UnsyncedFile {
+		private final FileOutputStream out;
+		private final File backupFile;
+
+		UnsyncedFile(FileOutputStream out, File backupFile) {
+			this.out = out;
+			this.backupFile = backupFile;
+		}
+
+		void sync() throws IOException {
+			try {
+				syncFile(out);
+			} catch (IOException ex) {
+				// Keep the backup, if there is one, as the new file may not be complete
+				close();
+				throw ex;
+			}
+			close();
+			if (backupFile.exists()) {
+				backupFile.delete();
+			}
+		}
+
+		void discard() {
+			close();
+			if (backupFile.exists()) {
+				backupFile.delete();
+			}
+		}
+
+		private void close() {
+			try {
+				out.close();
+			} catch (IOException ex) {
+				// Nothing more can be done
+			}
+		}
+	}
 }
@@ -0,0 +1,800 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttBulkRestorePersistence;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.FileLock;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that
+ * appends every change to a log, rather than writing a file per message as
+ * {@link MqttDefaultFilePersistence} does.
+ * <p>
+ * The log is a series of segment files in a sub-directory of the given
+ * directory, named as {@link MqttDefaultFilePersistence} names it. A put
+ * appends a record holding the key and the data, and a remove appends a
+ * tombstone record for the key. An index in memory maps each key to the
+ * location of its latest record, and is rebuilt by reading the log when the
+ * persistence is opened.
+ * <p>
+ * A put returns once its record is on disk. Threads putting at the same time
+ * share a sync: whichever syncs first covers the records of the others, which
+ * then do not need to sync themselves. A remove does not wait for a sync, like
+ * a file deletion in {@link MqttDefaultFilePersistence}: if the client stops
+ * before the next sync the data may come back, and a message may be sent
+ * again.
+ * <p>
+ * Each record carries a checksum. A record that was not completely written
+ * when the client stopped is found by its checksum when the log is read, and
+ * cut off the log.
+ * <p>
+ * When a segment reaches the segment size a new one is started. Once at least
+ * half of the data in the segments before the current one is no longer needed,
+ * a background thread copies the records still needed from them to a new
+ * segment, which replaces the oldest of them, and deletes the others.
+ * <p>
+ * When the client starts it reads its state with {@link #restoreAll()}, which
+ * reads each segment once from start to end.
+ */
+public class MqttLogFilePersistence implements MqttBulkRestorePersistence {
+	/** The size a segment grows to before a new one is started */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final String SEGMENT_FILE_EXTENSION = ".log";
+	// A segment being written by compaction, left behind if the client stopped
+	private static final String COMPACT_FILE_EXTENSION = ".compact";
+	private static final String LOCK_FILENAME = ".lck";
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	// The length and checksum ahead of each record
+	private static final int RECORD_PREFIX_LENGTH = 8;
+
+	private final File dataDir;
+	private final int segmentSize;
+	private File clientDir = null;
+	private FileLock fileLock = null;
+
+	// Guards the index and the segments
+	private final Object lock = new Object();
+	// Held while syncing, so that compaction does not close a segment being synced
+	private final Object syncLock = new Object();
+	private final HashMap<String, Location> index = new HashMap<String, Location>();
+	// Oldest first, records are appended to the last one
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private long nextSegmentId = 0;
+	// Bytes appended to and synced to the log since it was opened
+	private long appended = 0;
+	private long synced = 0;
+	private ByteBuffer recordBuffer = ByteBuffer.allocate(1024);
+	private final CRC32 checksum = new CRC32();
+
+	private Thread compactor = null;
+	private boolean compactionWanted = false;
+
+	public MqttLogFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a log-based persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 */
+	public MqttLogFilePersistence(String directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Create a log-based persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 * @param segmentSize the size in bytes a segment grows to before a new one
+	 * is started.
+	 */
+	public MqttLogFilePersistence(String directory, int segmentSize) {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.dataDir = new File(directory);
+		this.segmentSize = segmentSize;
+	}
+
+	public void open(String clientId, String theConnection) throws MqttPersistenceException {
+		synchronized (lock) {
+			if (clientDir != null) {
+				return;
+			}
+			if (dataDir.exists() && !dataDir.isDirectory()) {
+				throw new MqttPersistenceException();
+			} else if (!dataDir.exists()) {
+				if (!dataDir.mkdirs()) {
+					throw new MqttPersistenceException();
+				}
+			}
+			if (!dataDir.canWrite()) {
+				throw new MqttPersistenceException();
+			}
+
+			StringBuffer keyBuffer = new StringBuffer();
+			for (int i = 0; i < clientId.length(); i++) {
+				char c = clientId.charAt(i);
+				if (isSafeChar(c)) {
+					keyBuffer.append(c);
+				}
+			}
+			keyBuffer.append("-");
+			for (int i = 0; i < theConnection.length(); i++) {
+				char c = theConnection.charAt(i);
+				if (isSafeChar(c)) {
+					keyBuffer.append(c);
+				}
+			}
+
+			File dir = new File(dataDir, keyBuffer.toString());
+			if (!dir.exists()) {
+				dir.mkdir();
+			}
+			try {
+				fileLock = new FileLock(dir, LOCK_FILENAME);
+			} catch (Exception e) {
+				// Two clients appending to one log would corrupt it
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e);
+			}
+			try {
+				load(dir);
+			} catch (IOException ex) {
+				closeSegments();
+				fileLock.release();
+				fileLock = null;
+				throw new MqttPersistenceException(ex);
+			}
+			clientDir = dir;
+
+			compactor = new Thread(new Runnable() {
+				public void run() {
+					compactInBackground();
+				}
+			}, "MQTT Log Compactor: " + clientId);
+			compactor.setDaemon(true);
+			compactor.start();
+			checkCompaction();
+		}
+	}
+
+	private boolean isSafeChar(char c) {
+		return Character.isJavaIdentifierPart(c) || c == '-';
+	}
+
+	/**
+	 * Checks whether the persistence has been opened.
+	 * @throws MqttPersistenceException if the persistence has not been opened.
+	 */
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (clientDir == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	public void close() throws MqttPersistenceException {
+		Thread stopped;
+		synchronized (lock) {
+			if (clientDir == null) {
+				return;
+			}
+			stopped = compactor;
+			compactor = null;
+			lock.notifyAll();
+		}
+		try {
+			stopped.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (syncLock) {
+			synchronized (lock) {
+				try {
+					if (index.isEmpty()) {
+						// Nothing left to keep
+						for (Segment segment : segments) {
+							segment.channel.close();
+							segment.file.delete();
+						}
+						segments.clear();
+					} else {
+						activeSegment().channel.force(false);
+					}
+				} catch (IOException ex) {
+					throw new MqttPersistenceException(ex);
+				} finally {
+					closeSegments();
+					index.clear();
+					appended = 0;
+					synced = 0;
+					if (fileLock != null) {
+						fileLock.release();
+						fileLock = null;
+					}
+					clientDir.delete();
+					clientDir = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the data to the log, and returns once it is on disk.
+	 * @param key the key for the data
+	 * @param message The {@link MqttPersistable} message to be persisted
+	 * @throws MqttPersistenceException if an exception occurs whilst persisting the message
+	 */
+	public void put(String key, MqttPersistable message) throws MqttPersistenceException {
+		long end;
+		synchronized (lock) {
+			checkIsOpen();
+			try {
+				byte[] payload = message.getPayloadBytes();
+				Location location = append(RECORD_PUT, key,
+						message.getHeaderBytes(), message.getHeaderOffset(), message.getHeaderLength(),
+						payload, message.getPayloadOffset(), payload != null ? message.getPayloadLength() : 0);
+				release(index.put(key, location));
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+			end = appended;
+		}
+		try {
+			sync(end);
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			Location location = index.get(key);
+			if (location == null) {
+				throw new MqttPersistenceException();
+			}
+			try {
+				byte[] data = new byte[location.headerLength + location.payloadLength];
+				readFully(location.segment.channel, ByteBuffer.wrap(data), location.position);
+				return new MqttPersistentData(key, data, 0, location.headerLength, data, location.headerLength,
+						location.payloadLength);
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Appends a tombstone for the key to the log. This does not wait for the
+	 * tombstone to be synced.
+	 */
+	public void remove(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			Location location = index.remove(key);
+			if (location != null) {
+				release(location);
+				try {
+					append(RECORD_REMOVE, key, null, 0, 0, null, 0, 0);
+				} catch (IOException ex) {
+					index.put(key, location);
+					location.segment.live += location.recordLength;
+					throw new MqttPersistenceException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads each segment that holds data still needed in one go, rather than
+	 * a record at a time.
+	 */
+	public Map<String, MqttPersistable> restoreAll() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			HashMap<Segment, byte[]> contents = new HashMap<Segment, byte[]>();
+			LinkedHashMap<String, MqttPersistable> result = new LinkedHashMap<String, MqttPersistable>(index.size() * 2);
+			try {
+				for (Map.Entry<String, Location> entry : index.entrySet()) {
+					Location location = entry.getValue();
+					byte[] data = contents.get(location.segment);
+					if (data == null) {
+						data = new byte[(int) location.segment.size];
+						readFully(location.segment.channel, ByteBuffer.wrap(data), 0);
+						contents.put(location.segment, data);
+					}
+					// The header and payload go back as one array, which the client splits
+					int position = (int) location.position;
+					byte[] record = Arrays.copyOfRange(data, position,
+							position + location.headerLength + location.payloadLength);
+					result.put(entry.getKey(), new MqttPersistentData(entry.getKey(), record, 0, record.length, null, 0, 0));
+				}
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+			return result;
+		}
+	}
+
+	public Enumeration<String> keys() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return new Vector<String>(index.keySet()).elements();
+		}
+	}
+
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return index.containsKey(key);
+		}
+	}
+
+	public void clear() throws MqttPersistenceException {
+		synchronized (syncLock) {
+			synchronized (lock) {
+				checkIsOpen();
+				try {
+					for (Segment segment : segments) {
+						segment.channel.close();
+						segment.file.delete();
+					}
+					segments.clear();
+					index.clear();
+					startSegment(clientDir);
+					synced = appended;
+				} catch (IOException ex) {
+					throw new MqttPersistenceException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the segments in a directory and builds the index from them.
+	 */
+	private void load(File dir) throws IOException {
+		File[] unfinished = dir.listFiles(new PersistanceFileNameFilter(COMPACT_FILE_EXTENSION));
+		if (unfinished != null) {
+			for (File file : unfinished) {
+				file.delete();
+			}
+		}
+		File[] files = dir.listFiles(new PersistanceFileNameFilter(SEGMENT_FILE_EXTENSION));
+		if (files == null) {
+			throw new IOException("Cannot list " + dir);
+		}
+		long[] ids = new long[files.length];
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				ids[count] = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length()));
+				count++;
+			} catch (NumberFormatException e) {
+				// Not a segment
+			}
+		}
+		Arrays.sort(ids, 0, count);
+		for (int i = 0; i < count; i++) {
+			Segment segment = new Segment(new File(dir, ids[i] + SEGMENT_FILE_EXTENSION));
+			segments.add(segment);
+			replay(segment);
+			nextSegmentId = ids[i] + 1;
+		}
+		if (segments.isEmpty()) {
+			startSegment(dir);
+		}
+	}
+
+	/**
+	 * Applies the records of a segment to the index. The segment is cut off
+	 * at the first record that is incomplete or fails its checksum, which
+	 * is what is left of a write the client stopped in the middle of.
+	 */
+	private void replay(Segment segment) throws IOException {
+		long size = segment.channel.size();
+		ByteBuffer data = ByteBuffer.allocate((int) size);
+		readFully(segment.channel, data, 0);
+		byte[] bytes = data.array();
+		int position = 0;
+		while (position + RECORD_PREFIX_LENGTH <= size) {
+			int length = data.getInt(position);
+			int start = position + RECORD_PREFIX_LENGTH;
+			if (length < 3 || length > size - start) {
+				break;
+			}
+			checksum.reset();
+			checksum.update(bytes, start, length);
+			if ((int) checksum.getValue() != data.getInt(position + 4)) {
+				break;
+			}
+			byte type = bytes[start];
+			int keyLength = data.getShort(start + 1) & 0xffff;
+			if (3 + keyLength > length) {
+				break;
+			}
+			String key = new String(bytes, start + 3, keyLength, StandardCharsets.UTF_8);
+			int recordLength = RECORD_PREFIX_LENGTH + length;
+			if (type == RECORD_PUT) {
+				int offset = start + 3 + keyLength;
+				int headerLength = data.getInt(offset);
+				int payloadLength = data.getInt(offset + 4);
+				Location location = new Location(segment, offset + 8, headerLength, payloadLength, recordLength);
+				release(index.put(key, location));
+				segment.live += recordLength;
+			} else {
+				release(index.remove(key));
+			}
+			position += recordLength;
+		}
+		if (position < size) {
+			segment.channel.truncate(position);
+		}
+		segment.size = position;
+	}
+
+	/**
+	 * Appends a record to the current segment, starting a new one if the
+	 * current one is full.
+	 * @return the location of the data in the record
+	 */
+	private Location append(byte type, String key, byte[] header, int headerOffset, int headerLength,
+			byte[] payload, int payloadOffset, int payloadLength) throws IOException {
+		byte[] keyBytes = encodeKey(key);
+		recordBuffer = encodeRecord(recordBuffer, checksum, type, keyBytes, header, headerOffset, headerLength,
+				payload, payloadOffset, payloadLength);
+		ByteBuffer record = recordBuffer;
+		int recordLength = record.remaining();
+
+		Segment segment = activeSegment();
+		if (segment.size > 0 && segment.size + recordLength > segmentSize) {
+			// Records before this point are all in older segments, synced now
+			segment.channel.force(false);
+			synced = appended;
+			segment = startSegment(clientDir);
+			checkCompaction();
+		}
+		long position = segment.size;
+		writeFully(segment.channel, record, position);
+		segment.size += recordLength;
+		appended += recordLength;
+		if (type != RECORD_PUT) {
+			return null;
+		}
+		segment.live += recordLength;
+		return new Location(segment, position + RECORD_PREFIX_LENGTH + 3 + keyBytes.length + 8,
+				headerLength, payloadLength, recordLength);
+	}
+
+	private static byte[] encodeKey(String key) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		if (keyBytes.length > 0xffff) {
+			throw new IOException("Key too long");
+		}
+		return keyBytes;
+	}
+
+	/**
+	 * Writes a record into a buffer, which is replaced by a larger one if it
+	 * is too small, and flips it.
+	 * @return the buffer holding the record
+	 */
+	private static ByteBuffer encodeRecord(ByteBuffer buffer, CRC32 checksum, byte type, byte[] keyBytes,
+			byte[] header, int headerOffset, int headerLength, byte[] payload, int payloadOffset, int payloadLength) {
+		int length = 3 + keyBytes.length + (type == RECORD_PUT ? 8 + headerLength + payloadLength : 0);
+		int recordLength = RECORD_PREFIX_LENGTH + length;
+		if (buffer.capacity() < recordLength) {
+			buffer = ByteBuffer.allocate(Math.max(recordLength, buffer.capacity() * 2));
+		}
+		buffer.clear();
+		buffer.position(RECORD_PREFIX_LENGTH);
+		buffer.put(type);
+		buffer.putShort((short) keyBytes.length);
+		buffer.put(keyBytes);
+		if (type == RECORD_PUT) {
+			buffer.putInt(headerLength);
+			buffer.putInt(payloadLength);
+			buffer.put(header, headerOffset, headerLength);
+			if (payloadLength > 0) {
+				buffer.put(payload, payloadOffset, payloadLength);
+			}
+		}
+		checksum.reset();
+		checksum.update(buffer.array(), RECORD_PREFIX_LENGTH, length);
+		buffer.putInt(0, length);
+		buffer.putInt(4, (int) checksum.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Waits until everything appended up to a point is on disk. One thread
+	 * syncs the log for all the threads waiting at the time.
+	 */
+	private void sync(long end) throws IOException {
+		synchronized (syncLock) {
+			FileChannel channel;
+			long target;
+			synchronized (lock) {
+				if (synced >= end || clientDir == null) {
+					return;
+				}
+				target = appended;
+				channel = activeSegment().channel;
+			}
+			channel.force(false);
+			synchronized (lock) {
+				if (target > synced) {
+					synced = target;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the record at a location as no longer needed.
+	 */
+	private void release(Location location) {
+		if (location != null) {
+			location.segment.live -= location.recordLength;
+			if (location.segment != activeSegment()) {
+				checkCompaction();
+			}
+		}
+	}
+
+	private Segment activeSegment() {
+		return segments.get(segments.size() - 1);
+	}
+
+	private Segment startSegment(File dir) throws IOException {
+		Segment segment = new Segment(new File(dir, nextSegmentId + SEGMENT_FILE_EXTENSION));
+		nextSegmentId++;
+		segments.add(segment);
+		return segment;
+	}
+
+	private void closeSegments() {
+		for (Segment segment : segments) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+			}
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Wakes the compactor if at least half of the data in the segments
+	 * before the current one is no longer needed.
+	 */
+	private void checkCompaction() {
+		long size = 0;
+		long live = 0;
+		for (int i = 0; i < segments.size() - 1; i++) {
+			size += segments.get(i).size;
+			live += segments.get(i).live;
+		}
+		if (size > 0 && live * 2 <= size && compactor != null) {
+			compactionWanted = true;
+			lock.notifyAll();
+		}
+	}
+
+	private void compactInBackground() {
+		while (true) {
+			synchronized (lock) {
+				while (!compactionWanted && compactor == Thread.currentThread()) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (compactor != Thread.currentThread()) {
+					return;
+				}
+				compactionWanted = false;
+			}
+			try {
+				compact();
+			} catch (IOException ex) {
+				// The old segments are kept, and compaction is tried again
+				// once more of them is no longer needed
+			}
+		}
+	}
+
+	/**
+	 * Copies the records still needed from the segments before the current
+	 * one to a new segment, which takes the place of the oldest of them, and
+	 * deletes the others. Their tombstones are dropped: every older record
+	 * they could hide is deleted with them.
+	 * <p>
+	 * The locks are held only while taking the locations of the records to
+	 * copy and while swapping the new segment in, not while copying, so puts
+	 * and their syncs go on in the meantime. A key put or removed during the
+	 * copy has a newer record in a later segment, so its copy is left out of
+	 * the index.
+	 */
+	private void compact() throws IOException {
+		File dir;
+		ArrayList<Segment> old;
+		ArrayList<Map.Entry<String, Location>> live = new ArrayList<Map.Entry<String, Location>>();
+		synchronized (lock) {
+			if (clientDir == null || segments.size() < 2) {
+				return;
+			}
+			dir = clientDir;
+			old = new ArrayList<Segment>(segments.subList(0, segments.size() - 1));
+			for (Map.Entry<String, Location> entry : index.entrySet()) {
+				if (old.contains(entry.getValue().segment)) {
+					live.add(new AbstractMap.SimpleImmutableEntry<String, Location>(entry));
+				}
+			}
+		}
+
+		// Only the current segment is appended to, so the old ones can be read
+		// without the lock
+		File target = old.get(0).file;
+		File temp = new File(dir, target.getName() + COMPACT_FILE_EXTENSION);
+		long[] positions = new long[live.size()];
+		long size = 0;
+		boolean copied = false;
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			CRC32 crc = new CRC32();
+			for (int i = 0; i < live.size(); i++) {
+				Map.Entry<String, Location> entry = live.get(i);
+				Location location = entry.getValue();
+				byte[] data = new byte[location.headerLength + location.payloadLength];
+				readFully(location.segment.channel, ByteBuffer.wrap(data), location.position);
+				byte[] keyBytes = encodeKey(entry.getKey());
+				buffer = encodeRecord(buffer, crc, RECORD_PUT, keyBytes, data, 0, location.headerLength,
+						data, location.headerLength, location.payloadLength);
+				positions[i] = size + RECORD_PREFIX_LENGTH + 3 + keyBytes.length + 8;
+				size += buffer.remaining();
+				writeFully(channel, buffer, size - buffer.remaining());
+			}
+			// The copies must be on disk before the originals go
+			channel.force(false);
+			copied = true;
+		} finally {
+			channel.close();
+			if (!copied) {
+				temp.delete();
+			}
+		}
+
+		synchronized (syncLock) {
+			synchronized (lock) {
+				if (clientDir != dir || segments.size() <= old.size()
+						|| !segments.subList(0, old.size()).equals(old)) {
+					// Cleared or closed during the copy
+					temp.delete();
+					return;
+				}
+				try {
+					// Until the oldest segment is replaced, the old segments are whole
+					Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException ex) {
+					temp.delete();
+					throw ex;
+				}
+				Segment compacted = new Segment(target);
+				compacted.size = size;
+				for (Segment segment : old) {
+					segment.channel.close();
+				}
+				// Oldest first: whatever is left after a crash is replayed after
+				// the copies, and ends at the same records
+				for (int i = 1; i < old.size(); i++) {
+					old.get(i).file.delete();
+				}
+				segments.subList(0, old.size()).clear();
+				segments.add(0, compacted);
+				for (int i = 0; i < live.size(); i++) {
+					Map.Entry<String, Location> entry = live.get(i);
+					Location location = entry.getValue();
+					if (index.get(entry.getKey()) == location) {
+						index.put(entry.getKey(), new Location(compacted, positions[i], location.headerLength,
+								location.payloadLength, location.recordLength));
+						compacted.live += location.recordLength;
+					}
+				}
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position() - start);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position + buffer.position());
+			if (count < 0) {
+				throw new IOException("Unexpected end of log");
+			}
+		}
+	}
+
+	/**
+	 * A file of the log.
+	 */
+	private static class Segment {
+		final File file;
+		final FileChannel channel;
+		long size = 0;
+		// Bytes of records still in the index
+		long live = 0;
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		}
+	}
+
+	/**
+	 * Where the data of a key is in the log.
+	 */
+	private static class Location {
+		final Segment segment;
+		// The position of the header in the segment, the payload follows it
+		final long position;
+		final int headerLength;
+		final int payloadLength;
+		final int recordLength;
+
+		Location(Segment segment, long position, int headerLength, int payloadLength, int recordLength) {
+			this.segment = segment;
+			this.position = position;
+			this.headerLength = headerLength;
+			this.payloadLength = payloadLength;
+			this.recordLength = recordLength;
+		}
+	}
+}
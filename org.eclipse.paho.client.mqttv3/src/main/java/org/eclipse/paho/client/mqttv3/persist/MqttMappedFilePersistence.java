@@ -0,0 +1,646 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttBulkRestorePersistence;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.FileLock;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that keeps
+ * every message in one fixed-size file, mapped into memory, so that a put or a
+ * get is a memory copy rather than a file being created or read.
+ * <p>
+ * The file lives in a sub-directory of the given directory, named as
+ * {@link MqttDefaultFilePersistence} names it, and is divided into slots of
+ * equal size. A message takes as many slots as it needs, chained together, the
+ * first of which holds the key. An index in memory maps each key to its first
+ * slot, and is rebuilt by scanning the file when the persistence is opened.
+ * <p>
+ * By default a put returns once the file has been forced to disk. With
+ * {@link #setForceOnPut(boolean)} set to false it returns straight after the
+ * copy, and the operating system writes the file out in its own time, so a
+ * message survives the client process failing but not the machine. A remove
+ * never waits for the disk, as with {@link MqttDefaultFilePersistence}.
+ * <p>
+ * Each message carries a checksum and a sequence number. A message that was
+ * not completely written when the client stopped is found by its checksum and
+ * dropped when the file is scanned; where a key is found twice, the later
+ * message is kept.
+ * <p>
+ * The file does not grow: once its slots are used up a put fails until other
+ * messages are removed. The slot size and count are fixed when the file is
+ * created, and those of an existing file are used whatever is passed to the
+ * constructor.
+ * <p>
+ * When the client starts it reads its state with {@link #restoreAll()}, which
+ * copies the messages out in the order they lie in the file.
+ */
+public class MqttMappedFilePersistence implements MqttBulkRestorePersistence {
+	/** The default size of a slot, in bytes */
+	public static final int DEFAULT_SLOT_SIZE = 512;
+	/** The default number of slots in the file */
+	public static final int DEFAULT_SLOT_COUNT = 8192;
+
+	private static final String MAP_FILENAME = "messages.map";
+	private static final String LOCK_FILENAME = ".lck";
+	private static final int MAGIC = 0x4d51544d;
+	private static final int VERSION = 1;
+	private static final int MIN_SLOT_SIZE = 64;
+
+	private static final byte SLOT_FREE = 0;
+	private static final byte SLOT_FIRST = 1;
+	private static final byte SLOT_NEXT = 2;
+	// The state of a slot, and the index of the slot after it
+	private static final int SLOT_PREFIX_LENGTH = 5;
+	// Then in the first slot of a message, the sequence number, checksum,
+	// key length, header length and payload length, then the key
+	private static final int FIRST_PREFIX_LENGTH = SLOT_PREFIX_LENGTH + 22;
+	private static final int SEQUENCE = SLOT_PREFIX_LENGTH;
+	private static final int CHECKSUM = SEQUENCE + 8;
+	private static final int KEY_LENGTH = CHECKSUM + 4;
+	private static final int HEADER_LENGTH = KEY_LENGTH + 2;
+	private static final int PAYLOAD_LENGTH = HEADER_LENGTH + 4;
+	// Slot 0 holds the file header, so it also marks the end of a chain
+	private static final int NO_SLOT = 0;
+
+	private final File dataDir;
+	private final int newSlotSize;
+	private final int newSlotCount;
+	private volatile boolean forceOnPut = true;
+	private File clientDir = null;
+	private FileLock fileLock = null;
+
+	// Guards everything below
+	private final Object lock = new Object();
+	private FileChannel channel = null;
+	private MappedByteBuffer map = null;
+	private int slotSize;
+	private int slotCount;
+	private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+	private final BitSet free = new BitSet();
+	private int freeSlots = 0;
+	private long sequence = 0;
+	private final CRC32 checksum = new CRC32();
+
+	public MqttMappedFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a memory-mapped persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 */
+	public MqttMappedFilePersistence(String directory) {
+		this(directory, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+	}
+
+	/**
+	 * Create a memory-mapped persistent data store within the specified directory.
+	 * @param directory the directory to use.
+	 * @param slotCount the number of slots in a new file.
+	 * @param slotSize the size of a slot in a new file, in bytes. A size that
+	 * divides the page size of the system, such as 512, keeps each slot within
+	 * a page.
+	 * @throws IllegalArgumentException if the slot count is less than 1, the
+	 * slot size is less than 64, or the file would be larger than 2GB
+	 */
+	public MqttMappedFilePersistence(String directory, int slotCount, int slotSize) {
+		if (slotCount < 1 || slotSize < MIN_SLOT_SIZE || (slotCount + 1L) * slotSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException();
+		}
+		this.dataDir = new File(directory);
+		this.newSlotCount = slotCount;
+		this.newSlotSize = slotSize;
+	}
+
+	/**
+	 * Sets whether a put forces the file to disk before it returns.
+	 * @param force false to leave the operating system to write the file
+	 * out. The default is true.
+	 */
+	public void setForceOnPut(boolean force) {
+		this.forceOnPut = force;
+	}
+
+	public void open(String clientId, String theConnection) throws MqttPersistenceException {
+		synchronized (lock) {
+			if (clientDir != null) {
+				return;
+			}
+			if (dataDir.exists() && !dataDir.isDirectory()) {
+				throw new MqttPersistenceException();
+			} else if (!dataDir.exists()) {
+				if (!dataDir.mkdirs()) {
+					throw new MqttPersistenceException();
+				}
+			}
+			if (!dataDir.canWrite()) {
+				throw new MqttPersistenceException();
+			}
+
+			StringBuffer keyBuffer = new StringBuffer();
+			for (int i = 0; i < clientId.length(); i++) {
+				char c = clientId.charAt(i);
+				if (isSafeChar(c)) {
+					keyBuffer.append(c);
+				}
+			}
+			keyBuffer.append("-");
+			for (int i = 0; i < theConnection.length(); i++) {
+				char c = theConnection.charAt(i);
+				if (isSafeChar(c)) {
+					keyBuffer.append(c);
+				}
+			}
+
+			File dir = new File(dataDir, keyBuffer.toString());
+			if (!dir.exists()) {
+				dir.mkdir();
+			}
+			try {
+				fileLock = new FileLock(dir, LOCK_FILENAME);
+			} catch (Exception e) {
+				// Two clients writing to one file would corrupt it
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e);
+			}
+			try {
+				load(new File(dir, MAP_FILENAME));
+			} catch (IOException ex) {
+				closeFile();
+				fileLock.release();
+				fileLock = null;
+				throw new MqttPersistenceException(ex);
+			}
+			clientDir = dir;
+		}
+	}
+
+	private boolean isSafeChar(char c) {
+		return Character.isJavaIdentifierPart(c) || c == '-';
+	}
+
+	/**
+	 * Checks whether the persistence has been opened.
+	 * @throws MqttPersistenceException if the persistence has not been opened.
+	 */
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (clientDir == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	public void close() throws MqttPersistenceException {
+		synchronized (lock) {
+			if (clientDir == null) {
+				return;
+			}
+			try {
+				if (!index.isEmpty()) {
+					map.force();
+				}
+			} finally {
+				boolean empty = index.isEmpty();
+				closeFile();
+				if (empty) {
+					// Nothing left to keep
+					new File(clientDir, MAP_FILENAME).delete();
+				}
+				if (fileLock != null) {
+					fileLock.release();
+					fileLock = null;
+				}
+				clientDir.delete();
+				clientDir = null;
+			}
+		}
+	}
+
+	/**
+	 * Copies the data into free slots of the file, and unless
+	 * {@link #setForceOnPut(boolean)} has been turned off, returns once the
+	 * file is on disk.
+	 * @param key the key for the data
+	 * @param message The {@link MqttPersistable} message to be persisted
+	 * @throws MqttPersistenceException if an exception occurs whilst persisting
+	 * the message, or the file does not have enough free slots for it
+	 */
+	public void put(String key, MqttPersistable message) throws MqttPersistenceException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] payload = message.getPayloadBytes();
+		int headerLength = message.getHeaderLength();
+		int payloadLength = payload != null ? message.getPayloadLength() : 0;
+		MappedByteBuffer written;
+		synchronized (lock) {
+			checkIsOpen();
+			if (FIRST_PREFIX_LENGTH + keyBytes.length > slotSize) {
+				throw new MqttPersistenceException(new IOException("Key too long"));
+			}
+			int needed = slotsFor(keyBytes.length, headerLength + payloadLength);
+			if (needed > freeSlots) {
+				throw new MqttPersistenceException(new IOException("The persistence file is full"));
+			}
+			int[] slots = allocate(needed);
+			int first = slots[0];
+
+			// The data and the later slots go in first, and the state of the
+			// first slot last, so that a message only counts once it is whole
+			ByteBuffer view = map.duplicate();
+			view.position(offset(first) + FIRST_PREFIX_LENGTH);
+			view.put(keyBytes);
+			int slot = copy(view, slots, 0, message.getHeaderBytes(), message.getHeaderOffset(), headerLength);
+			if (payloadLength > 0) {
+				copy(view, slots, slot, payload, message.getPayloadOffset(), payloadLength);
+			}
+			for (int i = 1; i < slots.length; i++) {
+				map.put(offset(slots[i]), SLOT_NEXT);
+				map.putInt(offset(slots[i]) + 1, i + 1 < slots.length ? slots[i + 1] : NO_SLOT);
+			}
+			int base = offset(first);
+			map.putInt(base + 1, slots.length > 1 ? slots[1] : NO_SLOT);
+			map.putLong(base + SEQUENCE, ++sequence);
+			map.putShort(base + KEY_LENGTH, (short) keyBytes.length);
+			map.putInt(base + HEADER_LENGTH, headerLength);
+			map.putInt(base + PAYLOAD_LENGTH, payloadLength);
+			map.putInt(base + CHECKSUM, checksum(slots));
+			map.put(base, SLOT_FIRST);
+
+			Integer previous = index.put(key, Integer.valueOf(first));
+			if (previous != null) {
+				release(previous.intValue());
+			}
+			written = map;
+		}
+		if (forceOnPut) {
+			written.force();
+		}
+	}
+
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			Integer first = index.get(key);
+			if (first == null) {
+				throw new MqttPersistenceException();
+			}
+			return read(key, first.intValue());
+		}
+	}
+
+	/**
+	 * Copies out every message, in the order they lie in the file.
+	 */
+	public Map<String, MqttPersistable> restoreAll() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			TreeMap<Integer, String> bySlot = new TreeMap<Integer, String>();
+			for (Map.Entry<String, Integer> entry : index.entrySet()) {
+				bySlot.put(entry.getValue(), entry.getKey());
+			}
+			LinkedHashMap<String, MqttPersistable> result = new LinkedHashMap<String, MqttPersistable>(index.size() * 2);
+			for (Map.Entry<Integer, String> entry : bySlot.entrySet()) {
+				result.put(entry.getValue(), read(entry.getValue(), entry.getKey().intValue()));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Copies a message out of its chain of slots.
+	 */
+	private MqttPersistable read(String key, int first) {
+		int base = offset(first);
+		int keyLength = map.getShort(base + KEY_LENGTH);
+		int headerLength = map.getInt(base + HEADER_LENGTH);
+		int payloadLength = map.getInt(base + PAYLOAD_LENGTH);
+		byte[] data = new byte[headerLength + payloadLength];
+		ByteBuffer view = map.duplicate();
+		int slot = first;
+		int position = base + FIRST_PREFIX_LENGTH + keyLength;
+		int read = 0;
+		while (read < data.length) {
+			int count = Math.min(data.length - read, offset(slot) + slotSize - position);
+			view.position(position);
+			view.get(data, read, count);
+			read += count;
+			slot = map.getInt(offset(slot) + 1);
+			position = offset(slot) + SLOT_PREFIX_LENGTH;
+		}
+		return new MqttPersistentData(key, data, 0, headerLength, data, headerLength, payloadLength);
+	}
+
+	/**
+	 * Frees the slots of the data with the specified key. This does not wait
+	 * for the file to be written to disk.
+	 */
+	public void remove(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			Integer first = index.remove(key);
+			if (first != null) {
+				release(first.intValue());
+			}
+		}
+	}
+
+	public Enumeration<String> keys() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return new Vector<String>(index.keySet()).elements();
+		}
+	}
+
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return index.containsKey(key);
+		}
+	}
+
+	public void clear() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			for (Integer first : index.values()) {
+				map.put(offset(first.intValue()), SLOT_FREE);
+			}
+			index.clear();
+			free.set(1, slotCount + 1);
+			freeSlots = slotCount;
+		}
+	}
+
+	/**
+	 * Maps the file, creating it if need be, and builds the index by scanning
+	 * its slots.
+	 */
+	private void load(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(16);
+		while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+		}
+		header.flip();
+		if (header.remaining() < 16 || header.getInt(0) != MAGIC) {
+			if (channel.size() > 16) {
+				throw new IOException(file + " is not a persistence file");
+			}
+			// New, or never got as far as its header
+			slotSize = newSlotSize;
+			slotCount = newSlotCount;
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (slotCount + 1L) * slotSize);
+			map.putInt(4, VERSION);
+			map.putInt(8, slotSize);
+			map.putInt(12, slotCount);
+			map.putInt(0, MAGIC);
+			map.force();
+		} else {
+			if (header.getInt(4) != VERSION) {
+				throw new IOException(file + " has an unknown version");
+			}
+			slotSize = header.getInt(8);
+			slotCount = header.getInt(12);
+			if (slotSize < MIN_SLOT_SIZE || slotCount < 1 || (slotCount + 1L) * slotSize > Integer.MAX_VALUE) {
+				throw new IOException(file + " is not a persistence file");
+			}
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (slotCount + 1L) * slotSize);
+		}
+		scan();
+	}
+
+	/**
+	 * Finds the messages in the file. A message is kept if its chain of slots
+	 * is intact and its checksum matches; if two messages have the same key or
+	 * share a slot, which happens if the client stopped while one replaced the
+	 * other, the later one is kept.
+	 */
+	private void scan() {
+		ArrayList<Found> found = new ArrayList<Found>();
+		byte[] keyBytes = new byte[slotSize];
+		for (int first = 1; first <= slotCount; first++) {
+			int base = offset(first);
+			if (map.get(base) != SLOT_FIRST) {
+				continue;
+			}
+			int keyLength = map.getShort(base + KEY_LENGTH);
+			int headerLength = map.getInt(base + HEADER_LENGTH);
+			int payloadLength = map.getInt(base + PAYLOAD_LENGTH);
+			int[] slots = null;
+			if (keyLength >= 0 && FIRST_PREFIX_LENGTH + keyLength <= slotSize && headerLength >= 0
+					&& payloadLength >= 0 && headerLength + payloadLength >= 0) {
+				int length = slotsFor(keyLength, headerLength + payloadLength);
+				if (length <= slotCount) {
+					slots = chain(first, length);
+				}
+			}
+			if (slots == null || checksum(slots) != map.getInt(base + CHECKSUM)) {
+				map.put(base, SLOT_FREE);
+				continue;
+			}
+			ByteBuffer view = map.duplicate();
+			view.position(base + FIRST_PREFIX_LENGTH);
+			view.get(keyBytes, 0, keyLength);
+			found.add(new Found(new String(keyBytes, 0, keyLength, StandardCharsets.UTF_8),
+					map.getLong(base + SEQUENCE), slots));
+		}
+
+		Collections.sort(found, new Comparator<Found>() {
+			public int compare(Found a, Found b) {
+				return Long.compare(b.sequence, a.sequence);
+			}
+		});
+		BitSet used = new BitSet(slotCount + 1);
+		for (Found message : found) {
+			boolean clash = index.containsKey(message.key);
+			for (int i = 0; i < message.slots.length && !clash; i++) {
+				clash = used.get(message.slots[i]);
+			}
+			if (clash) {
+				map.put(offset(message.slots[0]), SLOT_FREE);
+				continue;
+			}
+			for (int slot : message.slots) {
+				used.set(slot);
+			}
+			index.put(message.key, Integer.valueOf(message.slots[0]));
+			sequence = Math.max(sequence, message.sequence);
+		}
+		free.set(1, slotCount + 1);
+		free.andNot(used);
+		freeSlots = free.cardinality();
+	}
+
+	/**
+	 * Follows the chain of slots of a message.
+	 * @return the slots, or null if the chain is broken
+	 */
+	private int[] chain(int first, int length) {
+		int[] slots = new int[length];
+		slots[0] = first;
+		for (int i = 1; i < length; i++) {
+			int slot = map.getInt(offset(slots[i - 1]) + 1);
+			if (slot < 1 || slot > slotCount || map.get(offset(slot)) != SLOT_NEXT) {
+				return null;
+			}
+			slots[i] = slot;
+		}
+		if (map.getInt(offset(slots[length - 1]) + 1) != NO_SLOT) {
+			return null;
+		}
+		return slots;
+	}
+
+	/**
+	 * Copies bytes into a chain of slots, moving on to the next slot as each
+	 * fills up.
+	 * @return the index in the chain of the slot the copy finished in
+	 */
+	private int copy(ByteBuffer view, int[] slots, int slot, byte[] data, int offset, int length) {
+		while (length > 0) {
+			int room = offset(slots[slot]) + slotSize - view.position();
+			if (room == 0) {
+				slot++;
+				view.position(offset(slots[slot]) + SLOT_PREFIX_LENGTH);
+				room = slotSize - SLOT_PREFIX_LENGTH;
+			}
+			int count = Math.min(room, length);
+			view.put(data, offset, count);
+			offset += count;
+			length -= count;
+		}
+		return slot;
+	}
+
+	/**
+	 * Checksums a message: its sequence number and lengths, its key and its
+	 * data.
+	 */
+	private int checksum(int[] slots) {
+		int base = offset(slots[0]);
+		int keyLength = map.getShort(base + KEY_LENGTH);
+		int remaining = keyLength + map.getInt(base + HEADER_LENGTH) + map.getInt(base + PAYLOAD_LENGTH);
+		ByteBuffer view = map.duplicate();
+		checksum.reset();
+		view.limit(base + CHECKSUM).position(base + SEQUENCE);
+		checksum.update(view);
+		view.limit(base + FIRST_PREFIX_LENGTH).position(base + KEY_LENGTH);
+		checksum.update(view);
+		int position = base + FIRST_PREFIX_LENGTH;
+		for (int i = 0; i < slots.length && remaining > 0; i++) {
+			if (i > 0) {
+				position = offset(slots[i]) + SLOT_PREFIX_LENGTH;
+			}
+			int count = Math.min(remaining, offset(slots[i]) + slotSize - position);
+			view.limit(position + count).position(position);
+			checksum.update(view);
+			remaining -= count;
+		}
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * @return the number of slots a message needs
+	 */
+	private int slotsFor(int keyLength, int dataLength) {
+		int inFirst = slotSize - FIRST_PREFIX_LENGTH - keyLength;
+		if (dataLength <= inFirst) {
+			return 1;
+		}
+		int perSlot = slotSize - SLOT_PREFIX_LENGTH;
+		return 1 + (int) ((dataLength - inFirst + (long) perSlot - 1) / perSlot);
+	}
+
+	/**
+	 * Takes free slots, lowest first.
+	 */
+	private int[] allocate(int count) {
+		int[] slots = new int[count];
+		int slot = 0;
+		for (int i = 0; i < count; i++) {
+			slot = free.nextSetBit(slot + 1);
+			free.clear(slot);
+			slots[i] = slot;
+		}
+		freeSlots -= count;
+		return slots;
+	}
+
+	/**
+	 * Frees the slots of a message.
+	 */
+	private void release(int first) {
+		map.put(offset(first), SLOT_FREE);
+		int slot = first;
+		while (slot != NO_SLOT) {
+			free.set(slot);
+			freeSlots++;
+			slot = map.getInt(offset(slot) + 1);
+		}
+	}
+
+	private int offset(int slot) {
+		return slot * slotSize;
+	}
+
+	private void closeFile() {
+		index.clear();
+		free.clear();
+		freeSlots = 0;
+		sequence = 0;
+		// The mapping itself is released when the buffer is collected
+		map = null;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * A message found when scanning the file.
+	 */
+	private static class Found {
+		final String key;
+		final long sequence;
+		final int[] slots;
+
+		Found(String key, long sequence, int[] slots) {
+			this.key = key;
+			this.sequence = sequence;
+			this.slots = slots;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.persist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * Persistence that uses memory outside the Java heap.
+ * <p>
+ * Like {@link MemoryPersistence}, this keeps messages only for as long as
+ * the client is running. Rather than holding each message as an object on
+ * the heap, it copies the bytes into direct buffers, so that a large
+ * in-flight window of large messages does not add to the work of the
+ * garbage collector. Only the keys and a small index stay on the heap.
+ * <p>
+ * The memory is divided into blocks of equal size, taken from slabs that
+ * are allocated as they are needed, up to a fixed capacity. A message takes
+ * as many blocks as it needs. Once the capacity is used up a put fails
+ * until other messages are removed. Slabs are kept until the persistence
+ * is closed.
+ * <p>
+ * A get copies the message back onto the heap.
+ */
+public class MqttOffHeapMemoryPersistence implements MqttClientPersistence {
+	/** The default capacity, in bytes */
+	public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+	/** The default size of a block, in bytes */
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+	/** The default size of a slab, in bytes */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	private final int blockSize;
+	private final int blocksPerSlab;
+	private final int maxBlocks;
+
+	// Guards everything below
+	private final Object lock = new Object();
+	private boolean open = false;
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private final HashMap<String, Entry> index = new HashMap<String, Entry>();
+	private final BitSet free = new BitSet();
+	private int freeBlocks = 0;
+	private long dataBytes = 0;
+	private int peakBlocks = 0;
+
+	public MqttOffHeapMemoryPersistence() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an off-heap memory persistence.
+	 * @param capacity the most memory to use for messages, in bytes.
+	 */
+	public MqttOffHeapMemoryPersistence(long capacity) {
+		this(capacity, DEFAULT_BLOCK_SIZE, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Create an off-heap memory persistence.
+	 * @param capacity the most memory to use for messages, in bytes. It is
+	 * rounded up to a whole number of blocks.
+	 * @param blockSize the size of a block, in bytes. Every message takes at
+	 * least one block.
+	 * @param slabSize the size of each buffer allocated, in bytes. It is
+	 * rounded down to a whole number of blocks.
+	 * @throws IllegalArgumentException if a size is less than 1, the slab is
+	 * smaller than a block, or the capacity is more than 2^31 - 1 blocks
+	 */
+	public MqttOffHeapMemoryPersistence(long capacity, int blockSize, int slabSize) {
+		if (capacity < 1 || blockSize < 1 || slabSize < blockSize
+				|| (capacity + blockSize - 1) / blockSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException();
+		}
+		this.blockSize = blockSize;
+		this.blocksPerSlab = slabSize / blockSize;
+		this.maxBlocks = (int) ((capacity + blockSize - 1) / blockSize);
+	}
+
+	public void open(String clientId, String serverURI) throws MqttPersistenceException {
+		synchronized (lock) {
+			open = true;
+		}
+	}
+
+	/**
+	 * Drops every message and releases the buffers.
+	 */
+	public void close() throws MqttPersistenceException {
+		synchronized (lock) {
+			index.clear();
+			free.clear();
+			freeBlocks = 0;
+			dataBytes = 0;
+			// The memory itself is released when the buffers are collected
+			slabs.clear();
+			open = false;
+		}
+	}
+
+	/**
+	 * Copies the data into free blocks.
+	 * @param key the key for the data
+	 * @param persistable the data to be persisted
+	 * @throws MqttPersistenceException if the persistence is not open, or
+	 * there is not enough free capacity for the data
+	 */
+	public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		byte[] payload = persistable.getPayloadBytes();
+		int headerLength = persistable.getHeaderLength();
+		int payloadLength = payload != null ? persistable.getPayloadLength() : 0;
+		synchronized (lock) {
+			checkIsOpen();
+			int needed = blocksFor(headerLength + payloadLength);
+			if (needed > freeBlocks && !grow(needed)) {
+				throw new MqttPersistenceException(new IOException("The persistence is full"));
+			}
+			Entry entry = new Entry(allocate(needed), headerLength, payloadLength);
+			int block = copy(entry.blocks, 0, 0, persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+			if (payloadLength > 0) {
+				copy(entry.blocks, block, headerLength, payload, persistable.getPayloadOffset(), payloadLength);
+			}
+			dataBytes += headerLength + payloadLength;
+			Entry previous = index.put(key, entry);
+			if (previous != null) {
+				release(previous);
+			}
+			peakBlocks = Math.max(peakBlocks, getUsedBlocks());
+		}
+	}
+
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			Entry entry = index.get(key);
+			if (entry == null) {
+				return null;
+			}
+			byte[] data = new byte[entry.headerLength + entry.payloadLength];
+			int read = 0;
+			for (int i = 0; read < data.length; i++) {
+				ByteBuffer view = block(entry.blocks[i]);
+				int count = Math.min(data.length - read, blockSize);
+				view.get(data, read, count);
+				read += count;
+			}
+			return new MqttPersistentData(key, data, 0, entry.headerLength, data, entry.headerLength, entry.payloadLength);
+		}
+	}
+
+	public void remove(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			Entry entry = index.remove(key);
+			if (entry != null) {
+				release(entry);
+			}
+		}
+	}
+
+	public Enumeration<String> keys() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return new Vector<String>(index.keySet()).elements();
+		}
+	}
+
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			return index.containsKey(key);
+		}
+	}
+
+	public void clear() throws MqttPersistenceException {
+		synchronized (lock) {
+			checkIsOpen();
+			index.clear();
+			free.set(0, slabBlocks());
+			freeBlocks = slabBlocks();
+			dataBytes = 0;
+		}
+	}
+
+	/**
+	 * @return the most memory that can be used for messages, in bytes
+	 */
+	public long getCapacity() {
+		return (long) maxBlocks * blockSize;
+	}
+
+	/**
+	 * @return the memory allocated so far, in bytes
+	 */
+	public long getAllocatedBytes() {
+		synchronized (lock) {
+			return (long) slabBlocks() * blockSize;
+		}
+	}
+
+	/**
+	 * @return the memory taken by the blocks of the messages held, in bytes
+	 */
+	public long getUsedBytes() {
+		synchronized (lock) {
+			return (long) getUsedBlocks() * blockSize;
+		}
+	}
+
+	/**
+	 * @return the most memory that the blocks of the messages have taken at
+	 * once since the persistence was created, in bytes
+	 */
+	public long getPeakUsedBytes() {
+		synchronized (lock) {
+			return (long) peakBlocks * blockSize;
+		}
+	}
+
+	/**
+	 * @return the size of the messages held, in bytes
+	 */
+	public long getDataBytes() {
+		synchronized (lock) {
+			return dataBytes;
+		}
+	}
+
+	/**
+	 * @return the number of messages held
+	 */
+	public int getMessageCount() {
+		synchronized (lock) {
+			return index.size();
+		}
+	}
+
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (!open) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	private int slabBlocks() {
+		return Math.min(slabs.size() * blocksPerSlab, maxBlocks);
+	}
+
+	private int getUsedBlocks() {
+		return slabBlocks() - freeBlocks;
+	}
+
+	/**
+	 * @return the number of blocks a message needs
+	 */
+	private int blocksFor(int dataLength) {
+		return Math.max(1, (int) ((dataLength + (long) blockSize - 1) / blockSize));
+	}
+
+	/**
+	 * Allocates slabs until there are enough free blocks.
+	 * @return false if the capacity does not allow enough of them
+	 */
+	private boolean grow(int needed) {
+		if (needed - freeBlocks > maxBlocks - slabBlocks()) {
+			return false;
+		}
+		while (freeBlocks < needed) {
+			int first = slabBlocks();
+			int count = Math.min(blocksPerSlab, maxBlocks - first);
+			slabs.add(ByteBuffer.allocateDirect(count * blockSize));
+			free.set(first, first + count);
+			freeBlocks += count;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes free blocks, lowest first.
+	 */
+	private int[] allocate(int count) {
+		int[] blocks = new int[count];
+		int block = -1;
+		for (int i = 0; i < count; i++) {
+			block = free.nextSetBit(block + 1);
+			free.clear(block);
+			blocks[i] = block;
+		}
+		freeBlocks -= count;
+		return blocks;
+	}
+
+	private void release(Entry entry) {
+		for (int block : entry.blocks) {
+			free.set(block);
+		}
+		freeBlocks += entry.blocks.length;
+		dataBytes -= entry.headerLength + entry.payloadLength;
+	}
+
+	/**
+	 * @return a view of a block, positioned at its start
+	 */
+	private ByteBuffer block(int block) {
+		ByteBuffer view = slabs.get(block / blocksPerSlab).duplicate();
+		view.position((block % blocksPerSlab) * blockSize);
+		return view;
+	}
+
+	/**
+	 * Copies bytes into a message's blocks, starting at the given offset
+	 * into the message, moving on to the next block as each fills up.
+	 * @return the index of the block the copy finished in
+	 */
+	private int copy(int[] blocks, int index, int at, byte[] data, int offset, int length) {
+		ByteBuffer view = block(blocks[index]);
+		view.position(view.position() + at % blockSize);
+		while (length > 0) {
+			if (at > 0 && at % blockSize == 0) {
+				index++;
+				view = block(blocks[index]);
+			}
+			int count = Math.min(blockSize - at % blockSize, length);
+			view.put(data, offset, count);
+			offset += count;
+			at += count;
+			length -= count;
+		}
+		return index;
+	}
+
+	/**
+	 * Where a message lies in the buffers.
+	 */
+	private static class Entry {
+		final int[] blocks;
+		final int headerLength;
+		final int payloadLength;
+
+		Entry(int[] blocks, int headerLength, int payloadLength) {
+			this.blocks = blocks;
+			this.headerLength = headerLength;
+			this.payloadLength = payloadLength;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package org.eclipse.paho.mqttv5.client.internal;
+
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InboundMessageQueueTest {
+
+	private static MqttPublish publish(String topic, String payload, int qos) {
+		return new MqttPublish(topic, new MqttMessage(payload.getBytes(), qos, false, null), new MqttProperties());
+	}
+
+	private static String poll(InboundMessageQueue queue) {
+		MqttPublish message = queue.poll();
+		return message.getTopicName() + "=" + new String(message.getMessage().getPayload());
+	}
+
+	@Test
+	public void testRingBufferWrapsAround() {
+		InboundMessageQueue queue = new InboundMessageQueue(3, MqttConnectionOptions.INBOUND_QUEUE_POLICY_BLOCK);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(InboundMessageQueue.ADDED, queue.offer(publish("a", "" + i, 1)));
+			assertEquals(InboundMessageQueue.ADDED, queue.offer(publish("b", "" + i, 1)));
+			assertEquals("a=" + i, poll(queue));
+			assertEquals("b=" + i, poll(queue));
+		}
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testBlock() {
+		InboundMessageQueue queue = new InboundMessageQueue(2, MqttConnectionOptions.INBOUND_QUEUE_POLICY_BLOCK);
+		assertEquals(InboundMessageQueue.ADDED, queue.offer(publish("a", "1", 0)));
+		assertEquals(InboundMessageQueue.ADDED, queue.offer(publish("a", "2", 0)));
+		assertEquals(InboundMessageQueue.FULL, queue.offer(publish("a", "3", 0)));
+		assertEquals(2, queue.size());
+		assertEquals("a=1", poll(queue));
+		assertEquals(InboundMessageQueue.ADDED, queue.offer(publish("a", "3", 0)));
+		assertEquals("a=2", poll(queue));
+		assertEquals("a=3", poll(queue));
+	}
+
+	@Test
+	public void testDropOldest() {
+		InboundMessageQueue queue = new InboundMessageQueue(3, MqttConnectionOptions.INBOUND_QUEUE_POLICY_DROP_OLDEST);
+		queue.offer(publish("a", "1", 1));
+		queue.offer(publish("b", "1", 0));
+		queue.offer(publish("c", "1", 2));
+		// The QoS 0 message in the middle makes room, the others keep their order
+		assertEquals(InboundMessageQueue.DROPPED, queue.offer(publish("d", "1", 1)));
+		assertEquals(3, queue.size());
+		// Only QoS 1 and 2 messages are queued, an arriving QoS 0 message is dropped
+		assertEquals(InboundMessageQueue.DROPPED, queue.offer(publish("e", "1", 0)));
+		assertEquals(InboundMessageQueue.FULL, queue.offer(publish("f", "1", 1)));
+		assertEquals("a=1", poll(queue));
+		assertEquals("c=1", poll(queue));
+		assertEquals("d=1", poll(queue));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testConflate() {
+		InboundMessageQueue queue = new InboundMessageQueue(3, MqttConnectionOptions.INBOUND_QUEUE_POLICY_CONFLATE);
+		queue.offer(publish("a", "1", 0));
+		queue.offer(publish("b", "1", 0));
+		queue.offer(publish("c", "1", 1));
+		assertEquals(InboundMessageQueue.CONFLATED, queue.offer(publish("a", "2", 0)));
+		assertEquals(InboundMessageQueue.CONFLATED, queue.offer(publish("a", "3", 0)));
+		// QoS 1 messages are not conflated, and neither are topics with nothing queued
+		assertEquals(InboundMessageQueue.FULL, queue.offer(publish("c", "2", 1)));
+		assertEquals(InboundMessageQueue.FULL, queue.offer(publish("d", "1", 0)));
+		assertEquals("a=3", poll(queue));
+		// The message for "a" has been delivered, so the next one is queued
+		assertEquals(InboundMessageQueue.ADDED, queue.offer(publish("a", "4", 0)));
+		assertEquals(InboundMessageQueue.CONFLATED, queue.offer(publish("b", "2", 0)));
+		assertEquals("b=2", poll(queue));
+		assertEquals("c=1", poll(queue));
+		assertEquals("a=4", poll(queue));
+	}
+
+	@Test
+	public void testConflateLatestOfSeveral() {
+		InboundMessageQueue queue = new InboundMessageQueue(2, MqttConnectionOptions.INBOUND_QUEUE_POLICY_CONFLATE);
+		queue.offer(publish("a", "1", 0));
+		queue.offer(publish("a", "2", 0));
+		assertEquals(InboundMessageQueue.CONFLATED, queue.offer(publish("a", "3", 0)));
+		assertEquals("a=1", poll(queue));
+		assertEquals("a=3", poll(queue));
+		queue.offer(publish("a", "4", 0));
+		queue.clear();
+		assertTrue(queue.isEmpty());
+		queue.offer(publish("a", "5", 0));
+		queue.offer(publish("b", "1", 0));
+		assertEquals(InboundMessageQueue.CONFLATED, queue.offer(publish("a", "6", 0)));
+		assertEquals("a=6", poll(queue));
+	}
+
+	@Test
+	public void testGrowsUpToCapacity() {
+		int capacity = InboundMessageQueue.INITIAL_LENGTH * 3;
+		InboundMessageQueue queue = new InboundMessageQueue(capacity, MqttConnectionOptions.INBOUND_QUEUE_POLICY_CONFLATE);
+		// Start part way round the ring buffer, so that growing has to unwrap it
+		queue.offer(publish("x", "0", 1));
+		poll(queue);
+		queue.offer(publish("c", "0", 0));
+		for (int i = 1; i < capacity; i++) {
+			assertEquals(InboundMessageQueue.ADDED, queue.offer(publish("q", "" + i, 1)));
+		}
+		assertEquals(capacity, queue.size());
+		assertEquals(InboundMessageQueue.FULL, queue.offer(publish("q", "full", 1)));
+		// The conflated message is found after the messages have moved
+		assertEquals(InboundMessageQueue.CONFLATED, queue.offer(publish("c", "1", 0)));
+		assertEquals("c=1", poll(queue));
+		for (int i = 1; i < capacity; i++) {
+			assertEquals("q=" + i, poll(queue));
+		}
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,129 @@
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionMatcherTest {
+
+	private static class NamedListener implements IMqttMessageListener {
+		private final String name;
+
+		NamedListener(String name) {
+			this.name = name;
+		}
+
+		public void messageArrived(String topic, MqttMessage message) {
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	private static Set<String> match(SubscriptionMatcher matcher, String topic) {
+		List<IMqttMessageListener> listeners = new ArrayList<IMqttMessageListener>();
+		matcher.match(topic, listeners);
+		Set<String> names = new HashSet<String>();
+		for (IMqttMessageListener listener : listeners) {
+			names.add(listener.toString());
+		}
+		return names;
+	}
+
+	private static Set<String> set(String... names) {
+		Set<String> set = new HashSet<String>();
+		for (String name : names) {
+			set.add(name);
+		}
+		return set;
+	}
+
+	private static SubscriptionMatcher matcher(String... topicFilters) {
+		SubscriptionMatcher matcher = new SubscriptionMatcher();
+		for (String topicFilter : topicFilters) {
+			matcher.put(topicFilter, new NamedListener(topicFilter));
+		}
+		return matcher;
+	}
+
+	@Test
+	public void testWildcards() {
+		SubscriptionMatcher matcher = matcher("sport/tennis/player1", "sport/tennis/+", "sport/#", "+/+/player1",
+				"#", "sport/+/player1/#", "sport/tennis/player1/#");
+
+		assertEquals(set("sport/tennis/player1", "sport/tennis/+", "sport/#", "+/+/player1", "#",
+				"sport/+/player1/#", "sport/tennis/player1/#"), match(matcher, "sport/tennis/player1"));
+		assertEquals(set("sport/#", "#"), match(matcher, "sport"));
+		assertEquals(set("sport/tennis/+", "sport/#", "#"), match(matcher, "sport/tennis/"));
+		assertEquals(set("#"), match(matcher, "news"));
+	}
+
+	@Test
+	public void testSingleLevelWildcardMatchesEmptyLevel() {
+		SubscriptionMatcher matcher = matcher("a/+/c", "+/b", "/+");
+
+		assertEquals(set("a/+/c"), match(matcher, "a//c"));
+		assertEquals(set("+/b", "/+"), match(matcher, "/b"));
+		assertEquals(set("/+"), match(matcher, "/"));
+	}
+
+	@Test
+	public void testDollarTopics() {
+		SubscriptionMatcher matcher = matcher("#", "+/monitor/Clients", "$SYS/#", "$SYS/monitor/+");
+
+		assertEquals(set("$SYS/#", "$SYS/monitor/+"), match(matcher, "$SYS/monitor/Clients"));
+		assertEquals(set("#", "+/monitor/Clients"), match(matcher, "SYS/monitor/Clients"));
+	}
+
+	@Test
+	public void testSharedSubscriptions() {
+		SubscriptionMatcher matcher = matcher("$share/group1/sport/#", "$share/group2/sport/tennis", "sport/tennis");
+
+		assertEquals(set("$share/group1/sport/#", "$share/group2/sport/tennis", "sport/tennis"),
+				match(matcher, "sport/tennis"));
+		assertEquals(set(), match(matcher, "$share/group1/sport/tennis"));
+
+		matcher.remove("$share/group2/sport/tennis");
+		assertEquals(set("$share/group1/sport/#", "sport/tennis"), match(matcher, "sport/tennis"));
+	}
+
+	@Test
+	public void testReplaceAndRemove() {
+		SubscriptionMatcher matcher = new SubscriptionMatcher();
+		matcher.put("a/+", new NamedListener("first"));
+		matcher.put("a/+", new NamedListener("second"));
+		assertEquals(set("second"), match(matcher, "a/b"));
+
+		matcher.remove("a/+");
+		matcher.remove("a/+");
+		matcher.remove("not/subscribed");
+		assertEquals(set(), match(matcher, "a/b"));
+
+		matcher.put("a/b", new NamedListener("a/b"));
+		assertEquals(set("a/b"), match(matcher, "a/b"));
+		matcher.clear();
+		assertEquals(set(), match(matcher, "a/b"));
+	}
+
+	@Test
+	public void testManyFilters() {
+		SubscriptionMatcher matcher = new SubscriptionMatcher();
+		for (int i = 0; i < 1000; i++) {
+			matcher.put("device/" + i + "/+", new NamedListener("device/" + i + "/+"));
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			matcher.remove("device/" + i + "/+");
+		}
+		assertEquals(set(), match(matcher, "device/10/status"));
+		assertEquals(set("device/11/+"), match(matcher, "device/11/status"));
+		assertEquals(set("device/999/+"), match(matcher, "device/999/status"));
+	}
+}
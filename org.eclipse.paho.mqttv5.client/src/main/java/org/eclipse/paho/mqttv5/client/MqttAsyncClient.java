@@ -1764,6 +1764,40 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		return this.comms.getActualInFlight();
 	}
 
+	/**
+	 * Returns the number of inbound messages waiting to be delivered to the
+	 * application.
+	 *
+	 * @return the current depth of the inbound queue.
+	 * @see MqttConnectionOptions#setInboundQueueSize(int)
+	 */
+	public int getInboundQueueDepth() {
+		return this.comms.getInboundQueueDepth();
+	}
+
+	/**
+	 * Returns the number of inbound QoS 0 messages dropped because the inbound
+	 * queue was full, since the client was created.
+	 *
+	 * @return the number of dropped messages.
+	 * @see MqttConnectionOptions#INBOUND_QUEUE_POLICY_DROP_OLDEST
+	 */
+	public long getInboundDroppedMessageCount() {
+		return this.comms.getInboundDroppedCount();
+	}
+
+	/**
+	 * Returns the number of queued inbound QoS 0 messages replaced by a newer
+	 * message for the same topic because the inbound queue was full, since the
+	 * client was created.
+	 *
+	 * @return the number of replaced messages.
+	 * @see MqttConnectionOptions#INBOUND_QUEUE_POLICY_CONFLATE
+	 */
+	public long getInboundConflatedMessageCount() {
+		return this.comms.getInboundConflatedCount();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
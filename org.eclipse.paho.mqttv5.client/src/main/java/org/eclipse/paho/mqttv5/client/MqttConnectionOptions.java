@@ -56,6 +56,26 @@ public class MqttConnectionOptions {
 
 	private static final String CLIENT_ID_PREFIX = "paho";
 
+	/**
+	 * The default number of inbound messages queued for delivery to the
+	 * application
+	 */
+	public static final int INBOUND_QUEUE_SIZE_DEFAULT = 10;
+	/**
+	 * When the inbound queue is full, stop reading from the network until
+	 * the application has taken a message
+	 */
+	public static final int INBOUND_QUEUE_POLICY_BLOCK = 0;
+	/**
+	 * When the inbound queue is full, drop the oldest QoS 0 message
+	 */
+	public static final int INBOUND_QUEUE_POLICY_DROP_OLDEST = 1;
+	/**
+	 * When the inbound queue is full, replace the queued QoS 0 message for the
+	 * topic of an arriving QoS 0 message
+	 */
+	public static final int INBOUND_QUEUE_POLICY_CONFLATE = 2;
+
 	// Connection Behaviour Properties
 	private String[] serverURIs = null; // List of Servers to connect to in order
 	private boolean automaticReconnect = false; // Automatic Reconnect
@@ -118,6 +138,8 @@ public class MqttConnectionOptions {
 
 	// Client Operation Parameters
 	private int executorServiceTimeout = 1; // How long to wait in seconds when terminating the executor service.
+	private int inboundQueueSize = INBOUND_QUEUE_SIZE_DEFAULT; // Inbound messages queued for the application
+	private int inboundQueuePolicy = INBOUND_QUEUE_POLICY_BLOCK; // What to do when the inbound queue is full
 
 	/**
 	 * Returns the MQTT version.
@@ -913,6 +935,8 @@ public class MqttConnectionOptions {
 		p.put("CleanStart", Boolean.valueOf(isCleanStart()));
 		p.put("ConTimeout", getConnectionTimeout());
 		p.put("KeepAliveInterval", getKeepAliveInterval());
+		p.put("InboundQueueSize", getInboundQueueSize());
+		p.put("InboundQueuePolicy", getInboundQueuePolicy());
 		p.put("UserName", (getUserName() == null) ? strNull : getUserName());
 		p.put("WillDestination", (getWillDestination() == null) ? strNull : getWillDestination());
 		if (getSocketFactory() == null) {
@@ -968,4 +992,79 @@ public class MqttConnectionOptions {
 	public void setExecutorServiceTimeout(int executorServiceTimeout) {
 		this.executorServiceTimeout = executorServiceTimeout;
 	}
+
+	/**
+	 * Returns the number of inbound messages that can be queued for delivery
+	 * to the application.
+	 * 
+	 * @return the inbound queue size
+	 * @see #setInboundQueueSize(int)
+	 */
+	public int getInboundQueueSize() {
+		return inboundQueueSize;
+	}
+
+	/**
+	 * Sets the number of inbound messages that can be queued for delivery to
+	 * the application. Messages are delivered one at a time on the client's
+	 * callback thread, and arriving messages wait in this queue while the
+	 * application handles earlier ones. What happens when the queue is full is
+	 * set with {@link #setInboundQueuePolicy(int)}. The default value is 10.
+	 * 
+	 * @param inboundQueueSize
+	 *            the inbound queue size, at least 1
+	 * @throws IllegalArgumentException
+	 *             if the size is less than 1
+	 */
+	public void setInboundQueueSize(int inboundQueueSize) throws IllegalArgumentException {
+		if (inboundQueueSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.inboundQueueSize = inboundQueueSize;
+	}
+
+	/**
+	 * Returns what happens when a message arrives and the inbound queue is
+	 * full.
+	 * 
+	 * @return the inbound queue policy
+	 * @see #setInboundQueuePolicy(int)
+	 */
+	public int getInboundQueuePolicy() {
+		return inboundQueuePolicy;
+	}
+
+	/**
+	 * Sets what happens when a message arrives and the inbound queue is full.
+	 * <ul>
+	 * <li>{@link #INBOUND_QUEUE_POLICY_BLOCK}: the client stops reading from
+	 * the network until the application has taken a message from the queue.
+	 * Acknowledgements and ping responses are not read meanwhile either. This
+	 * is the default.</li>
+	 * <li>{@link #INBOUND_QUEUE_POLICY_DROP_OLDEST}: the oldest QoS 0 message,
+	 * queued or arriving, is dropped.</li>
+	 * <li>{@link #INBOUND_QUEUE_POLICY_CONFLATE}: an arriving QoS 0 message
+	 * replaces the queued QoS 0 message for the same topic, keeping its place
+	 * in the queue, so the application only sees the latest value.</li>
+	 * </ul>
+	 * QoS 1 and 2 messages are never dropped or replaced. When no room can be
+	 * made for one, the client stops reading from the network as with
+	 * {@link #INBOUND_QUEUE_POLICY_BLOCK}. The number of dropped and replaced
+	 * messages is reported by {@link MqttAsyncClient#getInboundDroppedMessageCount()}
+	 * and {@link MqttAsyncClient#getInboundConflatedMessageCount()}.
+	 * 
+	 * @param inboundQueuePolicy
+	 *            the inbound queue policy
+	 * @throws IllegalArgumentException
+	 *             if the policy supplied is invalid
+	 */
+	public void setInboundQueuePolicy(int inboundQueuePolicy) throws IllegalArgumentException {
+		if (inboundQueuePolicy != INBOUND_QUEUE_POLICY_BLOCK && inboundQueuePolicy != INBOUND_QUEUE_POLICY_DROP_OLDEST
+				&& inboundQueuePolicy != INBOUND_QUEUE_POLICY_CONFLATE) {
+			throw new IllegalArgumentException("An incorrect inbound queue policy was used \"" + inboundQueuePolicy
+					+ "\". Acceptable policy options are " + INBOUND_QUEUE_POLICY_BLOCK + ", "
+					+ INBOUND_QUEUE_POLICY_DROP_OLDEST + " and " + INBOUND_QUEUE_POLICY_CONFLATE + ".");
+		}
+		this.inboundQueuePolicy = inboundQueuePolicy;
+	}
 }
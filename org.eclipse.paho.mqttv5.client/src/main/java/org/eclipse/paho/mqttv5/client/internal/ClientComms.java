@@ -328,6 +328,7 @@ public class ClientComms {
 				 */
 				this.mqttConnection.setKeepAliveSeconds(conOptions.getKeepAliveInterval());
 				this.clientState.setCleanStart(conOptions.isCleanStart());
+				this.callback.setInboundQueue(conOptions.getInboundQueueSize(), conOptions.getInboundQueuePolicy());
 
 				tokenStore.open();
 				ConnectBG conbg = new ConnectBG(this, token, connect, executorService);
@@ -914,6 +915,18 @@ public class ClientComms {
 		return this.disconnectedMessageBuffer.getMessageCount();
 	}
 
+	public int getInboundQueueDepth() {
+		return this.callback.getInboundQueueDepth();
+	}
+
+	public long getInboundDroppedCount() {
+		return this.callback.getInboundDroppedCount();
+	}
+
+	public long getInboundConflatedCount() {
+		return this.callback.getInboundConflatedCount();
+	}
+
 	public MqttMessage getBufferedMessage(int bufferIndex) {
 		MqttPublish send = (MqttPublish) this.disconnectedMessageBuffer.getMessage(bufferIndex).getMessage();
 		return send.getMessage();
@@ -20,6 +20,7 @@ package org.eclipse.paho.mqttv5.client.internal;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -28,6 +29,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
 import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
 import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
 import org.eclipse.paho.mqttv5.client.MqttToken;
 import org.eclipse.paho.mqttv5.client.logging.Logger;
@@ -42,7 +45,6 @@ import org.eclipse.paho.mqttv5.common.packet.MqttPubComp;
 import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
 import org.eclipse.paho.mqttv5.common.packet.MqttReturnCode;
 import org.eclipse.paho.mqttv5.common.packet.UserProperty;
-import org.eclipse.paho.mqttv5.common.util.MqttTopicValidator;
 
 /**
  * Bridge between Receiver and the external API. This class gets called by
@@ -53,15 +55,25 @@ public class CommsCallback implements Runnable {
 	private static final String CLASS_NAME = CommsCallback.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
-	private static final int INBOUND_QUEUE_SIZE = 10;
+	private static final int COMPLETE_QUEUE_SIZE = 10;
 	private MqttCallback mqttCallback;
 	private MqttCallback reconnectInternalCallback;
 	private HashMap<Integer, IMqttMessageListener> callbackMap; // Map of message handler callbacks to internal IDs
 	private HashMap<String, Integer> callbackTopicMap; // Map of Topic Strings to internal callback Ids
 	private HashMap<Integer, Integer> subscriptionIdMap; // Map of Subscription Ids to callback Ids
+	private final SubscriptionMatcher topicMatcher; // Topic Strings compiled for matching, to message handler callbacks
+	// Scratch lists for the handlers matching a message, so that matching does not allocate
+	private final ThreadLocal<ArrayList<IMqttMessageListener>> matchedListeners = new ThreadLocal<ArrayList<IMqttMessageListener>>() {
+		protected ArrayList<IMqttMessageListener> initialValue() {
+			return new ArrayList<IMqttMessageListener>();
+		}
+	};
 	private AtomicInteger messageHandlerId = new AtomicInteger(0);
 	private ClientComms clientComms;
-	private ArrayList<MqttPublish> messageQueue;
+	private InboundMessageQueue messageQueue;
+	private InboundMessageQueue nextMessageQueue; // Replaces messageQueue on the next start
+	private volatile long droppedMessageCount = 0;
+	private volatile long conflatedMessageCount = 0;
 	private ArrayList<MqttToken> completeQueue;
 
 	private enum State {STOPPED, RUNNING, QUIESCING}
@@ -81,11 +93,13 @@ public class CommsCallback implements Runnable {
 
 	CommsCallback(ClientComms clientComms) {
 		this.clientComms = clientComms;
-		this.messageQueue = new ArrayList<>(INBOUND_QUEUE_SIZE);
-		this.completeQueue = new ArrayList<>(INBOUND_QUEUE_SIZE);
+		this.messageQueue = new InboundMessageQueue(MqttConnectionOptions.INBOUND_QUEUE_SIZE_DEFAULT,
+				MqttConnectionOptions.INBOUND_QUEUE_POLICY_BLOCK);
+		this.completeQueue = new ArrayList<>(COMPLETE_QUEUE_SIZE);
 		this.callbackMap = new HashMap<>();
 		this.callbackTopicMap = new HashMap<>();
 		this.subscriptionIdMap = new HashMap<>();
+		this.topicMatcher = new SubscriptionMatcher();
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
@@ -93,6 +107,30 @@ public class CommsCallback implements Runnable {
 		this.clientState = clientState;
 	}
 
+	/**
+	 * Sets the size of the queue of inbound messages waiting to be delivered,
+	 * and what happens when a message arrives and the queue is full. Takes
+	 * effect the next time the callback thread is started.
+	 * 
+	 * @param size
+	 *            the maximum number of messages queued
+	 * @param policy
+	 *            one of the <code>INBOUND_QUEUE_POLICY_</code> constants of
+	 *            {@link MqttConnectionOptions}
+	 */
+	public void setInboundQueue(int size, int policy) {
+		final String methodName = "setInboundQueue";
+		synchronized (workAvailable) {
+			if (messageQueue.capacity() != size || messageQueue.getPolicy() != policy) {
+				// @TRACE 728=inbound queue size={0} policy={1}
+				log.fine(CLASS_NAME, methodName, "728", new Object[] { Integer.valueOf(size), Integer.valueOf(policy) });
+				nextMessageQueue = new InboundMessageQueue(size, policy);
+			} else {
+				nextMessageQueue = null;
+			}
+		}
+	}
+
 	/**
 	 * Starts up the Callback thread.
 	 * 
@@ -108,6 +146,10 @@ public class CommsCallback implements Runnable {
 				// Preparatory work before starting the background thread.
 				// For safety ensure any old events are cleared.
 				synchronized (workAvailable) {
+					if (nextMessageQueue != null) {
+						messageQueue = nextMessageQueue;
+						nextMessageQueue = null;
+					}
 					messageQueue.clear();
 					completeQueue.clear();
 				}
@@ -216,8 +258,7 @@ public class CommsCallback implements Runnable {
 							// Note, there is a window on connect where a publish
 							// could arrive before we've
 							// finished the connect logic.
-							message = messageQueue.get(0);
-							messageQueue.remove(0);
+							message = messageQueue.poll();
 						}
 					}
 					if (null != message) {
@@ -368,6 +409,9 @@ public class CommsCallback implements Runnable {
 	/**
 	 * This method is called when a message arrives on a topic. Messages are only
 	 * added to the queue for inbound messages if the client is not quiescing.
+	 * If the queue is full and no room can be made, the caller waits for the
+	 * callback thread to take a message, or drops the connection if that
+	 * thread is not running.
 	 * 
 	 * @param sendMessage
 	 *            the MQTT SEND message.
@@ -375,12 +419,39 @@ public class CommsCallback implements Runnable {
 	public void messageArrived(MqttPublish sendMessage) {
 		final String methodName = "messageArrived";
 		if (mqttCallback != null || callbackMap.size() > 0) {
-			// If we already have enough messages queued up in memory, wait
-			// until some more queue space becomes available. This helps
-			// the client protect itself from getting flooded by messages
-			// from the server.
+			// If we already have enough messages queued up in memory, make
+			// room as the overflow policy allows, or wait until some more
+			// queue space becomes available. This helps the client protect
+			// itself from getting flooded by messages from the server.
+			boolean undeliverable = false;
 			synchronized (spaceAvailable) {
-				while (isRunning() && !isQuiescing() && messageQueue.size() >= INBOUND_QUEUE_SIZE) {
+				while (!isQuiescing()) {
+					int result;
+					synchronized (workAvailable) {
+						result = messageQueue.offer(sendMessage);
+						if (result != InboundMessageQueue.FULL) {
+							// Notify the CommsCallback thread that there's work to do...
+							// @TRACE 710=new msg avail, notify workAvailable
+							log.fine(CLASS_NAME, methodName, "710");
+							workAvailable.notifyAll();
+						}
+					}
+					if (result == InboundMessageQueue.DROPPED) {
+						droppedMessageCount++;
+						// @TRACE 729=inbound queue full, dropped a QoS 0 message topic={0}
+						log.fine(CLASS_NAME, methodName, "729", new Object[] { sendMessage.getTopicName() });
+					} else if (result == InboundMessageQueue.CONFLATED) {
+						conflatedMessageCount++;
+					}
+					if (result != InboundMessageQueue.FULL) {
+						break;
+					}
+					if (!isRunning()) {
+						// Nothing takes messages off the queue, so this one
+						// cannot be delivered
+						undeliverable = true;
+						break;
+					}
 					try {
 						// @TRACE 709=wait for spaceAvailable
 						log.fine(CLASS_NAME, methodName, "709");
@@ -389,14 +460,13 @@ public class CommsCallback implements Runnable {
 					}
 				}
 			}
-			if (!isQuiescing()) {
-				// Notify the CommsCallback thread that there's work to do...
-				synchronized (workAvailable) {
-					messageQueue.add(sendMessage);
-					// @TRACE 710=new msg avail, notify workAvailable
-					log.fine(CLASS_NAME, methodName, "710");
-					workAvailable.notifyAll();
-				}
+			if (undeliverable) {
+				// Dropping the connection rather than the message means the
+				// server sends a QoS 1 or 2 message again when the session resumes
+				// @TRACE 730=inbound queue full and callback not running, dropped message topic={0}
+				log.fine(CLASS_NAME, methodName, "730", new Object[] { sendMessage.getTopicName() });
+				clientComms.shutdownConnection(null,
+						new MqttException(MqttClientException.REASON_CODE_CONNECTION_LOST), null);
 			}
 		}
 	}
@@ -471,6 +541,31 @@ public class CommsCallback implements Runnable {
 		return (isQuiescing() && areQueuesEmpty());
 	}
 
+	/**
+	 * @return the number of inbound messages waiting to be delivered
+	 */
+	public int getInboundQueueDepth() {
+		synchronized (workAvailable) {
+			return messageQueue.size();
+		}
+	}
+
+	/**
+	 * @return the number of inbound QoS 0 messages dropped because the inbound
+	 *         queue was full
+	 */
+	public long getInboundDroppedCount() {
+		return droppedMessageCount;
+	}
+
+	/**
+	 * @return the number of queued inbound QoS 0 messages replaced by a newer
+	 *         message for the same topic because the inbound queue was full
+	 */
+	public long getInboundConflatedCount() {
+		return conflatedMessageCount;
+	}
+
 	private void handleMessage(MqttPublish publishMessage) throws Exception {
 		final String methodName = "handleMessage";
 		// If quisecing process any pending messages.
@@ -544,6 +639,7 @@ public class CommsCallback implements Runnable {
 		int internalId = messageHandlerId.incrementAndGet();
 		this.callbackMap.put(internalId, messageListener);
 		this.callbackTopicMap.put(topicFilter, internalId);
+		this.topicMatcher.put(topicFilter, messageListener);
 
 		if (subscriptionId != null) {
 			this.subscriptionIdMap.put(subscriptionId, internalId);
@@ -563,11 +659,13 @@ public class CommsCallback implements Runnable {
 		Integer callbackId = this.callbackTopicMap.get(topicFilter);
 		this.callbackMap.remove(callbackId);
 		this.callbackTopicMap.remove(topicFilter);
+		this.topicMatcher.remove(topicFilter);
 
 		// Reverse lookup the subscription ID if it exists to remove that as well
-		for (Map.Entry<Integer, Integer> entry : this.subscriptionIdMap.entrySet()) {
-			if (entry.getValue().equals(callbackId)) {
-				this.subscriptionIdMap.remove(entry.getKey());
+		Iterator<Map.Entry<Integer, Integer>> entries = this.subscriptionIdMap.entrySet().iterator();
+		while (entries.hasNext()) {
+			if (entries.next().getValue().equals(callbackId)) {
+				entries.remove();
 			}
 		}
 	}
@@ -588,9 +686,12 @@ public class CommsCallback implements Runnable {
 		this.callbackMap.remove(callbackId);
 
 		// Reverse lookup the topic if it exists to remove that as well
-		for (Map.Entry<String, Integer> entry : this.callbackTopicMap.entrySet()) {
+		Iterator<Map.Entry<String, Integer>> entries = this.callbackTopicMap.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Integer> entry = entries.next();
 			if (entry.getValue().equals(callbackId)) {
-				this.callbackTopicMap.remove(entry.getKey());
+				entries.remove();
+				this.topicMatcher.remove(entry.getKey());
 			}
 		}
 	}
@@ -599,6 +700,7 @@ public class CommsCallback implements Runnable {
 		this.callbackMap.clear();
 		this.subscriptionIdMap.clear();
 		this.callbackTopicMap.clear();
+		this.topicMatcher.clear();
 	}
 
 	protected boolean deliverMessage(String topicName, int messageId, MqttMessage aMessage) throws Exception {
@@ -607,12 +709,16 @@ public class CommsCallback implements Runnable {
 
 		if (aMessage.getProperties().getSubscriptionIdentifiers().isEmpty()) {
 			// No Subscription IDs, use topic filter matching
-			for (Map.Entry<String, Integer> entry : this.callbackTopicMap.entrySet()) {
-				if (MqttTopicValidator.isMatched(entry.getKey(), topicName)) {
+			ArrayList<IMqttMessageListener> listeners = matchedListeners.get();
+			try {
+				topicMatcher.match(topicName, listeners);
+				for (int i = 0; i < listeners.size(); i++) {
 					aMessage.setId(messageId);
-					this.callbackMap.get(entry.getValue()).messageArrived(topicName, aMessage);
+					listeners.get(i).messageArrived(topicName, aMessage);
 					delivered = true;
 				}
+			} finally {
+				listeners.clear();
 			}
 
 		} else {
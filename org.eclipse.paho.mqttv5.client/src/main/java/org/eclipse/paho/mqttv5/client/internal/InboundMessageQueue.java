@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.HashMap;
+
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+
+/**
+ * The bounded queue of inbound messages waiting for the callback thread, held
+ * in a ring buffer.
+ * <p>
+ * What happens when a message arrives and the queue is full depends on the
+ * overflow policy:
+ * <ul>
+ * <li>{@link MqttConnectionOptions#INBOUND_QUEUE_POLICY_BLOCK}: the message is
+ * not added, and the caller waits for space.</li>
+ * <li>{@link MqttConnectionOptions#INBOUND_QUEUE_POLICY_DROP_OLDEST}: the
+ * oldest QoS 0 message, queued or arriving, is dropped.</li>
+ * <li>{@link MqttConnectionOptions#INBOUND_QUEUE_POLICY_CONFLATE}: an arriving
+ * QoS 0 message replaces the queued QoS 0 message for the same topic, keeping
+ * its place in the queue.</li>
+ * </ul>
+ * QoS 1 and 2 messages are never dropped or replaced, as the server is owed an
+ * acknowledgement for each of them. If no room can be made the caller waits
+ * for space, as with the block policy.
+ * <p>
+ * The ring buffer starts at no more than {@link #INITIAL_LENGTH} messages and
+ * doubles as needed up to the capacity, so that a large capacity costs memory
+ * only once that many messages are queued.
+ * <p>
+ * This class is not thread safe, callers serialise access to it.
+ */
+class InboundMessageQueue {
+	static final int INITIAL_LENGTH = 64;
+
+	private MqttPublish[] messages;
+	private final int capacity;
+	private final int policy;
+	private int head = 0;
+	private int count = 0;
+	// Sequence number of the message at head, used to locate conflated messages
+	private long headSequence = 0;
+	// The sequence number of the latest queued QoS 0 message of each topic
+	private final HashMap<String, Long> latestByTopic;
+
+	/** The queue is full and the message was not added */
+	static final int FULL = 0;
+	/** The message was added */
+	static final int ADDED = 1;
+	/** A QoS 0 message was dropped, the arriving one or a queued one */
+	static final int DROPPED = 2;
+	/** The message replaced the queued message for its topic */
+	static final int CONFLATED = 3;
+
+	/**
+	 * @param capacity the maximum number of messages queued
+	 * @param policy what to do when the queue is full, one of the
+	 * <code>INBOUND_QUEUE_POLICY_</code> constants of
+	 * {@link MqttConnectionOptions}
+	 */
+	InboundMessageQueue(int capacity, int policy) {
+		this.messages = new MqttPublish[Math.min(capacity, INITIAL_LENGTH)];
+		this.capacity = capacity;
+		this.policy = policy;
+		this.latestByTopic = policy == MqttConnectionOptions.INBOUND_QUEUE_POLICY_CONFLATE
+				? new HashMap<String, Long>() : null;
+	}
+
+	/**
+	 * Adds a message to the tail of the queue, making room for it as the
+	 * overflow policy allows if the queue is full.
+	 * @param message the message
+	 * @return {@link #ADDED}, {@link #DROPPED} or {@link #CONFLATED} if the
+	 * message was taken, {@link #FULL} if the caller needs to wait for space
+	 */
+	int offer(MqttPublish message) {
+		boolean qos0 = message.getMessage().getQos() == 0;
+		int result = ADDED;
+		if (count == messages.length && count < capacity) {
+			grow();
+		}
+		if (count == capacity) {
+			if (policy == MqttConnectionOptions.INBOUND_QUEUE_POLICY_DROP_OLDEST) {
+				if (!dropOldestQoS0()) {
+					// Nothing queued can be dropped, so the arriving message goes if it can
+					return qos0 ? DROPPED : FULL;
+				}
+				result = DROPPED;
+			} else if (policy == MqttConnectionOptions.INBOUND_QUEUE_POLICY_CONFLATE) {
+				return qos0 && conflate(message) ? CONFLATED : FULL;
+			} else {
+				return FULL;
+			}
+		}
+		if (latestByTopic != null && qos0) {
+			latestByTopic.put(message.getTopicName(), Long.valueOf(headSequence + count));
+		}
+		messages[(head + count) % messages.length] = message;
+		count++;
+		return result;
+	}
+
+	/**
+	 * Moves the messages to a ring buffer twice as long, or as long as the
+	 * capacity if that is less, with the head at the start.
+	 */
+	private void grow() {
+		MqttPublish[] grown = new MqttPublish[(int) Math.min(capacity, messages.length * 2L)];
+		for (int i = 0; i < count; i++) {
+			grown[i] = messages[(head + i) % messages.length];
+		}
+		messages = grown;
+		head = 0;
+	}
+
+	/**
+	 * Removes the message at the head of the queue.
+	 * @return the message, or null if the queue is empty
+	 */
+	MqttPublish poll() {
+		if (count == 0) {
+			return null;
+		}
+		MqttPublish message = messages[head];
+		messages[head] = null;
+		if (latestByTopic != null) {
+			Long sequence = latestByTopic.get(message.getTopicName());
+			if (sequence != null && sequence.longValue() == headSequence) {
+				latestByTopic.remove(message.getTopicName());
+			}
+		}
+		head = (head + 1) % messages.length;
+		headSequence++;
+		count--;
+		return message;
+	}
+
+	/**
+	 * Replaces the queued QoS 0 message for the topic of a message.
+	 * @return false if there is no such message
+	 */
+	private boolean conflate(MqttPublish message) {
+		Long sequence = latestByTopic.get(message.getTopicName());
+		if (sequence == null) {
+			return false;
+		}
+		messages[(int) ((head + sequence.longValue() - headSequence) % messages.length)] = message;
+		return true;
+	}
+
+	/**
+	 * Removes the oldest queued QoS 0 message, moving the messages before it
+	 * up by one.
+	 * @return false if no QoS 0 message is queued
+	 */
+	private boolean dropOldestQoS0() {
+		for (int i = 0; i < count; i++) {
+			int index = (head + i) % messages.length;
+			if (messages[index].getMessage().getQos() == 0) {
+				for (int j = i; j > 0; j--) {
+					int to = (head + j) % messages.length;
+					messages[to] = messages[(head + j - 1) % messages.length];
+				}
+				messages[head] = null;
+				head = (head + 1) % messages.length;
+				headSequence++;
+				count--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes all messages.
+	 */
+	void clear() {
+		for (int i = 0; i < count; i++) {
+			messages[(head + i) % messages.length] = null;
+		}
+		head = 0;
+		count = 0;
+		if (latestByTopic != null) {
+			latestByTopic.clear();
+		}
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	int size() {
+		return count;
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	int getPolicy() {
+		return policy;
+	}
+}
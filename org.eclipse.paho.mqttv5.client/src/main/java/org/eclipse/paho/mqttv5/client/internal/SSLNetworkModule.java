@@ -30,6 +30,7 @@ import javax.net.ssl.SSLSocketFactory;
 
 import org.eclipse.paho.mqttv5.client.logging.Logger;
 import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
+import org.eclipse.paho.mqttv5.client.security.SSLSocketFactoryFactory;
 import org.eclipse.paho.mqttv5.common.MqttException;
 
 /**
@@ -123,6 +124,7 @@ public class SSLNetworkModule extends TCPNetworkModule {
 	}
 
 	public void start() throws IOException, MqttException {
+		final String methodName = "start";
 		super.start();
 		setEnabledCiphers(enabledCiphers);
 		int soTimeout = socket.getSoTimeout();
@@ -142,9 +144,13 @@ public class SSLNetworkModule extends TCPNetworkModule {
 
 		((SSLSocket) socket).setSSLParameters(sslParameters);
 
+		long handshakeStart = System.currentTimeMillis();
 		((SSLSocket) socket).startHandshake();
+		SSLSession session = ((SSLSocket) socket).getSession();
+		boolean resumed = SSLSocketFactoryFactory.recordHandshake(session, handshakeStart);
+		// @TRACE 261=handshake complete protocol={0} cipherSuite={1} resumed={2}
+		log.fine(CLASS_NAME, methodName, "261", new Object[] { session.getProtocol(), session.getCipherSuite(), Boolean.valueOf(resumed) });
 		if (hostnameVerifier != null) {
-			SSLSession session = ((SSLSocket) socket).getSession();
 			if(!hostnameVerifier.verify(host, session)) {
 				session.invalidate();
 				socket.close();
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.List;
+
+import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
+
+/**
+ * An index of topic filters and their message listeners, used to find the
+ * listeners for an inbound message that carries no subscription
+ * identifiers.
+ * <p>
+ * The filters are compiled into a tree with one level per topic level. The
+ * single level wildcard '+' and the multi level wildcard '#' have their own
+ * nodes, so all the listeners for a topic are found in one walk down its
+ * levels. Shared subscriptions are indexed by the filter after their
+ * <code>$share/{ShareName}/</code> prefix, which is what the server matches
+ * topics against.
+ * <p>
+ * Matching does not allocate: topic levels are hashed and compared in place
+ * in the topic string. Adding and removing filters is serialised on the
+ * matcher and replaces the affected arrays rather than changing them, so
+ * matching takes no lock.
+ */
+class SubscriptionMatcher {
+	private static final String SHARE_PREFIX = "$share/";
+	private static final char TOPIC_LEVEL_SEPARATOR = '/';
+	private static final String SINGLE_LEVEL_WILDCARD = "+";
+	private static final String MULTI_LEVEL_WILDCARD = "#";
+
+	private static final Node[] NO_CHILDREN = new Node[0];
+	private static final Entry[] NO_ENTRIES = new Entry[0];
+
+	private final Node root = new Node(null);
+
+	private static final class Entry {
+		final String topicFilter;
+		final IMqttMessageListener listener;
+
+		Entry(String topicFilter, IMqttMessageListener listener) {
+			this.topicFilter = topicFilter;
+			this.listener = listener;
+		}
+	}
+
+	private static final class Node {
+		final String level;
+		// Open addressed by level hash, the length is zero or a power of two
+		volatile Node[] children = NO_CHILDREN;
+		int childCount = 0;
+		volatile Node singleLevel;
+		volatile Node multiLevel;
+		// The filters ending at this node
+		volatile Entry[] entries = NO_ENTRIES;
+
+		Node(String level) {
+			this.level = level;
+		}
+
+		boolean isEmpty() {
+			return childCount == 0 && singleLevel == null && multiLevel == null && entries.length == 0;
+		}
+	}
+
+	/**
+	 * Adds a listener for a topic filter, replacing any listener the filter
+	 * already has.
+	 * @param topicFilter a valid topic filter, which may contain wildcards or
+	 * be a shared subscription
+	 * @param listener the listener
+	 */
+	synchronized void put(String topicFilter, IMqttMessageListener listener) {
+		Node node = root;
+		int start = getMatchStart(topicFilter);
+		while (start >= 0) {
+			int end = topicFilter.indexOf(TOPIC_LEVEL_SEPARATOR, start);
+			String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+			node = getOrAddChild(node, level);
+			start = end < 0 ? -1 : end + 1;
+		}
+		Entry[] entries = node.entries;
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].topicFilter.equals(topicFilter)) {
+				Entry[] replaced = entries.clone();
+				replaced[i] = new Entry(topicFilter, listener);
+				node.entries = replaced;
+				return;
+			}
+		}
+		Entry[] added = new Entry[entries.length + 1];
+		System.arraycopy(entries, 0, added, 0, entries.length);
+		added[entries.length] = new Entry(topicFilter, listener);
+		node.entries = added;
+	}
+
+	/**
+	 * Removes the listener for a topic filter. Nothing happens if the filter
+	 * has no listener.
+	 * @param topicFilter the topic filter
+	 */
+	synchronized void remove(String topicFilter) {
+		remove(root, topicFilter, getMatchStart(topicFilter));
+	}
+
+	/**
+	 * Removes all listeners.
+	 */
+	synchronized void clear() {
+		root.children = NO_CHILDREN;
+		root.childCount = 0;
+		root.singleLevel = null;
+		root.multiLevel = null;
+		root.entries = NO_ENTRIES;
+	}
+
+	/**
+	 * Adds the listeners of all the topic filters matching a topic to a list.
+	 * As required by the MQTT specification, filters starting with a
+	 * wildcard do not match topics starting with '$'.
+	 * @param topicName the topic name, without wildcards
+	 * @param listeners the list to add the listeners to
+	 */
+	void match(String topicName, List<IMqttMessageListener> listeners) {
+		match(root, topicName, 0, topicName.length() > 0 && topicName.charAt(0) == '$', listeners);
+	}
+
+	/**
+	 * @param start the start of the next topic level to match, or -1 if all
+	 * the levels have been matched
+	 * @param noWildcards true if wildcards may not match the next level
+	 */
+	private static void match(Node node, String topicName, int start, boolean noWildcards,
+			List<IMqttMessageListener> listeners) {
+		// '#' also matches the parent level, so "sport/#" matches "sport"
+		Node multiLevel = node.multiLevel;
+		if (multiLevel != null && !noWildcards) {
+			addListeners(multiLevel, listeners);
+		}
+		if (start < 0) {
+			addListeners(node, listeners);
+			return;
+		}
+		int hash = 0;
+		int end = start;
+		int length = topicName.length();
+		char c;
+		while (end < length && (c = topicName.charAt(end)) != TOPIC_LEVEL_SEPARATOR) {
+			hash = 31 * hash + c;
+			end++;
+		}
+		int next = end < length ? end + 1 : -1;
+		Node[] children = node.children;
+		if (children.length > 0) {
+			int mask = children.length - 1;
+			for (int i = spread(hash) & mask; children[i] != null; i = (i + 1) & mask) {
+				String level = children[i].level;
+				if (level.length() == end - start && topicName.regionMatches(start, level, 0, level.length())) {
+					match(children[i], topicName, next, false, listeners);
+					break;
+				}
+			}
+		}
+		Node singleLevel = node.singleLevel;
+		if (singleLevel != null && !noWildcards) {
+			match(singleLevel, topicName, next, false, listeners);
+		}
+	}
+
+	private static void addListeners(Node node, List<IMqttMessageListener> listeners) {
+		Entry[] entries = node.entries;
+		for (int i = 0; i < entries.length; i++) {
+			listeners.add(entries[i].listener);
+		}
+	}
+
+	/**
+	 * Returns where the part of a filter that is matched against topics
+	 * starts, which is after the prefix of a shared subscription.
+	 */
+	private static int getMatchStart(String topicFilter) {
+		if (topicFilter.startsWith(SHARE_PREFIX)) {
+			int end = topicFilter.indexOf(TOPIC_LEVEL_SEPARATOR, SHARE_PREFIX.length());
+			return end < 0 ? topicFilter.length() : end + 1;
+		}
+		return 0;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static Node getOrAddChild(Node node, String level) {
+		if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+			if (node.singleLevel == null) {
+				node.singleLevel = new Node(level);
+			}
+			return node.singleLevel;
+		}
+		if (level.equals(MULTI_LEVEL_WILDCARD)) {
+			if (node.multiLevel == null) {
+				node.multiLevel = new Node(level);
+			}
+			return node.multiLevel;
+		}
+		Node child = getChild(node, level);
+		if (child == null) {
+			child = new Node(level);
+			setChildren(node, node.childCount + 1, child, null);
+		}
+		return child;
+	}
+
+	private static Node getChild(Node node, String level) {
+		Node[] children = node.children;
+		if (children.length == 0) {
+			return null;
+		}
+		int mask = children.length - 1;
+		for (int i = spread(level.hashCode()) & mask; children[i] != null; i = (i + 1) & mask) {
+			if (children[i].level.equals(level)) {
+				return children[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Rebuilds the child table of a node with one child added or removed.
+	 */
+	private static void setChildren(Node node, int count, Node added, Node removed) {
+		int capacity = 0;
+		if (count > 0) {
+			capacity = 2;
+			while (capacity < count * 2) {
+				capacity <<= 1;
+			}
+		}
+		Node[] children = capacity == 0 ? NO_CHILDREN : new Node[capacity];
+		for (Node child : node.children) {
+			if (child != null && child != removed) {
+				insert(children, child);
+			}
+		}
+		if (added != null) {
+			insert(children, added);
+		}
+		node.childCount = count;
+		node.children = children;
+	}
+
+	private static void insert(Node[] children, Node child) {
+		int mask = children.length - 1;
+		int i = spread(child.level.hashCode()) & mask;
+		while (children[i] != null) {
+			i = (i + 1) & mask;
+		}
+		children[i] = child;
+	}
+
+	private static void remove(Node node, String topicFilter, int start) {
+		if (start < 0) {
+			Entry[] entries = node.entries;
+			for (int i = 0; i < entries.length; i++) {
+				if (entries[i].topicFilter.equals(topicFilter)) {
+					Entry[] removed = new Entry[entries.length - 1];
+					System.arraycopy(entries, 0, removed, 0, i);
+					System.arraycopy(entries, i + 1, removed, i, entries.length - i - 1);
+					node.entries = removed;
+					return;
+				}
+			}
+			return;
+		}
+		int end = topicFilter.indexOf(TOPIC_LEVEL_SEPARATOR, start);
+		String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+		int next = end < 0 ? -1 : end + 1;
+		if (level.equals(SINGLE_LEVEL_WILDCARD)) {
+			if (node.singleLevel != null) {
+				remove(node.singleLevel, topicFilter, next);
+				if (node.singleLevel.isEmpty()) {
+					node.singleLevel = null;
+				}
+			}
+		} else if (level.equals(MULTI_LEVEL_WILDCARD)) {
+			if (node.multiLevel != null) {
+				remove(node.multiLevel, topicFilter, next);
+				if (node.multiLevel.isEmpty()) {
+					node.multiLevel = null;
+				}
+			}
+		} else {
+			Node child = getChild(node, level);
+			if (child != null) {
+				remove(child, topicFilter, next);
+				if (child.isEmpty()) {
+					setChildren(node, node.childCount - 1, null, child);
+				}
+			}
+		}
+	}
+}
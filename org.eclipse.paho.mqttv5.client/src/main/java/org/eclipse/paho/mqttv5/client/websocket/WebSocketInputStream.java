@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2026 IBM Corp. and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ *   https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the payload of incoming WebSocket frames straight off the socket.
+ * <p>
+ * Frames are decoded on the thread that reads the stream. Each frame header
+ * is parsed as it is reached, and the payload bytes are read into the
+ * caller's array and unmasked there, so a binary frame carrying an MQTT
+ * packet is copied once, into the MQTT decoder's buffer.
+ * <p>
+ * A socket read timeout leaves the header read so far in place, so the
+ * next read carries on from there, like a read of a plain socket.
+ */
+class WebSocketInputStream extends InputStream {
+
+	private static final int OPCODE_CONTINUATION = 0x00;
+	private static final int OPCODE_BINARY = 0x02;
+	private static final int OPCODE_CLOSE = 0x08;
+
+	// Two bytes, an eight byte extended length and a four byte masking key
+	private static final int MAX_HEADER_LENGTH = 14;
+
+	private final InputStream in;
+
+	private final byte[] header = new byte[MAX_HEADER_LENGTH];
+	private int headerLen = 0;
+
+	// Payload bytes of the current frame that are still to be read
+	private long remaining = 0;
+	private boolean masked = false;
+	private final byte[] mask = new byte[4];
+	private int maskIndex = 0;
+
+	/**
+	 * @param in the socket input stream, positioned after the handshake
+	 */
+	WebSocketInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (remaining == 0) {
+			if (!readHeader()) {
+				return -1;
+			}
+		}
+		int count = in.read(b, off, (int) Math.min(len, remaining));
+		if (count < 0) {
+			throw new EOFException();
+		}
+		if (masked) {
+			for (int i = off; i < off + count; i++) {
+				b[i] ^= mask[maskIndex];
+				maskIndex = (maskIndex + 1) & 3;
+			}
+		}
+		remaining -= count;
+		return count;
+	}
+
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads the header of the next frame.
+	 *
+	 * @return false if the stream ended before the frame started
+	 * @throws IOException if the frame is not a binary or continuation frame,
+	 *             its length is out of range, or the stream ended part way
+	 *             through the header
+	 */
+	private boolean readHeader() throws IOException {
+		if (!fill(2)) {
+			return false;
+		}
+		int opcode = header[0] & 0x0F;
+		int length = header[1] & 0x7F;
+		int lengthBytes = length == 0x7F ? 8 : length == 0x7E ? 2 : 0;
+		boolean frameMasked = (header[1] & 0x80) != 0;
+		fill(2 + lengthBytes + (frameMasked ? 4 : 0));
+
+		if (opcode == OPCODE_CLOSE) {
+			throw new IOException("Server sent a WebSocket Frame with the Stop OpCode");
+		} else if (opcode != OPCODE_BINARY && opcode != OPCODE_CONTINUATION) {
+			throw new IOException("Invalid Frame: Opcode: " + opcode);
+		}
+
+		long payloadLength = length;
+		if (lengthBytes > 0) {
+			payloadLength = 0;
+			for (int i = 0; i < lengthBytes; i++) {
+				payloadLength = (payloadLength << 8) | (header[2 + i] & 0xFF);
+			}
+			if (payloadLength < 0) {
+				// The most significant bit of a 64 bit length must be 0
+				throw new IOException("Invalid Frame: Length: " + Long.toUnsignedString(payloadLength));
+			}
+		}
+		masked = frameMasked;
+		if (masked) {
+			System.arraycopy(header, 2 + lengthBytes, mask, 0, 4);
+			maskIndex = 0;
+		}
+		remaining = payloadLength;
+		headerLen = 0;
+		return true;
+	}
+
+	/**
+	 * Reads the header up to the given length. The bytes read so far are
+	 * kept if the read times out.
+	 *
+	 * @return false if the stream ended before the header started
+	 */
+	private boolean fill(int length) throws IOException {
+		while (headerLen < length) {
+			int count = in.read(header, headerLen, length - headerLen);
+			if (count < 0) {
+				if (headerLen == 0) {
+					return false;
+				}
+				throw new EOFException();
+			}
+			headerLen += count;
+		}
+		return true;
+	}
+}
@@ -19,7 +19,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
@@ -38,8 +37,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	private String uri;
 	private String host;
 	private int port;
-	private PipedInputStream pipedInputStream;
-	private WebSocketReceiver webSocketReceiver;
+	private WebSocketInputStream webSocketInputStream;
 	ByteBuffer recievedPayload;
 	Map<String, String> customWebSocketHeaders;
 
@@ -55,7 +53,6 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		this.uri = uri;
 		this.host = host;
 		this.port = port;
-		this.pipedInputStream = new PipedInputStream();
 		
 		log.setResourceName(resourceContext);
 	}
@@ -64,8 +61,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		super.start();
 		WebSocketHandshake handshake = new WebSocketHandshake(getSocketInputStream(), getSocketOutputStream(), uri, host, port, customWebSocketHeaders);
 		handshake.execute();
-		this.webSocketReceiver = new WebSocketReceiver(getSocketInputStream(), pipedInputStream);
-		webSocketReceiver.start("webSocketReceiver");
+		this.webSocketInputStream = new WebSocketInputStream(getSocketInputStream());
 	}
 	
 	OutputStream getSocketOutputStream() throws IOException {
@@ -77,7 +73,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	}
 	
 	public InputStream getInputStream() throws IOException {
-		return pipedInputStream;
+		return webSocketInputStream;
 	}
 	
 	public OutputStream getOutputStream() throws IOException {
@@ -98,9 +94,6 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		getSocketOutputStream().write(rawFrame);
 		getSocketOutputStream().flush();
 
-		if(webSocketReceiver != null){
-			webSocketReceiver.stop();
-		}
 		super.stop();
 	}
 	